@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.async;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.magnet.android.mms.connection.LoopbackConnectionService;
+import com.magnet.android.mms.connection.LoopbackConnectionService.Reply;
+
+/**
+ * A stand-in server of the chunked upload protocol for the loopback transport.
+ * A committed upload answers its length and keeps its content.  Chunks can be
+ * made to fail to test the resumption.
+ */
+public class ChunkedUploadServer implements LoopbackConnectionService.Handler {
+  private static final String SESSION_PATH = "/uploads/";
+  private final HashMap<String, Upload> mUploads = new HashMap<String, Upload>();
+  private final HashMap<String, byte[]> mCommitted = new HashMap<String, byte[]>();
+  private int mNextId;
+  private int mChunks;
+  private int mFailAfterChunks = -1;
+
+  private static class Upload {
+    final String mPath;
+    final byte[] mData;
+    final BitSet mReceived = new BitSet();
+
+    Upload(String path, int length) {
+      mPath = path;
+      mData = new byte[length];
+    }
+  }
+
+  /**
+   * Fail every chunk after a number of chunks are stored.
+   * @param chunks The number of chunks to store, or -1 to store all.
+   */
+  public synchronized void setFailAfterChunks(int chunks) {
+    mFailAfterChunks = chunks;
+    mChunks = 0;
+  }
+
+  /**
+   * Forget all upload sessions, e.g. when they expire.
+   */
+  public synchronized void expireSessions() {
+    mUploads.clear();
+  }
+
+  /**
+   * @return The number of chunks stored.
+   */
+  public synchronized int getChunks() {
+    return mChunks;
+  }
+
+  /**
+   * @param path The call path.
+   * @return The committed content uploaded to the path, or null.
+   */
+  public synchronized byte[] getCommitted(String path) {
+    return mCommitted.get(path);
+  }
+
+  @Override
+  public synchronized Reply handle(String method, String path, Map<String, String> headers,
+      byte[] body) {
+    if (ChunkedUploader.PROTOCOL_CHUNKED.equals(headers.get(ChunkedUploader.HEADER_PROTOCOL))) {
+      String id = SESSION_PATH+(++mNextId);
+      mUploads.put(id, new Upload(path, Integer.parseInt(
+          headers.get(ChunkedUploader.HEADER_CONTENT_LENGTH))));
+      return new Reply(201, null, new byte[0]).setHeader("Location", id);
+    }
+    Upload upload = mUploads.get(path);
+    if (upload == null) {
+      return new Reply(404, "text/plain", "No such upload: "+path);
+    }
+    if (ChunkedUploader.COMMAND_COMMIT.equals(headers.get(ChunkedUploader.HEADER_COMMAND))) {
+      if (upload.mReceived.nextClearBit(0) < upload.mData.length) {
+        return new Reply(400, "text/plain", "Incomplete upload: "+path);
+      }
+      mUploads.remove(path);
+      mCommitted.put(upload.mPath, upload.mData);
+      return new Reply(200, "text/plain", String.valueOf(upload.mData.length));
+    }
+    if (mFailAfterChunks >= 0 && mChunks >= mFailAfterChunks) {
+      return new Reply(503, "text/plain", "Service Unavailable");
+    }
+    // Content-Range: bytes first-last/length
+    String range = headers.get("Content-Range");
+    int first = Integer.parseInt(range.substring(6, range.indexOf('-')));
+    System.arraycopy(body, 0, upload.mData, first, body.length);
+    upload.mReceived.set(first, first + body.length);
+    ++mChunks;
+    return new Reply(204, null, new byte[0]);
+  }
+}
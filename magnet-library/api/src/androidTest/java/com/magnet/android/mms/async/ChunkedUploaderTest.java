@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.async;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.magnet.android.mms.async.AsyncService.CallRequest;
+import com.magnet.android.mms.async.AsyncService.Envelope;
+import com.magnet.android.mms.async.AsyncService.Payload;
+import com.magnet.android.mms.connection.ConnectionConfigManager;
+import com.magnet.android.mms.connection.ConnectionService.Request.Method;
+import com.magnet.android.mms.connection.ConnectionService.Response;
+import com.magnet.android.mms.connection.LoopbackConnectionService;
+import com.magnet.android.mms.utils.FileUtil;
+import com.magnet.android.mms.utils.Util;
+
+public class ChunkedUploaderTest extends InstrumentationTestCase {
+  private static final String PATH = "http://loopback/files";
+  private static final int CHUNK_SIZE = 16 * 1024;
+  private Context mContext;
+  private AsyncPersister mPersister;
+  private LoopbackConnectionService mService;
+  private ChunkedUploadServer mServer;
+  private CallRequest mRequest;
+  private byte[] mContent;
+  private File mFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mContext = getInstrumentation().getTargetContext();
+    FileUtil.initCipher(mContext);
+    mPersister = AsyncPersister.getInstance(mContext);
+    ConnectionConfigManager manager = new ConnectionConfigManager();
+    manager.initInstance(mContext, null);
+    mService = (LoopbackConnectionService) manager.addConnectionConfig(
+        "chunked", null, "LOOPBACK").getConnectionService();
+    mServer = new ChunkedUploadServer();
+    mService.setHandler(mServer);
+
+    // 7 chunks with a short last chunk
+    mContent = new byte[6 * CHUNK_SIZE + 1000];
+    new Random(1).nextBytes(mContent);
+    mFile = File.createTempFile("upload", ".dat", mContext.getFilesDir());
+    OutputStream ous = new FileOutputStream(mFile);
+    ous.write(mContent);
+    ous.close();
+    mRequest = new CallRequest(new Envelope("chunked", Method.POST, null), PATH,
+        new HashMap<String, String>(), "application/octet-stream", new Payload(mFile),
+        new AsyncCallOptions().setChunkedUpload(CHUNK_SIZE, 3), String.class, null, false);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mPersister.removeUploadSession(mRequest.computeHash());
+    mFile.delete();
+    super.tearDown();
+  }
+
+  private ChunkedUploader newUploader() {
+    return new ChunkedUploader(new CallImpl<String>(mContext, mRequest),
+        mService, mPersister, mRequest.computeHash(), CHUNK_SIZE, 3);
+  }
+
+  private Response upload() throws IOException {
+    return newUploader().upload(mFile);
+  }
+
+  private void assertCommitted(Response response) throws IOException {
+    assertEquals(200, response.getResponseCode());
+    assertEquals(String.valueOf(mContent.length), Util.inputStreamToString(response.getPayload()));
+    response.release();
+    assertTrue(Arrays.equals(mContent, mServer.getCommitted("/files")));
+    assertNull(mPersister.getUploadSession(mRequest.computeHash()));
+  }
+
+  @SmallTest
+  public void testResumeAfterFailure() throws Exception {
+    mServer.setFailAfterChunks(3);
+    try {
+      upload();
+      fail("The upload did not fail");
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertEquals(3, mPersister.getUploadSession(mRequest.computeHash()).uploadedChunks.size());
+
+    mServer.setFailAfterChunks(-1);
+    assertCommitted(upload());
+    assertEquals(4, mServer.getChunks());
+  }
+
+  @SmallTest
+  public void testStartOverExpiredSession() throws Exception {
+    mServer.setFailAfterChunks(2);
+    try {
+      upload();
+      fail("The upload did not fail");
+    } catch (IOException e) {
+      // Expected.
+    }
+    mServer.expireSessions();
+    mServer.setFailAfterChunks(-1);
+    assertCommitted(upload());
+    assertEquals(7, mServer.getChunks());
+  }
+
+  @SmallTest
+  public void testCancelRemovesSession() throws Exception {
+    mServer.setFailAfterChunks(3);
+    try {
+      upload();
+      fail("The upload did not fail");
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertNotNull(mPersister.getUploadSession(mRequest.computeHash()));
+
+    ChunkedUploader uploader = newUploader();
+    uploader.cancel();
+    try {
+      uploader.upload(mFile);
+      fail("The upload was not cancelled");
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertNull(mPersister.getUploadSession(mRequest.computeHash()));
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.magnet.android.core.GenericRestConstants;
+import com.magnet.android.mms.MagnetMobileClient;
+import com.magnet.android.mms.async.AsyncService.CallRequest;
+import com.magnet.android.mms.async.AsyncService.Envelope;
+import com.magnet.android.mms.async.AsyncService.Payload;
+import com.magnet.android.mms.async.Call.State;
+import com.magnet.android.mms.connection.ConnectionService.Request.Method;
+import com.magnet.android.mms.connection.LoopbackConnectionService;
+import com.magnet.android.mms.connection.LoopbackConnectionService.Reply;
+import com.magnet.android.mms.utils.FileUtil;
+
+public class RangeDownloaderTest extends InstrumentationTestCase {
+  private static final String PATH = "http://loopback/large";
+  private static final String ETAG = "\"v1\"";
+  private static final int RANGES = 4;
+  private static final int LENGTH = RANGES * (int) RangeDownloader.MIN_RANGE_SIZE + 1000;
+  private Context mContext;
+  private AsyncPersister mPersister;
+  private LoopbackConnectionService mService;
+  private CallRequest mRequest;
+  private String mHash;
+  private byte[] mContent;
+  private boolean mEncrypt;
+  private final List<String> mRanges = Collections.synchronizedList(new ArrayList<String>());
+  private volatile boolean mAcceptRanges = true;
+  private volatile String mETag = ETAG;
+  // the range start to be answered badly, or -1
+  private volatile int mBadStart = -1;
+  private volatile boolean mTruncate;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mContext = getInstrumentation().getTargetContext();
+    FileUtil.initCipher(mContext);
+    mPersister = AsyncPersister.getInstance(mContext);
+    mEncrypt = AsyncPersister.setEncryptResult(false);
+    mService = (LoopbackConnectionService) MagnetMobileClient
+        .getInstance(mContext).getConnectionConfigManager()
+        .addConnectionConfig("ranges", "http://loopback", "LOOPBACK").getConnectionService();
+    mService.setHandler(new LoopbackConnectionService.Handler() {
+      public Reply handle(String method, String path, Map<String, String> headers, byte[] body) {
+        String range = headers.get(GenericRestConstants.Header.RANGE);
+        if (range == null) {
+          return newReply(200, mContent);
+        }
+        mRanges.add(range);
+        int dash = range.indexOf('-');
+        int first = Integer.parseInt(range.substring("bytes=".length(), dash));
+        int last = Integer.parseInt(range.substring(dash + 1));
+        Reply reply;
+        if (first == mBadStart && mTruncate) {
+          reply = newReply(206, Arrays.copyOfRange(mContent, first, last));
+        } else {
+          reply = newReply(206, Arrays.copyOfRange(mContent, first, last + 1));
+        }
+        if (first == mBadStart && !mTruncate) {
+          first++;
+        }
+        return reply.setHeader(GenericRestConstants.Header.CONTENT_RANGE,
+            "bytes "+first+"-"+last+"/"+LENGTH);
+      }
+    });
+
+    mContent = new byte[LENGTH];
+    new Random(1).nextBytes(mContent);
+    mRequest = new CallRequest(new Envelope("ranges", Method.GET, null), PATH,
+        new HashMap<String, String>(), null, new Payload((byte[]) null),
+        new AsyncCallOptions().setParallelRanges(RANGES), byte[].class, null, false);
+    mHash = mRequest.computeHash();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mService.setThroughput(0);
+    mPersister.discardPartialResult(mHash);
+    AsyncPersister.setEncryptResult(mEncrypt);
+    super.tearDown();
+  }
+
+  private Reply newReply(int code, byte[] body) {
+    Reply reply = new Reply(code, GenericRestConstants.CONTENT_TYPE_OCTET_STREAM, body);
+    if (mAcceptRanges) {
+      reply.setHeader(GenericRestConstants.Header.ACCEPT_RANGES, "bytes");
+    }
+    if (mETag != null) {
+      reply.setHeader(GenericRestConstants.Header.ETAG, mETag);
+    }
+    return reply;
+  }
+
+  private RangeDownloader newDownloader(CallImpl<byte[]> call) throws IOException {
+    RangeDownloader download = new RangeDownloader(call, mService, RANGES);
+    assertTrue(download.probe());
+    assertEquals(LENGTH, download.getLength());
+    return download;
+  }
+
+  @SmallTest
+  public void testProbeRejectsServer() throws Exception {
+    CallImpl<byte[]> call = new CallImpl<byte[]>(mContext, mRequest);
+    mAcceptRanges = false;
+    assertFalse(new RangeDownloader(call, mService, RANGES).probe());
+    mAcceptRanges = true;
+    mETag = "W/\"v1\"";
+    assertFalse(new RangeDownloader(call, mService, RANGES).probe());
+    mETag = null;
+    assertFalse(new RangeDownloader(call, mService, RANGES).probe());
+  }
+
+  @SmallTest
+  public void testDownloadRangesAtOffsets() throws Exception {
+    final long[] progress = new long[1];
+    CallImpl<byte[]> call = new CallImpl<byte[]>(mContext, mRequest) {
+      @Override
+      public void report(int count) {
+        progress[0] = count;
+      }
+    };
+    RangeDownloader download = newDownloader(call);
+    File file = mPersister.allocateResult(mHash, download.getLength());
+    download.download(file);
+    assertEquals(RANGES, mRanges.size());
+    assertEquals(LENGTH, file.length());
+    assertTrue(Arrays.equals(mContent, FileUtil.fileToByteArray(file)));
+    assertEquals(LENGTH, progress[0]);
+  }
+
+  @SmallTest
+  public void testCallDownloadsInRanges() throws Exception {
+    CallImpl<byte[]> call = new CallImpl<byte[]>(mContext, mRequest);
+    call.run();
+    assertEquals(State.SUCCESS, call.getState());
+    assertEquals(RANGES, mRanges.size());
+    assertTrue(Arrays.equals(mContent, mPersister.getResult(mHash)));
+  }
+
+  @SmallTest
+  public void testTruncatedRangeFailsCall() throws Exception {
+    mBadStart = (int) ((LENGTH + RANGES - 1) / RANGES * 2);
+    mTruncate = true;
+    CallImpl<byte[]> call = new CallImpl<byte[]>(mContext, mRequest);
+    call.run();
+    assertEquals(State.FAILED, call.getState());
+    assertFalse(mPersister.getResultAsFile(mHash).exists());
+  }
+
+  @SmallTest
+  public void testMismatchedRangeFailsCall() throws Exception {
+    mBadStart = 0;
+    CallImpl<byte[]> call = new CallImpl<byte[]>(mContext, mRequest);
+    call.run();
+    assertEquals(State.FAILED, call.getState());
+    assertFalse(mPersister.getResultAsFile(mHash).exists());
+  }
+
+  @SmallTest
+  public void testCancelAbortsRanges() throws Exception {
+    // each range takes about 2 seconds
+    mService.setThroughput(RangeDownloader.MIN_RANGE_SIZE / 2);
+    final RangeDownloader download = newDownloader(new CallImpl<byte[]>(mContext, mRequest));
+    final File file = mPersister.allocateResult(mHash, download.getLength());
+    final IOException[] failure = new IOException[1];
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          download.download(file);
+        } catch (IOException e) {
+          failure[0] = e;
+        }
+      }
+    };
+    long start = System.currentTimeMillis();
+    thread.start();
+    Thread.sleep(200);
+    download.cancel();
+    thread.join(5000);
+    assertFalse(thread.isAlive());
+    assertNotNull(failure[0]);
+    assertTrue(System.currentTimeMillis() - start < 1500);
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.async;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.magnet.android.mms.async.AsyncService.CallRequest;
+import com.magnet.android.mms.async.AsyncService.Envelope;
+import com.magnet.android.mms.connection.ConnectionConfigManager;
+import com.magnet.android.mms.connection.ConnectionConfigManager.ConnectionConfig;
+import com.magnet.android.mms.connection.ConnectionService.Request.Method;
+import com.magnet.android.mms.connection.ConnectionService.Response;
+import com.magnet.android.mms.connection.LoopbackConnectionService;
+import com.magnet.android.mms.connection.LoopbackConnectionService.Reply;
+import com.magnet.android.mms.connection.RateLimiter;
+import com.magnet.android.mms.utils.Util;
+
+public class RequestHedgerTest extends InstrumentationTestCase {
+  private static final String PATH = "http://loopback/items";
+  private Context mContext;
+  private ConnectionConfig mConfig;
+  private LoopbackConnectionService mService;
+  private CallImpl<String> mCall;
+  private final AtomicInteger mRequests = new AtomicInteger();
+  private final CountDownLatch mStall = new CountDownLatch(1);
+  private volatile long mFirstDelay;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mContext = getInstrumentation().getTargetContext();
+    ConnectionConfigManager manager = new ConnectionConfigManager();
+    manager.initInstance(mContext, null);
+    mConfig = manager.addConnectionConfig("hedged", null, "LOOPBACK");
+    mService = (LoopbackConnectionService) mConfig.getConnectionService();
+    // The first request is slow; the others are answered immediately.
+    mService.setHandler(new LoopbackConnectionService.Handler() {
+      public Reply handle(String method, String path, Map<String, String> headers, byte[] body) {
+        if (mRequests.incrementAndGet() == 1) {
+          try {
+            mStall.await(mFirstDelay, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException e) {
+            // Ignored.
+          }
+          return new Reply(200, "text/plain", "slow");
+        }
+        return new Reply(200, "text/plain", "fast");
+      }
+    });
+    CallRequest request = new CallRequest(new Envelope("hedged", Method.GET, null), PATH,
+        new HashMap<String, String>(), null, null, new AsyncCallOptions().setHedging(90),
+        String.class, null, false);
+    mCall = new CallImpl<String>(mContext, request);
+    RequestHedger.resetBudget();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mStall.countDown();
+    super.tearDown();
+  }
+
+  private String execute(String key, int budgetPercent) throws Exception {
+    RequestHedger hedger = new RequestHedger(mCall, mService, key, 90, budgetPercent);
+    Response response = hedger.execute(mCall.newRequest(mService));
+    try {
+      return Util.inputStreamToString(response.getPayload());
+    } finally {
+      response.release();
+    }
+  }
+
+  private static void addLatencies(String key, long millis) {
+    for (int i = 0; i < RequestHedger.MIN_SAMPLES; i++) {
+      RequestHedger.addLatency(key, millis);
+    }
+  }
+
+  @SmallTest
+  public void testHedgeSlowRequest() throws Exception {
+    addLatencies("slow", 20);
+    mFirstDelay = 10000;
+    long wins = RequestHedger.getStats().getHedgeWins();
+    long start = System.currentTimeMillis();
+    assertEquals("fast", execute("slow", 100));
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertEquals(2, mRequests.get());
+    assertEquals(wins + 1, RequestHedger.getStats().getHedgeWins());
+  }
+
+  @SmallTest
+  public void testBudgetExhausted() throws Exception {
+    addLatencies("budget", 20);
+    mFirstDelay = 200;
+    long overBudget = RequestHedger.getStats().getOverBudget();
+    assertEquals("slow", execute("budget", 0));
+    assertEquals(1, mRequests.get());
+    assertEquals(overBudget + 1, RequestHedger.getStats().getOverBudget());
+  }
+
+  @SmallTest
+  public void testRateLimitedHedge() throws Exception {
+    mConfig.setRateLimit(2, 1);
+    RateLimiter limiter = mConfig.getRequestRateLimiter();
+    // The queue has reserved the permit of the call; only the hedge pays.
+    assertEquals(0, limiter.reserve(1));
+    mCall.mRateLimiter = limiter;
+    mCall.admit();
+    addLatencies("limited", 20);
+    mFirstDelay = 10000;
+    assertEquals("fast", execute("limited", 100));
+    assertEquals(2, mRequests.get());
+    assertEquals(2, limiter.getStats().getPermits());
+  }
+
+  @SmallTest
+  public void testNoHedgeWithoutLatencies() throws Exception {
+    mFirstDelay = 200;
+    assertEquals("slow", execute("unknown", 100));
+    assertEquals(1, mRequests.get());
+    assertTrue(RequestHedger.getDelay("unknown", 90) < 0);
+  }
+}
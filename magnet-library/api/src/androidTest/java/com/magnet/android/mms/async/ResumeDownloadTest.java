@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.magnet.android.core.GenericRestConstants;
+import com.magnet.android.mms.MagnetMobileClient;
+import com.magnet.android.mms.async.AsyncPersister.PartialResult;
+import com.magnet.android.mms.async.AsyncService.CallRequest;
+import com.magnet.android.mms.async.AsyncService.Envelope;
+import com.magnet.android.mms.async.AsyncService.Payload;
+import com.magnet.android.mms.async.Call.State;
+import com.magnet.android.mms.connection.ConnectionService.Request.Method;
+import com.magnet.android.mms.connection.LoopbackConnectionService;
+import com.magnet.android.mms.connection.LoopbackConnectionService.Reply;
+import com.magnet.android.mms.utils.FileUtil;
+
+public class ResumeDownloadTest extends InstrumentationTestCase {
+  private static final String PATH = "http://loopback/result";
+  private static final String ETAG = "\"v1\"";
+  private static final int LENGTH = 100000;
+  private static final int PARTIAL = 40000;
+  private Context mContext;
+  private AsyncPersister mPersister;
+  private CallRequest mRequest;
+  private String mHash;
+  private byte[] mContent;
+  private boolean mEncrypt;
+  // the reply to a request, or null to serve the content from the Range
+  private volatile Reply mReply;
+  private volatile Map<String, String> mHeaders;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mContext = getInstrumentation().getTargetContext();
+    FileUtil.initCipher(mContext);
+    mPersister = AsyncPersister.getInstance(mContext);
+    mEncrypt = AsyncPersister.setEncryptResult(false);
+    LoopbackConnectionService service = (LoopbackConnectionService) MagnetMobileClient
+        .getInstance(mContext).getConnectionConfigManager()
+        .addConnectionConfig("resume", "http://loopback", "LOOPBACK").getConnectionService();
+    service.setHandler(new LoopbackConnectionService.Handler() {
+      public Reply handle(String method, String path, Map<String, String> headers, byte[] body) {
+        mHeaders = headers;
+        if (mReply != null) {
+          return mReply;
+        }
+        String range = headers.get(GenericRestConstants.Header.RANGE);
+        if (range == null || !ETAG.equals(headers.get(GenericRestConstants.Header.IF_RANGE))) {
+          return newReply(200, 0, null);
+        }
+        int start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+        return newReply(206, start, "bytes "+start+"-"+(LENGTH-1)+"/"+LENGTH);
+      }
+    });
+
+    mContent = new byte[LENGTH];
+    new Random(1).nextBytes(mContent);
+    mRequest = new CallRequest(new Envelope("resume", Method.GET, null), PATH,
+        new HashMap<String, String>(), null, new Payload((byte[]) null), new AsyncCallOptions(),
+        byte[].class, null, false);
+    mHash = mRequest.computeHash();
+    mPersister.discardPartialResult(mHash);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mPersister.discardPartialResult(mHash);
+    AsyncPersister.setEncryptResult(mEncrypt);
+    super.tearDown();
+  }
+
+  private Reply newReply(int code, int start, String contentRange) {
+    Reply reply = new Reply(code, GenericRestConstants.CONTENT_TYPE_OCTET_STREAM,
+        Arrays.copyOfRange(mContent, start, LENGTH));
+    reply.setHeader(GenericRestConstants.Header.ACCEPT_RANGES, "bytes");
+    reply.setHeader(GenericRestConstants.Header.ETAG, ETAG);
+    if (contentRange != null) {
+      reply.setHeader(GenericRestConstants.Header.CONTENT_RANGE, contentRange);
+    }
+    return reply;
+  }
+
+  // Keep the first bytes of the content as if the connection was reset.
+  private void savePartial() {
+    InputStream broken = new FilterInputStream(new ByteArrayInputStream(mContent, 0, PARTIAL)) {
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        int n = super.read(buffer, offset, length);
+        if (n < 0) {
+          throw new IOException("Connection reset");
+        }
+        return n;
+      }
+    };
+    assertNull(mPersister.addCache(mRequest, GenericRestConstants.CONTENT_TYPE_OCTET_STREAM,
+        null, broken, null, ETAG, 0));
+    PartialResult partial = mPersister.getPartialResult(mHash);
+    assertEquals(PARTIAL, partial.length);
+    assertEquals(ETAG, partial.validator);
+  }
+
+  private CallImpl<byte[]> run() {
+    CallImpl<byte[]> call = new CallImpl<byte[]>(mContext, mRequest);
+    call.run();
+    return call;
+  }
+
+  @SmallTest
+  public void testAppendPartialContent() {
+    savePartial();
+    CallImpl<byte[]> call = run();
+    assertEquals("bytes="+PARTIAL+"-", mHeaders.get(GenericRestConstants.Header.RANGE));
+    assertEquals(ETAG, mHeaders.get(GenericRestConstants.Header.IF_RANGE));
+    assertEquals(State.SUCCESS, call.getState());
+    assertTrue(Arrays.equals(mContent, mPersister.getResult(mHash)));
+    assertNull(mPersister.getPartialResult(mHash));
+  }
+
+  @SmallTest
+  public void testFullContentReplacesPartial() {
+    savePartial();
+    // the result has changed; If-Range gets the full content
+    new Random(2).nextBytes(mContent);
+    mReply = newReply(200, 0, null);
+    CallImpl<byte[]> call = run();
+    assertEquals(State.SUCCESS, call.getState());
+    assertTrue(Arrays.equals(mContent, mPersister.getResult(mHash)));
+    assertNull(mPersister.getPartialResult(mHash));
+  }
+
+  @SmallTest
+  public void testMismatchedRangeDiscardsPartial() {
+    savePartial();
+    mReply = newReply(206, 0, "bytes 0-"+(LENGTH-1)+"/"+LENGTH);
+    CallImpl<byte[]> call = run();
+    assertEquals(State.FAILED, call.getState());
+    assertNull(mPersister.getPartialResult(mHash));
+    assertFalse(mPersister.getResultAsFile(mHash).exists());
+  }
+
+  @SmallTest
+  public void testTamperedPartialIsNotResumed() throws Exception {
+    savePartial();
+    RandomAccessFile raf = new RandomAccessFile(mPersister.getResultAsFile(mHash), "rw");
+    raf.seek(10);
+    raf.write(mContent[10] ^ 1);
+    raf.close();
+    CallImpl<byte[]> call = run();
+    assertNull(mHeaders.get(GenericRestConstants.Header.RANGE));
+    assertEquals(State.SUCCESS, call.getState());
+    assertTrue(Arrays.equals(mContent, mPersister.getResult(mHash)));
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.connection;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.magnet.android.mms.exception.EndpointUnavailableException;
+
+public class EndpointHealthTest extends InstrumentationTestCase {
+  private static final long OPEN_MILLIS = 50;
+
+  private static void assertRejected(EndpointHealth health) throws Exception {
+    try {
+      health.acquire(0).ignore();
+      fail("The request is not rejected");
+    } catch (EndpointUnavailableException e) {
+      assertEquals("http://test:80", e.getOrigin());
+    }
+  }
+
+  private static EndpointHealth openCircuit() throws Exception {
+    EndpointHealth health = new EndpointHealth("http://test:80", OPEN_MILLIS);
+    for (int i = 0; i < 5; i++) {
+      health.acquire(0).release(503);
+    }
+    return health;
+  }
+
+  @SmallTest
+  public void testOpenAfterConsecutiveFailures() throws Exception {
+    EndpointHealth health = new EndpointHealth("http://test:80", OPEN_MILLIS);
+    for (int i = 0; i < 4; i++) {
+      health.acquire(0).release(-1);
+    }
+    health.acquire(0).release(404);
+    // a client error is not a failure of the endpoint
+    assertEquals(EndpointHealth.State.CLOSED, health.getStats().getState());
+
+    health = openCircuit();
+    assertEquals(EndpointHealth.State.OPEN, health.getStats().getState());
+    assertRejected(health);
+    assertEquals(1, health.getStats().getOpened());
+    assertEquals(1, health.getStats().getRejected());
+  }
+
+  @SmallTest
+  public void testHalfOpenTrial() throws Exception {
+    EndpointHealth health = openCircuit();
+    Thread.sleep(OPEN_MILLIS + 10);
+    EndpointHealth.Permit trial = health.acquire(0);
+    assertEquals(EndpointHealth.State.HALF_OPEN, health.getStats().getState());
+    assertRejected(health);
+    trial.release(200);
+    assertEquals(EndpointHealth.State.CLOSED, health.getStats().getState());
+    assertEquals(1, health.getStats().getClosed());
+
+    health = openCircuit();
+    Thread.sleep(OPEN_MILLIS + 10);
+    health.acquire(0).release(503);
+    assertEquals(EndpointHealth.State.OPEN, health.getStats().getState());
+    // the cool down is doubled
+    Thread.sleep(OPEN_MILLIS + 10);
+    assertRejected(health);
+  }
+
+  @SmallTest
+  public void testAdaptiveLimit() throws Exception {
+    EndpointHealth health = new EndpointHealth("http://test:80", OPEN_MILLIS);
+    assertEquals(8, health.getStats().getLimit());
+    health.acquire(0).release(503);
+    assertEquals(4, health.getStats().getLimit());
+    EndpointHealth.Permit[] permits = new EndpointHealth.Permit[4];
+    for (int i = 0; i < permits.length; i++) {
+      permits[i] = health.acquire(0);
+    }
+    assertRejected(health);
+    for (EndpointHealth.Permit permit : permits) {
+      permit.release(200);
+    }
+    assertEquals(0, health.getStats().getInFlight());
+    assertTrue(health.getStats().getLimit() >= 4);
+  }
+
+  @SmallTest
+  public void testMixedLatenciesKeepLimit() throws Exception {
+    EndpointHealth health = new EndpointHealth("http://test:80", OPEN_MILLIS);
+    // a fast and a slow path on the same origin
+    for (int i = 0; i < 300; i++) {
+      health.acquire(0).release(200, (i % 10 < 3) ? 400 : 5);
+    }
+    assertEquals(8, health.getStats().getLimit());
+  }
+
+  @SmallTest
+  public void testRisingLatencyBacksOff() throws Exception {
+    EndpointHealth health = new EndpointHealth("http://test:80", OPEN_MILLIS);
+    for (int i = 0; i < 50; i++) {
+      health.acquire(0).release(200, 10);
+    }
+    assertEquals(8, health.getStats().getLimit());
+    health.acquire(0).release(200, 1000);
+    assertEquals(4, health.getStats().getLimit());
+  }
+}
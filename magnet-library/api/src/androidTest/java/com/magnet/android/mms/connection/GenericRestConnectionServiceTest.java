@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.connection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.magnet.android.mms.connection.ConnectionService.Request;
+import com.magnet.android.mms.connection.ConnectionService.Response;
+import com.magnet.android.mms.request.ByteArrayHelper;
+
+public class GenericRestConnectionServiceTest extends InstrumentationTestCase {
+  private ServerSocket mServer;
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (mServer != null) {
+      mServer.close();
+    }
+    super.tearDown();
+  }
+
+  // Serve one raw HTTP/1.1 response on a local port.
+  private String serve(final byte[] head, final byte[] body) throws Exception {
+    mServer = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    new Thread() {
+      public void run() {
+        try {
+          Socket socket = mServer.accept();
+          InputStream in = socket.getInputStream();
+          // read the request headers up to the empty line
+          int state = 0;
+          int b;
+          while (state < 4 && (b = in.read()) >= 0) {
+            state = (b == ((state % 2 == 0) ? '\r' : '\n')) ? state + 1 : 0;
+          }
+          OutputStream out = socket.getOutputStream();
+          out.write(head);
+          out.write(body);
+          out.flush();
+          socket.close();
+        } catch (Exception e) {
+          // The test fails on the client side.
+        }
+      }
+    }.start();
+    return "http://127.0.0.1:" + mServer.getLocalPort() + "/items";
+  }
+
+  @SmallTest
+  public void testGzipWithLowerCaseHeaders() throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(bos);
+    gzip.write("[1,2]".getBytes("UTF-8"));
+    gzip.close();
+    byte[] body = bos.toByteArray();
+    String head = "HTTP/1.1 200 OK\r\n" +
+        "content-type: application/json\r\n" +
+        "content-encoding: gzip\r\n" +
+        "content-length: " + body.length + "\r\n" +
+        "connection: close\r\n\r\n";
+    String url = serve(head.getBytes("US-ASCII"), body);
+
+    GenericRestConnectionService service =
+        new GenericRestConnectionService(getInstrumentation().getTargetContext());
+    Request request = service.createRequest();
+    request.setPath(url);
+    Response response = request.execute();
+    assertEquals(200, response.getResponseCode());
+    assertEquals("application/json", response.getContentType());
+    assertEquals("[1,2]", new String(ByteArrayHelper.toByteArray(response.getPayload()), "UTF-8"));
+    // the decoded body has no encoding or length of the compressed body
+    assertNotNull(response.getHeaders().get("Content-Type"));
+    assertNull(response.getHeaders().get("Content-Encoding"));
+    assertNull(response.getHeaders().get("content-length"));
+    response.release();
+  }
+
+  private String executeDeflate(boolean nowrap) throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DeflaterOutputStream deflate = new DeflaterOutputStream(bos,
+        new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap));
+    deflate.write("[1,2]".getBytes("UTF-8"));
+    deflate.close();
+    byte[] body = bos.toByteArray();
+    String head = "HTTP/1.1 200 OK\r\n" +
+        "Content-Type: application/json\r\n" +
+        "Content-Encoding: deflate\r\n" +
+        "Content-Length: " + body.length + "\r\n" +
+        "Connection: close\r\n\r\n";
+    String url = serve(head.getBytes("US-ASCII"), body);
+
+    GenericRestConnectionService service =
+        new GenericRestConnectionService(getInstrumentation().getTargetContext());
+    Request request = service.createRequest();
+    request.setPath(url);
+    Response response = request.execute();
+    assertEquals(200, response.getResponseCode());
+    String result = new String(ByteArrayHelper.toByteArray(response.getPayload()), "UTF-8");
+    response.release();
+    return result;
+  }
+
+  @SmallTest
+  public void testZlibDeflate() throws Exception {
+    assertEquals("[1,2]", executeDeflate(false));
+  }
+
+  @SmallTest
+  public void testRawDeflate() throws Exception {
+    assertEquals("[1,2]", executeDeflate(true));
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+
+package com.magnet.android.mms.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class HpackTest extends InstrumentationTestCase {
+
+  private static byte[] hex(String s) {
+    byte[] bytes = new byte[s.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+
+  private static void assertHeader(String name, String value, String[] header) {
+    assertEquals(name, header[0]);
+    assertEquals(value, header[1]);
+  }
+
+  // RFC 7541 C.4: requests with Huffman coding sharing a dynamic table
+  @SmallTest
+  public void testDecodeHuffmanRequests() throws Exception {
+    Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    byte[] block = hex("828684418cf1e3c2e5f23a6ba0ab90f4ff");
+    List<String[]> headers = decoder.decode(block, 0, block.length);
+    assertEquals(4, headers.size());
+    assertHeader(":method", "GET", headers.get(0));
+    assertHeader(":scheme", "http", headers.get(1));
+    assertHeader(":path", "/", headers.get(2));
+    assertHeader(":authority", "www.example.com", headers.get(3));
+
+    block = hex("828684be5886a8eb10649cbf");
+    headers = decoder.decode(block, 0, block.length);
+    assertEquals(5, headers.size());
+    assertHeader(":authority", "www.example.com", headers.get(3));
+    assertHeader("cache-control", "no-cache", headers.get(4));
+  }
+
+  @SmallTest
+  public void testEncodeDecode() throws Exception {
+    Hpack.Encoder encoder = new Hpack.Encoder();
+    Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    List<String[]> headers = new ArrayList<String[]>();
+    headers.add(new String[] { ":method", "POST" });
+    headers.add(new String[] { ":path", "/rest/controller/op?id=1" });
+    headers.add(new String[] { "authorization", "Bearer secret" });
+    headers.add(new String[] { "x-magnet-device", "device-1234567890" });
+
+    byte[] first = encoder.encode(headers);
+    byte[] second = encoder.encode(headers);
+    // the repeated custom header is indexed in the dynamic table
+    assertTrue(second.length < first.length);
+    for (byte[] block : new byte[][] { first, second }) {
+      List<String[]> decoded = decoder.decode(block, 0, block.length);
+      assertEquals(headers.size(), decoded.size());
+      for (int i = 0; i < headers.size(); i++) {
+        assertHeader(headers.get(i)[0], headers.get(i)[1], decoded.get(i));
+      }
+    }
+
+    // a smaller table size is signaled before the next header block
+    encoder.setMaxTableSize(0);
+    byte[] third = encoder.encode(headers);
+    assertEquals(0x20, third[0] & 0xff);
+    List<String[]> decoded = decoder.decode(third, 0, third.length);
+    assertHeader("x-magnet-device", "device-1234567890", decoded.get(3));
+  }
+}
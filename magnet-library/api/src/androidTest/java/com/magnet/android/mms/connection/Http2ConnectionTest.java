@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.connection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class Http2ConnectionTest extends AndroidTestCase {
+  private static final int TIMEOUT = 400;
+
+  private ServerSocket mServer;
+  private Socket mClient;
+  private volatile int mPings;
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (mClient != null) {
+      mClient.close();
+    }
+    if (mServer != null) {
+      mServer.close();
+    }
+    super.tearDown();
+  }
+
+  // An h2c server sending its SETTINGS and never responding to a request;
+  // it acknowledges the PING frames only if asked to.
+  private Http2Connection connect(boolean ackPings) throws Exception {
+    return connect(ackPings, null);
+  }
+
+  // An h2c server responding to a request with the body in a padded DATA
+  // frame followed by a plain one.
+  private Http2Connection connect(final boolean ackPings, final byte[] body) throws Exception {
+    mServer = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    new Thread() {
+      public void run() {
+        try {
+          Socket socket = mServer.accept();
+          DataInputStream in = new DataInputStream(socket.getInputStream());
+          OutputStream out = socket.getOutputStream();
+          in.readFully(new byte[24]);
+          writeFrame(out, Http2Connection.TYPE_SETTINGS, 0, new byte[0]);
+          while (true) {
+            int length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+            int type = in.readUnsignedByte();
+            int flags = in.readUnsignedByte();
+            in.readInt();
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            if (type == Http2Connection.TYPE_PING && (flags & Http2Connection.FLAG_ACK) == 0) {
+              mPings++;
+              if (ackPings) {
+                writeFrame(out, Http2Connection.TYPE_PING, Http2Connection.FLAG_ACK, payload);
+              }
+            } else if (type == Http2Connection.TYPE_HEADERS && body != null) {
+              // :status 200 from the static table
+              writeFrame(out, Http2Connection.TYPE_HEADERS, Http2Connection.FLAG_END_HEADERS,
+                  1, new byte[] { (byte) 0x88 });
+              int half = body.length / 2;
+              byte[] padded = new byte[1 + half + 3];
+              padded[0] = 3;
+              System.arraycopy(body, 0, padded, 1, half);
+              writeFrame(out, Http2Connection.TYPE_DATA, Http2Connection.FLAG_PADDED, 1, padded);
+              writeFrame(out, Http2Connection.TYPE_DATA, Http2Connection.FLAG_END_STREAM, 1,
+                  Arrays.copyOfRange(body, half, body.length));
+            }
+          }
+        } catch (IOException e) {
+          // The client is closed.
+        }
+      }
+    }.start();
+    mClient = new Socket("127.0.0.1", mServer.getLocalPort());
+    return Http2Connection.start("http://127.0.0.1", mClient, TIMEOUT,
+        new Http2ConnectionService.Stats());
+  }
+
+  private static void writeFrame(OutputStream out, int type, int flags, byte[] payload)
+      throws IOException {
+    writeFrame(out, type, flags, 0, payload);
+  }
+
+  private static void writeFrame(OutputStream out, int type, int flags, int streamId,
+      byte[] payload) throws IOException {
+    byte[] header = { 0, (byte) (payload.length >>> 8), (byte) payload.length,
+        (byte) type, (byte) flags, 0, 0, 0, (byte) streamId };
+    synchronized (out) {
+      out.write(header);
+      out.write(payload);
+      out.flush();
+    }
+  }
+
+  private static List<String[]> newHeaders() {
+    List<String[]> headers = new ArrayList<String[]>();
+    headers.add(new String[] { ":method", "GET" });
+    headers.add(new String[] { ":scheme", "http" });
+    headers.add(new String[] { ":authority", "127.0.0.1" });
+    headers.add(new String[] { ":path", "/" });
+    return headers;
+  }
+
+  @SmallTest
+  public void testIdleConnectionIsPinged() throws Exception {
+    Http2Connection conn = connect(true);
+    Thread.sleep(TIMEOUT * 3);
+    assertTrue(mPings >= 2);
+    assertFalse(conn.isShutdown());
+  }
+
+  @SmallTest
+  public void testUnacknowledgedPingFailsConnection() throws Exception {
+    Http2Connection conn = connect(false);
+    Thread.sleep(TIMEOUT * 3);
+    assertEquals(1, mPings);
+    assertTrue(conn.isShutdown());
+  }
+
+  @SmallTest
+  public void testSlowResponseKeepsConnection() throws Exception {
+    // the PING acknowledgement shows the connection is alive
+    Http2Connection conn = connect(true);
+    try {
+      conn.newStream(newHeaders(), true, TIMEOUT).awaitHeaders(TIMEOUT);
+      fail("No response is sent");
+    } catch (SocketTimeoutException e) {
+      // Expected.
+    }
+    assertFalse(conn.isShutdown());
+  }
+
+  @SmallTest
+  public void testStreamTimeoutWithoutFramesFailsConnection() throws Exception {
+    Http2Connection conn = connect(false);
+    try {
+      conn.newStream(newHeaders(), true, TIMEOUT).awaitHeaders(TIMEOUT / 4);
+      fail("No response is sent");
+    } catch (SocketTimeoutException e) {
+      // Expected.
+    }
+    assertTrue(conn.isShutdown());
+  }
+
+  @SmallTest
+  public void testReadDataFrames() throws Exception {
+    byte[] body = new byte[10000];
+    for (int i = 0; i < body.length; i++) {
+      body[i] = (byte) i;
+    }
+    Http2Connection conn = connect(true, body);
+    Http2Connection.Http2Stream stream = conn.newStream(newHeaders(), true, TIMEOUT);
+    assertEquals("200", stream.awaitHeaders(TIMEOUT).get(0)[1]);
+    InputStream in = stream.getInputStream(TIMEOUT);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1000];
+    int n;
+    while ((n = in.read(buffer)) >= 0) {
+      bos.write(buffer, 0, n);
+    }
+    in.close();
+    assertTrue(Arrays.equals(body, bos.toByteArray()));
+    assertFalse(conn.isShutdown());
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.connection;
+
+import java.io.InterruptedIOException;
+import java.util.Map;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.magnet.android.mms.connection.ConnectionService.Request;
+import com.magnet.android.mms.connection.ConnectionService.Response;
+import com.magnet.android.mms.request.ByteArrayHelper;
+
+public class LoopbackConnectionServiceTest extends InstrumentationTestCase {
+  private LoopbackConnectionService mService;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mService = new LoopbackConnectionService(getInstrumentation().getTargetContext());
+  }
+
+  private Response get(String url) throws Exception {
+    Request request = mService.createRequest();
+    request.setPath(url);
+    return request.execute();
+  }
+
+  @SmallTest
+  public void testCannedReply() throws Exception {
+    mService.setReply("/items", new LoopbackConnectionService.Reply(200, "application/json", "[1,2]"));
+    Response response = get("http://loopback/items?offset=0");
+    assertEquals(200, response.getResponseCode());
+    assertEquals("[1,2]", new String(ByteArrayHelper.toByteArray(response.getPayload())));
+    assertEquals("5", response.getHeaders().get("content-length").get(0));
+    response.release();
+
+    response = get("http://loopback/unknown");
+    assertEquals(404, response.getResponseCode());
+    response.release();
+  }
+
+  @SmallTest
+  public void testHandlerAndGeneratedBody() throws Exception {
+    mService.setHandler(new LoopbackConnectionService.Handler() {
+      public LoopbackConnectionService.Reply handle(String method, String path,
+          Map<String, String> headers, byte[] body) {
+        return LoopbackConnectionService.Reply.generated(200, "application/octet-stream", 100000);
+      }
+    });
+    Response response = get("http://loopback/download");
+    assertEquals(100000, ByteArrayHelper.toByteArray(response.getPayload()).length);
+    response.release();
+    assertEquals(1, mService.getStats().getRequests());
+    assertEquals(100000, mService.getStats().getBytesSent());
+  }
+
+  @SmallTest
+  public void testCancelDuringLatency() throws Exception {
+    mService.setLatency(10000);
+    final Request request = mService.createRequest();
+    request.setPath("http://loopback/slow");
+    new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          // Cancel now.
+        }
+        request.cancel();
+      }
+    }.start();
+    long start = System.currentTimeMillis();
+    try {
+      request.execute();
+      fail("The request is not cancelled");
+    } catch (InterruptedIOException e) {
+      assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class RateLimiterTest extends InstrumentationTestCase {
+
+  @SmallTest
+  public void testBurstThenThrottle() {
+    RateLimiter limiter = new RateLimiter("test/requests", 10, 2);
+    assertEquals(0, limiter.reserve(1));
+    assertEquals(0, limiter.reserve(1));
+    // The waiting reservations are served in order.
+    long first = limiter.reserve(1);
+    long second = limiter.reserve(1);
+    assertTrue("first="+first, first > 50 && first <= 100);
+    assertTrue("second="+second, second > first + 50);
+    assertEquals(2, limiter.getStats().getThrottled());
+    assertEquals(4, limiter.getStats().getPermits());
+    assertTrue(limiter.getStats().getAvailable() < 0);
+    assertSame(limiter.getStats(), RateLimiter.getAllStats().get("test/requests"));
+  }
+
+  @SmallTest
+  public void testAdmittedRequest() throws Exception {
+    RateLimiter limiter = new RateLimiter("test/admitted", 1, 1);
+    assertEquals(0, limiter.reserve(1));
+    RateLimiter.Admission admission = new RateLimiter.Admission(limiter);
+    long start = System.currentTimeMillis();
+    RateLimiter.acquireRequest(limiter, admission);
+    assertTrue(System.currentTimeMillis() - start < 500);
+    assertEquals(1, limiter.getStats().getPermits());
+    // The admission is used once.
+    RateLimiter.acquireRequest(limiter, admission);
+    assertEquals(2, limiter.getStats().getPermits());
+    assertEquals(1, limiter.getStats().getThrottled());
+  }
+
+  @SmallTest
+  public void testShapedStreams() throws Exception {
+    byte[] data = new byte[60000];
+    RateLimiter download = new RateLimiter("test/download", 100000, 10000);
+    long start = System.currentTimeMillis();
+    InputStream in = RateLimiter.newInputStream(new ByteArrayInputStream(data), download);
+    byte[] buffer = new byte[4096];
+    int total = 0;
+    int n;
+    while ((n = in.read(buffer)) >= 0) {
+      total += n;
+    }
+    assertEquals(data.length, total);
+    assertTrue(System.currentTimeMillis() - start >= 400);
+
+    RateLimiter upload = new RateLimiter("test/upload", 100000, 10000);
+    start = System.currentTimeMillis();
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    OutputStream out = RateLimiter.newOutputStream(bos, upload);
+    for (int i = 0; i < data.length; i += buffer.length) {
+      out.write(data, i, Math.min(buffer.length, data.length - i));
+    }
+    out.close();
+    assertEquals(data.length, bos.size());
+    assertTrue(System.currentTimeMillis() - start >= 400);
+    assertEquals(data.length, upload.getStats().getPermits());
+  }
+}
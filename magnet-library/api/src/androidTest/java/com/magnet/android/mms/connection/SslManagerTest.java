@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.connection;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class SslManagerTest extends InstrumentationTestCase {
+  private Context mContext;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mContext = getInstrumentation().getTargetContext();
+  }
+
+  @SmallTest
+  public void testSharedSocketFactory() throws Exception {
+    SslManager manager = SslManager.getInstance(mContext);
+    assertSame(manager, SslManager.getInstance(mContext));
+    SSLSocketFactory factory = manager.getSocketFactory();
+    assertSame(factory, manager.getSocketFactory());
+    assertSame(ConnectionPoolManager.getSocketFactory(mContext),
+        ConnectionPoolManager.getSocketFactory(mContext));
+
+    SSLSocket socket = (SSLSocket) factory.createSocket();
+    try {
+      assertTrue(socket.getEnabledCipherSuites().length > 0);
+    } finally {
+      socket.close();
+    }
+  }
+
+  // A factory set by an app, e.g. with its own trust managers.
+  private static class AppSocketFactory extends SSLSocketFactory {
+    private final SSLSocketFactory mDelegate;
+    int mSockets;
+
+    AppSocketFactory(SSLSocketFactory delegate) {
+      mDelegate = delegate;
+    }
+
+    private Socket count(Socket socket) {
+      mSockets++;
+      return socket;
+    }
+
+    public String[] getDefaultCipherSuites() {
+      return mDelegate.getDefaultCipherSuites();
+    }
+
+    public String[] getSupportedCipherSuites() {
+      return mDelegate.getSupportedCipherSuites();
+    }
+
+    public Socket createSocket() throws IOException {
+      return count(mDelegate.createSocket());
+    }
+
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose)
+        throws IOException {
+      return count(mDelegate.createSocket(s, host, port, autoClose));
+    }
+
+    public Socket createSocket(String host, int port) throws IOException {
+      return count(mDelegate.createSocket(host, port));
+    }
+
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+        throws IOException {
+      return count(mDelegate.createSocket(host, port, localHost, localPort));
+    }
+
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+      return count(mDelegate.createSocket(host, port));
+    }
+
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+        int localPort) throws IOException {
+      return count(mDelegate.createSocket(address, port, localAddress, localPort));
+    }
+  }
+
+  @SmallTest
+  public void testAppDefaultSocketFactory() throws Exception {
+    SslManager manager = SslManager.getInstance(mContext);
+    SSLSocketFactory shared = ConnectionPoolManager.getSocketFactory(mContext);
+    SSLSocketFactory defaultFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+    AppSocketFactory appFactory = new AppSocketFactory(defaultFactory);
+    HttpsURLConnection.setDefaultSSLSocketFactory(appFactory);
+    try {
+      SSLSocketFactory factory = ConnectionPoolManager.getSocketFactory(mContext);
+      assertNotSame(shared, factory);
+      assertSame(factory, ConnectionPoolManager.getSocketFactory(mContext));
+      factory.createSocket().close();
+      assertEquals(1, appFactory.mSockets);
+    } finally {
+      HttpsURLConnection.setDefaultSSLSocketFactory(defaultFactory);
+    }
+    // back to the shared SSLContext
+    manager.getSocketFactory().createSocket().close();
+    assertEquals(1, appFactory.mSockets);
+  }
+
+  @SmallTest
+  public void testHostnameVerifierIsCached() {
+    SslManager manager = SslManager.getInstance(mContext);
+    assertNotNull(manager.getHostnameVerifier());
+    assertSame(manager.getHostnameVerifier(), manager.getHostnameVerifier());
+  }
+
+  @SmallTest
+  public void testStats() {
+    SslManager.Stats stats = SslManager.getStats();
+    double rate = stats.getResumptionRate();
+    assertTrue(rate >= 0.0 && rate <= 1.0);
+    assertTrue(stats.getFullHandshakes() >= 0);
+    assertTrue(stats.getResumedHandshakes() >= 0);
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.controller;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.magnet.android.mms.controller.RequestSchema.JMeta;
+import com.magnet.android.mms.controller.RequestSchema.JMethod;
+import com.magnet.android.mms.controller.RequestSchema.JParam;
+import com.magnet.android.mms.exception.SchemaException;
+
+public class BinarySchemaTest extends AndroidTestCase {
+
+  private static RequestSchema newSchema() {
+    RequestSchema schema = new RequestSchema();
+    schema.setRootPath("v1");
+
+    JMethod getItem = new JMethod(List.class, String.class);
+    JMeta meta = new JMeta("getItem", "items/{id}", "GET");
+    meta.setProduces(Arrays.asList("application/json"));
+    getItem.setMetaInfo(meta);
+    getItem.setBaseUrl("http://h\u00f4st");
+    getItem.addParam("id", "TEMPLATE", String.class, null, "", false);
+    getItem.addParam("limit", "QUERY", int.class, null, "", true);
+    getItem.addParam("token", "HEADER", String.class, null, null, false);
+    schema.putMethod("getItem", getItem);
+
+    JMethod postItems = new JMethod(Void.class);
+    meta = new JMeta("postItems", "items", "POST");
+    meta.setConsumes(Arrays.asList("multipart/related"));
+    postItems.setMetaInfo(meta);
+    postItems.addParam("names", "PLAIN", List.class, String.class, "", false);
+    postItems.addParam("image", "PLAIN", byte[].class, null, "", true);
+    schema.putMethod("postItems", postItems);
+
+    JMethod findName = new JMethod(String.class);
+    findName.setMetaInfo(new JMeta("find", "find/name", "GET"));
+    findName.addParam("name", "QUERY", String.class, null, "", false);
+    schema.putMethod("find", findName);
+    JMethod findId = new JMethod(String.class);
+    findId.setMetaInfo(new JMeta("find", "find/id", "GET"));
+    findId.addParam("id", "QUERY", long.class, null, "", false);
+    schema.putMethod("find", findId);
+    return schema;
+  }
+
+  private static RequestSchema roundTrip(RequestSchema schema) throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    BinarySchema.write(schema, bos);
+    return RequestSchema.fromBinary(new ByteArrayInputStream(bos.toByteArray()));
+  }
+
+  private static void assertSameMethod(JMethod expected, JMethod actual) {
+    assertNotNull(actual);
+    assertNotSame(expected, actual);
+    assertTrue(expected.equals(actual));
+    assertEquals(expected.getMetaInfo().getBaseUrl(), actual.getMetaInfo().getBaseUrl());
+    assertEquals(expected.getMetaInfo().getConsumes(), actual.getMetaInfo().getConsumes());
+    assertEquals(expected.getMetaInfo().getProduces(), actual.getMetaInfo().getProduces());
+    assertEquals(expected.getReturnType(), actual.getReturnType());
+    assertEquals(expected.getActualReturnTypeAsClass(), actual.getActualReturnTypeAsClass());
+    for (int i = 0; i < expected.getParams().size(); i++) {
+      JParam param = expected.getParams().get(i);
+      JParam actualParam = actual.getParams().get(i);
+      assertEquals(param.name, actualParam.name);
+      assertEquals(param.style, actualParam.style);
+      assertEquals(param.optional, actualParam.optional);
+      assertEquals(param.getTypeName(), actualParam.getTypeName());
+    }
+  }
+
+  @SmallTest
+  public void testRoundTrip() throws Exception {
+    RequestSchema schema = newSchema();
+    RequestSchema loaded = roundTrip(schema);
+    assertEquals("v1", loaded.getRootPath());
+    assertSameMethod(schema.getMethod("getItem"), loaded.getMethod("getItem"));
+    assertSameMethod(schema.getMethod("postItems"), loaded.getMethod("postItems"));
+    assertSame(loaded.getMethod("getItem"), loaded.getMethod("getItem"));
+    assertNull(loaded.getMethod("unknown"));
+
+    Object[] args = new Object[] { "a b", 10, "t" };
+    assertEquals(new ControllerHandler().buildUri(schema.getMethod("getItem"), args),
+        new ControllerHandler().buildUri(loaded.getMethod("getItem"), args));
+  }
+
+  @SmallTest
+  public void testOverloads() throws Exception {
+    RequestSchema loaded = roundTrip(newSchema());
+    JMethod findName = loaded.getMethod("find", new Object[] { "a" });
+    JMethod findId = loaded.getMethod("find", new Object[] { 42L });
+    assertEquals("find/name", findName.getMetaInfo().restApiPath);
+    assertEquals("find/id", findId.getMetaInfo().restApiPath);
+    assertEquals(long.class, findId.getParams().get(0).getParamType());
+    assertEquals(2, loaded.getMethodMap().size());
+
+    // written again from the decoded methods
+    RequestSchema reloaded = roundTrip(loaded);
+    assertSameMethod(findId, reloaded.getMethod("find", new Object[] { 42L }));
+  }
+
+  @SmallTest
+  public void testInvalidData() {
+    try {
+      RequestSchema.fromBinary("{}".getBytes());
+      fail("JSON is not a binary schema");
+    } catch (SchemaException e) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.magnet.android.mms.MagnetMobileClient;
+import com.magnet.android.mms.async.Call;
+import com.magnet.android.mms.async.StateChangedListener;
+import com.magnet.android.mms.connection.ConnectionConfigManager.ConnectionConfig;
+import com.magnet.android.mms.connection.LoopbackConnectionService;
+import com.magnet.android.mms.connection.LoopbackConnectionService.Reply;
+import com.magnet.android.mms.controller.RequestSchema.JMethod;
+
+/**
+ * Measure the overhead of a controller method invocation: the proxy dispatch,
+ * the parameter binding and the request building.  The requests are served
+ * by the loopback transport, so no time is spent on the network.
+ */
+public class ControllerBenchmarkTest extends InstrumentationTestCase {
+  private static final Logger logger =
+      Logger.getLogger(ControllerBenchmarkTest.class.getSimpleName());
+  private static final int WARMUP = 2000;
+  private static final int ITERATIONS = 20000;
+
+  public interface BenchApi {
+    Call<String> getItem(String id, String filter, int limit, String token,
+                         StateChangedListener listener);
+    Call<String> postItem(String id, String name, int count, StateChangedListener listener);
+  }
+
+  static class BenchApiSchemaFactory extends AbstractControllerSchemaFactory {
+    @Override
+    protected void initSchemaMaps() {
+      schema = new RequestSchema();
+      JMethod getItem = addMethod("getItem", "items/{id}", "GET", String.class, null,
+          null, Arrays.asList("text/plain"));
+      getItem.setBaseUrl("http://loopback");
+      getItem.addParam("id", "TEMPLATE", String.class, null, "", false);
+      getItem.addParam("filter", "QUERY", String.class, null, "", true);
+      getItem.addParam("limit", "QUERY", int.class, null, "", false);
+      getItem.addParam("token", "HEADER", String.class, null, "", false);
+      JMethod postItem = addMethod("postItem", "items/{id}", "POST", String.class, null,
+          Arrays.asList("application/json"), Arrays.asList("text/plain"));
+      postItem.setBaseUrl("http://loopback");
+      postItem.addParam("id", "TEMPLATE", String.class, null, "", false);
+      postItem.addParam("name", "PLAIN", String.class, null, "", false);
+      postItem.addParam("count", "PLAIN", int.class, null, "", false);
+    }
+  }
+
+  // The implementation a generated factory would provide.
+  static class BenchApiStub extends ControllerStub implements BenchApi {
+    private final MethodRef mGetItem;
+    private final MethodRef mPostItem;
+
+    BenchApiStub(ControllerProxy proxy, RequestSchema schema) {
+      super(proxy);
+      mGetItem = method(schema, "getItem");
+      mPostItem = method(schema, "postItem");
+    }
+
+    public Call<String> getItem(String id, String filter, int limit, String token,
+                                StateChangedListener listener) {
+      return invoke(mGetItem, new Object[] { id, filter, limit, token }, listener);
+    }
+
+    public Call<String> postItem(String id, String name, int count, StateChangedListener listener) {
+      return invoke(mPostItem, new Object[] { id, name, count }, listener);
+    }
+  }
+
+  private RequestSchema mSchema;
+  private BenchApi mApi;
+  private BenchApi mStubApi;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Context context = getInstrumentation().getTargetContext();
+    MagnetMobileClient client = MagnetMobileClient.getInstance(context);
+    ConnectionConfig config = client.getConnectionConfigManager().addConnectionConfig(
+        "benchmark", "http://loopback", "LOOPBACK");
+    ((LoopbackConnectionService) config.getConnectionService()).setHandler(
+        new LoopbackConnectionService.Handler() {
+          public Reply handle(String method, String path, Map<String, String> headers,
+                              byte[] body) {
+            // echo the path so each caller can check its own request
+            return new Reply(200, "text/plain", "\"" + path + "\"");
+          }
+        });
+    mSchema = new BenchApiSchemaFactory().getSchema();
+    ControllerFactory<BenchApi> factory =
+        new ControllerFactory<BenchApi>(BenchApi.class, mSchema, client) {};
+    mApi = factory.obtainSyncInstance(config);
+    ControllerFactory<BenchApi> stubFactory =
+        new ControllerFactory<BenchApi>(BenchApi.class, mSchema, client) {
+          @Override
+          protected BenchApi newStub(ControllerProxy proxy) {
+            return new BenchApiStub(proxy, getSchema());
+          }
+        };
+    mStubApi = stubFactory.obtainSyncInstance(config);
+  }
+
+  private static void report(String name, long startNanos) {
+    long nanos = (System.nanoTime() - startNanos) / ITERATIONS;
+    logger.info(name + ": " + nanos + " ns/call");
+    assertTrue(nanos > 0);
+  }
+
+  @LargeTest
+  public void testProxyInvocation() throws Exception {
+    assertEquals("/items/a+b", mApi.getItem("a b", "new", 10, "t", null).get());
+    for (int i = 0; i < WARMUP; i++) {
+      mApi.getItem("item" + (i & 7), "new", i, "t", null);
+      mApi.postItem("item" + (i & 7), "name", i, null);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      mApi.getItem("item" + (i & 7), "new", i, "t", null);
+    }
+    report("proxy GET", start);
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      mApi.postItem("item" + (i & 7), "name", i, null);
+    }
+    report("proxy POST", start);
+  }
+
+  @LargeTest
+  public void testStubInvocation() throws Exception {
+    assertTrue(mStubApi instanceof BenchApiStub);
+    assertEquals("/items/a+b", mStubApi.getItem("a b", "new", 10, "t", null).get());
+    for (int i = 0; i < WARMUP; i++) {
+      mStubApi.getItem("item" + (i & 7), "new", i, "t", null);
+      mStubApi.postItem("item" + (i & 7), "name", i, null);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      mStubApi.getItem("item" + (i & 7), "new", i, "t", null);
+    }
+    report("stub GET", start);
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      mStubApi.postItem("item" + (i & 7), "name", i, null);
+    }
+    report("stub POST", start);
+  }
+
+  @LargeTest
+  public void testRequestBuilding() {
+    JMethod getItem = mSchema.getMethod("getItem");
+    JMethod postItem = mSchema.getMethod("postItem");
+    ControllerHandler handler = new ControllerHandler();
+    Object[] getArgs = new Object[] { "a b", "new", 10, "t" };
+    Object[] postArgs = new Object[] { "a b", "name", 10 };
+    for (int i = 0; i < WARMUP; i++) {
+      handler.reset();
+      handler.buildUri(getItem, getArgs);
+      handler.buildHeaderParams(getItem, getArgs);
+      handler.reset();
+      handler.buildUri(postItem, postArgs);
+      handler.buildRequestBodyString(postItem, postArgs);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      handler.reset();
+      handler.buildUri(getItem, getArgs);
+      handler.buildHeaderParams(getItem, getArgs);
+    }
+    report("build GET", start);
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      handler.reset();
+      handler.buildUri(postItem, postArgs);
+      handler.buildRequestBodyString(postItem, postArgs);
+    }
+    report("build POST", start);
+  }
+
+  @LargeTest
+  public void testConcurrentInvocation() throws Exception {
+    final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    final int calls = ITERATIONS / threads;
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicInteger errors = new AtomicInteger();
+    for (int t = 0; t < threads; t++) {
+      final String id = "item" + t;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < calls; i++) {
+              String path = mApi.getItem(id, "new", i, "t", null).get();
+              if (!path.equals("/items/" + id)) {
+                errors.incrementAndGet();
+              }
+              mApi.postItem(id, "name", i, null);
+            }
+          } catch (Exception e) {
+            errors.incrementAndGet();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    done.await();
+    report("proxy GET+POST on " + threads + " threads", startNanos);
+    assertEquals(0, errors.get());
+  }
+
+  @LargeTest
+  public void testSchemaLoading() throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    BinarySchema.write(mSchema, bos);
+    byte[] data = bos.toByteArray();
+    for (int i = 0; i < WARMUP; i++) {
+      new BenchApiSchemaFactory().getSchema().getMethod("getItem");
+      RequestSchema.fromBinary(data).getMethod("getItem");
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      new BenchApiSchemaFactory().getSchema().getMethod("getItem");
+    }
+    report("schema built, first method", start);
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      RequestSchema.fromBinary(data).getMethod("getItem");
+    }
+    report("schema loaded, first method", start);
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      RequestSchema.fromBinary(data);
+    }
+    report("schema loaded, no method", start);
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.magnet.android.mms.MagnetMobileClient;
+import com.magnet.android.mms.async.Call;
+import com.magnet.android.mms.async.StateChangedListener;
+import com.magnet.android.mms.connection.ConnectionConfigManager.ConnectionConfig;
+import com.magnet.android.mms.connection.LoopbackConnectionService;
+import com.magnet.android.mms.connection.LoopbackConnectionService.Reply;
+import com.magnet.android.mms.controller.RequestSchema.JMeta;
+import com.magnet.android.mms.controller.RequestSchema.JMethod;
+import com.magnet.android.mms.exception.MobileRuntimeException;
+
+public class ControllerDispatchTest extends InstrumentationTestCase {
+
+  public interface FindApi {
+    Call<String> find(String name, StateChangedListener listener);
+    Call<String> find(int id, StateChangedListener listener);
+    Call<String> find(List<String> names, StateChangedListener listener);
+  }
+
+  // The implementation a generated factory would provide.
+  static class FindApiStub extends ControllerStub implements FindApi {
+    private final MethodRef mFindName;
+    private final MethodRef mFindId;
+    private final MethodRef mFindNames;
+
+    FindApiStub(ControllerProxy proxy, RequestSchema schema) {
+      super(proxy);
+      mFindName = method(schema, "find", String.class);
+      mFindId = method(schema, "find", int.class);
+      mFindNames = method(schema, "find", List.class);
+    }
+
+    public Call<String> find(String name, StateChangedListener listener) {
+      return invoke(mFindName, new Object[] { name }, listener);
+    }
+
+    public Call<String> find(int id, StateChangedListener listener) {
+      return invoke(mFindId, new Object[] { id }, listener);
+    }
+
+    public Call<String> find(List<String> names, StateChangedListener listener) {
+      return invoke(mFindNames, new Object[] { names }, listener);
+    }
+  }
+
+  private static JMethod newMethod(String path, String name, Class<?> type,
+                                   Class<?> componentType) {
+    JMethod method = new JMethod(String.class);
+    method.setMetaInfo(new JMeta("find", path, "GET"));
+    method.setBaseUrl("http://loopback");
+    method.addParam(name, "QUERY", type, componentType, "", true);
+    return method;
+  }
+
+  private RequestSchema mSchema;
+  private JMethod mFindName;
+  private JMethod mFindId;
+  private JMethod mFindNames;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mSchema = new RequestSchema();
+    mFindName = newMethod("find/name", "name", String.class, null);
+    mFindId = newMethod("find/id", "id", int.class, null);
+    mFindNames = newMethod("find/names", "names", List.class, String.class);
+    mSchema.putMethod("find", mFindName);
+    mSchema.putMethod("find", mFindId);
+    mSchema.putMethod("find", mFindNames);
+  }
+
+  @SmallTest
+  public void testOverloadBySignature() throws Exception {
+    assertSame(mFindName, mSchema.getMethod(
+        FindApi.class.getMethod("find", String.class, StateChangedListener.class)));
+    assertSame(mFindId, mSchema.getMethod(
+        FindApi.class.getMethod("find", int.class, StateChangedListener.class)));
+    assertSame(mFindNames, mSchema.getMethod(
+        FindApi.class.getMethod("find", List.class, StateChangedListener.class)));
+  }
+
+  @SmallTest
+  public void testOverloadByArguments() {
+    assertSame(mFindName, mSchema.getMethod("find", new Object[] { "a" }));
+    assertSame(mFindId, mSchema.getMethod("find", new Object[] { 42 }));
+    assertSame(mFindNames, mSchema.getMethod("find", new Object[] { new ArrayList<String>() }));
+    // null matches the first reference type
+    assertSame(mFindName, mSchema.getMethod("find", new Object[] { null }));
+    assertNull(mSchema.getMethod("find", new Object[] { 1.5 }));
+    assertNull(mSchema.getMethod("unknown", new Object[] { "a" }));
+  }
+
+  @SmallTest
+  public void testStubMethodRef() {
+    assertSame(mFindId, ControllerStub.getMethod(mSchema, "find", int.class));
+    assertSame(mFindNames, ControllerStub.method(mSchema, "find", List.class).get());
+    ControllerStub.MethodRef ref = ControllerStub.method(mSchema, "find", double.class);
+    try {
+      ref.get();
+      fail("No overload takes a double");
+    } catch (MobileRuntimeException e) {
+      // Expected.
+    }
+  }
+
+  @SmallTest
+  public void testProxyDispatch() throws Exception {
+    Context context = getInstrumentation().getTargetContext();
+    MagnetMobileClient client = MagnetMobileClient.getInstance(context);
+    ConnectionConfig config = client.getConnectionConfigManager().addConnectionConfig(
+        "dispatch", "http://loopback", "LOOPBACK");
+    ((LoopbackConnectionService) config.getConnectionService()).setHandler(
+        new LoopbackConnectionService.Handler() {
+          public Reply handle(String method, String path, Map<String, String> headers,
+                              byte[] body) {
+            return new Reply(200, "text/plain", "\"" + path + "\"");
+          }
+        });
+    ControllerFactory<FindApi> factory =
+        new ControllerFactory<FindApi>(FindApi.class, mSchema, client) {};
+    FindApi api = factory.obtainSyncInstance(config);
+    assertDispatched(api);
+
+    // the asynchronous instance is reused for a connection
+    assertSame(factory.obtainInstance("dispatch"), factory.obtainInstance("dispatch"));
+
+    ControllerFactory<FindApi> stubFactory =
+        new ControllerFactory<FindApi>(FindApi.class, mSchema, client) {
+          @Override
+          protected FindApi newStub(ControllerProxy proxy) {
+            return new FindApiStub(proxy, getSchema());
+          }
+        };
+    assertDispatched(stubFactory.obtainSyncInstance(config));
+  }
+
+  private static void assertDispatched(FindApi api) throws Exception {
+    assertEquals("/find/name", api.find("a", null).get());
+    assertEquals("/find/id", api.find(42, null).get());
+    List<String> names = new ArrayList<String>();
+    names.add("a");
+    assertEquals("/find/names", api.find(names, null).get());
+  }
+}
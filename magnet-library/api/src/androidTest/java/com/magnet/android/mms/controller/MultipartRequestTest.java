@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.controller;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.magnet.android.mms.connection.ConnectionService;
+import com.magnet.android.mms.controller.RequestSchema.JMeta;
+import com.magnet.android.mms.controller.RequestSchema.JMethod;
+import com.magnet.android.mms.exception.MobileRuntimeException;
+import com.magnet.android.mms.request.MultipartWriter;
+
+public class MultipartRequestTest extends AndroidTestCase {
+
+  private static final String POST = ConnectionService.Request.Method.POST.name();
+  private static final String PLAIN = "PLAIN";
+  private static final String FORM = "FORM";
+
+  private static JMethod newMethod(String consumes) {
+    JMethod method = new JMethod();
+    JMeta metaInfo = new JMeta("upload", "/v1/upload", POST);
+    metaInfo.setConsumes(Arrays.asList(consumes));
+    method.setMetaInfo(metaInfo);
+    return method;
+  }
+
+  private static String getBoundary(String body) {
+    assertTrue(body.startsWith("--"));
+    return body.substring(2, body.indexOf("\r\n"));
+  }
+
+  @SmallTest
+  public void testRelatedParts() throws Exception {
+    ControllerHandler handler = new ControllerHandler();
+    JMethod method = newMethod("multipart/related");
+    method.addParam("title", PLAIN, String.class, null, "", false);
+    method.addParam("count", PLAIN, Integer.class, null, "", false);
+    method.addParam("image", PLAIN, byte[].class, null, "", false);
+    byte[] image = "raw image".getBytes();
+    Object[] args = new Object[] { "hello", 3, image };
+
+    assertEquals("/v1/upload", handler.buildUri(method, args));
+    String body = handler.buildRequestBodyString(method, args);
+    String boundary = getBoundary(body);
+    String[] parts = body.split("\r\n--" + boundary);
+    assertEquals(3, parts.length);
+    assertTrue(parts[0].contains("Content-ID: <root>\r\n"));
+    assertTrue(parts[0].contains("Content-Type: application/json\r\n"));
+    JSONObject root = new JSONObject(parts[0].substring(parts[0].indexOf("\r\n\r\n") + 4));
+    assertEquals("hello", root.getString("title"));
+    assertEquals(3, root.getInt("count"));
+    assertFalse(root.has("image"));
+    assertTrue(parts[1].contains("Content-ID: <image>\r\n"));
+    assertTrue(parts[1].contains("Content-Type: application/octet-stream\r\n"));
+    assertTrue(parts[1].endsWith("\r\n\r\nraw image"));
+    assertEquals("--\r\n", parts[2]);
+  }
+
+  @SmallTest
+  public void testFormDataParts() throws Exception {
+    ControllerHandler handler = new ControllerHandler();
+    JMethod method = newMethod("multipart/form-data");
+    method.addParam("name", FORM, String.class, null, "", false);
+    method.addParam("file", FORM, InputStream.class, null, "", false);
+    String content = "raw file content";
+    InputStream is = new ByteArrayInputStream(content.getBytes());
+
+    String body = handler.buildRequestBodyString(method, new Object[] { "a\"b", is });
+    String boundary = getBoundary(body);
+    assertTrue(body.contains("Content-Disposition: form-data; name=\"name\"\r\n" +
+        "Content-Type: text/plain; charset=UTF-8\r\n\r\na\"b\r\n--" + boundary));
+    assertTrue(body.contains("Content-Disposition: form-data; name=\"file\"; filename=\"file\"\r\n" +
+        "Content-Type: application/octet-stream\r\n\r\n" + content + "\r\n--" + boundary + "--\r\n"));
+  }
+
+  @SmallTest
+  public void testMultipartProducesNotSupported() {
+    ControllerHandler handler = new ControllerHandler();
+    JMethod method = newMethod("multipart/related");
+    method.getMetaInfo().setProduces(Arrays.asList("multipart/related"));
+    try {
+      handler.buildUri(method, null);
+      fail("multipart response should not be supported");
+    } catch (MobileRuntimeException e) {
+      // Expected.
+    }
+  }
+
+  @SmallTest
+  public void testStreamedPart() throws IOException {
+    // A large part is copied through a fixed buffer.
+    final long size = 8L * 1024 * 1024;
+    InputStream source = new InputStream() {
+      private long mRemaining = size;
+
+      @Override
+      public int read() {
+        return (mRemaining-- > 0) ? 'x' : -1;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int count) {
+        if (mRemaining <= 0) {
+          return -1;
+        }
+        int n = (int) Math.min(count, mRemaining);
+        Arrays.fill(buffer, offset, offset + n, (byte) 'x');
+        mRemaining -= n;
+        return n;
+      }
+    };
+    final long[] written = new long[1];
+    final int[] maxWrite = new int[1];
+    OutputStream sink = new OutputStream() {
+      @Override
+      public void write(int b) {
+        written[0]++;
+      }
+
+      @Override
+      public void write(byte[] buffer, int offset, int count) {
+        written[0] += count;
+        maxWrite[0] = Math.max(maxWrite[0], count);
+      }
+    };
+    MultipartWriter writer = new MultipartWriter(sink, MultipartWriter.MULTIPART_FORM_DATA, "b");
+    writer.writePart("data", "application/octet-stream", "data.bin", source);
+    writer.close();
+    assertTrue(written[0] > size);
+    assertTrue(maxWrite[0] < 1024 * 1024);
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    writer = new MultipartWriter(bos, MultipartWriter.MULTIPART_RELATED, "b");
+    writer.close();
+    assertEquals("--b--\r\n", bos.toString());
+    assertEquals("multipart/related; type=\"application/json\"; boundary=b",
+        MultipartWriter.getContentType(MultipartWriter.MULTIPART_RELATED, "b"));
+  }
+}
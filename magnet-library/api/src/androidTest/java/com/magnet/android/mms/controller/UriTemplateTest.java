@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.controller;
+
+import java.net.URLEncoder;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.magnet.android.mms.controller.RequestSchema.JMeta;
+import com.magnet.android.mms.controller.RequestSchema.JMethod;
+
+public class UriTemplateTest extends AndroidTestCase {
+
+  private static String encode(String value) {
+    StringBuilder sb = new StringBuilder();
+    UriTemplate.encode(sb, value);
+    return sb.toString();
+  }
+
+  @SmallTest
+  public void testEncodeSameAsURLEncoder() throws Exception {
+    String[] values = { "", "abcXYZ019.-*_", "What's up doc?", "a b&c=d/e;f",
+        "été 中文", "😀", "bad\ud83d", "~!@#$%^()+{}[]|\\:\"<>," };
+    for (String value : values) {
+      assertEquals(value, URLEncoder.encode(value, "UTF-8"), encode(value));
+    }
+    Random random = new Random(42);
+    for (int i = 0; i < 200; i++) {
+      char[] chars = new char[random.nextInt(20)];
+      for (int j = 0; j < chars.length; j++) {
+        chars[j] = (char) (random.nextBoolean() ? random.nextInt(128) : random.nextInt(0xd000));
+      }
+      String value = new String(chars);
+      assertEquals(URLEncoder.encode(value, "UTF-8"), encode(value));
+    }
+  }
+
+  @SmallTest
+  public void testCompiledTemplate() {
+    JMethod method = new JMethod(String.class);
+    method.setMetaInfo(new JMeta("getItem", "items/{id}/{unknown}/{q}", "GET"));
+    method.addParam("id", "TEMPLATE", String.class, null, "", false);
+    method.addParam("q", "QUERY", String.class, null, "", true);
+    method.addParam("m", "MATRIX", String.class, null, "", true);
+
+    ControllerHandler handler = new ControllerHandler();
+    assertEquals("/items/a+b/{unknown}/;m=x?q=1%2F2",
+        handler.buildUri(method, new Object[] { "a b", "1/2", "x" }));
+    assertSame(method.getUriTemplate(), method.getUriTemplate());
+
+    // a new base URL recompiles the template
+    method.setBaseUrl("http://host");
+    handler.reset();
+    assertEquals("http://host/items/42/{unknown}/",
+        handler.buildUri(method, new Object[] { "42", null, null }));
+  }
+}
@@ -21,6 +21,8 @@ package com.magnet.android.mms.settings;
 import android.test.InstrumentationTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import com.magnet.android.mms.utils.FileUtil;
+
 
 public class AppDefaultSettingsTest extends InstrumentationTestCase {
 
@@ -59,6 +61,8 @@ public class AppDefaultSettingsTest extends InstrumentationTestCase {
     // encryption = true
     // location = false
     assertTrue(settings.getCacheEncryptionEnabled());
+    assertEquals(FileUtil.CONTENT_LENGTH_THRESHOLD, settings.getHttpRequestBufferThreshold());
+    assertEquals(0, settings.getHttpWarmupEndpoints().length);
 
   }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+
+package com.magnet.android.mms.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class BufferPoolTest extends InstrumentationTestCase {
+
+  @SmallTest
+  public void testSizeClasses() {
+    assertEquals(1024, BufferPool.acquire(1).length);
+    assertEquals(1024, BufferPool.acquire(1024).length);
+    assertEquals(2048, BufferPool.acquire(1025).length);
+    assertEquals(64 * 1024, BufferPool.acquire(64 * 1024).length);
+    assertEquals(64 * 1024 + 1, BufferPool.acquire(64 * 1024 + 1).length);
+    assertEquals(BufferPool.getBufferSize(), BufferPool.acquire().length);
+  }
+
+  @SmallTest
+  public void testReuse() {
+    byte[] buffer = BufferPool.acquire(4096);
+    BufferPool.release(buffer);
+    long hits = BufferPool.getStats().getHits();
+    assertSame(buffer, BufferPool.acquire(3000));
+    assertEquals(hits + 1, BufferPool.getStats().getHits());
+
+    // a foreign buffer is never pooled
+    BufferPool.release(new byte[3000]);
+    assertEquals(4096, BufferPool.acquire(3000).length);
+  }
+
+  @SmallTest
+  public void testStreams() throws Exception {
+    byte[] data = new byte[100000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    OutputStream out = BufferPool.newOutputStream(bos);
+    out.write(data);
+    out.close();
+    out.close();
+    assertTrue(Arrays.equals(data, bos.toByteArray()));
+
+    InputStream in = BufferPool.newInputStream(new ByteArrayInputStream(data));
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) >= 0) {
+      result.write(b);
+    }
+    in.close();
+    in.close();
+    assertTrue(Arrays.equals(data, result.toByteArray()));
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class SpillableOutputStreamTest extends InstrumentationTestCase {
+
+  private static byte[] newContent(int length) {
+    byte[] content = new byte[length];
+    for (int i = 0; i < length; i++) {
+      content[i] = (byte) i;
+    }
+    return content;
+  }
+
+  @SmallTest
+  public void testSpill() throws Exception {
+    byte[] content = newContent(3000);
+    File dir = getInstrumentation().getTargetContext().getCacheDir();
+    SpillableOutputStream os = new SpillableOutputStream(1024, dir);
+    os.write(content, 0, 1000);
+    assertFalse(os.isSpilled());
+    os.write(content, 1000, 2000);
+    os.close();
+    assertTrue(os.isSpilled());
+    assertEquals(3000, os.size());
+    assertEquals(3000, os.getFile().length());
+    assertNull(os.toByteArray());
+    assertTrue(os.getFile().delete());
+  }
+
+  @SmallTest
+  public void testKeepInMemoryIfSpillFails() throws Exception {
+    byte[] content = newContent(3000);
+    File dir = new File(getInstrumentation().getTargetContext().getCacheDir(), "missing");
+    SpillableOutputStream os = new SpillableOutputStream(1024, dir);
+    os.write(content, 0, 1000);
+    os.write(content, 1000, 1999);
+    os.write(content[2999]);
+    os.close();
+    assertFalse(os.isSpilled());
+    assertEquals(3000, os.size());
+    assertTrue(Arrays.equals(content, os.toByteArray()));
+  }
+
+  @SmallTest
+  public void testContentAcrossChunks() throws Exception {
+    int length = 3 * BufferPool.getBufferSize() + 100;
+    byte[] content = newContent(length);
+    SpillableOutputStream os = new SpillableOutputStream(length);
+    os.write(content[0]);
+    os.write(content, 1, BufferPool.getBufferSize());
+    os.write(content, BufferPool.getBufferSize() + 1, length - BufferPool.getBufferSize() - 1);
+    assertFalse(os.isSpilled());
+    assertTrue(Arrays.equals(content, os.toByteArray()));
+    try {
+      os.write(0);
+      fail("The content was written after toByteArray()");
+    } catch (IOException e) {
+      // Expected.
+    }
+    os.close();
+    assertTrue(Arrays.equals(content, os.toByteArray()));
+  }
+}
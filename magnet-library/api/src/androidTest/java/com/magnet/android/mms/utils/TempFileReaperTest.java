@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.magnet.android.mms.async.AsyncService.Payload;
+
+public class TempFileReaperTest extends InstrumentationTestCase {
+  private static final int SIZE = 1000;
+  private static final long REAP_TIMEOUT = 10000;
+
+  private File newFile() throws IOException {
+    File file = File.createTempFile("reaper", ".tmp",
+        getInstrumentation().getTargetContext().getCacheDir());
+    FileOutputStream fos = new FileOutputStream(file);
+    fos.write(new byte[SIZE]);
+    fos.close();
+    return file;
+  }
+
+  // The payload is unreachable when this method returns.
+  private static void trackPayload(File file) {
+    new Payload(file).setDeleteOnSent(true);
+  }
+
+  @SmallTest
+  public void testReleaseDeletesFile() throws Exception {
+    TempFileReaper reaper = TempFileReaper.getInstance();
+    Object owner = new Object();
+    File file = newFile();
+    long bytes = reaper.getOutstandingBytes();
+    long released = reaper.getReleasedCount();
+    reaper.track(owner, file);
+    assertEquals(bytes + SIZE, reaper.getOutstandingBytes());
+    // tracking again is a no-op
+    reaper.track(owner, file);
+    assertEquals(bytes + SIZE, reaper.getOutstandingBytes());
+
+    assertTrue(reaper.release(file));
+    assertFalse(file.exists());
+    assertEquals(bytes, reaper.getOutstandingBytes());
+    assertEquals(released + 1, reaper.getReleasedCount());
+  }
+
+  @SmallTest
+  public void testReapUnreachablePayload() throws Exception {
+    TempFileReaper reaper = TempFileReaper.getInstance();
+    File file = newFile();
+    long reaped = reaper.getReapedCount();
+    trackPayload(file);
+    long deadline = System.currentTimeMillis() + REAP_TIMEOUT;
+    while (reaper.getReapedCount() == reaped && System.currentTimeMillis() < deadline) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    assertFalse(file.exists());
+    assertEquals(reaped + 1, reaper.getReapedCount());
+  }
+
+  @SmallTest
+  public void testPayloadCloseIsIdempotent() throws Exception {
+    TempFileReaper reaper = TempFileReaper.getInstance();
+    File file = newFile();
+    long bytes = reaper.getOutstandingBytes();
+    long released = reaper.getReleasedCount();
+    Payload payload = new Payload(file);
+    payload.setDeleteOnSent(true);
+    assertEquals(bytes + SIZE, reaper.getOutstandingBytes());
+
+    payload.close();
+    assertFalse(file.exists());
+    assertNull(payload.getFile());
+    payload.close();
+    assertEquals(bytes, reaper.getOutstandingBytes());
+    assertEquals(released + 1, reaper.getReleasedCount());
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+
+package com.magnet.android.mms.utils.logger;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class WireLoggerTest extends InstrumentationTestCase {
+
+  @SmallTest
+  public void testRedaction() {
+    assertTrue(WireLogger.isRedactedHeader("authorization"));
+    assertFalse(WireLogger.isRedactedHeader("Content-Type"));
+
+    WireLogger.addRedactedField("password");
+    WireLogger.addRedactedField("pin");
+    String body = "{\"user\":\"bob\",\"password\" : \"s\\\"ecret\",\"pin\":1234}";
+    assertEquals("{\"user\":\"bob\",\"password\" : \"<redacted>\",\"pin\":\"<redacted>\"}",
+        WireLogger.redactBody(body));
+  }
+
+  @SmallTest
+  public void testRedactTruncatedBody() {
+    WireLogger.addRedactedField("password");
+    assertEquals("{\"user\":\"bob\",\"password\":\"<redacted>\"",
+        WireLogger.redactBody("{\"user\":\"bob\",\"password\":\"hunt"));
+    assertEquals("{\"password\":\"<redacted>\"",
+        WireLogger.redactBody("{\"password\":\"hu\\"));
+  }
+
+  @SmallTest
+  public void testRedactFormBody() {
+    WireLogger.addRedactedField("password");
+    assertEquals("user=bob&password=<redacted>&remember=1",
+        WireLogger.redactBody("user=bob&password=hunter2&remember=1"));
+    assertEquals("password=<redacted>", WireLogger.redactBody("password=hun"));
+    assertEquals("old_password=x", WireLogger.redactBody("old_password=x"));
+  }
+}
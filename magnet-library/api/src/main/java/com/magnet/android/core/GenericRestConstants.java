@@ -21,9 +21,18 @@ public interface GenericRestConstants {
   public static final class Header {
     public static final String CONTENT_TYPE = "Content-Type";
     public static final String CONTENT_TRANSFER_ENCODING = "Content-Transfer-Encoding";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String CONTENT_LENGTH = "Content-Length";
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
     public static final String ACCEPT = "Accept";
     public static final String USER_AGENT = "User-Agent";
     public static final String LOCATION = "Location";
+    public static final String RANGE = "Range";
+    public static final String IF_RANGE = "If-Range";
+    public static final String CONTENT_RANGE = "Content-Range";
+    public static final String ACCEPT_RANGES = "Accept-Ranges";
+    public static final String ETAG = "ETag";
+    public static final String LAST_MODIFIED = "Last-Modified";
 
     public static final String COOKIE = "Cookie";
     public static final String SESSION_ID = "jsessionid";
@@ -39,6 +48,10 @@ public interface GenericRestConstants {
   public final static String MIME_ENCODING_NONE = "none";
   public final static String MIME_ENCODING_BASE64 = "base64";
 
+  public final static String CONTENT_ENCODING_GZIP = "gzip";
+  public final static String CONTENT_ENCODING_DEFLATE = "deflate";
+  public final static String CONTENT_ENCODING_IDENTITY = "identity";
+
 
 
 }
@@ -36,6 +36,10 @@ import android.os.Looper;
 public class AsyncCallOptions extends Options {
   String mQueueName;
   StateChangedListener mStateChangedListener;
+  int mParallelRanges = 1;
+  int mUploadChunkSize;
+  int mUploadParallelism = 1;
+  int mHedgePercentile = -1;
   
   StateListener mStateListener = new StateListener() {
     @Override
@@ -98,6 +102,52 @@ public class AsyncCallOptions extends Options {
     return this;
   }
 
+  /**
+   * Download a large <code>byte[]</code> or <code>InputStream</code> result
+   * of a GET call in parallel ranges if the server supports range requests.
+   * Each range uses its own connection, so a download throttled per
+   * connection can use more of the link capacity.  The server is probed with
+   * a HEAD request first; small results and servers without range support are
+   * downloaded in one request.
+   * @param ranges The max number of concurrent ranges; 1 to disable.
+   * @return The asynchronous call options.
+   */
+  public AsyncCallOptions setParallelRanges(int ranges) {
+    mParallelRanges = Math.max(1, ranges);
+    return this;
+  }
+
+  /**
+   * Upload a file payload larger than the chunk size in chunks which can be
+   * resumed by {@link Call#resend()} after a failure, or by the same call
+   * after a process restart.  The server must support the chunked upload
+   * protocol: the call starts an upload session, the chunks are PUT to the
+   * session with Content-Range, and the session is committed for the result.
+   * @param chunkSize The chunk size in bytes; 0 to disable.
+   * @param parallelism The max number of chunks uploaded concurrently.
+   * @return The asynchronous call options.
+   */
+  public AsyncCallOptions setChunkedUpload(int chunkSize, int parallelism) {
+    mUploadChunkSize = Math.max(0, chunkSize);
+    mUploadParallelism = Math.max(1, parallelism);
+    return this;
+  }
+
+  /**
+   * Hedge a GET or HEAD call: if there is no response after the given
+   * percentile of the recent latencies of the same call, a duplicate request
+   * is sent, the first response is used and the other request is aborted.
+   * The duplicate requests are limited by a global budget, a percentage of
+   * the hedgeable calls.  It overrides the hedging of the endpoint.
+   * @param percentile The latency percentile [1..99]; 0 to disable.
+   * @return The asynchronous call options.
+   * @see com.magnet.android.mms.connection.ConnectionConfigManager.ConnectionConfig#setHedgePercentile(int)
+   */
+  public AsyncCallOptions setHedging(int percentile) {
+    mHedgePercentile = Math.max(0, Math.min(99, percentile));
+    return this;
+  }
+
   /**
    * Override the default state listener, which dispatches the new state
    * to the handler.
@@ -116,6 +166,7 @@ public class AsyncCallOptions extends Options {
   
   public String toString() {
     return super.toString()+", qName="+mQueueName+", listener="+
-            mStateChangedListener+"]";
+            mStateChangedListener+", ranges="+mParallelRanges+
+            ", chunkSize="+mUploadChunkSize+", hedge="+mHedgePercentile+"]";
   }
 }
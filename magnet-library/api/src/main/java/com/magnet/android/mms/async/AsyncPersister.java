@@ -25,6 +25,8 @@ import android.provider.BaseColumns;
 
 import com.magnet.android.mms.async.AsyncPersister.AsyncDBHelper.RequestTable;
 import com.magnet.android.mms.async.AsyncPersister.AsyncDBHelper.ResCacheTable;
+import com.magnet.android.mms.async.AsyncPersister.AsyncDBHelper.UploadChunkTable;
+import com.magnet.android.mms.async.AsyncPersister.AsyncDBHelper.UploadTable;
 import com.magnet.android.mms.async.AsyncService.CallRequest;
 import com.magnet.android.mms.async.AsyncService.CallResult;
 import com.magnet.android.mms.async.AsyncService.Envelope;
@@ -42,11 +44,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -64,6 +69,8 @@ class AsyncPersister {
   private SQLiteDatabase mDb;
   private File mAsyncCacheDir;
   private File mAsyncDataDir;
+  private final static String PART_VALIDATOR = "validator";
+  private final static String PART_DIGEST = "digest";
  
   private final static String[] PROJECTION_CONSTRAINT = {
       RequestTable.ENCRYPTED,
@@ -148,7 +155,7 @@ class AsyncPersister {
   // Note: using full path for SQLiteOpenHelper because gradle build barfs even though
   // this class is imported. very strange.
   public class AsyncDBHelper extends android.database.sqlite.SQLiteOpenHelper {
-    private final static int DB_VERSION = 1;
+    private final static int DB_VERSION = 2;
     private final static String DB_NAME = "com_magnet_android_mms_async.db";
     
     public class RequestTable {
@@ -190,6 +197,25 @@ class AsyncPersister {
       public final static String ENCODING_TYPE = "encodingType";  // null, binary, base64
     }
 
+
+    public class UploadTable {
+      public final static String TABLE_NAME = "Upload";
+
+      public final static String _ID = BaseColumns._ID;
+      public final static String REQUEST_HASH = "requestHash";  // MD5/SHA combo
+      public final static String UPLOAD_URL = "uploadUrl";      // upload session URL
+      public final static String LENGTH = "length";             // payload length
+      public final static String CHUNK_SIZE = "chunkSize";
+    }
+
+    public class UploadChunkTable {
+      public final static String TABLE_NAME = "UploadChunk";
+
+      public final static String _ID = BaseColumns._ID;
+      public final static String REQUEST_HASH = "requestHash";  // MD5/SHA combo
+      public final static String CHUNK_INDEX = "chunkIndex";    // uploaded chunk
+    }
+
     
     AsyncDBHelper(Context context) {
       super(context, DB_NAME, null, DB_VERSION);
@@ -232,11 +258,28 @@ class AsyncPersister {
           + ResCacheTable.ENCODING_TYPE + " TEXT "  // payload transfer encoding type
           //+ ResCacheTable.RESULT + " BLOB "  // file name is "cache/async/${REQUEST_HASH}.dat"
           + ");" );
+
+      db.execSQL("CREATE TABLE IF NOT EXISTS "+UploadTable.TABLE_NAME+" ("
+          + UploadTable._ID + " INTEGER PRIMARY KEY, "
+          + UploadTable.REQUEST_HASH + " TEXT UNIQUE ON CONFLICT REPLACE, "
+          + UploadTable.UPLOAD_URL + " TEXT NOT NULL, "
+          + UploadTable.LENGTH + " UNSIGNED INTEGER, "
+          + UploadTable.CHUNK_SIZE + " INTEGER "
+          + ");" );
+
+      db.execSQL("CREATE TABLE IF NOT EXISTS "+UploadChunkTable.TABLE_NAME+" ("
+          + UploadChunkTable._ID + " INTEGER PRIMARY KEY, "
+          + UploadChunkTable.REQUEST_HASH + " TEXT NOT NULL, "
+          + UploadChunkTable.CHUNK_INDEX + " INTEGER, "
+          + "UNIQUE ("+UploadChunkTable.REQUEST_HASH+", "+UploadChunkTable.CHUNK_INDEX
+          + ") ON CONFLICT REPLACE "
+          + ");" );
     }
     
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-      // No upgrade yet.
+      // Version 2 added the Upload tables; all tables are created if absent.
+      onCreate(db);
     }
   }
   
@@ -278,6 +321,18 @@ class AsyncPersister {
         .getCacheEncryptionEnabled();
   }
   
+  /**
+   * This method is for testing only.  A partial result can only be resumed
+   * if the cached results are not encrypted.
+   * @param encrypt true to encrypt the cached results.
+   * @return The previous value.
+   */
+  static boolean setEncryptResult(boolean encrypt) {
+    boolean previous = ENCRYPT_RESULT;
+    ENCRYPT_RESULT = encrypt;
+    return previous;
+  }
+
   protected void init() {
     if (mDb == null) {
       try {
@@ -434,6 +489,16 @@ class AsyncPersister {
     RequestTable.QUEUE_NAME,
   };
 
+  private final static String[] PROJECTION_UPLOAD = {
+    UploadTable.UPLOAD_URL,
+    UploadTable.LENGTH,
+    UploadTable.CHUNK_SIZE,
+  };
+
+  private final static String[] PROJECTION_UPLOAD_CHUNK = {
+    UploadChunkTable.CHUNK_INDEX,
+  };
+
 
   private Class<?> type2Class(String name) throws ClassNotFoundException {
     Class<?> clz = PRIMITIVE_CLASS.get(name);
@@ -722,8 +787,226 @@ class AsyncPersister {
         ResCacheTable.REQUEST_HASH+"=?", new String[] { requestHash });
     File cacheFile = getAsyncCacheFile(requestHash);
     cacheFile.delete();
+    getPartialResultFile(requestHash).delete();
     return (rows == 1);
   }
+
+  /**
+   * A partially downloaded result which can be resumed by a range request.
+   */
+  static final class PartialResult {
+    final long length;
+    final String validator;
+
+    PartialResult(long length, String validator) {
+      this.length = length;
+      this.validator = validator;
+    }
+  }
+
+  /**
+   * Get the partial result kept from a failed download.  The partial result
+   * is discarded if it does not match the digest recorded when the download
+   * failed.
+   * @param requestHash
+   * @return The partial result, or null.
+   */
+  PartialResult getPartialResult(String requestHash) {
+    File partFile = getPartialResultFile(requestHash);
+    if (!partFile.exists()) {
+      return null;
+    }
+    Properties props = new Properties();
+    FileInputStream fis = null;
+    try {
+      fis = new FileInputStream(partFile);
+      props.load(fis);
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to read the partial result requestHash="+requestHash, e);
+    } finally {
+      if (fis != null) {
+        try {
+          fis.close();
+        } catch (IOException e) {
+          // Ignored.
+        }
+      }
+    }
+    File cacheFile = getAsyncCacheFile(requestHash);
+    String validator = props.getProperty(PART_VALIDATOR);
+    String digest = props.getProperty(PART_DIGEST);
+    if (validator == null || digest == null || ENCRYPT_RESULT ||
+        cacheFile.length() == 0 || !digest.equals(FileUtil.digest(cacheFile))) {
+      Log.w(TAG, "Discard an invalid partial result requestHash="+requestHash);
+      discardPartialResult(requestHash);
+      return null;
+    }
+    return new PartialResult(cacheFile.length(), validator);
+  }
+
+  /**
+   * A chunked upload session of a file payload.
+   */
+  static final class UploadSession {
+    final String uploadUrl;
+    final long length;
+    final int chunkSize;
+    final HashSet<Integer> uploadedChunks = new HashSet<Integer>();
+
+    UploadSession(String uploadUrl, long length, int chunkSize) {
+      this.uploadUrl = uploadUrl;
+      this.length = length;
+      this.chunkSize = chunkSize;
+    }
+  }
+
+  /**
+   * Get the chunked upload session of a request with its uploaded chunks.
+   * @param requestHash
+   * @return The upload session, or null.
+   */
+  UploadSession getUploadSession(String requestHash) {
+    UploadSession session = null;
+    Cursor cursor = mDb.query(UploadTable.TABLE_NAME, PROJECTION_UPLOAD,
+        UploadTable.REQUEST_HASH+"=?", new String[] { requestHash },
+        null, null, null);
+    try {
+      if (cursor.moveToNext()) {
+        session = new UploadSession(cursor.getString(0), cursor.getLong(1),
+            cursor.getInt(2));
+      }
+    } finally {
+      cursor.close();
+    }
+    if (session == null) {
+      return null;
+    }
+    cursor = mDb.query(UploadChunkTable.TABLE_NAME, PROJECTION_UPLOAD_CHUNK,
+        UploadChunkTable.REQUEST_HASH+"=?", new String[] { requestHash },
+        null, null, null);
+    try {
+      while (cursor.moveToNext()) {
+        session.uploadedChunks.add(cursor.getInt(0));
+      }
+    } finally {
+      cursor.close();
+    }
+    return session;
+  }
+
+  /**
+   * Start a chunked upload session of a request; any previous session and its
+   * progress are discarded.
+   * @param requestHash
+   * @param session
+   * @return true for success.
+   */
+  boolean addUploadSession(String requestHash, UploadSession session) {
+    removeUploadSession(requestHash);
+    ContentValues cv = new ContentValues();
+    cv.put(UploadTable.REQUEST_HASH, requestHash);
+    cv.put(UploadTable.UPLOAD_URL, session.uploadUrl);
+    cv.put(UploadTable.LENGTH, session.length);
+    cv.put(UploadTable.CHUNK_SIZE, session.chunkSize);
+    return mDb.insert(UploadTable.TABLE_NAME, null, cv) > 0;
+  }
+
+  /**
+   * Record an uploaded chunk of a chunked upload session.
+   * @param requestHash
+   * @param chunkIndex
+   * @return true for success.
+   */
+  boolean addUploadedChunk(String requestHash, int chunkIndex) {
+    ContentValues cv = new ContentValues();
+    cv.put(UploadChunkTable.REQUEST_HASH, requestHash);
+    cv.put(UploadChunkTable.CHUNK_INDEX, chunkIndex);
+    return mDb.insert(UploadChunkTable.TABLE_NAME, null, cv) > 0;
+  }
+
+  /**
+   * Remove a chunked upload session and its progress.
+   * @param requestHash
+   */
+  void removeUploadSession(String requestHash) {
+    mDb.delete(UploadChunkTable.TABLE_NAME, UploadChunkTable.REQUEST_HASH+"=?",
+        new String[] { requestHash });
+    mDb.delete(UploadTable.TABLE_NAME, UploadTable.REQUEST_HASH+"=?",
+        new String[] { requestHash });
+  }
+
+  /**
+   * Allocate the cache file of a result to be written at random offsets, e.g.
+   * by parallel range downloads.
+   * @param requestHash
+   * @param length The length of the result.
+   * @return The cache file, or null if the cache is encrypted or the file
+   *         cannot be allocated.
+   */
+  File allocateResult(String requestHash, long length) {
+    if (ENCRYPT_RESULT) {
+      return null;
+    }
+    getPartialResultFile(requestHash).delete();
+    File cacheFile = getAsyncCacheFile(requestHash);
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(cacheFile, "rw");
+      raf.setLength(length);
+      return cacheFile;
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to allocate "+length+" bytes requestHash="+requestHash, e);
+      cacheFile.delete();
+      return null;
+    } finally {
+      if (raf != null) {
+        try {
+          raf.close();
+        } catch (IOException e) {
+          // Ignored.
+        }
+      }
+    }
+  }
+
+  /**
+   * Discard the partial result kept from a failed download.
+   * @param requestHash
+   */
+  void discardPartialResult(String requestHash) {
+    getPartialResultFile(requestHash).delete();
+    getAsyncCacheFile(requestHash).delete();
+  }
+
+  // Keep the partial result with its validator and digest so that the download
+  // can be resumed.
+  private boolean keepPartialResult(File cacheFile, String requestHash, String validator) {
+    String digest = FileUtil.digest(cacheFile);
+    if (digest == null) {
+      return false;
+    }
+    Properties props = new Properties();
+    props.setProperty(PART_VALIDATOR, validator);
+    props.setProperty(PART_DIGEST, digest);
+    FileOutputStream fos = null;
+    try {
+      fos = new FileOutputStream(getPartialResultFile(requestHash));
+      props.store(fos, null);
+      Log.d(TAG, "Keep a partial result of "+cacheFile.length()+" bytes requestHash="+requestHash);
+      return true;
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to keep the partial result requestHash="+requestHash, e);
+      return false;
+    } finally {
+      if (fos != null) {
+        try {
+          fos.close();
+        } catch (IOException e) {
+          // Ignored.
+        }
+      }
+    }
+  }
   
   /**
    * Add a pending cache or a completed cache result.  A pending cache means
@@ -738,13 +1021,50 @@ class AsyncPersister {
   public CallResult addCache(CallRequest request, String contentType, 
                               String encodingType, InputStream payload,
                               ProgressListener listener) {
+    return addCache(request, contentType, encodingType, payload, listener, null, 0);
+  }
+
+  /**
+   * Add a completed cache result which may be resumed if the download fails.
+   * If the payload cannot be saved and a validator is given, the partial
+   * result is kept for {@link #getPartialResult(String)}.
+   * @param request
+   * @param contentType
+   * @param encodingType
+   * @param payload A result payload.
+   * @param listener
+   * @param validator A strong ETag or a Last-Modified date of the result, or null.
+   * @param offset The length of the partial result which the payload continues, or 0.
+   * @return
+   */
+  public CallResult addCache(CallRequest request, String contentType,
+                              String encodingType, InputStream payload,
+                              ProgressListener listener, String validator,
+                              long offset) {
     // Save the payload (if any) to an external storage.
     if (payload != null) {
-      if (!saveResult(payload, request.computeHash(), listener)) {
+      if (!saveResult(payload, request.computeHash(), listener, validator, offset)) {
         return null;
       }
     }
+    return insertCache(request, contentType, encodingType, payload != null);
+  }
 
+  /**
+   * Add a completed cache result downloaded into the file from
+   * {@link #allocateResult(String, long)}.
+   * @param request
+   * @param contentType
+   * @param encodingType
+   * @return
+   */
+  public CallResult addAllocatedCache(CallRequest request, String contentType,
+                                       String encodingType) {
+    return insertCache(request, contentType, encodingType, true);
+  }
+
+  private CallResult insertCache(CallRequest request, String contentType,
+                                  String encodingType, boolean completed) {
     ContentValues cv = new ContentValues();
     cv.put(ResCacheTable.ENCRYPTED, ENCRYPT_RESULT ? 1 : 0);
     cv.put(ResCacheTable.CORRELATION_ID, request.correlationId);
@@ -761,7 +1081,7 @@ class AsyncPersister {
     } else {
       cv.put(ResCacheTable.ENCODING_TYPE, encodingType);
     }
-    long completionTime = (payload != null) ? System.currentTimeMillis() : 0L;
+    long completionTime = completed ? System.currentTimeMillis() : 0L;
     cv.put(ResCacheTable.COMPLETION_TIME, completionTime);
     long resultId = mDb.insert(ResCacheTable.TABLE_NAME, null, cv);
     if (resultId <= 0) {
@@ -774,7 +1094,7 @@ class AsyncPersister {
     result.resultClz = request.resultClz;
     result.rtnCmpTypes = request.rtnCmpTypes;
     result.requestHash = request.computeHash();
-    if (payload != null)
+    if (completed)
       result.resultTime = new Date(completionTime);
     result.contentType = contentType;
     result.encodingType = encodingType;
@@ -844,13 +1164,18 @@ class AsyncPersister {
   boolean isAsyncDataFile(String path) {
     return path.contains(getAsyncDataDir().getAbsolutePath());
   }
-  
+
   private File getAsyncCacheFile(String requestHash) {
     File asyncCacheDir = getAsyncCacheDir();
     File cacheFile = new File(asyncCacheDir.getAbsolutePath()+"/"+requestHash+".dat");
     return cacheFile;
   }
   
+  private File getPartialResultFile(String requestHash) {
+    File asyncCacheDir = getAsyncCacheDir();
+    return new File(asyncCacheDir.getAbsolutePath()+"/"+requestHash+".part");
+  }
+
   private File getAsyncDataDir() {
     if (mAsyncDataDir == null) {
       String path = mContext.getFilesDir().getAbsolutePath()+"/async";
@@ -883,34 +1208,51 @@ class AsyncPersister {
     return true;
   }
   
-  // Save the payload in an external cache directory, not in DB.
+  // Save the payload in an external cache directory, not in DB.  The payload
+  // is appended to the partial result if the offset is not 0.  A partial
+  // result is kept on failure if it has a validator to resume the download.
   private boolean saveResult(InputStream payload, String requestHash, 
-                               ProgressListener listener) {
+                               final ProgressListener listener, String validator,
+                               final long offset) {
     File cacheFile = getAsyncCacheFile(requestHash);
+    getPartialResultFile(requestHash).delete();
+    if (offset > 0 && (ENCRYPT_RESULT || cacheFile.length() != offset)) {
+      Log.e(TAG, "Unable to resume the result at "+offset+" requestHash="+requestHash);
+      cacheFile.delete();
+      return false;
+    }
+    // Keep the progress accumulative over the partial result.
+    ProgressListener progress = (offset == 0 || listener == null) ? listener :
+      new ProgressListener() {
+        @Override
+        public void report(int count) {
+          listener.report((int) Math.min(Integer.MAX_VALUE, offset+count));
+        }
+      };
     OutputStream fos = null;
+    boolean saved = false;
     try {
-      fos = new FileOutputStream(cacheFile);
+      fos = new FileOutputStream(cacheFile, offset > 0);
       if (ENCRYPT_RESULT) {
         fos = FileUtil.encrypt(fos);
       }
-      boolean saved = FileUtil.tee(payload, new FileUtil.OutputFileOp(fos),
-                        new FileUtil.InProgressFileOp(listener));
-      if (!saved) {
-        cacheFile.delete();
-      }
-      return saved;
+      saved = FileUtil.tee(payload, new FileUtil.OutputFileOp(fos),
+                        new FileUtil.InProgressFileOp(progress));
     } catch (Throwable e) {
-      cacheFile.delete();
       Log.e(TAG, "Unable to save result in file", e);
-      return false;
     } finally {
       if (fos != null) {
         try {
           fos.close();
         } catch (IOException e) {
-          // Ignored.
+          saved = false;
         }
       }
     }
+    if (!saved && (validator == null || ENCRYPT_RESULT || cacheFile.length() == 0 ||
+        !keepPartialResult(cacheFile, requestHash, validator))) {
+      cacheFile.delete();
+    }
+    return saved;
   }
 }
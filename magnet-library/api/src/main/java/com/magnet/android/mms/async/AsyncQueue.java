@@ -43,11 +43,20 @@ public class AsyncQueue extends LinkedBlockingQueue<Runnable> implements Runnabl
   /**
    * Process all requests in this queue in a worker thread.  At the end, if
    * the queue becomes empty, remove the queue.  But during the run, a CallImpl
-   * may sleep and resend itself.
+   * may sleep and resend itself.  A call throttled by the rate limiter of its
+   * endpoint is put back to the head, and the queue is run again when the
+   * call can be sent, so the worker thread is not held while waiting.
    */
   public void run() {
     CallImpl<?> call;
     while ((call = (CallImpl<?>) this.poll()) != null) {
+      long delay = call.getAdmissionDelay();
+      if (delay > 0) {
+        Log.d(TAG, "Throttle an async call for "+delay+"ms on queue="+mQueueName);
+        insert(call);
+        mQueueMgr.schedule(this, delay);
+        return;
+      }
       Log.d(TAG, "Process an async call on queue="+mQueueName);
       call.run();
     }
@@ -19,12 +19,17 @@ package com.magnet.android.mms.async;
 import android.content.Context;
 
 import com.magnet.android.mms.async.AsyncService.CallRequest;
+import com.magnet.android.mms.utils.DaemonThreadFactory;
 import com.magnet.android.mms.utils.logger.Log;
 
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @hide
@@ -33,6 +38,7 @@ import java.util.concurrent.ExecutorService;
 public class AsyncQueueManager {
   private final static String TAG = "AsyncQueueManager";
   private static int sQueueId = 100;
+  private static ScheduledExecutorService sTimer;
   private Context mContext;
   private ExecutorService mExecutor;
   private HashMap<String, AsyncQueue> mQueues = new HashMap<String, AsyncQueue>();
@@ -101,6 +107,7 @@ public class AsyncQueueManager {
     // Append the request to the queue.
     try {
       call.mRequest.requestTime = System.currentTimeMillis();
+      call.mRateLimiter = null;
       queue.add(call);
       mExecutor.execute(queue);
       return true;
@@ -110,6 +117,31 @@ public class AsyncQueueManager {
     }
   }
   
+  /**
+   * Run a queue after a delay, e.g. its head call is throttled.
+   * @param queue The queue.
+   * @param delayMillis The delay in milliseconds.
+   */
+  void schedule(final AsyncQueue queue, long delayMillis) {
+    getTimer().schedule(new Runnable() {
+      public void run() {
+        try {
+          mExecutor.execute(queue);
+        } catch (RejectedExecutionException e) {
+          Log.e(TAG, "Unable to run the throttled queue "+queue.getQueueName(), e);
+        }
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private static synchronized ScheduledExecutorService getTimer() {
+    if (sTimer == null) {
+      sTimer = Executors.newSingleThreadScheduledExecutor(
+          new DaemonThreadFactory("AsyncQueueTimer"));
+    }
+    return sTimer;
+  }
+
   /**
    * Remove the queue.  Only remove the queue if it is empty.
    * @param queueName
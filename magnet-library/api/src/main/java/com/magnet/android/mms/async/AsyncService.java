@@ -28,10 +28,12 @@ import com.magnet.android.mms.settings.MagnetDefaultSettings;
 import com.magnet.android.mms.utils.FileUtil;
 import com.magnet.android.mms.utils.FileUtil.Mode;
 import com.magnet.android.mms.utils.MobileHandlerThread;
+import com.magnet.android.mms.utils.TempFileReaper;
 import com.magnet.android.mms.utils.Util;
 import com.magnet.android.mms.utils.logger.Log;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -89,20 +91,14 @@ public class AsyncService implements Handler.Callback {
    * This internal class is used by Controller to encapsulate the payload
    * stored in an external file or a byte array.
    */
-  public static class Payload implements Serializable {
+  public static class Payload implements Serializable, Closeable {
     private static final long serialVersionUID = 3015820179688035735L;
     private static final Payload EMPTY_PAYLOAD = new Payload((byte[]) null);
     private transient boolean mDeleteOnSent;
-    private transient int mSize = -1;
+    private transient long mSize = -1;
     private String mPath;
     private byte[] mData;
     
-    protected void finalize() throws Throwable {
-      if (mDeleteOnSent && mPath != null) {
-        (new File(mPath)).delete();
-      }
-    }
-    
     /**
      * The payload content stored in a file path.
      * @param path null, or a readable file path.
@@ -113,7 +109,7 @@ public class AsyncService implements Handler.Callback {
         mData = FileUtil.EMPTY_BYTES;
         mSize = 0;
       } else {
-        mSize = (int) (new File(path)).length();
+        mSize = (new File(path)).length();
       }
     }
     
@@ -128,7 +124,7 @@ public class AsyncService implements Handler.Callback {
         mSize = 0;
       } else {
         mPath = file.getPath();
-        mSize = (int) file.length();
+        mSize = file.length();
       }
     }
     
@@ -161,6 +157,9 @@ public class AsyncService implements Handler.Callback {
      */
     public void setDeleteOnSent(boolean deleteOnSent) {
       mDeleteOnSent = deleteOnSent;
+      if (deleteOnSent && mPath != null) {
+        TempFileReaper.getInstance().track(this, new File(mPath));
+      }
     }
     
     /**
@@ -186,10 +185,21 @@ public class AsyncService implements Handler.Callback {
      */
     public void deleteFile() {
       if (mPath != null) {
-        (new File(mPath)).delete();
+        TempFileReaper.getInstance().release(new File(mPath));
         mPath = null;
       }
     }
+
+    /**
+     * Delete the backing file if it is marked for deleteOnSent.  Otherwise, the
+     * file is left intact.
+     */
+    @Override
+    public void close() {
+      if (mDeleteOnSent) {
+        deleteFile();
+      }
+    }
    
     /**
      * Get the payload as byte array.  If the payload may be back by a file if
@@ -295,13 +305,13 @@ public class AsyncService implements Handler.Callback {
       }
     }
     
-    public int getSize() {
+    public long getSize() {
       if (mSize >= 0) {
         return mSize;
       }
       // The size is unknown after deserialization, so get it again.
       if (mPath != null) {
-        return mSize = (int) (new File(mPath)).length();
+        return mSize = (new File(mPath)).length();
       } else if (mData != null) {
         return mSize = mData.length;
       } else {
@@ -362,6 +372,10 @@ public class AsyncService implements Handler.Callback {
     public LinkedHashMap<String, String> getHeaders() {
       return mHeaders;
     }
+
+    public Method getMethod() {
+      return mRestMethod;
+    }
     
     public void populateRequest(Request request) {
       request.setMethod(mRestMethod);
@@ -480,6 +494,7 @@ public class AsyncService implements Handler.Callback {
       }
       File dataFile = persister.getAsyncDataFile(hash);
       if (outf.renameTo(dataFile)) {
+        TempFileReaper.getInstance().untrack(inf);
         payload.mPath = dataFile.getAbsolutePath();
         inf.delete();
         return true;
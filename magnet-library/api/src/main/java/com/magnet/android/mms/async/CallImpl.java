@@ -18,7 +18,9 @@ package com.magnet.android.mms.async;
 
 import android.content.Context;
 
+import com.magnet.android.core.GenericRestConstants;
 import com.magnet.android.mms.MagnetMobileClient;
+import com.magnet.android.mms.async.AsyncPersister.PartialResult;
 import com.magnet.android.mms.async.AsyncService.CallRequest;
 import com.magnet.android.mms.async.AsyncService.CallResult;
 import com.magnet.android.mms.async.StateChangedListener.ProgressData;
@@ -26,20 +28,23 @@ import com.magnet.android.mms.connection.ConnectionConfigManager;
 import com.magnet.android.mms.connection.ConnectionConfigManager.ConnectionConfig;
 import com.magnet.android.mms.connection.ConnectionService;
 import com.magnet.android.mms.connection.ConnectionService.Request;
+import com.magnet.android.mms.connection.ConnectionService.Request.Method;
 import com.magnet.android.mms.connection.ConnectionService.Response;
 import com.magnet.android.mms.connection.ConnectionService.Response.Status;
+import com.magnet.android.mms.connection.RateLimiter;
 import com.magnet.android.mms.exception.HttpCallException;
 import com.magnet.android.mms.exception.MobileRuntimeException;
 import com.magnet.android.mms.request.ParserFactory;
 import com.magnet.android.mms.request.ResponseParser;
+import com.magnet.android.mms.settings.MagnetDefaultSettings;
 import com.magnet.android.mms.exception.MarshallingException;
 import com.magnet.android.mms.utils.FileUtil.InProgressFileOp.ProgressListener;
 import com.magnet.android.mms.utils.Util;
 import com.magnet.android.mms.utils.logger.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
@@ -61,12 +66,20 @@ import java.util.concurrent.TimeoutException;
 public class CallImpl<T> implements Call<T>, Runnable, ProgressListener {
   private final static String TAG = "CallImpl";
   private final static String DETAIL_MSG = " failed; detail is in the cause.";
+  private final static int HTTP_PARTIAL_CONTENT = 206;
 
   private final static String ID_PREFIX_DEFAULT = "U";
 
   Context mContext;     // application context
-  boolean mCancelled;
+  volatile boolean mCancelled;
   CallRequest mRequest; // null if the CallImpl is done
+  volatile Request mActiveRequest; // only set while EXECUTING
+  volatile RangeDownloader mActiveDownload; // only set while EXECUTING in ranges
+  volatile ChunkedUploader mActiveUpload; // only set while EXECUTING in chunks
+  volatile RequestHedger mActiveHedge; // only set while EXECUTING hedged
+  RateLimiter mRateLimiter; // the endpoint rate limiter which reserved a permit
+  long mAdmitTime;          // when the reserved permit can be used
+  volatile RateLimiter.Admission mAdmission; // only set while EXECUTING
   CallResult mResult;   // null if QUEUED, FAILED, CANCELLED, TIMEDOUT
   Throwable mStack;
   ProgressData mProgress; // only valid when EXECUTING
@@ -169,16 +182,34 @@ public class CallImpl<T> implements Call<T>, Runnable, ProgressListener {
       AsyncPersister.getInstance(mContext).removeCacheByRequestHash(
           mResult.requestHash);
     }
+    if (mResult == null) {
+      discardResumeState();
+    }
 
     mRequest = null;
     mResult = null;
     return true;
   }
 
+  // Remove the partial result and the upload session kept for resending a
+  // failed call; a disposed or cancelled call is not resent.
+  private void discardResumeState() {
+    AsyncPersister persister = AsyncPersister.getInstance(mContext);
+    String resultHash = mRequest.computeHash().intern();
+    synchronized (resultHash) {
+      if (persister.getPartialResult(resultHash) != null) {
+        persister.discardPartialResult(resultHash);
+      }
+      persister.removeUploadSession(resultHash);
+    }
+  }
+
   /**
    * Cancel a queued or executing call.  If the call has been disposed,
    * completed, cancelled, or unable to cancel, it will return false.  Upon
-   * successful completion, this call object will be disposed too.
+   * successful completion, this call object will be disposed too.  An
+   * executing call is aborted only if mayInterruptIfRunning is true; its
+   * state becomes {@link State#CANCELLED} and it must be disposed.
    *
    * @param mayInterruptIfRunning
    */
@@ -191,8 +222,32 @@ public class CallImpl<T> implements Call<T>, Runnable, ProgressListener {
         mRequest.correlationId, mayInterruptIfRunning);
     if (cancelled) {
       mCancelled = true;
+      discardResumeState();
       mRequest = null;
       mResult = null;
+    } else if (mayInterruptIfRunning) {
+      // Abort the executing request; run() will set the CANCELLED state.
+      Request request = mActiveRequest;
+      RangeDownloader download = mActiveDownload;
+      ChunkedUploader upload = mActiveUpload;
+      RequestHedger hedge = mActiveHedge;
+      if (request != null) {
+        mCancelled = true;
+        request.cancel();
+        cancelled = true;
+      } else if (download != null) {
+        mCancelled = true;
+        download.cancel();
+        cancelled = true;
+      } else if (upload != null) {
+        mCancelled = true;
+        upload.cancel();
+        cancelled = true;
+      } else if (hedge != null) {
+        mCancelled = true;
+        hedge.cancel();
+        cancelled = true;
+      }
     }
     return cancelled;
   }
@@ -441,41 +496,69 @@ public class CallImpl<T> implements Call<T>, Runnable, ProgressListener {
       Response response = null;
       Throwable cause;
       try {
-        ConnectionConfigManager ccMgr = MagnetMobileClient.getInstance(
-            mContext).getManager(ConnectionConfigManager.class, mContext);
-        ConnectionConfig cc = ccMgr.getConnectionConfig(mRequest.envelope.getEndPoint());
+        admit();
+        ConnectionConfig cc = getConnectionConfig();
         if (cc == null) {
           throw new IOException("No such endpoint in connection_configs.xml: " +
               mRequest.envelope.getEndPoint());
         }
         ConnectionService connectSvc = cc.getConnectionService();
 
-        // Add the headers populated when the call was invoked.
-        Request request = connectSvc.createRequest();
-        request.setPath(mRequest.path);
-        mRequest.envelope.populateRequest(request);
-        request.addHeaders(mRequest.headers);
-
-        request.setContentType(mRequest.contentType);
-        int payloadSize = 0;
+        Request request = newRequest(connectSvc);
+        AsyncPersister persister = AsyncPersister.getInstance(mContext);
+        ChunkedUploader upload = newChunkedUploader(connectSvc, persister, resultHash);
+        RequestHedger hedge;
+        long payloadSize = 0;
         if (mRequest.payload != null) {
           payloadSize = mRequest.payload.getSize();
-          payloadInput = mRequest.payload.getAsRawInputStream();
+          payloadInput = (upload != null) ? null : mRequest.payload.getAsRawInputStream();
 
           if (payloadInput != null) {
-            request.setPayload(payloadInput);
+            request.setPayload(payloadInput, payloadSize);
           }
         }
 
-        AsyncPersister persister = AsyncPersister.getInstance(mContext);
+        // Resume a partial result left by a failed download.
+        PartialResult partial = null;
+        if (mRequest.envelope.getMethod() == Method.GET &&
+            (partial = persister.getPartialResult(resultHash)) != null) {
+          Log.d(TAG, "run() resumes the result at "+partial.length);
+          request.setHeader(GenericRestConstants.Header.RANGE, "bytes="+partial.length+"-");
+          request.setHeader(GenericRestConstants.Header.IF_RANGE, partial.validator);
+          request.setHeader(GenericRestConstants.Header.ACCEPT_ENCODING,
+              GenericRestConstants.CONTENT_ENCODING_IDENTITY);
+        }
 
         synchronized (this) {
           // Don't use setStateAndNotify() here; it will cause CallImpl.get() return
           // prematurely when CallImpl.wait().
-          setProgress(false, payloadSize);
+          setProgress(false, (payloadSize > Integer.MAX_VALUE) ? -1 : (int) payloadSize);
           report(0);
         }
-        response = request.execute();
+        if (partial == null && downloadInRanges(connectSvc, persister, resultHash)) {
+          cleanupFileInPayload();
+          setStateAndNotify(State.SUCCESS, null, options);
+          return;
+        }
+        if (upload != null) {
+          mActiveUpload = upload;
+          if (mCancelled) {
+            throw new IOException("Call cancelled");
+          }
+          response = upload.upload(mRequest.payload.getFile());
+        } else if (partial == null && (hedge = newRequestHedger(cc, connectSvc)) != null) {
+          mActiveHedge = hedge;
+          if (mCancelled) {
+            throw new IOException("Call cancelled");
+          }
+          response = hedge.execute(request);
+        } else {
+          mActiveRequest = request;
+          if (mCancelled) {
+            throw new IOException("Call cancelled");
+          }
+          response = request.execute();
+        }
         Status status = response.getStatus();
 
         Log.d(TAG, "Response received: ctype=" + response.getContentType() +
@@ -483,9 +566,25 @@ public class CallImpl<T> implements Call<T>, Runnable, ProgressListener {
 
         switch (status) {
           case SUCCESS:
-            setProgress(true, getIntHeader(response, "Content-Length", -1));
+            long offset = 0;
+            if (partial != null) {
+              if (response.getResponseCode() != HTTP_PARTIAL_CONTENT) {
+                // The result has changed; it is downloaded in full.
+                persister.discardPartialResult(resultHash);
+              } else if (getContentRangeStart(response) == partial.length) {
+                offset = partial.length;
+              } else {
+                persister.discardPartialResult(resultHash);
+                throw new IOException("Unexpected Content-Range: "+
+                    RequestGroup.getHeader(response, GenericRestConstants.Header.CONTENT_RANGE));
+              }
+            }
+            int length = getIntHeader(response, "Content-Length", -1);
+            setProgress(true, (length < 0 || offset+length > Integer.MAX_VALUE) ?
+                -1 : (int) (offset+length));
             mResult = persister.addCache(mRequest, response.getContentType(),
-                response.getContentTransferEncoding(), response.getPayload(), this);
+                response.getContentTransferEncoding(), response.getPayload(), this,
+                (offset > 0) ? partial.validator : getValidator(response), offset);
             if (mResult != null) {
               cleanupFileInPayload();
               setStateAndNotify(State.SUCCESS, null, options);
@@ -498,6 +597,9 @@ public class CallImpl<T> implements Call<T>, Runnable, ProgressListener {
             break;
           case ERROR:
             mResult = null;
+            if (partial != null) {
+              persister.discardPartialResult(resultHash);
+            }
             cause = new HttpCallException(Util.inputStreamToString(
                 response.getPayload()), null, response.getResponseCode());
             fillStack(cause);
@@ -505,11 +607,21 @@ public class CallImpl<T> implements Call<T>, Runnable, ProgressListener {
             break;
         }
       } catch (Throwable e) {
-        Log.e(TAG, "run() failed", e);
         mResult = null;
-        cause = new ExecutionException(stripQuery(mRequest.path) + DETAIL_MSG, e);
-        setStateAndNotify(State.FAILED, cause, options);
+        if (mCancelled) {
+          Log.d(TAG, "run() cancelled");
+          setStateAndNotify(State.CANCELLED, null, options);
+        } else {
+          Log.e(TAG, "run() failed", e);
+          cause = new ExecutionException(stripQuery(mRequest.path) + DETAIL_MSG, e);
+          setStateAndNotify(State.FAILED, cause, options);
+        }
       } finally {
+        mAdmission = null;
+        mActiveRequest = null;
+        mActiveDownload = null;
+        mActiveUpload = null;
+        mActiveHedge = null;
         if (payloadInput != null) {
           try {
             payloadInput.close();
@@ -524,6 +636,126 @@ public class CallImpl<T> implements Call<T>, Runnable, ProgressListener {
     }
   }
 
+  private ConnectionConfig getConnectionConfig() {
+    ConnectionConfigManager ccMgr = MagnetMobileClient.getInstance(
+        mContext).getManager(ConnectionConfigManager.class, mContext);
+    return ccMgr.getConnectionConfig(mRequest.envelope.getEndPoint());
+  }
+
+  /**
+   * @hide
+   * Reserve a request permit from the rate limiter of the endpoint once per
+   * run, and get the time to wait before the call can be run.
+   * @return The time in milliseconds; 0 if the call can be run now.
+   */
+  long getAdmissionDelay() {
+    if (mRateLimiter == null) {
+      ConnectionConfig cc = (mRequest == null) ? null : getConnectionConfig();
+      if (cc == null || (mRateLimiter = cc.getRequestRateLimiter()) == null) {
+        return 0;
+      }
+      mAdmitTime = System.currentTimeMillis() + mRateLimiter.reserve(1);
+    }
+    return Math.max(0, mAdmitTime - System.currentTimeMillis());
+  }
+
+  // The first request of this run, on any thread, uses the permit reserved by
+  // the queue.
+  void admit() {
+    mAdmission = (mRateLimiter == null) ? null : new RateLimiter.Admission(mRateLimiter);
+    mRateLimiter = null;
+  }
+
+  // Create a request with the headers populated when the call was invoked.
+  Request newRequest(ConnectionService connectSvc) {
+    Request request = connectSvc.createRequest();
+    RateLimiter.admit(request, mAdmission);
+    request.setPath(mRequest.path);
+    mRequest.envelope.populateRequest(request);
+    request.addHeaders(mRequest.headers);
+
+    request.setContentType(mRequest.contentType);
+    return request;
+  }
+
+  // Create a chunked uploader if it is enabled in the options and the payload
+  // is a file larger than a chunk.
+  private ChunkedUploader newChunkedUploader(ConnectionService connectSvc,
+      AsyncPersister persister, String resultHash) {
+    Options options = mRequest.options;
+    if (!(options instanceof AsyncCallOptions) || mRequest.payload == null ||
+        !mRequest.payload.isFile()) {
+      return null;
+    }
+    AsyncCallOptions asyncOptions = (AsyncCallOptions) options;
+    if (asyncOptions.mUploadChunkSize <= 0 ||
+        mRequest.payload.getSize() <= asyncOptions.mUploadChunkSize) {
+      return null;
+    }
+    return new ChunkedUploader(this, connectSvc, persister, resultHash,
+        asyncOptions.mUploadChunkSize, asyncOptions.mUploadParallelism);
+  }
+
+  // Create a request hedger if it is enabled in the options or the endpoint
+  // and the call is idempotent without a payload.
+  private RequestHedger newRequestHedger(ConnectionConfig cc, ConnectionService connectSvc) {
+    Options options = mRequest.options;
+    int percentile = (options instanceof AsyncCallOptions) ?
+        ((AsyncCallOptions) options).mHedgePercentile : -1;
+    if (percentile < 0) {
+      percentile = cc.getHedgePercentile();
+    }
+    Method method = mRequest.envelope.getMethod();
+    if (percentile <= 0 || mRequest.payload != null ||
+        (method != Method.GET && method != Method.HEAD)) {
+      return null;
+    }
+    return new RequestHedger(this, connectSvc, cc.getName()+" "+method+" "+
+        stripQuery(mRequest.path), percentile,
+        MagnetDefaultSettings.getInstance(mContext).getHttpHedgeBudgetPercent());
+  }
+
+  // Download a large byte[] or InputStream result in parallel ranges if it is
+  // enabled in the options and the server supports it.  Return false if the
+  // result should be downloaded in one request.
+  private boolean downloadInRanges(ConnectionService connectSvc,
+      AsyncPersister persister, String resultHash) throws IOException {
+    Options options = mRequest.options;
+    if (!(options instanceof AsyncCallOptions) ||
+        ((AsyncCallOptions) options).mParallelRanges <= 1 ||
+        mRequest.envelope.getMethod() != Method.GET ||
+        (mRequest.resultClz != byte[].class && mRequest.resultClz != InputStream.class)) {
+      return false;
+    }
+    RangeDownloader download = new RangeDownloader(this, connectSvc,
+        ((AsyncCallOptions) options).mParallelRanges);
+    mActiveDownload = download;
+    if (mCancelled) {
+      throw new IOException("Call cancelled");
+    }
+    if (!download.probe()) {
+      return false;
+    }
+    File file = persister.allocateResult(resultHash, download.getLength());
+    if (file == null) {
+      return false;
+    }
+    setProgress(true, (download.getLength() > Integer.MAX_VALUE) ?
+        -1 : (int) download.getLength());
+    try {
+      download.download(file);
+    } catch (IOException e) {
+      persister.discardPartialResult(resultHash);
+      throw e;
+    }
+    mResult = persister.addAllocatedCache(mRequest, download.getContentType(),
+        download.getEncodingType());
+    if (mResult == null) {
+      throw new IOException("Unable to cache the result; check logcat for details.");
+    }
+    return true;
+  }
+
   /**
    * @hide
    * Update the EXECUTING state and do a callback with I/O statistics.  If the
@@ -551,11 +783,37 @@ public class CallImpl<T> implements Call<T>, Runnable, ProgressListener {
   }
 
   private int getIntHeader(Response response, String name, int defValue) {
-    List<String> list = response.getHeaders().get(name);
-    if (list == null || list.size() == 0) {
-      return defValue;
+    String value = RequestGroup.getHeader(response, name);
+    return (value == null) ? defValue : Integer.parseInt(value);
+  }
+
+  // A partial result can be resumed by a range request if the server supports
+  // ranges and the result has a validator for If-Range.  A decoded result has
+  // no Content-Length and its length does not match the ranges.
+  private String getValidator(Response response) {
+    if (!"bytes".equals(RequestGroup.getHeader(response, GenericRestConstants.Header.ACCEPT_RANGES)) ||
+        RequestGroup.getHeader(response, GenericRestConstants.Header.CONTENT_LENGTH) == null) {
+      return null;
+    }
+    String etag = RequestGroup.getHeader(response, GenericRestConstants.Header.ETAG);
+    if (etag != null && !etag.startsWith("W/")) {
+      return etag;
+    }
+    return RequestGroup.getHeader(response, GenericRestConstants.Header.LAST_MODIFIED);
+  }
+
+  // Get the first byte position from "Content-Range: bytes first-last/length".
+  private long getContentRangeStart(Response response) {
+    String range = RequestGroup.getHeader(response, GenericRestConstants.Header.CONTENT_RANGE);
+    if (range == null || !range.startsWith("bytes ")) {
+      return -1;
+    }
+    int index = range.indexOf('-');
+    try {
+      return Long.parseLong(range.substring(6, (index < 0) ? range.length() : index).trim());
+    } catch (NumberFormatException e) {
+      return -1;
     }
-    return Integer.parseInt(list.get(0));
   }
 
   private void fillStack(Throwable cause) {
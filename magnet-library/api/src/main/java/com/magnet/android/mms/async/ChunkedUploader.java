@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.async;
+
+import com.magnet.android.core.GenericRestConstants;
+import com.magnet.android.mms.async.AsyncPersister.UploadSession;
+import com.magnet.android.mms.connection.ConnectionService;
+import com.magnet.android.mms.connection.ConnectionService.Request;
+import com.magnet.android.mms.connection.ConnectionService.Request.Method;
+import com.magnet.android.mms.connection.ConnectionService.Request.PayloadWriter;
+import com.magnet.android.mms.connection.ConnectionService.Response;
+import com.magnet.android.mms.connection.ConnectionService.Response.Status;
+import com.magnet.android.mms.utils.BufferPool;
+import com.magnet.android.mms.utils.logger.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This is an internal class.  It uploads a large file payload in fixed-size
+ * chunks which can be resumed after a failure or a process restart.  The
+ * protocol is:
+ * <ol>
+ *   <li>The call method is sent to the call path with no body, and with the
+ *   <code>X-Upload-Protocol: chunked</code>, <code>X-Upload-Content-Length</code>
+ *   and <code>X-Upload-Content-Type</code> headers.  The server answers 201
+ *   with the upload session URL in <code>Location</code>.</li>
+ *   <li>Each chunk is a PUT to the session URL with
+ *   <code>Content-Range: bytes first-last/length</code>.  The server answers
+ *   2xx when the chunk is stored.</li>
+ *   <li>When all chunks are stored, the call method is sent to the session URL
+ *   with <code>X-Upload-Command: commit</code> and no body.  The server answers
+ *   as if the whole payload was sent in one request.</li>
+ * </ol>
+ * The session and the uploaded chunks are kept in the async DB by the request
+ * hash, which covers the payload content, so only the missing chunks are sent
+ * when the call is resent.  A session unknown to the server (404 or 410) is
+ * started over once.  The session of a cancelled upload is removed.
+ */
+final class ChunkedUploader extends RequestGroup {
+  private final static String TAG = "ChunkedUploader";
+  final static String HEADER_PROTOCOL = "X-Upload-Protocol";
+  final static String HEADER_CONTENT_LENGTH = "X-Upload-Content-Length";
+  final static String HEADER_CONTENT_TYPE = "X-Upload-Content-Type";
+  final static String HEADER_COMMAND = "X-Upload-Command";
+  final static String PROTOCOL_CHUNKED = "chunked";
+  final static String COMMAND_COMMIT = "commit";
+  private final static int HTTP_CREATED = 201;
+  private final static int HTTP_NOT_FOUND = 404;
+  private final static int HTTP_GONE = 410;
+
+  private final AsyncPersister mPersister;
+  private final String mRequestHash;
+  private final int mChunkSize;
+  private final int mParallelism;
+  private volatile boolean mCancelled;
+  private volatile boolean mAborted;
+
+  /**
+   * The upload session is unknown to the server.
+   */
+  @SuppressWarnings("serial")
+  private static class SessionGoneException extends IOException {
+    SessionGoneException(String message) {
+      super(message);
+    }
+  }
+
+  ChunkedUploader(CallImpl<?> call, ConnectionService service,
+                   AsyncPersister persister, String requestHash,
+                   int chunkSize, int parallelism) {
+    super(call, service);
+    mPersister = persister;
+    mRequestHash = requestHash;
+    mChunkSize = chunkSize;
+    mParallelism = parallelism;
+  }
+
+  /**
+   * Upload the file and commit it.
+   * @param file The payload file.
+   * @return The response to the commit; the caller must release it.
+   * @throws IOException
+   */
+  Response upload(File file) throws IOException {
+    long length = file.length();
+    for (int attempt = 0; ; attempt++) {
+      mAborted = false;
+      UploadSession session = mPersister.getUploadSession(mRequestHash);
+      if (session != null && (session.length != length || session.chunkSize <= 0)) {
+        mPersister.removeUploadSession(mRequestHash);
+        session = null;
+      }
+      if (session == null) {
+        session = start(length);
+      } else {
+        Log.d(TAG, "upload() resumes "+session.uploadedChunks.size()+" uploaded chunks");
+      }
+      try {
+        uploadChunks(file, session);
+        Response response = commit(session);
+        mPersister.removeUploadSession(mRequestHash);
+        return response;
+      } catch (SessionGoneException e) {
+        mPersister.removeUploadSession(mRequestHash);
+        if (attempt > 0) {
+          throw e;
+        }
+        Log.w(TAG, "upload() starts over: "+e.getMessage());
+      } catch (IOException e) {
+        // A cancelled upload is not resumed; the chunks are no longer sent.
+        if (mCancelled) {
+          mPersister.removeUploadSession(mRequestHash);
+        }
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Abort all chunks being uploaded.  The upload session is removed when
+   * {@link #upload(File)} returns.
+   */
+  void cancel() {
+    mCancelled = true;
+    abort();
+  }
+
+  // Abort the chunks of this attempt after a chunk failed.
+  private void abort() {
+    mAborted = true;
+    abortRequests();
+  }
+
+  @Override
+  boolean isStopped() {
+    return mCancelled || mAborted;
+  }
+
+  private UploadSession start(long length) throws IOException {
+    Request request = newRequest();
+    request.setHeader(HEADER_PROTOCOL, PROTOCOL_CHUNKED);
+    request.setHeader(HEADER_CONTENT_LENGTH, String.valueOf(length));
+    if (mCall.mRequest.contentType != null) {
+      request.setHeader(HEADER_CONTENT_TYPE, mCall.mRequest.contentType);
+    }
+    request.setContentType(null);
+    Response response = null;
+    try {
+      response = request.execute();
+      List<String> location = response.getHeaders().get(GenericRestConstants.Header.LOCATION);
+      if (response.getResponseCode() != HTTP_CREATED || location == null || location.isEmpty()) {
+        throw new IOException("Unable to start a chunked upload: code="+
+            response.getResponseCode());
+      }
+      String uploadUrl = new URL(new URL(mCall.mRequest.path), location.get(0)).toString();
+      UploadSession session = new UploadSession(uploadUrl, length, mChunkSize);
+      if (!mPersister.addUploadSession(mRequestHash, session)) {
+        throw new IOException("Unable to save the upload session; check logcat for details.");
+      }
+      Log.d(TAG, "start() session="+uploadUrl+", length="+length);
+      return session;
+    } finally {
+      if (response != null) {
+        response.release();
+      }
+      untrack(request);
+    }
+  }
+
+  // Upload the missing chunks by the calling thread and up to parallelism-1
+  // pooled threads.
+  private void uploadChunks(final File file, final UploadSession session) throws IOException {
+    final int chunks = (int) ((session.length + session.chunkSize - 1) / session.chunkSize);
+    final AtomicInteger next = new AtomicInteger();
+    long sent = 0;
+    for (int index : session.uploadedChunks) {
+      sent += Math.min(session.chunkSize, session.length - (long) index * session.chunkSize);
+    }
+    resetProgress();
+    report(sent);
+    Callable<Void> worker = new Callable<Void>() {
+      public Void call() throws IOException {
+        uploadNextChunks(file, session, next, chunks);
+        return null;
+      }
+    };
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int i = Math.min(mParallelism, chunks - session.uploadedChunks.size()); --i > 0; ) {
+      futures.add(getExecutor().submit(worker));
+    }
+    IOException failure = null;
+    try {
+      uploadNextChunks(file, session, next, chunks);
+    } catch (IOException e) {
+      failure = e;
+      abort();
+    }
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = (e.getCause() instanceof IOException) ? (IOException) e.getCause() :
+            new IOException("Chunk upload failed: "+e.getCause());
+        }
+        abort();
+      } catch (InterruptedException e) {
+        if (failure == null) {
+          failure = new InterruptedIOException("Chunk upload interrupted");
+        }
+        abort();
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void uploadNextChunks(File file, UploadSession session, AtomicInteger next,
+                                 int chunks) throws IOException {
+    int index;
+    while (!mAborted && (index = next.getAndIncrement()) < chunks) {
+      if (!session.uploadedChunks.contains(index)) {
+        uploadChunk(file, session, index);
+      }
+    }
+  }
+
+  private void uploadChunk(File file, UploadSession session, int index) throws IOException {
+    long first = (long) index * session.chunkSize;
+    long count = Math.min(session.chunkSize, session.length - first);
+    Request request = newRequest();
+    request.setPath(session.uploadUrl);
+    request.setMethod(Method.PUT);
+    request.setHeader(GenericRestConstants.Header.CONTENT_RANGE,
+        "bytes "+first+"-"+(first+count-1)+"/"+session.length);
+    request.setContentType(GenericRestConstants.CONTENT_TYPE_OCTET_STREAM);
+    request.setPayload(new ChunkWriter(file, first, count), count);
+    Response response = null;
+    try {
+      response = request.execute();
+      checkSession(response);
+      if (response.getStatus() != Status.SUCCESS) {
+        throw new IOException("Unable to upload the chunk "+index+": code="+
+            response.getResponseCode());
+      }
+    } finally {
+      if (response != null) {
+        response.release();
+      }
+      untrack(request);
+    }
+    mPersister.addUploadedChunk(mRequestHash, index);
+  }
+
+  private Response commit(UploadSession session) throws IOException {
+    Request request = newRequest();
+    request.setPath(session.uploadUrl);
+    request.setHeader(HEADER_COMMAND, COMMAND_COMMIT);
+    request.setContentType(null);
+    try {
+      Response response = request.execute();
+      try {
+        checkSession(response);
+      } catch (SessionGoneException e) {
+        response.release();
+        throw e;
+      }
+      return response;
+    } finally {
+      untrack(request);
+    }
+  }
+
+  private void checkSession(Response response) throws SessionGoneException {
+    int code = response.getResponseCode();
+    if (code == HTTP_NOT_FOUND || code == HTTP_GONE) {
+      throw new SessionGoneException("The upload session is gone: code="+code);
+    }
+  }
+
+  /**
+   * Write a chunk of the file as the request payload.
+   */
+  private class ChunkWriter implements PayloadWriter {
+    private final File mFile;
+    private final long mFirst;
+    private final long mCount;
+
+    ChunkWriter(File file, long first, long count) {
+      mFile = file;
+      mFirst = first;
+      mCount = count;
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+      byte[] buffer = BufferPool.acquire();
+      try {
+        raf.seek(mFirst);
+        long remaining = mCount;
+        int n;
+        while (remaining > 0 &&
+            (n = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining))) >= 0) {
+          os.write(buffer, 0, n);
+          remaining -= n;
+          report(n);
+        }
+        if (remaining > 0) {
+          throw new EOFException("The payload file is truncated at "+(mFirst+mCount-remaining));
+        }
+      } finally {
+        BufferPool.release(buffer);
+        raf.close();
+      }
+    }
+  }
+}
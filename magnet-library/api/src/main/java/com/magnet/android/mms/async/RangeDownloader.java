@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.async;
+
+import com.magnet.android.core.GenericRestConstants;
+import com.magnet.android.mms.connection.ConnectionService;
+import com.magnet.android.mms.connection.ConnectionService.Request;
+import com.magnet.android.mms.connection.ConnectionService.Request.Method;
+import com.magnet.android.mms.connection.ConnectionService.Response;
+import com.magnet.android.mms.connection.ConnectionService.Response.Status;
+import com.magnet.android.mms.utils.BufferPool;
+import com.magnet.android.mms.utils.logger.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * This is an internal class.  It downloads a large result in parallel ranges
+ * into a preallocated cache file.  The server is probed by a HEAD request for
+ * its range support, the length and a validator.  Each range is a GET request
+ * with If-Range, so a result changed during the download fails the call
+ * instead of mixing two versions.  The progress of all ranges is reported to
+ * the call as one accumulative byte count.
+ */
+final class RangeDownloader extends RequestGroup {
+  private final static String TAG = "RangeDownloader";
+  // A smaller range is not worth another connection.
+  final static long MIN_RANGE_SIZE = 256 * 1024;
+  private final static int HTTP_PARTIAL_CONTENT = 206;
+
+  private final int mMaxRanges;
+  private volatile boolean mCancelled;
+  private int mRanges;
+  private long mLength;
+  private String mValidator;
+  private String mContentType;
+  private String mEncodingType;
+
+  RangeDownloader(CallImpl<?> call, ConnectionService service, int maxRanges) {
+    super(call, service);
+    mMaxRanges = maxRanges;
+  }
+
+  long getLength() {
+    return mLength;
+  }
+
+  String getContentType() {
+    return mContentType;
+  }
+
+  String getEncodingType() {
+    return mEncodingType;
+  }
+
+  /**
+   * Probe the server for the range support.
+   * @return true if the result can be downloaded in more than one range.
+   * @throws IOException
+   */
+  boolean probe() throws IOException {
+    Request request = newRequest();
+    request.setMethod(Method.HEAD);
+    Response response = null;
+    try {
+      response = request.execute();
+      if (response.getStatus() != Status.SUCCESS ||
+          !"bytes".equals(getHeader(response, GenericRestConstants.Header.ACCEPT_RANGES))) {
+        return false;
+      }
+      String etag = getHeader(response, GenericRestConstants.Header.ETAG);
+      mValidator = (etag != null && !etag.startsWith("W/")) ? etag :
+        getHeader(response, GenericRestConstants.Header.LAST_MODIFIED);
+      String length = getHeader(response, GenericRestConstants.Header.CONTENT_LENGTH);
+      if (mValidator == null || length == null) {
+        return false;
+      }
+      mLength = Long.parseLong(length);
+      mRanges = (int) Math.min(mMaxRanges, mLength / MIN_RANGE_SIZE);
+      mContentType = response.getContentType();
+      mEncodingType = response.getContentTransferEncoding();
+      Log.d(TAG, "probe() length="+mLength+", ranges="+mRanges);
+      return mRanges > 1;
+    } catch (NumberFormatException e) {
+      return false;
+    } finally {
+      if (response != null) {
+        response.release();
+      }
+      untrack(request);
+    }
+  }
+
+  /**
+   * Download all ranges into a file allocated for the probed length.  The
+   * first range is downloaded by the calling thread.
+   * @param file The allocated file.
+   * @throws IOException The download failed or it was cancelled.
+   */
+  void download(final File file) throws IOException {
+    long size = (mLength + mRanges - 1) / mRanges;
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(mRanges - 1);
+    for (long start = size; start < mLength; start += size) {
+      final long first = start;
+      final long last = Math.min(start + size, mLength) - 1;
+      futures.add(getExecutor().submit(new Callable<Void>() {
+        public Void call() throws IOException {
+          fetch(file, first, last);
+          return null;
+        }
+      }));
+    }
+    IOException failure = null;
+    try {
+      fetch(file, 0, size - 1);
+    } catch (IOException e) {
+      failure = e;
+      cancel();
+    }
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = (e.getCause() instanceof IOException) ? (IOException) e.getCause() :
+            new IOException("Range download failed: "+e.getCause());
+        }
+        cancel();
+      } catch (InterruptedException e) {
+        if (failure == null) {
+          failure = new InterruptedIOException("Range download interrupted");
+        }
+        cancel();
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Abort all ranges being downloaded.
+   */
+  void cancel() {
+    mCancelled = true;
+    abortRequests();
+  }
+
+  @Override
+  boolean isStopped() {
+    return mCancelled;
+  }
+
+  private void fetch(File file, long first, long last) throws IOException {
+    Request request = newRequest();
+    request.setHeader(GenericRestConstants.Header.RANGE, "bytes="+first+"-"+last);
+    request.setHeader(GenericRestConstants.Header.IF_RANGE, mValidator);
+    Response response = null;
+    RandomAccessFile raf = null;
+    byte[] buffer = BufferPool.acquire();
+    try {
+      response = request.execute();
+      String range = getHeader(response, GenericRestConstants.Header.CONTENT_RANGE);
+      if (response.getResponseCode() != HTTP_PARTIAL_CONTENT || range == null ||
+          !range.startsWith("bytes "+first+"-"+last+"/")) {
+        throw new IOException("Unexpected response to the range "+first+"-"+last+
+            ": code="+response.getResponseCode()+", Content-Range="+range);
+      }
+      raf = new RandomAccessFile(file, "rw");
+      raf.seek(first);
+      InputStream payload = response.getPayload();
+      long remaining = last - first + 1;
+      int n;
+      while (remaining > 0 &&
+          (n = payload.read(buffer, 0, (int) Math.min(buffer.length, remaining))) >= 0) {
+        raf.write(buffer, 0, n);
+        remaining -= n;
+        report(n);
+      }
+      if (remaining > 0) {
+        throw new EOFException("The range "+first+"-"+last+" is truncated");
+      }
+    } finally {
+      BufferPool.release(buffer);
+      if (raf != null) {
+        raf.close();
+      }
+      if (response != null) {
+        response.release();
+      }
+      untrack(request);
+    }
+  }
+
+  @Override
+  Request newRequest() throws IOException {
+    Request request = super.newRequest();
+    // The ranges are the offsets of the unencoded result.
+    request.setHeader(GenericRestConstants.Header.ACCEPT_ENCODING,
+        GenericRestConstants.CONTENT_ENCODING_IDENTITY);
+    return request;
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.async;
+
+import com.magnet.android.mms.connection.ConnectionService;
+import com.magnet.android.mms.connection.ConnectionService.Request;
+import com.magnet.android.mms.connection.ConnectionService.Response;
+import com.magnet.android.mms.utils.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This is an internal class.  It is the base of the transfers sending the
+ * requests of one call in parallel.  The requests are tracked so that they
+ * can be aborted together, and their progress is reported to the call as one
+ * accumulative byte count.  The parallel requests of all calls run in one
+ * shared pool of daemon threads.
+ */
+abstract class RequestGroup {
+  private static ExecutorService sExecutor;
+
+  final CallImpl<?> mCall;
+  final ConnectionService mService;
+  private final List<Request> mActiveRequests = new ArrayList<Request>();
+  private long mProgress;
+
+  RequestGroup(CallImpl<?> call, ConnectionService service) {
+    mCall = call;
+    mService = service;
+  }
+
+  /**
+   * @return true if no more requests can be sent.  It is checked with the
+   *         lock of the active requests held.
+   */
+  abstract boolean isStopped();
+
+  /**
+   * Create a request of the call and track it until {@link #untrack(Request)}.
+   * @return The request.
+   * @throws InterruptedIOException The transfer is stopped.
+   */
+  Request newRequest() throws IOException {
+    Request request = mCall.newRequest(mService);
+    synchronized (mActiveRequests) {
+      if (isStopped()) {
+        throw new InterruptedIOException(getClass().getSimpleName()+" cancelled");
+      }
+      mActiveRequests.add(request);
+    }
+    return request;
+  }
+
+  void untrack(Request request) {
+    synchronized (mActiveRequests) {
+      mActiveRequests.remove(request);
+    }
+  }
+
+  /**
+   * Abort all tracked requests.  The caller must make {@link #isStopped()}
+   * true first, so that no request is tracked afterwards.
+   */
+  void abortRequests() {
+    synchronized (mActiveRequests) {
+      for (Request request : mActiveRequests) {
+        request.cancel();
+      }
+    }
+  }
+
+  // The call progress is not thread safe.
+  synchronized void resetProgress() {
+    mProgress = 0;
+  }
+
+  synchronized void report(long count) {
+    mProgress += count;
+    mCall.report((int) Math.min(Integer.MAX_VALUE, mProgress));
+  }
+
+  static String getHeader(Response response, String name) {
+    List<String> list = response.getHeaders().get(name);
+    if (list == null || list.size() == 0) {
+      return null;
+    }
+    return list.get(0);
+  }
+
+  static synchronized ExecutorService getExecutor() {
+    if (sExecutor == null) {
+      sExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("CallWorker"));
+    }
+    return sExecutor;
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.async;
+
+import com.magnet.android.mms.connection.ConnectionService;
+import com.magnet.android.mms.connection.ConnectionService.Request;
+import com.magnet.android.mms.connection.ConnectionService.Response;
+import com.magnet.android.mms.utils.logger.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class hedges an idempotent request to cut its tail latency.  If no
+ * response arrives within a percentile of the recent latencies of the same
+ * call, a duplicate request is sent and the first response wins; the other
+ * request is aborted.  The hedges are paid from a global budget
+ * credited by a percentage of every hedgeable call, so they add at most that
+ * percentage of extra requests.  No request is hedged until enough latencies
+ * of the call have been observed.
+ */
+public final class RequestHedger {
+  private final static String TAG = "RequestHedger";
+  // The latencies kept per call, and the min of them to compute a percentile.
+  final static int WINDOW_SIZE = 100;
+  final static int MIN_SAMPLES = 20;
+  private final static int MAX_CALLS = 64;
+  // The budget is kept in 1/100 of a hedge; at most this many hedges can be saved.
+  private final static int MAX_SAVED_HEDGES = 10;
+  private static long sCredits;
+  private static final Stats sStats = new Stats();
+  private static final Map<String, long[]> sLatencies =
+      new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+          return size() > MAX_CALLS;
+        }
+      };
+
+  private final CallImpl<?> mCall;
+  private final ConnectionService mService;
+  private final String mKey;
+  private final int mPercentile;
+  private final int mBudgetPercent;
+  private final List<Request> mActiveRequests = new ArrayList<Request>();
+  private final BlockingQueue<Object> mOutcomes = new LinkedBlockingQueue<Object>();
+  private volatile boolean mCancelled;
+  private boolean mFinished;
+  private Request mWinner;
+
+  /**
+   * Hedging statistics.
+   */
+  public static final class Stats {
+    private final AtomicLong mCalls = new AtomicLong();
+    private final AtomicLong mHedges = new AtomicLong();
+    private final AtomicLong mHedgeWins = new AtomicLong();
+    private final AtomicLong mOverBudget = new AtomicLong();
+
+    /**
+     * @return The number of hedgeable calls.
+     */
+    public long getCalls() {
+      return mCalls.get();
+    }
+
+    /**
+     * @return The number of duplicate requests sent.
+     */
+    public long getHedges() {
+      return mHedges.get();
+    }
+
+    /**
+     * @return The number of calls answered by a duplicate request.
+     */
+    public long getHedgeWins() {
+      return mHedgeWins.get();
+    }
+
+    /**
+     * @return The number of hedges skipped because the budget was used up.
+     */
+    public long getOverBudget() {
+      return mOverBudget.get();
+    }
+
+    @Override
+    public String toString() {
+      return "HedgeStats{calls="+getCalls()+", hedges="+getHedges()+
+          ", hedgeWins="+getHedgeWins()+", overBudget="+getOverBudget()+"}";
+    }
+  }
+
+  /**
+   * @param call The call to be hedged.
+   * @param service The connection service to create the duplicate request.
+   * @param key The identity of the call whose latencies are tracked.
+   * @param percentile The latency percentile [1..99] after which to hedge.
+   * @param budgetPercent The max extra requests in percentage of the calls.
+   */
+  RequestHedger(CallImpl<?> call, ConnectionService service, String key,
+      int percentile, int budgetPercent) {
+    mCall = call;
+    mService = service;
+    mKey = key;
+    mPercentile = Math.max(1, Math.min(99, percentile));
+    mBudgetPercent = Math.max(0, budgetPercent);
+  }
+
+  /**
+   * Get the hedging statistics of all calls.
+   * @return The statistics.
+   */
+  public static Stats getStats() {
+    return sStats;
+  }
+
+  /**
+   * Execute a request, and a duplicate of it if it is slow.
+   * @param request The first request.
+   * @return The first response.
+   * @throws IOException All requests failed, or the call is cancelled.
+   */
+  Response execute(Request request) throws IOException {
+    sStats.mCalls.incrementAndGet();
+    deposit(mBudgetPercent);
+    long delay = getDelay(mKey, mPercentile);
+    if (delay < 0) {
+      track(request);
+      long start = System.currentTimeMillis();
+      Response response = request.execute();
+      addLatency(mKey, System.currentTimeMillis() - start);
+      return response;
+    }
+
+    int pending = 1;
+    submit(request, false);
+    try {
+      Object outcome = mOutcomes.poll(delay, TimeUnit.MILLISECONDS);
+      if (outcome == null) {
+        if (withdraw()) {
+          Log.d(TAG, "execute() hedges after "+delay+"ms: "+mKey);
+          sStats.mHedges.incrementAndGet();
+          submit(mCall.newRequest(mService), true);
+          ++pending;
+        } else {
+          sStats.mOverBudget.incrementAndGet();
+        }
+        outcome = mOutcomes.take();
+      }
+      IOException failure = null;
+      while (true) {
+        --pending;
+        if (outcome instanceof Response) {
+          return (Response) outcome;
+        }
+        if (failure == null) {
+          failure = (IOException) outcome;
+        }
+        if (pending == 0) {
+          throw failure;
+        }
+        outcome = mOutcomes.take();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Hedged request interrupted");
+    } finally {
+      abortLosers();
+    }
+  }
+
+  /**
+   * Abort all requests, including the winner whose response is being read.
+   */
+  void cancel() {
+    mCancelled = true;
+    synchronized (mActiveRequests) {
+      for (Request request : mActiveRequests) {
+        request.cancel();
+      }
+      if (mWinner != null) {
+        mWinner.cancel();
+      }
+    }
+  }
+
+  private void abortLosers() {
+    synchronized (mActiveRequests) {
+      mFinished = true;
+      for (Request request : mActiveRequests) {
+        request.cancel();
+      }
+    }
+  }
+
+  private void track(Request request) throws IOException {
+    synchronized (mActiveRequests) {
+      if (mCancelled || mFinished) {
+        throw new InterruptedIOException("Hedged request cancelled");
+      }
+      mActiveRequests.add(request);
+    }
+  }
+
+  private void submit(final Request request, final boolean hedge) throws IOException {
+    track(request);
+    RequestGroup.getExecutor().execute(new Runnable() {
+      public void run() {
+        long start = System.currentTimeMillis();
+        Object outcome;
+        try {
+          Response response = request.execute();
+          if (win(request)) {
+            addLatency(mKey, System.currentTimeMillis() - start);
+            if (hedge) {
+              sStats.mHedgeWins.incrementAndGet();
+            }
+            outcome = response;
+          } else {
+            response.release();
+            outcome = new InterruptedIOException("Hedged request lost");
+          }
+        } catch (IOException e) {
+          outcome = e;
+        } catch (RuntimeException e) {
+          outcome = new IOException("Hedged request failed: "+e);
+        } finally {
+          synchronized (mActiveRequests) {
+            mActiveRequests.remove(request);
+          }
+        }
+        mOutcomes.add(outcome);
+      }
+    });
+  }
+
+  // Only the first response wins; a later one is released by its worker.
+  private boolean win(Request request) {
+    synchronized (mActiveRequests) {
+      if (mWinner != null || mCancelled || mFinished) {
+        return false;
+      }
+      mWinner = request;
+      // The winner must not be aborted with the losers.
+      mActiveRequests.remove(request);
+      return true;
+    }
+  }
+
+  private static synchronized void deposit(int percent) {
+    sCredits = Math.min(sCredits + percent, MAX_SAVED_HEDGES * 100);
+  }
+
+  private static synchronized boolean withdraw() {
+    if (sCredits < 100) {
+      return false;
+    }
+    sCredits -= 100;
+    return true;
+  }
+
+  static synchronized void resetBudget() {
+    sCredits = 0;
+  }
+
+  // Get the latency percentile of a call, or -1 if it is not known yet.
+  static long getDelay(String key, int percentile) {
+    long[] samples;
+    synchronized (sLatencies) {
+      long[] window = sLatencies.get(key);
+      if (window == null || window[0] < MIN_SAMPLES) {
+        return -1;
+      }
+      int count = (int) Math.min(window[0], WINDOW_SIZE);
+      samples = Arrays.copyOfRange(window, 1, count + 1);
+    }
+    Arrays.sort(samples);
+    return samples[Math.min(samples.length - 1, samples.length * percentile / 100)];
+  }
+
+  // The first element is the number of samples added; the rest is a ring.
+  static void addLatency(String key, long millis) {
+    synchronized (sLatencies) {
+      long[] window = sLatencies.get(key);
+      if (window == null) {
+        window = new long[WINDOW_SIZE + 1];
+        sLatencies.put(key, window);
+      }
+      window[1 + (int) (window[0] % WINDOW_SIZE)] = millis;
+      ++window[0];
+    }
+  }
+}
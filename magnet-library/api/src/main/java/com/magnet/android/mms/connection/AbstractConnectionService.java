@@ -52,6 +52,9 @@ abstract class AbstractConnectionService implements ConnectionService {
     private byte[] mPayloadBytes;
     private int mPayloadBytesOffset = -1;
     private int mPayloadBytesLength = -1;
+    private PayloadWriter mPayloadWriter;
+    private long mPayloadLength = -1;
+    private volatile RateLimiter.Admission mAdmission;
 
     protected AbstractRequest() {
       mHeaders = new HashMap<String, String>();
@@ -125,6 +128,8 @@ abstract class AbstractConnectionService implements ConnectionService {
       mPayloadBytes = null;
       mPayloadBytesOffset = -1;
       mPayloadBytesLength = -1;
+      mPayloadWriter = null;
+      mPayloadLength = -1;
     }
 
     public void setPayload(InputStream payload) {
@@ -132,6 +137,18 @@ abstract class AbstractConnectionService implements ConnectionService {
       mPayloadInputStream = payload;
     }
 
+    public void setPayload(InputStream payload, long length) {
+      resetPayload();
+      mPayloadInputStream = payload;
+      mPayloadLength = length;
+    }
+
+    public void setPayload(PayloadWriter writer, long length) {
+      resetPayload();
+      mPayloadWriter = writer;
+      mPayloadLength = length;
+    }
+
     public void setPayload(String payload) {
       resetPayload();
       mPayloadString = payload;
@@ -168,6 +185,56 @@ abstract class AbstractConnectionService implements ConnectionService {
       return mPayloadBytesLength;
     }
 
+    protected PayloadWriter getPayloadWriter() {
+      return mPayloadWriter;
+    }
+
+    /**
+     * Get the length of the payload from an InputStream or a PayloadWriter.
+     * @return The length, or -1 if unknown.
+     */
+    protected long getPayloadLength() {
+      return mPayloadLength;
+    }
+
+    void setAdmission(RateLimiter.Admission admission) {
+      mAdmission = admission;
+    }
+
+    /**
+     * @return The request permit reserved for the call of this request, or null.
+     */
+    RateLimiter.Admission getAdmission() {
+      return mAdmission;
+    }
+
+    /**
+     * Copy the method, path, headers and payload to another request.
+     * @param request The request to be populated.
+     */
+    void copyTo(Request request) {
+      request.setMethod(mMethod);
+      request.setPath(mPath);
+      synchronized (mHeaders) {
+        request.setHeaders(new HashMap<String, String>(mHeaders));
+      }
+      request.setContentType(mContentType);
+      request.setContentTransferEncoding(mContentTransferEncoding);
+      if (mPayloadString != null) {
+        request.setPayload(mPayloadString);
+      } else if (mPayloadBytes != null) {
+        request.setPayload(mPayloadBytes, mPayloadBytesOffset, mPayloadBytesLength);
+      } else if (mPayloadInputStream != null) {
+        request.setPayload(mPayloadInputStream, mPayloadLength);
+      } else if (mPayloadWriter != null) {
+        request.setPayload(mPayloadWriter, mPayloadLength);
+      }
+    }
+
+    public void cancel() {
+      // Not cancellable by default.
+    }
+
     abstract public Response execute() throws IOException;
   }
 
@@ -23,10 +23,21 @@ import android.net.Uri;
 import com.magnet.android.mms.AbstractManager;
 import com.magnet.android.mms.MagnetMobileClient;
 import com.magnet.android.mms.connection.ConnectionConfigManager.ConnectionConfig.ConfigType;
+import com.magnet.android.mms.connection.ConnectionService.Request;
+import com.magnet.android.mms.connection.ConnectionService.Response;
 import com.magnet.android.mms.exception.MobileRuntimeException;
+import com.magnet.android.mms.settings.MagnetDefaultSettings;
+import com.magnet.android.mms.utils.BufferPool;
+import com.magnet.android.mms.utils.DaemonThreadFactory;
 import com.magnet.android.mms.utils.logger.Log;
 
+import java.net.InetAddress;
+import java.net.URL;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This manager maintains the backend configurations for this
@@ -37,6 +48,11 @@ public final class ConnectionConfigManager extends AbstractManager {
   private HashMap<String, ConnectionConfig> mConnectionConfigs = null;
   public static final String DEFAULT_GENERIC_REST_NAME = "_default_generic";
 
+  private static final int WARMUP_THREADS = 2;
+  private static final ConcurrentHashMap<String, ConnectionServiceFactory> sFactories =
+      new ConcurrentHashMap<String, ConnectionServiceFactory>();
+  private static ExecutorService sWarmupExecutor;
+
   private ConnectionConfig defaultRestConfig;
 
   public ConnectionService getDefaultGenericService() {
@@ -56,20 +72,36 @@ public final class ConnectionConfigManager extends AbstractManager {
     	/**
        * REST connection configuration.
        */
-      GENERIC_REST
+      GENERIC_REST,
+      /**
+       * REST connection configuration multiplexed over HTTP/2.
+       */
+      HTTP2,
+      /**
+       * In-process loopback transport serving canned responses.
+       */
+      LOOPBACK,
+      /**
+       * A transport registered by an application.
+       */
+      CUSTOM
     };
 
     private String mName;
     private Uri mUri;
     private ConfigType mConfigType;
+    private String mTypeName;
     private ConnectionConfigManager mConnectionConfigManager;
     private ConnectionService mConnectionService;
+    private volatile int mRequestCompressionThreshold = -1;
+    private volatile int mHedgePercentile;
+    private volatile RateLimiter mRequestLimiter;
+    private volatile RateLimiter mUploadLimiter;
+    private volatile RateLimiter mDownloadLimiter;
 
 
     ConnectionConfig(ConnectionConfigManager connectionConfigManager, String name, ConfigType configType) {
-      mConnectionConfigManager = connectionConfigManager;
-      mName = name;
-      mConfigType = configType;
+      this(connectionConfigManager, name, null, configType);
     }
     ConnectionConfig(ConnectionConfigManager connectionConfigManager,
         String name, Uri uri, ConfigType configType) {
@@ -77,13 +109,20 @@ public final class ConnectionConfigManager extends AbstractManager {
       mName = name;
       mUri = uri;
       mConfigType = configType;
+      mTypeName = configType.name();
     }
 
-    @SuppressWarnings("unchecked")
     ConnectionConfig(ConnectionConfigManager connectionConfigManager,
-        String name, String uriString, String typeName) throws ClassNotFoundException {
-
-        this(connectionConfigManager, name, uriString != null ? Uri.parse(uriString) : null, ConfigType.valueOf(typeName));
+        String name, String uriString, String typeName) {
+      mConnectionConfigManager = connectionConfigManager;
+      mName = name;
+      mUri = (uriString != null) ? Uri.parse(uriString) : null;
+      mTypeName = typeName;
+      try {
+        mConfigType = ConfigType.valueOf(typeName);
+      } catch (IllegalArgumentException e) {
+        mConfigType = ConfigType.CUSTOM;
+      }
     }
 
     /**
@@ -115,6 +154,130 @@ public final class ConnectionConfigManager extends AbstractManager {
       return mConfigType;
     }
 
+    /**
+     * Retrieves the transport type name of this connection.  It is the name
+     * of the {@link ConfigType} for a built-in transport.
+     *
+     * @return The transport type name.
+     */
+    public String getTypeName() {
+      return mTypeName;
+    }
+
+
+    /**
+     * Opt in to gzip request bodies larger than a threshold.  The endpoint must
+     * accept the <code>Content-Encoding: gzip</code> request header.
+     *
+     * @param threshold Min size in bytes of a request body to be compressed,
+     *                  or -1 to disable compression (default).
+     */
+    public void setRequestCompressionThreshold(int threshold) {
+      mRequestCompressionThreshold = threshold;
+    }
+
+    /**
+     * Opt in to hedge the GET and HEAD asynchronous calls to this endpoint.
+     * If a call has no response after the given percentile of its recent
+     * latencies, a duplicate request is sent and the first response is used.
+     * It can be overridden by {@link com.magnet.android.mms.async.AsyncCallOptions#setHedging(int)}.
+     *
+     * @param percentile The latency percentile [1..99] after which a call is
+     *                   hedged, or 0 to disable hedging (default).
+     */
+    public void setHedgePercentile(int percentile) {
+      mHedgePercentile = Math.max(0, Math.min(99, percentile));
+    }
+
+    /**
+     * Retrieves the latency percentile after which a call is hedged.
+     *
+     * @return The percentile, or 0 if hedging is disabled.
+     */
+    public int getHedgePercentile() {
+      return mHedgePercentile;
+    }
+
+    /**
+     * Limit the rate of requests to this endpoint with a token bucket.  A
+     * synchronous request waits for a permit; a throttled asynchronous call
+     * is rescheduled by its queue without holding a worker thread.
+     *
+     * @param requestsPerSecond The max request rate, or 0 for unlimited (default).
+     * @param burst The max number of requests sent at once after being idle.
+     */
+    public void setRateLimit(double requestsPerSecond, int burst) {
+      mRequestLimiter = (requestsPerSecond <= 0) ? null :
+        new RateLimiter(mName+"/requests", requestsPerSecond, Math.max(1, burst));
+    }
+
+    /**
+     * Shape the request and response bodies of this endpoint to a byte rate,
+     * e.g. to keep a background sync from saturating the uplink.  The rate is
+     * shared by all concurrent requests to this endpoint.
+     *
+     * @param uploadBytesPerSecond The max upload rate, or 0 for unlimited (default).
+     * @param downloadBytesPerSecond The max download rate, or 0 for unlimited (default).
+     */
+    public void setBandwidthLimit(long uploadBytesPerSecond, long downloadBytesPerSecond) {
+      mUploadLimiter = newByteRateLimiter("/upload", uploadBytesPerSecond);
+      mDownloadLimiter = newByteRateLimiter("/download", downloadBytesPerSecond);
+    }
+
+    // Allow a burst of 100ms, but at least a full buffer.
+    private RateLimiter newByteRateLimiter(String suffix, long bytesPerSecond) {
+      return (bytesPerSecond <= 0) ? null : new RateLimiter(mName+suffix, bytesPerSecond,
+          Math.max(BufferPool.MAX_BUFFER_SIZE, bytesPerSecond / 10));
+    }
+
+    /**
+     * Retrieves the request rate limiter of this endpoint.
+     *
+     * @return The rate limiter, or null if the request rate is unlimited.
+     */
+    public RateLimiter getRequestRateLimiter() {
+      return mRequestLimiter;
+    }
+
+    /**
+     * Retrieves the upload byte rate limiter of this endpoint.
+     *
+     * @return The rate limiter, or null if the upload rate is unlimited.
+     */
+    public RateLimiter getUploadRateLimiter() {
+      return mUploadLimiter;
+    }
+
+    /**
+     * Retrieves the download byte rate limiter of this endpoint.
+     *
+     * @return The rate limiter, or null if the download rate is unlimited.
+     */
+    public RateLimiter getDownloadRateLimiter() {
+      return mDownloadLimiter;
+    }
+
+    /**
+     * Set the max number of idle keep-alive connections to this endpoint.  The
+     * HttpURLConnection pool is shared by all endpoints and it is sized when
+     * the first connection is opened, so the largest value set before then
+     * applies to every endpoint.
+     *
+     * @param maxConnections The max number of idle connections.
+     * @return true if it takes effect; false if the pool has been created.
+     */
+    public boolean setMaxConnections(int maxConnections) {
+      return ConnectionPoolManager.setMaxConnections(maxConnections);
+    }
+
+    /**
+     * Retrieves the min size of a request body to be compressed.
+     *
+     * @return The threshold in bytes, or -1 if compression is disabled.
+     */
+    public int getRequestCompressionThreshold() {
+      return mRequestCompressionThreshold;
+    }
 
     @Override
     public boolean equals(Object other) {
@@ -132,7 +295,7 @@ public final class ConnectionConfigManager extends AbstractManager {
       boolean uriSame = (otherConfig.getUri() == null && mUri == null) || otherConfig.getUri().equals(mUri);
       return otherConfig.getName().equals(mName) &&
              uriSame &&
-          otherConfig.getConfigType().equals(mConfigType);
+          otherConfig.getTypeName().equals(mTypeName);
     }
 
     /**
@@ -141,13 +304,13 @@ public final class ConnectionConfigManager extends AbstractManager {
      */
     public synchronized ConnectionService getConnectionService() {
       if (mConnectionService == null) {
+        ConnectionServiceFactory factory = sFactories.get(mTypeName);
+        if (factory == null) {
+          throw new MobileRuntimeException("No ConnectionService factory for type: "+mTypeName);
+        }
         try {
-          switch (mConfigType) {
-           case GENERIC_REST:
-            mConnectionService =
-               new GenericRestConnectionService(mConnectionConfigManager.getContext());
-           break;
-          }
+          mConnectionService = factory.createConnectionService(
+              mConnectionConfigManager.getContext(), this);
         } catch (Exception ex) {
           Log.e(TAG, "getConnectionService(): Unable to create connection service.", ex);
           throw new MobileRuntimeException("Unable to create ConnectionService instance.", ex);
@@ -157,6 +320,88 @@ public final class ConnectionConfigManager extends AbstractManager {
     }
   }
 
+  static {
+    sFactories.put(ConfigType.GENERIC_REST.name(), new ConnectionServiceFactory() {
+      public ConnectionService createConnectionService(Context context, ConnectionConfig config)
+          throws Exception {
+        return new GenericRestConnectionService(context, config);
+      }
+    });
+    sFactories.put(ConfigType.HTTP2.name(), new ConnectionServiceFactory() {
+      public ConnectionService createConnectionService(Context context, ConnectionConfig config)
+          throws Exception {
+        return new Http2ConnectionService(context, config);
+      }
+    });
+    sFactories.put(ConfigType.LOOPBACK.name(), new ConnectionServiceFactory() {
+      public ConnectionService createConnectionService(Context context, ConnectionConfig config)
+          throws Exception {
+        return new LoopbackConnectionService(context, config);
+      }
+    });
+  }
+
+  /**
+   * Register a factory of connection services for a transport type.  An
+   * existing factory of the same type is replaced; the connection services
+   * already created are not affected.
+   *
+   * @param typeName The transport type name.
+   * @param factory The factory.
+   */
+  public static void registerConnectionServiceFactory(String typeName,
+      ConnectionServiceFactory factory) {
+    if (typeName == null || factory == null) {
+      throw new IllegalArgumentException("typeName and factory must not be null");
+    }
+    sFactories.put(typeName, factory);
+  }
+
+  /**
+   * Retrieves the factory of connection services for a transport type.
+   *
+   * @param typeName The transport type name.
+   * @return The factory, or null if the type is not registered.
+   */
+  public static ConnectionServiceFactory getConnectionServiceFactory(String typeName) {
+    return sFactories.get(typeName);
+  }
+
+  // register the factories declared as <transports typeName="className" />
+  private static void registerConnectionServiceFactories(Map<String, String> transports) {
+    for (Map.Entry<String, String> entry : transports.entrySet()) {
+      try {
+        Class<?> clz = Class.forName(entry.getValue());
+        registerConnectionServiceFactory(entry.getKey(),
+            (ConnectionServiceFactory) clz.newInstance());
+      } catch (Exception e) {
+        Log.e(TAG, "registerConnectionServiceFactories(): unable to register "+
+            entry.getKey()+"="+entry.getValue(), e);
+        throw new MobileRuntimeException("Unable to register ConnectionService factory "+
+            entry.getValue(), e);
+      }
+    }
+  }
+
+  /**
+   * Add a connection configuration or replace the one with the same name.
+   *
+   * @param name The name of the connection.
+   * @param uri The base URI of the connection, or null.
+   * @param typeName The name of a registered transport type, e.g. "GENERIC_REST".
+   * @return The connection configuration.
+   */
+  public ConnectionConfig addConnectionConfig(String name, String uri, String typeName) {
+    if (!sFactories.containsKey(typeName)) {
+      throw new IllegalArgumentException("No ConnectionService factory for type: "+typeName);
+    }
+    ConnectionConfig config = new ConnectionConfig(this, name, uri, typeName);
+    synchronized (mConnectionConfigs) {
+      mConnectionConfigs.put(name, config);
+    }
+    return config;
+  }
+
   /**
    * This method is for testing only and will simulate
    * restarting the app.
@@ -175,6 +420,149 @@ public final class ConnectionConfigManager extends AbstractManager {
     // create the default rest connection config
     defaultRestConfig = new ConnectionConfig(this, DEFAULT_GENERIC_REST_NAME, ConfigType.GENERIC_REST);
     mConnectionConfigs.put(DEFAULT_GENERIC_REST_NAME, defaultRestConfig);
+
+    MagnetDefaultSettings settings = MagnetDefaultSettings.getInstance(context);
+    registerConnectionServiceFactories(settings.getTransportFactories());
+
+    String[] endpoints = settings.getHttpWarmupEndpoints();
+    if (endpoints.length > 0) {
+      warmUp(null, endpoints);
+    }
+  }
+
+  /**
+   * Callback for the result of warming up an endpoint.
+   */
+  public interface WarmupListener {
+    /**
+     * Invoked in a background thread when an endpoint is warmed up or failed.
+     * @param result The warm-up result.
+     */
+    public void onWarmedUp(WarmupResult result);
+  }
+
+  /**
+   * The timing of warming up an endpoint.
+   */
+  public static final class WarmupResult {
+    private final String mEndpoint;
+    private long mDnsMillis = -1;
+    private long mConnectMillis = -1;
+    private Exception mError;
+
+    WarmupResult(String endpoint) {
+      mEndpoint = endpoint;
+    }
+
+    /**
+     * @return The connection name or the URL being warmed up.
+     */
+    public String getEndpoint() {
+      return mEndpoint;
+    }
+
+    /**
+     * @return The time in milliseconds to resolve the host name, or -1 if failed.
+     */
+    public long getDnsMillis() {
+      return mDnsMillis;
+    }
+
+    /**
+     * @return The time in milliseconds to connect, handshake and complete a
+     * HEAD request, or -1 if failed.
+     */
+    public long getConnectMillis() {
+      return mConnectMillis;
+    }
+
+    /**
+     * @return The failure, or null if the endpoint is warmed up.
+     */
+    public Exception getError() {
+      return mError;
+    }
+
+    @Override
+    public String toString() {
+      return "WarmupResult{endpoint="+mEndpoint+", dnsMillis="+mDnsMillis+
+          ", connectMillis="+mConnectMillis+", error="+mError+"}";
+    }
+  }
+
+  /**
+   * Warm up endpoints in the background so the first call does not pay for
+   * the DNS lookup, the TCP connect and the TLS handshake.  A HEAD request is
+   * sent to each endpoint and its connection is kept in the connection pool.
+   * The endpoints can also be listed in the <code>warmupEndpoints</code>
+   * attribute of the <code>http</code> settings to be warmed up at startup.
+   *
+   * @param listener The listener for the results, or null.
+   * @param endpoints The connection names with a URI, or absolute URLs using
+   *                  the default generic connection.
+   */
+  public void warmUp(final WarmupListener listener, String... endpoints) {
+    ExecutorService executor = getWarmupExecutor();
+    for (final String endpoint : endpoints) {
+      if (endpoint == null || endpoint.length() == 0) {
+        continue;
+      }
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          WarmupResult result = warmUp(endpoint);
+          if (listener != null) {
+            listener.onWarmedUp(result);
+          }
+        }
+      });
+    }
+  }
+
+  private static synchronized ExecutorService getWarmupExecutor() {
+    if (sWarmupExecutor == null) {
+      sWarmupExecutor = Executors.newFixedThreadPool(WARMUP_THREADS,
+          new DaemonThreadFactory("ConnectionWarmup"));
+    }
+    return sWarmupExecutor;
+  }
+
+  private WarmupResult warmUp(String endpoint) {
+    WarmupResult result = new WarmupResult(endpoint);
+    Response response = null;
+    try {
+      ConnectionConfig config = getConnectionConfig(endpoint);
+      String url;
+      if (config != null) {
+        if (config.getUri() == null) {
+          throw new IllegalArgumentException("No URI in connection: "+endpoint);
+        }
+        url = config.getUri().toString();
+      } else {
+        config = defaultRestConfig;
+        url = endpoint;
+      }
+
+      long start = System.currentTimeMillis();
+      InetAddress.getAllByName(new URL(url).getHost());
+      long resolved = System.currentTimeMillis();
+      result.mDnsMillis = resolved - start;
+
+      Request request = config.getConnectionService().createRequest();
+      request.setMethod(Request.Method.HEAD);
+      request.setPath(url);
+      response = request.execute();
+      result.mConnectMillis = System.currentTimeMillis() - resolved;
+      Log.i(TAG, "warmUp(): "+result);
+    } catch (Exception e) {
+      result.mError = e;
+      Log.w(TAG, "warmUp(): failed to warm up "+endpoint, e);
+    } finally {
+      if (response != null) {
+        response.release();
+      }
+    }
+    return result;
   }
 
   /**
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.connection;
+
+import android.content.Context;
+
+import com.magnet.android.mms.utils.BufferPool;
+import com.magnet.android.mms.utils.logger.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * This manager keeps HTTP connections reusable by the HttpURLConnection
+ * keep-alive pool.  A response body is drained and closed instead of
+ * disconnecting the socket, and all HTTPS connections share one
+ * SSLSocketFactory because the pool only reuses a socket created by the
+ * same factory.  The factory is the one of {@link SslManager}, which also
+ * lets a new connection resume a TLS session; it is built on the default
+ * factory set by the app, if any, so the trust configured by the app still
+ * applies.  It counts new TLS connections to measure the reuse rate.
+ */
+public final class ConnectionPoolManager {
+  private static final String TAG = ConnectionPoolManager.class.getSimpleName();
+  private static final String PROP_MAX_CONNECTIONS = "http.maxConnections";
+  private static final int DEFAULT_MAX_CONNECTIONS = 5;
+  // Draining a large body is slower than opening a new connection.
+  private static final int MAX_DRAIN_BYTES = 64 * 1024;
+  private static final AtomicBoolean sConnected = new AtomicBoolean(false);
+  private static final Stats sStats = new Stats();
+  private static volatile CountingSslSocketFactory sSocketFactory;
+
+  private ConnectionPoolManager() {
+  }
+
+  /**
+   * Connection pool statistics.
+   */
+  public static final class Stats {
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mHttpsRequests = new AtomicLong();
+    private final AtomicLong mHandshakes = new AtomicLong();
+    private final AtomicLong mReleased = new AtomicLong();
+    private final AtomicLong mDisconnected = new AtomicLong();
+
+    /**
+     * @return The number of requests.
+     */
+    public long getRequests() {
+      return mRequests.get();
+    }
+
+    /**
+     * @return The number of new TLS connections, i.e. full or abbreviated handshakes.
+     * @see SslManager#getStats()
+     */
+    public long getHandshakes() {
+      return mHandshakes.get();
+    }
+
+    /**
+     * @return The fraction of HTTPS requests using a pooled connection.
+     */
+    public double getReuseRate() {
+      long requests = mHttpsRequests.get();
+      if (requests == 0) {
+        return 0.0;
+      }
+      return Math.max(0.0, 1.0 - (double) mHandshakes.get() / requests);
+    }
+
+    /**
+     * @return The number of connections returned to the pool.
+     */
+    public long getReleased() {
+      return mReleased.get();
+    }
+
+    /**
+     * @return The number of connections closed because the body could not be drained.
+     */
+    public long getDisconnected() {
+      return mDisconnected.get();
+    }
+
+    @Override
+    public String toString() {
+      return "PoolStats{requests="+getRequests()+", handshakes="+getHandshakes()+
+          ", reuseRate="+getReuseRate()+", released="+getReleased()+
+          ", disconnected="+getDisconnected()+"}";
+    }
+  }
+
+  /**
+   * Get the connection pool statistics.
+   * @return The statistics.
+   */
+  public static Stats getStats() {
+    return sStats;
+  }
+
+  /**
+   * Raise the max number of idle connections kept alive per route.  The pool
+   * is sized when the first connection is opened, so this only has an effect
+   * before then.
+   * @param maxConnections The max idle connections per route.
+   * @return true if the pool size is set.
+   */
+  static synchronized boolean setMaxConnections(int maxConnections) {
+    if (sConnected.get()) {
+      Log.w(TAG, "setMaxConnections() ignored; the connection pool has been created");
+      return false;
+    }
+    int current = DEFAULT_MAX_CONNECTIONS;
+    try {
+      current = Integer.parseInt(System.getProperty(PROP_MAX_CONNECTIONS,
+          String.valueOf(DEFAULT_MAX_CONNECTIONS)));
+    } catch (NumberFormatException e) {
+      // Use the default.
+    }
+    if (maxConnections > current) {
+      System.setProperty(PROP_MAX_CONNECTIONS, String.valueOf(maxConnections));
+    }
+    return true;
+  }
+
+  /**
+   * Prepare a connection before it is connected.
+   * @param context The context to get the settings.
+   * @param connection An unconnected connection.
+   */
+  static void prepare(Context context, HttpURLConnection connection) {
+    sConnected.set(true);
+    sStats.mRequests.incrementAndGet();
+    if (connection instanceof HttpsURLConnection) {
+      sStats.mHttpsRequests.incrementAndGet();
+      ((HttpsURLConnection) connection).setSSLSocketFactory(getSocketFactory(context));
+    }
+  }
+
+  /**
+   * Drain and close the response body so the connection can be reused.  The
+   * connection is disconnected if the body cannot be drained.
+   * @param connection The connection.
+   * @param body The response body, or null.
+   */
+  static void release(HttpURLConnection connection, InputStream body) {
+    boolean reusable = false;
+    if (body != null) {
+      byte[] buffer = BufferPool.acquire();
+      try {
+        int total = 0;
+        int n;
+        while (total <= MAX_DRAIN_BYTES && (n = body.read(buffer)) >= 0) {
+          total += n;
+        }
+        reusable = (total <= MAX_DRAIN_BYTES);
+      } catch (IOException e) {
+        // Not reusable.
+      } finally {
+        BufferPool.release(buffer);
+        try {
+          body.close();
+        } catch (IOException e) {
+          reusable = false;
+        }
+      }
+    }
+    if (reusable) {
+      sStats.mReleased.incrementAndGet();
+    } else {
+      sStats.mDisconnected.incrementAndGet();
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Get the shared SSLSocketFactory.
+   * @param context The context to get the settings.
+   * @return The socket factory.
+   */
+  static SSLSocketFactory getSocketFactory(Context context) {
+    // a new one after the app changes the default factory
+    SSLSocketFactory delegate = SslManager.getInstance(context).getSocketFactory();
+    CountingSslSocketFactory factory = sSocketFactory;
+    if (factory == null || factory.mDelegate != delegate) {
+      synchronized (ConnectionPoolManager.class) {
+        if ((factory = sSocketFactory) == null || factory.mDelegate != delegate) {
+          sSocketFactory = factory = new CountingSslSocketFactory(delegate);
+        }
+      }
+    }
+    return factory;
+  }
+
+  /**
+   * Count the new TLS sockets; each one costs a handshake.
+   */
+  private static class CountingSslSocketFactory extends SSLSocketFactory {
+    private final SSLSocketFactory mDelegate;
+
+    CountingSslSocketFactory(SSLSocketFactory delegate) {
+      mDelegate = delegate;
+    }
+
+    private Socket count(Socket socket) {
+      sStats.mHandshakes.incrementAndGet();
+      return socket;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+      return mDelegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+      return mDelegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+      return count(mDelegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port,
+        boolean autoClose) throws IOException {
+      return count(mDelegate.createSocket(s, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+      return count(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost,
+        int localPort) throws IOException {
+      return count(mDelegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+      return count(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port,
+        InetAddress localAddress, int localPort) throws IOException {
+      return count(mDelegate.createSocket(address, port, localAddress, localPort));
+    }
+  }
+}
@@ -19,6 +19,7 @@ package com.magnet.android.mms.connection;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -33,6 +34,19 @@ public interface ConnectionService {
    * payload to be sent out to an endpoint.
    */
   public interface Request {
+    /**
+     * Writes the request payload directly into the connection output stream.
+     */
+    public interface PayloadWriter {
+      /**
+       * Write the payload.  The stream must not be closed by the writer.
+       *
+       * @param os The connection output stream.
+       * @throws IOException
+       */
+      public void writeTo(OutputStream os) throws IOException;
+    }
+
     /**
      * The HTTP request method.
      */
@@ -139,6 +153,25 @@ public interface ConnectionService {
      */
     public void setPayload(InputStream payload);
 
+    /**
+     * Specifies the payload of the request with a known length.  The payload
+     * is streamed with a fixed length if the length is known; otherwise, it is
+     * streamed in chunks.  Any existing payload will be replaced.
+     *
+     * @param payload The payload of the request.
+     * @param length The length of the payload, or -1 if unknown.
+     */
+    public void setPayload(InputStream payload, long length);
+
+    /**
+     * Specifies a writer to stream the payload of the request.  Any existing
+     * payload will be replaced.
+     *
+     * @param writer The writer of the payload.
+     * @param length The length of the payload, or -1 if unknown.
+     */
+    public void setPayload(PayloadWriter writer, long length);
+
     /**
      * Specifies the payload of the request.  Any existing
      * payload will be replaced.
@@ -163,6 +196,13 @@ public interface ConnectionService {
      * @return The response to the request.
      */
     public Response execute() throws IOException;
+
+    /**
+     * Abort this request if it is being executed by another thread.  The
+     * executing thread fails with an IOException.  It has no effect if the
+     * request is not executing.
+     */
+    public void cancel();
   }
 
   /**
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+
+package com.magnet.android.mms.connection;
+
+import android.content.Context;
+
+import com.magnet.android.mms.connection.ConnectionConfigManager.ConnectionConfig;
+
+/**
+ * Creates the {@link ConnectionService} for connection configurations of a
+ * transport type.  A factory is registered by its type name with
+ * {@link ConnectionConfigManager#registerConnectionServiceFactory(String, ConnectionServiceFactory)}
+ * or in the <code>transports</code> settings; a factory declared in the
+ * settings must have a public no-argument constructor.
+ */
+public interface ConnectionServiceFactory {
+  /**
+   * Create a connection service.  It is called once per connection configuration.
+   *
+   * @param context The application context.
+   * @param config The connection configuration.
+   * @return The connection service.
+   * @throws Exception Unable to create the connection service.
+   */
+  public ConnectionService createConnectionService(Context context, ConnectionConfig config)
+      throws Exception;
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.connection;
+
+import com.magnet.android.mms.exception.EndpointUnavailableException;
+import com.magnet.android.mms.utils.logger.Log;
+
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class tracks the health of an endpoint (an origin) to fail fast when it
+ * is degraded.  A circuit breaker opens after consecutive failures or a high
+ * failure rate, and rejects requests until a cool down elapses; then a single
+ * trial request is let through (half open) to close the circuit again or to
+ * reopen it with a doubled cool down.  The concurrent requests are limited by
+ * AIMD: the limit increases by one per round of successful requests using it
+ * and it is halved on a failure or when the recent average latency rises well
+ * above the long-term average, i.e. requests are queueing.  The averages
+ * compare like with like, so an origin serving both fast and slow paths does
+ * not back off on every slow response.  A failure is an I/O error or a 429 or
+ * 5xx response.
+ */
+public final class EndpointHealth {
+  private static final String TAG = EndpointHealth.class.getSimpleName();
+  private static final ConcurrentHashMap<String, EndpointHealth> sEndpoints =
+      new ConcurrentHashMap<String, EndpointHealth>();
+  // Circuit breaker
+  private static final int WINDOW_SIZE = 20;
+  private static final int MIN_WINDOW_CALLS = 10;
+  private static final int MAX_FAILURE_PERCENT = 50;
+  private static final int MAX_CONSECUTIVE_FAILURES = 5;
+  private static final long OPEN_MILLIS = 5000;
+  private static final long MAX_OPEN_MILLIS = 5 * 60 * 1000;
+  // Adaptive concurrency limit
+  private static final double INITIAL_LIMIT = 8;
+  private static final double MIN_LIMIT = 1;
+  private static final double MAX_LIMIT = 64;
+  private static final double BACKOFF_RATIO = 0.5;
+  private static final long SLOW_TOLERANCE_MILLIS = 100;
+  // the weights of a new latency in the recent (about 10 requests) and the
+  // long-term (about 200 requests) moving averages
+  private static final double RECENT_LATENCY_WEIGHT = 0.2;
+  private static final double LONG_TERM_LATENCY_WEIGHT = 0.005;
+  private static final int MIN_LATENCY_SAMPLES = 20;
+
+  /**
+   * The circuit breaker state.
+   */
+  public enum State {
+    /**
+     * Requests are sent.
+     */
+    CLOSED,
+    /**
+     * Requests are rejected until the cool down elapses.
+     */
+    OPEN,
+    /**
+     * A trial request is sent to probe the endpoint.
+     */
+    HALF_OPEN
+  }
+
+  private final String mOrigin;
+  private final long mOpenMillis;
+  private final Stats mStats = new Stats();
+  private final boolean[] mWindow = new boolean[WINDOW_SIZE];
+  private int mWindowCalls;
+  private int mWindowFailures;
+  private int mWindowIndex;
+  private int mConsecutiveFailures;
+  private State mState = State.CLOSED;
+  private long mOpenUntil;
+  private long mCoolDown;
+  private boolean mTrialInFlight;
+  private int mGeneration;
+  private double mLimit = INITIAL_LIMIT;
+  private int mInFlight;
+  private double mRecentLatency;
+  private double mLongTermLatency;
+  private int mLatencySamples;
+
+  EndpointHealth(String origin, long openMillis) {
+    mOrigin = origin;
+    mOpenMillis = openMillis;
+    mCoolDown = openMillis;
+  }
+
+  /**
+   * Endpoint health statistics.
+   */
+  public static final class Stats {
+    private final AtomicLong mSuccesses = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mOpened = new AtomicLong();
+    private final AtomicLong mHalfOpened = new AtomicLong();
+    private final AtomicLong mClosed = new AtomicLong();
+    private volatile State mState = State.CLOSED;
+    private volatile double mLimit = INITIAL_LIMIT;
+    private volatile int mInFlight;
+
+    /**
+     * @return The circuit breaker state.
+     */
+    public State getState() {
+      return mState;
+    }
+
+    /**
+     * @return The current concurrency limit.
+     */
+    public int getLimit() {
+      return (int) mLimit;
+    }
+
+    /**
+     * @return The number of requests in flight.
+     */
+    public int getInFlight() {
+      return mInFlight;
+    }
+
+    /**
+     * @return The number of successful requests.
+     */
+    public long getSuccesses() {
+      return mSuccesses.get();
+    }
+
+    /**
+     * @return The number of failed requests.
+     */
+    public long getFailures() {
+      return mFailures.get();
+    }
+
+    /**
+     * @return The number of requests rejected without being sent.
+     */
+    public long getRejected() {
+      return mRejected.get();
+    }
+
+    /**
+     * @return The number of transitions to OPEN.
+     */
+    public long getOpened() {
+      return mOpened.get();
+    }
+
+    /**
+     * @return The number of transitions to HALF_OPEN.
+     */
+    public long getHalfOpened() {
+      return mHalfOpened.get();
+    }
+
+    /**
+     * @return The number of transitions from HALF_OPEN to CLOSED.
+     */
+    public long getClosed() {
+      return mClosed.get();
+    }
+
+    @Override
+    public String toString() {
+      return "EndpointStats{state="+getState()+", limit="+getLimit()+", inFlight="+
+          getInFlight()+", successes="+getSuccesses()+", failures="+getFailures()+
+          ", rejected="+getRejected()+", opened="+getOpened()+", halfOpened="+
+          getHalfOpened()+", closed="+getClosed()+"}";
+    }
+  }
+
+  /**
+   * A permission to send a request.  It must be released; only the first
+   * release or ignore takes effect.
+   */
+  final class Permit {
+    private boolean mReleased;
+    private final boolean mTrial;
+    private final int mPermitGeneration;
+    private long mStart = System.currentTimeMillis();
+
+    Permit(boolean trial, int generation) {
+      mTrial = trial;
+      mPermitGeneration = generation;
+    }
+
+    /**
+     * Mark the request body as sent; the latency is measured from here so a
+     * large body is not mistaken for queueing.
+     */
+    void sent() {
+      mStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Release the permit with the outcome of the request.
+     * @param responseCode The response code, or -1 for an I/O error.
+     */
+    void release(int responseCode) {
+      release(responseCode, System.currentTimeMillis() - mStart);
+    }
+
+    // with a measured latency
+    void release(int responseCode, long latency) {
+      onRelease(this, !isFailure(responseCode), latency);
+    }
+
+    /**
+     * Release the permit without an outcome, e.g. the request is cancelled.
+     */
+    void ignore() {
+      onIgnore(this);
+    }
+  }
+
+  /**
+   * Get the statistics of an endpoint.
+   * @param origin The origin, e.g. "https://example.com:443".
+   * @return The statistics, or null if no request has been sent to the origin.
+   */
+  public static Stats getStats(String origin) {
+    EndpointHealth health = sEndpoints.get(origin);
+    return (health == null) ? null : health.mStats;
+  }
+
+  /**
+   * Get the statistics of all endpoints.
+   * @return A map of the origins to their statistics.
+   */
+  public static Map<String, Stats> getAllStats() {
+    HashMap<String, Stats> result = new HashMap<String, Stats>();
+    for (Map.Entry<String, EndpointHealth> entry : sEndpoints.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().mStats);
+    }
+    return result;
+  }
+
+  Stats getStats() {
+    return mStats;
+  }
+
+  static String getOrigin(URL url) {
+    int port = (url.getPort() < 0) ? url.getDefaultPort() : url.getPort();
+    return url.getProtocol()+"://"+url.getHost()+":"+port;
+  }
+
+  /**
+   * Get the health of the origin of a URL.
+   * @param url The request URL.
+   * @return The endpoint health.
+   */
+  static EndpointHealth forUrl(URL url) {
+    String origin = getOrigin(url);
+    EndpointHealth health = sEndpoints.get(origin);
+    if (health == null) {
+      EndpointHealth newHealth = new EndpointHealth(origin, OPEN_MILLIS);
+      health = sEndpoints.putIfAbsent(origin, newHealth);
+      if (health == null) {
+        health = newHealth;
+      }
+    }
+    return health;
+  }
+
+  static boolean isFailure(int responseCode) {
+    return responseCode < 0 || responseCode == 429 || responseCode >= 500;
+  }
+
+  /**
+   * Acquire a permit to send a request.  If the concurrency limit is reached,
+   * it waits for a permit up to the timeout.
+   * @param timeoutMillis The max time to wait for a permit.
+   * @return The permit.
+   * @throws EndpointUnavailableException The circuit is open or no permit is
+   *         available within the timeout.
+   * @throws InterruptedIOException
+   */
+  synchronized Permit acquire(long timeoutMillis)
+      throws EndpointUnavailableException, InterruptedIOException {
+    long now = System.currentTimeMillis();
+    if (mState == State.OPEN) {
+      if (now < mOpenUntil) {
+        mStats.mRejected.incrementAndGet();
+        throw new EndpointUnavailableException("Circuit open for "+mOrigin, mOrigin,
+            mOpenUntil - now);
+      }
+      setState(State.HALF_OPEN);
+    }
+    if (mState == State.HALF_OPEN) {
+      if (mTrialInFlight) {
+        mStats.mRejected.incrementAndGet();
+        throw new EndpointUnavailableException("Circuit half open for "+mOrigin, mOrigin, 0);
+      }
+      mTrialInFlight = true;
+      return newPermit(true);
+    }
+    long deadline = now + timeoutMillis;
+    long remaining;
+    while (mInFlight >= (int) mLimit && (remaining = deadline - System.currentTimeMillis()) > 0) {
+      try {
+        wait(remaining);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while waiting for "+mOrigin);
+      }
+    }
+    if (mInFlight >= (int) mLimit) {
+      mStats.mRejected.incrementAndGet();
+      throw new EndpointUnavailableException("Concurrency limit "+(int) mLimit+" reached for "+
+          mOrigin, mOrigin, 0);
+    }
+    if (mState != State.CLOSED) {
+      // The circuit opened while waiting.
+      mStats.mRejected.incrementAndGet();
+      throw new EndpointUnavailableException("Circuit open for "+mOrigin, mOrigin,
+          Math.max(0, mOpenUntil - System.currentTimeMillis()));
+    }
+    return newPermit(false);
+  }
+
+  private Permit newPermit(boolean trial) {
+    mStats.mInFlight = ++mInFlight;
+    return new Permit(trial, mGeneration);
+  }
+
+  private synchronized void onIgnore(Permit permit) {
+    if (permit.mReleased) {
+      return;
+    }
+    permit.mReleased = true;
+    mStats.mInFlight = --mInFlight;
+    if (permit.mTrial) {
+      mTrialInFlight = false;
+    }
+    notifyAll();
+  }
+
+  private synchronized void onRelease(Permit permit, boolean success, long latency) {
+    if (permit.mReleased) {
+      return;
+    }
+    permit.mReleased = true;
+    mStats.mInFlight = --mInFlight;
+    notifyAll();
+    if (success) {
+      mStats.mSuccesses.incrementAndGet();
+    } else {
+      mStats.mFailures.incrementAndGet();
+    }
+    if (permit.mTrial) {
+      mTrialInFlight = false;
+      if (success) {
+        mCoolDown = mOpenMillis;
+        resetWindow();
+        setState(State.CLOSED);
+      } else {
+        open(Math.min(mCoolDown * 2, MAX_OPEN_MILLIS));
+      }
+      return;
+    }
+    if (permit.mPermitGeneration != mGeneration || mState != State.CLOSED) {
+      // The outcome of a request sent before the circuit opened.
+      return;
+    }
+
+    if (mWindowCalls == WINDOW_SIZE && !mWindow[mWindowIndex]) {
+      --mWindowFailures;
+    }
+    mWindow[mWindowIndex] = success;
+    mWindowIndex = (mWindowIndex + 1) % WINDOW_SIZE;
+    mWindowCalls = Math.min(mWindowCalls + 1, WINDOW_SIZE);
+    if (success) {
+      mConsecutiveFailures = 0;
+      adjustLimit(latency);
+    } else {
+      ++mWindowFailures;
+      ++mConsecutiveFailures;
+      setLimit(mLimit * BACKOFF_RATIO);
+      if (mConsecutiveFailures >= MAX_CONSECUTIVE_FAILURES ||
+          (mWindowCalls >= MIN_WINDOW_CALLS &&
+           mWindowFailures * 100 >= mWindowCalls * MAX_FAILURE_PERCENT)) {
+        open(mOpenMillis);
+      }
+    }
+  }
+
+  // Additive increase if the limit is being used; multiplicative decrease if
+  // the recent latency is well above the long-term latency, i.e. requests are
+  // queueing.  A single slow response barely moves the recent average.
+  private void adjustLimit(long latency) {
+    if (mLatencySamples < Integer.MAX_VALUE) {
+      ++mLatencySamples;
+    }
+    // plain averages until there are enough samples for the moving ones
+    mRecentLatency += (latency - mRecentLatency) *
+        Math.max(RECENT_LATENCY_WEIGHT, 1.0 / mLatencySamples);
+    mLongTermLatency += (latency - mLongTermLatency) *
+        Math.max(LONG_TERM_LATENCY_WEIGHT, 1.0 / mLatencySamples);
+    if (mLatencySamples >= MIN_LATENCY_SAMPLES &&
+        mRecentLatency > 2 * mLongTermLatency + SLOW_TOLERANCE_MILLIS) {
+      setLimit(mLimit * BACKOFF_RATIO);
+      // start over; the limit is halved again if the latency stays high
+      mRecentLatency = mLongTermLatency;
+    } else if (mInFlight + 1 >= (int) mLimit / 2) {
+      setLimit(mLimit + 1 / mLimit);
+    }
+  }
+
+  private void setLimit(double limit) {
+    mLimit = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, limit));
+    mStats.mLimit = mLimit;
+  }
+
+  private void open(long coolDown) {
+    mCoolDown = coolDown;
+    mOpenUntil = System.currentTimeMillis() + coolDown;
+    ++mGeneration;
+    setState(State.OPEN);
+  }
+
+  private void resetWindow() {
+    mWindowCalls = 0;
+    mWindowFailures = 0;
+    mWindowIndex = 0;
+    mConsecutiveFailures = 0;
+  }
+
+  private void setState(State state) {
+    Log.w(TAG, mOrigin+" circuit "+mState+" -> "+state);
+    mState = state;
+    mStats.mState = state;
+    switch (state) {
+      case OPEN:
+        mStats.mOpened.incrementAndGet();
+        break;
+      case HALF_OPEN:
+        mStats.mHalfOpened.incrementAndGet();
+        break;
+      case CLOSED:
+        mStats.mClosed.incrementAndGet();
+        break;
+    }
+  }
+}
@@ -21,12 +21,15 @@ import android.content.Context;
 import android.net.Uri;
 
 import com.magnet.android.core.GenericRestConstants;
+import com.magnet.android.mms.connection.ConnectionConfigManager.ConnectionConfig;
 import com.magnet.android.mms.connection.ConnectionService.Response.Status;
 import com.magnet.android.mms.settings.MagnetDefaultSettings;
+import com.magnet.android.mms.utils.BufferPool;
 import com.magnet.android.mms.utils.logger.Log;
+import com.magnet.android.mms.utils.logger.WireLogger;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -38,6 +41,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -46,6 +55,8 @@ public class GenericRestConnectionService extends AbstractConnectionService {
   private static final String TAG = GenericRestConnectionService.class.getSimpleName().substring(0,23);
   private static final int BUFFER_SIZE = 1024;
   private static final Map<String, String> HEADER_MAP;
+  private static final CompressionStats sCompressionStats = new CompressionStats();
+  private final ConnectionConfig mConfig;
 
   static {
     HashMap<String, String> headerMap = new HashMap<String, String>();
@@ -53,7 +64,13 @@ public class GenericRestConnectionService extends AbstractConnectionService {
   }
 
   protected GenericRestConnectionService(Context context) throws InstantiationException, IllegalAccessException {
+    this(context, null);
+  }
+
+  protected GenericRestConnectionService(Context context, ConnectionConfig config)
+      throws InstantiationException, IllegalAccessException {
     super(context);
+    mConfig = config;
   }
 
 
@@ -61,8 +78,92 @@ public class GenericRestConnectionService extends AbstractConnectionService {
     return new GenericRequest();
   }
 
+  /**
+   * Get the compression statistics of all generic REST connections.
+   * @return The compression statistics.
+   */
+  public static CompressionStats getCompressionStats() {
+    return sCompressionStats;
+  }
+
+  // Only compress a request body if the endpoint opts in and the length
+  // exceeds the threshold; a body with unknown length is always compressed.
+  private boolean isRequestCompressible(long length) {
+    if (mConfig == null) {
+      return false;
+    }
+    int threshold = mConfig.getRequestCompressionThreshold();
+    return threshold >= 0 && (length < 0 || length > threshold);
+  }
+
+  RateLimiter getRequestLimiter() {
+    return (mConfig == null) ? null : mConfig.getRequestRateLimiter();
+  }
+
+  RateLimiter getUploadLimiter() {
+    return (mConfig == null) ? null : mConfig.getUploadRateLimiter();
+  }
+
+  RateLimiter getDownloadLimiter() {
+    return (mConfig == null) ? null : mConfig.getDownloadRateLimiter();
+  }
+
+  private static Map<String, List<String>> removeHeaders(
+      Map<String, List<String>> headers, String... names) {
+    // header names are case insensitive like HttpURLConnection.getHeaderFields();
+    // the status line has a null name and is not a header
+    Map<String, List<String>> result = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+    for (Entry<String, List<String>> entry : headers.entrySet()) {
+      if (entry.getKey() != null) {
+        result.put(entry.getKey(), entry.getValue());
+      }
+    }
+    for (String name : names) {
+      result.remove(name);
+    }
+    return result;
+  }
+
   public final class GenericRequest extends AbstractRequest {
+    private volatile HttpURLConnection mConnection;
+    private volatile boolean mCancelled;
+
+    /**
+     * Abort an in-flight request by closing its connection.
+     */
+    @Override
+    public void cancel() {
+      mCancelled = true;
+      HttpURLConnection connection = mConnection;
+      if (connection != null) {
+        connection.disconnect();
+      }
+    }
+
     public Response execute() throws IOException {
+      RateLimiter.acquireRequest(getRequestLimiter(), getAdmission());
+      MagnetDefaultSettings settings = MagnetDefaultSettings.getInstance(getContext());
+      if (!settings.getHttpCircuitBreakerEnabled()) {
+        return execute(null);
+      }
+      EndpointHealth.Permit permit = EndpointHealth.forUrl(new URL(getPath())).acquire(
+          settings.getHttpConnectTimeoutMillis());
+      Response response;
+      try {
+        response = execute(permit);
+      } catch (IOException e) {
+        if (mCancelled) {
+          permit.ignore();
+        } else {
+          permit.release(-1);
+        }
+        throw e;
+      }
+      permit.release(response.getResponseCode());
+      return response;
+    }
+
+    private Response execute(EndpointHealth.Permit permit) throws IOException {
       try {
         Context context = getContext();
 
@@ -71,9 +172,16 @@ public class GenericRestConnectionService extends AbstractConnectionService {
         Uri uriWithPath = Uri.parse(getPath());
         URL url = new URL(uriWithPath.toString());
 
-        Log.d(TAG, " Generic URL -: " + url.toString());
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+          Log.d(TAG, " Generic URL -: " + url.toString());
+        }
 
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        ConnectionPoolManager.prepare(context, connection);
+        mConnection = connection;
+        if (mCancelled) {
+          throw new IOException("Request cancelled");
+        }
         if (connection instanceof HttpsURLConnection) {
           HttpsURLConnection sslConnection = (HttpsURLConnection) connection;
           sslConnection.setHostnameVerifier(SslManager.getInstance(context).getHostnameVerifier());
@@ -82,11 +190,17 @@ public class GenericRestConnectionService extends AbstractConnectionService {
         connection.setConnectTimeout(settings.getHttpConnectTimeoutMillis());
         connection.setReadTimeout(settings.getHttpReadTimeoutMillis());//don't block indefinitely
         connection.setDoInput(true);
+        //explicitly negotiate the encoding so the compressed size can be measured
+        connection.setRequestProperty(GenericRestConstants.Header.ACCEPT_ENCODING,
+            GenericRestConstants.CONTENT_ENCODING_GZIP+", "+
+            GenericRestConstants.CONTENT_ENCODING_DEFLATE);
 
         //Set the method
         Method methodObj = getMethod();
         String method = methodObj.name();
-        Log.d(TAG, "GenericRequest.execute(): request method=" + method);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+          Log.d(TAG, "GenericRequest.execute(): request method=" + method);
+        }
         connection.setRequestMethod(method);
 
         String requestContentType = getContentType();
@@ -115,93 +229,98 @@ public class GenericRestConnectionService extends AbstractConnectionService {
         Uri uri = Uri.parse(getPath());//config.getUri();
         URI bigUri = URI.create(uri.toString());
 
-        boolean isDetailedLogging = true;//Log.isLoggable(Log.VERBOSE);
-        if (isDetailedLogging) {
-          Map<String, List<String>> requestHeaders = connection.getRequestProperties();
-          StringBuffer sb = new StringBuffer("GenericRequest.execute():\n    HTTP Request Headers: \n");
-          for (Entry<String, List<String>> entry:requestHeaders.entrySet()) {
-            sb.append("    ").append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
-          }
-          Log.v(TAG, sb.toString());
+        // null unless wire logging is enabled and this request is sampled
+        WireLogger.Session wire = WireLogger.newSession();
+        if (wire != null) {
+          wire.logHeaders(method + " " + url + "\n    HTTP Request Headers",
+              connection.getRequestProperties());
         }
 
         //Setup payload if necessary
+        //Streaming mode sends the payload without buffering it in memory; the
+        //connection cannot transparently retry on auth challenge or redirect.
         if (getPayloadString() != null ||
             getPayloadBytes() != null ||
-            getPayloadInputStream() != null) {
+            getPayloadInputStream() != null ||
+            getPayloadWriter() != null) {
           connection.setDoOutput(true);
-          OutputStream out = null;
+          byte[] payloadBytes = null;
+          int offset = 0;
+          long length;
+          if (getPayloadString() != null) {
+            payloadBytes = getPayloadString().getBytes();
+            length = payloadBytes.length;
+          } else if (getPayloadBytes() != null) {
+            payloadBytes = getPayloadBytes();
+            offset = getPayloadBytesOffset();
+            length = getPayloadBytesLength();
+          } else {
+            length = getPayloadLength();
+          }
+
+          CountingOutputStream wireOut = null;
+          CountingOutputStream out = null;
+          boolean compress = isRequestCompressible(length);
           try {
-            int bytesSent = 0;
-            String payloadBufferForDebug = null;
-            if (getPayloadString() != null) {
-              Log.d(TAG, "GenericRequest.execute(): sending the request string payload");
-              byte[] payloadBytes = getPayloadString().getBytes();
-              bytesSent = payloadBytes.length;
-              connection.setRequestProperty("Content-Length", String.valueOf(bytesSent));
-              // commenting out setFixecLengthStreamingMode() - causes not RetryableInputStream exception
-              //connection.setFixedLengthStreamingMode(bytesSent);
-              out = new BufferedOutputStream(connection.getOutputStream());
-              out.write(payloadBytes);
-              if (isDetailedLogging) {
-                payloadBufferForDebug = getPayloadString();
-              }
+            if (compress) {
+              connection.setRequestProperty(GenericRestConstants.Header.CONTENT_ENCODING,
+                  GenericRestConstants.CONTENT_ENCODING_GZIP);
+              connection.setChunkedStreamingMode(0);
+              wireOut = new CountingOutputStream(BufferPool.newOutputStream(
+                  RateLimiter.newOutputStream(connection.getOutputStream(), getUploadLimiter())), null);
+              out = new CountingOutputStream(new GZIPOutputStream(wireOut, BUFFER_SIZE), wire);
+            } else {
+              setStreamingMode(connection, length);
+              out = new CountingOutputStream(BufferPool.newOutputStream(
+                  RateLimiter.newOutputStream(connection.getOutputStream(), getUploadLimiter())), wire);
+            }
+            if (payloadBytes != null) {
+              Log.d(TAG, "GenericRequest.execute(): sending the request byte[] payload");
+              out.write(payloadBytes, offset, (int) length);
             } else if (getPayloadInputStream() != null) {
               Log.d(TAG, "GenericRequest.execute(): sending the request InputStream payload");
-              // commenting out setChunkedStreamingMode() - causes not RetryableInputStream exception
-              //connection.setChunkedStreamingMode(0);
-              out = new BufferedOutputStream(connection.getOutputStream());
-              InputStream bis = new BufferedInputStream(getPayloadInputStream());
-              StringBuilder payloadStringBuilder = null;
+              InputStream bis = getPayloadInputStream();
+              byte[] buffer = BufferPool.acquire();
               try {
-                byte[] buffer = new byte[BUFFER_SIZE];
-                if (isDetailedLogging) {
-                  payloadStringBuilder = new StringBuilder();
-                }
                 int count = 0;
                 while ((count = bis.read(buffer)) >= 0) {
                   out.write(buffer, 0, count);
-                  bytesSent = bytesSent + count;
-                  if (payloadStringBuilder != null) {
-                    payloadStringBuilder.append(new String(buffer, 0, count));
-                  }
                 }
               } finally {
+                BufferPool.release(buffer);
                 bis.close();
               }
-              if (payloadStringBuilder != null) {
-                payloadBufferForDebug = payloadStringBuilder.toString();
-              }
-            } else if (getPayloadBytes() != null) {
-              Log.d(TAG, "GenericRequest.execute(): sending the request byte[] payload");
-              byte[] payloadBytes = getPayloadBytes();
-              bytesSent = getPayloadBytesLength();
-              // commenting out setFixecLengthStreamingMode() - causes not RetryableInputStream exception
-//              connection.setFixedLengthStreamingMode(bytesSent);
-              connection.setRequestProperty("Content-Length", String.valueOf(bytesSent));
-              out = new BufferedOutputStream(connection.getOutputStream());
-              out.write(payloadBytes, getPayloadBytesOffset(), bytesSent);
-              if (isDetailedLogging) {
-                payloadBufferForDebug = new String(payloadBytes, getPayloadBytesOffset(), bytesSent);
-              }
+            } else {
+              Log.d(TAG, "GenericRequest.execute(): streaming the request payload");
+              getPayloadWriter().writeTo(out);
             }
-            if (payloadBufferForDebug != null) {
-              Log.v(TAG, "GenericRequest.execute():\n    HTTP Request Payload: \n" +
-                  "    " + payloadBufferForDebug);
-            }
-            Log.d(TAG, "GenericRequest.execute(): request bytes sent=" + bytesSent);
           } finally {
             if (out != null) {
-              out.flush();
               out.close();
             }
           }
+          if (compress) {
+            sCompressionStats.addRequest(out.getCount(), wireOut.getCount());
+          }
+          if (wire != null) {
+            wire.logBody("HTTP Request Payload");
+          }
+          if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "GenericRequest.execute(): request bytes sent=" + out.getCount() +
+                (compress ? ", compressed=" + wireOut.getCount() : ""));
+          }
+        }
+
+        if (permit != null) {
+          permit.sent();
         }
 
         //REQUEST IS ISSUED, TIME FOR RESPONSE
         //figure out the Response status
         int responseCode = connection.getResponseCode();
-        Log.d(TAG, "GenericRequest.execute(): response code = " + responseCode);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+          Log.d(TAG, "GenericRequest.execute(): response code = " + responseCode);
+        }
         int httpCodeRange = responseCode / 100;
         Response.Status status = Status.ERROR;
         if (httpCodeRange == 2) {
@@ -211,13 +330,19 @@ public class GenericRestConnectionService extends AbstractConnectionService {
         //get the headers
         Map<String, List<String>> responseHeaders = connection.getHeaderFields();
 
-        //if debugging
-        if (isDetailedLogging) {
-          StringBuffer sb = new StringBuffer("GenericRequest.execute():\n    HTTP Response Headers: \n");
-          for (Entry<String, List<String>> entry:responseHeaders.entrySet()) {
-            sb.append("    ").append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
-          }
-          Log.v(TAG, sb.toString());
+        if (wire != null) {
+          wire.logHeaders("HTTP Response Headers", responseHeaders);
+        }
+
+        //decode the compressed content before it is parsed or cached
+        String contentEncoding = connection.getHeaderField(
+            GenericRestConstants.Header.CONTENT_ENCODING);
+        boolean decode = GenericRestConstants.CONTENT_ENCODING_GZIP.equalsIgnoreCase(contentEncoding) ||
+            GenericRestConstants.CONTENT_ENCODING_DEFLATE.equalsIgnoreCase(contentEncoding);
+        if (decode) {
+          responseHeaders = removeHeaders(responseHeaders,
+              GenericRestConstants.Header.CONTENT_ENCODING,
+              GenericRestConstants.Header.CONTENT_LENGTH);
         }
 
         //build response
@@ -236,9 +361,17 @@ public class GenericRestConnectionService extends AbstractConnectionService {
         }
         InputStream input = null;
         try {
-          input = new BufferedInputStream(connection.getInputStream());
+          input = BufferPool.newInputStream(RateLimiter.newInputStream(
+              connection.getInputStream(), getDownloadLimiter()));
         } catch (Exception ex) {
-          input = new BufferedInputStream(connection.getErrorStream());
+          input = BufferPool.newInputStream(RateLimiter.newInputStream(
+              connection.getErrorStream(), getDownloadLimiter()));
+        }
+        if (decode) {
+          input = new DecodingInputStream(input, contentEncoding);
+        }
+        if (wire != null) {
+          input = wire.wrapBody(input, "HTTP Response Payload");
         }
         response.setPayload(input);
 
@@ -249,8 +382,259 @@ public class GenericRestConnectionService extends AbstractConnectionService {
     }
   }
 
+  /**
+   * Use fixed length streaming mode if the length fits; otherwise, use chunked
+   * streaming mode.  The long version of setFixedLengthStreamingMode() is not
+   * available until API 19.
+   */
+  private static void setStreamingMode(HttpURLConnection connection, long length) {
+    if (length >= 0 && length <= Integer.MAX_VALUE) {
+      connection.setFixedLengthStreamingMode((int) length);
+    } else {
+      connection.setChunkedStreamingMode(0);
+    }
+  }
+
+  static class CountingOutputStream extends FilterOutputStream {
+    private final WireLogger.Session mWire;
+    private long mCount;
+
+    CountingOutputStream(OutputStream out, WireLogger.Session wire) {
+      super(out);
+      mWire = wire;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      ++mCount;
+      if (mWire != null) {
+        mWire.captureBody(new byte[] { (byte) b }, 0, 1);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      mCount += len;
+      if (mWire != null) {
+        mWire.captureBody(b, off, len);
+      }
+    }
+
+    long getCount() {
+      return mCount;
+    }
+  }
+
+  /**
+   * Counters of compressed requests and responses.
+   */
+  public static final class CompressionStats {
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mRequestBytes = new AtomicLong();
+    private final AtomicLong mRequestWireBytes = new AtomicLong();
+    private final AtomicLong mResponses = new AtomicLong();
+    private final AtomicLong mResponseBytes = new AtomicLong();
+    private final AtomicLong mResponseWireBytes = new AtomicLong();
+
+    void addRequest(long bytes, long wireBytes) {
+      mRequests.incrementAndGet();
+      mRequestBytes.addAndGet(bytes);
+      mRequestWireBytes.addAndGet(wireBytes);
+    }
+
+    void addResponse(long bytes, long wireBytes) {
+      mResponses.incrementAndGet();
+      mResponseBytes.addAndGet(bytes);
+      mResponseWireBytes.addAndGet(wireBytes);
+    }
+
+    /**
+     * @return The number of compressed request bodies sent.
+     */
+    public long getCompressedRequests() {
+      return mRequests.get();
+    }
+
+    /**
+     * @return The number of compressed response bodies received.
+     */
+    public long getCompressedResponses() {
+      return mResponses.get();
+    }
+
+    /**
+     * @return The number of bytes saved on the wire by compression.
+     */
+    public long getBytesSaved() {
+      return (mRequestBytes.get() - mRequestWireBytes.get()) +
+             (mResponseBytes.get() - mResponseWireBytes.get());
+    }
+
+    /**
+     * @return The ratio of uncompressed to compressed bytes, or 1 if nothing
+     * has been compressed.
+     */
+    public double getCompressionRatio() {
+      long wireBytes = mRequestWireBytes.get() + mResponseWireBytes.get();
+      if (wireBytes == 0) {
+        return 1.0;
+      }
+      return (double) (mRequestBytes.get() + mResponseBytes.get()) / wireBytes;
+    }
+
+    @Override
+    public String toString() {
+      return "CompressionStats{requests="+getCompressedRequests()+
+          ", responses="+getCompressedResponses()+", bytesSaved="+getBytesSaved()+
+          ", ratio="+getCompressionRatio()+"}";
+    }
+  }
+
+  /**
+   * Decode a gzip or deflate response lazily; an empty body (e.g. HEAD or 204)
+   * is not decoded.
+   */
+  static class DecodingInputStream extends FilterInputStream {
+    private final CountingInputStream mWireIn;
+    private final String mEncoding;
+    private boolean mInited;
+    private long mCount;
+
+    DecodingInputStream(InputStream in, String encoding) {
+      super(null);
+      mWireIn = new CountingInputStream(in);
+      mEncoding = encoding;
+    }
+
+    private boolean init() throws IOException {
+      if (!mInited) {
+        mInited = true;
+        InputStream in = BufferPool.newInputStream(mWireIn);
+        in.mark(1);
+        if (in.read() < 0) {
+          return false;
+        }
+        in.reset();
+        if (GenericRestConstants.CONTENT_ENCODING_GZIP.equalsIgnoreCase(mEncoding)) {
+          this.in = new GZIPInputStream(in, BUFFER_SIZE);
+        } else if (isZlibWrapped(in)) {
+          this.in = new InflaterInputStream(in);
+        } else {
+          // Some servers send a raw deflate body without the zlib wrapper.
+          this.in = new RawInflaterInputStream(in);
+        }
+      }
+      return this.in != null;
+    }
+
+    // Check the zlib header: the deflate method in CMF and FLG making the
+    // header a multiple of 31.
+    private static boolean isZlibWrapped(InputStream in) throws IOException {
+      in.mark(2);
+      int cmf = in.read();
+      int flg = in.read();
+      in.reset();
+      return flg >= 0 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!init()) {
+        return -1;
+      }
+      int b = in.read();
+      if (b >= 0) {
+        ++mCount;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (!init()) {
+        return -1;
+      }
+      int n = in.read(buffer, offset, length);
+      if (n > 0) {
+        mCount += n;
+      }
+      return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (in == null) ? 0 : in.available();
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (mCount > 0) {
+        sCompressionStats.addResponse(mCount, mWireIn.getCount());
+      }
+      if (in != null) {
+        in.close();
+      } else {
+        mWireIn.close();
+      }
+    }
+  }
+
+  // An inflater stream which ends its own nowrap inflater when closed.
+  private static class RawInflaterInputStream extends InflaterInputStream {
+    RawInflaterInputStream(InputStream in) {
+      super(in, new Inflater(true), BUFFER_SIZE);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        inf.end();
+      }
+    }
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+    private long mCount;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) {
+        ++mCount;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int n = in.read(buffer, offset, length);
+      if (n > 0) {
+        mCount += n;
+      }
+      return n;
+    }
+
+    long getCount() {
+      return mCount;
+    }
+  }
+
   public final class GenericResponse extends AbstractResponse {
     private HttpURLConnection mConnection;
+    private boolean mReleased;
 
     GenericResponse(Map<String, List<String>> headers, HttpURLConnection connection) {
       super(headers);
@@ -262,15 +646,15 @@ public class GenericRestConnectionService extends AbstractConnectionService {
         super.setResponseCode(responseCode);
     }
 
+    /**
+     * Drain and close the response body to return the connection to the
+     * keep-alive pool.  Calling it more than once has no effect.
+     */
     public void release() {
-      InputStream is = getPayload();
-      if (is != null) {
-        try {
-          is.close();
-        } catch (IOException e) {
-        }
+      if (!mReleased) {
+        mReleased = true;
+        ConnectionPoolManager.release(mConnection, getPayload());
       }
-      mConnection.disconnect();
     }
   }
 }
@@ -0,0 +1,511 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.connection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541).  The encoder indexes
+ * repeated headers in the dynamic table and sends literals without Huffman
+ * coding; the decoder supports the full specification.
+ */
+final class Hpack {
+  static final int DEFAULT_TABLE_SIZE = 4096;
+  private static final int ENTRY_OVERHEAD = 32;
+
+  private static final String[][] STATIC_TABLE = {
+    { ":authority", "" },
+    { ":method", "GET" },
+    { ":method", "POST" },
+    { ":path", "/" },
+    { ":path", "/index.html" },
+    { ":scheme", "http" },
+    { ":scheme", "https" },
+    { ":status", "200" },
+    { ":status", "204" },
+    { ":status", "206" },
+    { ":status", "304" },
+    { ":status", "400" },
+    { ":status", "404" },
+    { ":status", "500" },
+    { "accept-charset", "" },
+    { "accept-encoding", "gzip, deflate" },
+    { "accept-language", "" },
+    { "accept-ranges", "" },
+    { "accept", "" },
+    { "access-control-allow-origin", "" },
+    { "age", "" },
+    { "allow", "" },
+    { "authorization", "" },
+    { "cache-control", "" },
+    { "content-disposition", "" },
+    { "content-encoding", "" },
+    { "content-language", "" },
+    { "content-length", "" },
+    { "content-location", "" },
+    { "content-range", "" },
+    { "content-type", "" },
+    { "cookie", "" },
+    { "date", "" },
+    { "etag", "" },
+    { "expect", "" },
+    { "expires", "" },
+    { "from", "" },
+    { "host", "" },
+    { "if-match", "" },
+    { "if-modified-since", "" },
+    { "if-none-match", "" },
+    { "if-range", "" },
+    { "if-unmodified-since", "" },
+    { "last-modified", "" },
+    { "link", "" },
+    { "location", "" },
+    { "max-forwards", "" },
+    { "proxy-authenticate", "" },
+    { "proxy-authorization", "" },
+    { "range", "" },
+    { "referer", "" },
+    { "refresh", "" },
+    { "retry-after", "" },
+    { "server", "" },
+    { "set-cookie", "" },
+    { "strict-transport-security", "" },
+    { "transfer-encoding", "" },
+    { "user-agent", "" },
+    { "vary", "" },
+    { "via", "" },
+    { "www-authenticate", "" },
+  };
+
+  private Hpack() {
+  }
+
+  /**
+   * The dynamic table shared by the encoder and the decoder logic.  The newest
+   * entry has the lowest index.
+   */
+  private static class DynamicTable {
+    private final LinkedList<String[]> mEntries = new LinkedList<String[]>();
+    private int mSize;
+    private int mMaxSize = DEFAULT_TABLE_SIZE;
+
+    static int sizeOf(String name, String value) {
+      return name.length() + value.length() + ENTRY_OVERHEAD;
+    }
+
+    void add(String name, String value) {
+      int size = sizeOf(name, value);
+      evict(mMaxSize - size);
+      if (size <= mMaxSize) {
+        mEntries.addFirst(new String[] { name, value });
+        mSize += size;
+      }
+    }
+
+    void setMaxSize(int maxSize) {
+      mMaxSize = maxSize;
+      evict(maxSize);
+    }
+
+    private void evict(int target) {
+      while (mSize > Math.max(target, 0) && !mEntries.isEmpty()) {
+        String[] entry = mEntries.removeLast();
+        mSize -= sizeOf(entry[0], entry[1]);
+      }
+    }
+
+    // 1-based index across the static and the dynamic tables
+    String[] get(int index) throws IOException {
+      if (index <= 0) {
+        throw new IOException("Invalid HPACK index: "+index);
+      } else if (index <= STATIC_TABLE.length) {
+        return STATIC_TABLE[index - 1];
+      } else if (index - STATIC_TABLE.length <= mEntries.size()) {
+        return mEntries.get(index - STATIC_TABLE.length - 1);
+      } else {
+        throw new IOException("Invalid HPACK index: "+index);
+      }
+    }
+
+    // returns the index of an exact match, or the negative index of a name match, or 0
+    int find(String name, String value) {
+      int nameIndex = 0;
+      for (int i = 0; i < STATIC_TABLE.length; i++) {
+        if (STATIC_TABLE[i][0].equals(name)) {
+          if (STATIC_TABLE[i][1].equals(value)) {
+            return i + 1;
+          } else if (nameIndex == 0) {
+            nameIndex = -(i + 1);
+          }
+        }
+      }
+      int index = STATIC_TABLE.length;
+      for (String[] entry : mEntries) {
+        ++index;
+        if (entry[0].equals(name)) {
+          if (entry[1].equals(value)) {
+            return index;
+          } else if (nameIndex == 0) {
+            nameIndex = -index;
+          }
+        }
+      }
+      return nameIndex;
+    }
+  }
+
+  /**
+   * Encode header lists for one connection.  Not thread safe; the caller must
+   * serialize the header blocks in the order they are sent.
+   */
+  static final class Encoder {
+    private final DynamicTable mTable = new DynamicTable();
+    private int mPendingMaxSize = -1;
+
+    /**
+     * Apply the SETTINGS_HEADER_TABLE_SIZE from the peer.  The encoder never
+     * uses more than the default size.
+     * @param size The max size allowed by the peer's decoder.
+     */
+    void setMaxTableSize(int size) {
+      size = Math.min(size, DEFAULT_TABLE_SIZE);
+      if (size != mTable.mMaxSize) {
+        mPendingMaxSize = size;
+        mTable.setMaxSize(size);
+      }
+    }
+
+    /**
+     * Encode a header list.
+     * @param headers A list of lower case name and value pairs.
+     * @return The header block.
+     */
+    byte[] encode(List<String[]> headers) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+      if (mPendingMaxSize >= 0) {
+        writeInt(out, 0x20, 5, mPendingMaxSize);
+        mPendingMaxSize = -1;
+      }
+      for (String[] header : headers) {
+        String name = header[0];
+        String value = header[1];
+        int index = mTable.find(name, value);
+        if (index > 0) {
+          // indexed header field
+          writeInt(out, 0x80, 7, index);
+        } else if (isSensitive(name)) {
+          // literal header field never indexed
+          writeInt(out, 0x10, 4, -index);
+          if (index == 0) {
+            writeString(out, name);
+          }
+          writeString(out, value);
+        } else if (isVolatile(name)) {
+          // literal header field without indexing
+          writeInt(out, 0x00, 4, -index);
+          if (index == 0) {
+            writeString(out, name);
+          }
+          writeString(out, value);
+        } else {
+          // literal header field with incremental indexing
+          writeInt(out, 0x40, 6, -index);
+          if (index == 0) {
+            writeString(out, name);
+          }
+          writeString(out, value);
+          mTable.add(name, value);
+        }
+      }
+      return out.toByteArray();
+    }
+
+    private static boolean isSensitive(String name) {
+      return "authorization".equals(name) || "cookie".equals(name) ||
+          "proxy-authorization".equals(name);
+    }
+
+    // values which rarely repeat and would only churn the dynamic table
+    private static boolean isVolatile(String name) {
+      return ":path".equals(name) || "content-length".equals(name);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+      int max = (1 << prefixBits) - 1;
+      if (value < max) {
+        out.write(flags | value);
+        return;
+      }
+      out.write(flags | max);
+      value -= max;
+      while (value >= 0x80) {
+        out.write((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+      byte[] bytes = toBytes(value);
+      writeInt(out, 0x00, 7, bytes.length);
+      out.write(bytes, 0, bytes.length);
+    }
+  }
+
+  /**
+   * Decode header blocks for one connection.  Every header block received on
+   * the connection must be decoded in order to keep the dynamic table in sync.
+   */
+  static final class Decoder {
+    private final DynamicTable mTable = new DynamicTable();
+    private final int mMaxTableSize;
+    private byte[] mBlock;
+    private int mPos;
+    private int mEnd;
+
+    Decoder(int maxTableSize) {
+      mMaxTableSize = maxTableSize;
+      mTable.setMaxSize(maxTableSize);
+    }
+
+    /**
+     * Decode a complete header block.
+     * @param block The bytes.
+     * @param offset The offset of the block.
+     * @param length The length of the block.
+     * @return A list of name and value pairs.
+     * @throws IOException Malformed header block.
+     */
+    List<String[]> decode(byte[] block, int offset, int length) throws IOException {
+      mBlock = block;
+      mPos = offset;
+      mEnd = offset + length;
+      ArrayList<String[]> headers = new ArrayList<String[]>();
+      while (mPos < mEnd) {
+        int b = mBlock[mPos] & 0xff;
+        if ((b & 0x80) != 0) {
+          // indexed header field
+          String[] entry = mTable.get(readInt(7));
+          headers.add(new String[] { entry[0], entry[1] });
+        } else if ((b & 0x40) != 0) {
+          // literal header field with incremental indexing
+          String[] header = readLiteral(6);
+          mTable.add(header[0], header[1]);
+          headers.add(header);
+        } else if ((b & 0x20) != 0) {
+          // dynamic table size update
+          int size = readInt(5);
+          if (size > mMaxTableSize) {
+            throw new IOException("Invalid HPACK table size: "+size);
+          }
+          mTable.setMaxSize(size);
+        } else {
+          // literal header field without indexing or never indexed
+          headers.add(readLiteral(4));
+        }
+      }
+      mBlock = null;
+      return headers;
+    }
+
+    private String[] readLiteral(int prefixBits) throws IOException {
+      int index = readInt(prefixBits);
+      String name = (index == 0) ? readString() : mTable.get(index)[0];
+      return new String[] { name, readString() };
+    }
+
+    private int readByte() throws IOException {
+      if (mPos >= mEnd) {
+        throw new IOException("Truncated HPACK header block");
+      }
+      return mBlock[mPos++] & 0xff;
+    }
+
+    private int readInt(int prefixBits) throws IOException {
+      int max = (1 << prefixBits) - 1;
+      int value = readByte() & max;
+      if (value < max) {
+        return value;
+      }
+      int shift = 0;
+      int b;
+      do {
+        b = readByte();
+        if (shift > 28) {
+          throw new IOException("HPACK integer overflow");
+        }
+        value += (b & 0x7f) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+
+    private String readString() throws IOException {
+      boolean huffman = (mBlock[Math.min(mPos, mEnd - 1)] & 0x80) != 0;
+      int length = readInt(7);
+      if (length < 0 || length > mEnd - mPos) {
+        throw new IOException("Truncated HPACK string");
+      }
+      String value = huffman ? Huffman.decode(mBlock, mPos, length) :
+          fromBytes(mBlock, mPos, length);
+      mPos += length;
+      return value;
+    }
+  }
+
+  static byte[] toBytes(String value) {
+    byte[] bytes = new byte[value.length()];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) value.charAt(i);
+    }
+    return bytes;
+  }
+
+  static String fromBytes(byte[] bytes, int offset, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = (char) (bytes[offset + i] & 0xff);
+    }
+    return new String(chars);
+  }
+
+  static String toLowerCase(String name) {
+    return name.toLowerCase(Locale.US);
+  }
+
+  /**
+   * The canonical Huffman code in RFC 7541 Appendix B; only decoding is needed.
+   */
+  static final class Huffman {
+    private static final int[] CODES = {
+      0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+      0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+      0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+      0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+      0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+      0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+      0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+      0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+      0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+      0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+      0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+      0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+      0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+      0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+      0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+      0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+      0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+      0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+      0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+      0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+      0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+      0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+      0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+      0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+      0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+      0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+      0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+      0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+      0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+      0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+      0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+      0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+    };
+
+    private static final byte[] LENGTHS = {
+      13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+      28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+      6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+      5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+      13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+      7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+      15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+      6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+      20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+      24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+      22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+      21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+      26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+      19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+      20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+      26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+    };
+
+    // A binary trie; each node is a pair of child slots, a leaf is ~symbol.
+    private static final int[] TRIE;
+
+    static {
+      int[] trie = new int[2 * 512];
+      int nodes = 1;
+      for (int sym = 0; sym < CODES.length; sym++) {
+        int code = CODES[sym];
+        int node = 0;
+        for (int bit = LENGTHS[sym] - 1; bit >= 0; bit--) {
+          int slot = 2 * node + ((code >>> bit) & 1);
+          if (bit == 0) {
+            trie[slot] = ~sym;
+          } else {
+            if (trie[slot] == 0) {
+              trie[slot] = nodes++;
+            }
+            node = trie[slot];
+          }
+        }
+      }
+      TRIE = trie;
+    }
+
+    private Huffman() {
+    }
+
+    static String decode(byte[] bytes, int offset, int length) throws IOException {
+      StringBuilder sb = new StringBuilder(length * 8 / 5);
+      int node = 0;
+      int depth = 0;
+      boolean allOnes = true;
+      for (int i = offset; i < offset + length; i++) {
+        int b = bytes[i] & 0xff;
+        for (int bit = 7; bit >= 0; bit--) {
+          int one = (b >>> bit) & 1;
+          int next = TRIE[2 * node + one];
+          if (next < 0) {
+            sb.append((char) ~next);
+            node = 0;
+            depth = 0;
+            allOnes = true;
+          } else if (next == 0) {
+            throw new IOException("Invalid HPACK Huffman code");
+          } else {
+            node = next;
+            ++depth;
+            allOnes &= (one == 1);
+          }
+        }
+      }
+      // the padding must be the most significant bits of EOS
+      if (depth > 7 || !allOnes) {
+        throw new IOException("Invalid HPACK Huffman padding");
+      }
+      return sb.toString();
+    }
+  }
+}
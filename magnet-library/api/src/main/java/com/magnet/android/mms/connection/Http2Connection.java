@@ -0,0 +1,991 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+
+package com.magnet.android.mms.connection;
+
+import com.magnet.android.mms.utils.BufferPool;
+import com.magnet.android.mms.utils.logger.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * (Internal Use Only) A client HTTP/2 connection (RFC 7540) multiplexing
+ * concurrent streams over one socket.  A daemon thread reads the frames and
+ * dispatches them to the streams; the request threads write their own frames
+ * under a write lock.  Server push is disabled.
+ * <p>
+ * A connection receiving nothing for half the read timeout sends a PING; if
+ * the PING is not acknowledged in the same time, or a stream times out
+ * without any frame received meanwhile, the connection is considered dead and
+ * fails.
+ */
+final class Http2Connection {
+  private static final String TAG = Http2Connection.class.getSimpleName();
+  private static final byte[] PREFACE = Hpack.toBytes("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+  private static final byte[] EMPTY = new byte[0];
+
+  static final int TYPE_DATA = 0x0;
+  static final int TYPE_HEADERS = 0x1;
+  static final int TYPE_PRIORITY = 0x2;
+  static final int TYPE_RST_STREAM = 0x3;
+  static final int TYPE_SETTINGS = 0x4;
+  static final int TYPE_PUSH_PROMISE = 0x5;
+  static final int TYPE_PING = 0x6;
+  static final int TYPE_GOAWAY = 0x7;
+  static final int TYPE_WINDOW_UPDATE = 0x8;
+  static final int TYPE_CONTINUATION = 0x9;
+
+  static final int FLAG_END_STREAM = 0x1;
+  static final int FLAG_ACK = 0x1;
+  static final int FLAG_END_HEADERS = 0x4;
+  static final int FLAG_PADDED = 0x8;
+  static final int FLAG_PRIORITY = 0x20;
+
+  static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+  static final int SETTINGS_ENABLE_PUSH = 0x2;
+  static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+  static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+  static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+  static final int ERROR_NO_ERROR = 0x0;
+  static final int ERROR_PROTOCOL = 0x1;
+  static final int ERROR_FLOW_CONTROL = 0x3;
+  static final int ERROR_REFUSED_STREAM = 0x7;
+  static final int ERROR_CANCEL = 0x8;
+
+  static final int DEFAULT_WINDOW_SIZE = 65535;
+  static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+  // A larger stream window keeps a fast download from stalling on round trips.
+  static final int LOCAL_WINDOW_SIZE = 256 * 1024;
+  // Used until the peer announces its limit.
+  static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+
+  private final String mOrigin;
+  private final Socket mSocket;
+  private final DataInputStream mIn;
+  private final OutputStream mOut;
+  private final Object mWriteLock = new Object();
+  private final Hpack.Encoder mEncoder = new Hpack.Encoder();
+  private final Hpack.Decoder mDecoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+  private final Map<Integer, Http2Stream> mStreams = new HashMap<Integer, Http2Stream>();
+  private final Http2ConnectionService.Stats mStats;
+  private final int mPingInterval;
+
+  // guarded by mWriteLock
+  private int mNextStreamId = 1;
+  // guarded by this
+  private int mActiveStreams;
+  private int mMaxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+  private int mPeerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+  private int mPeerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+  private long mSendWindow = DEFAULT_WINDOW_SIZE;
+  private boolean mShutdown;
+  private IOException mFailure;
+
+  // only used by the reader thread
+  private byte[] mHeaderBlock = new byte[DEFAULT_MAX_FRAME_SIZE];
+  private final byte[] mPadding = new byte[255];
+  private int mHeaderBlockLength;
+  private int mHeaderStreamId;
+  private int mHeaderFlags;
+  private boolean mPingSent;
+  // the number of frames received; only written by the reader thread
+  private volatile long mFramesRead;
+
+  private Http2Connection(String origin, Socket socket, int timeout,
+      Http2ConnectionService.Stats stats) throws IOException {
+    mOrigin = origin;
+    mSocket = socket;
+    mStats = stats;
+    mPingInterval = Math.max(timeout / 2, 1);
+    mIn = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 16 * 1024));
+    mOut = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+  }
+
+  /**
+   * Start an HTTP/2 connection over a connected socket.  The preface is sent
+   * and the server SETTINGS frame is received before this method returns; a
+   * server not speaking HTTP/2 fails with a ProtocolException.
+   * @param origin The origin, for logging.
+   * @param socket A connected socket, with ALPN "h2" negotiated if it is TLS.
+   * @param timeout The max time in milliseconds to wait for the server preface
+   *        or a PING acknowledgement.
+   * @param stats The statistics to update.
+   * @return The connection.
+   * @throws IOException
+   */
+  static Http2Connection start(String origin, Socket socket, int timeout,
+      Http2ConnectionService.Stats stats) throws IOException {
+    final Http2Connection conn = new Http2Connection(origin, socket, timeout, stats);
+    synchronized (conn.mWriteLock) {
+      conn.mOut.write(PREFACE);
+      byte[] settings = new byte[12];
+      putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+      putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, LOCAL_WINDOW_SIZE);
+      conn.writeFrame(TYPE_SETTINGS, 0, 0, settings, 0, settings.length);
+      conn.mOut.flush();
+    }
+    socket.setSoTimeout(timeout);
+    if (!conn.readFrame(true)) {
+      throw new ProtocolException("Server did not send HTTP/2 SETTINGS: "+origin);
+    }
+    // the reader wakes up on an idle connection to check it with a PING
+    socket.setSoTimeout(conn.mPingInterval);
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        conn.readLoop();
+      }
+    }, "Http2Reader-"+origin);
+    reader.setDaemon(true);
+    reader.start();
+    return conn;
+  }
+
+  private static void putSetting(byte[] buf, int offset, int id, int value) {
+    buf[offset] = (byte) (id >>> 8);
+    buf[offset + 1] = (byte) id;
+    putInt(buf, offset + 2, value);
+  }
+
+  private static void putInt(byte[] buf, int offset, int value) {
+    buf[offset] = (byte) (value >>> 24);
+    buf[offset + 1] = (byte) (value >>> 16);
+    buf[offset + 2] = (byte) (value >>> 8);
+    buf[offset + 3] = (byte) value;
+  }
+
+  private static int getInt(byte[] buf, int offset) {
+    return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16) |
+        ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+  }
+
+  String getOrigin() {
+    return mOrigin;
+  }
+
+  /**
+   * @return true if no more streams can be created on this connection.
+   */
+  synchronized boolean isShutdown() {
+    return mShutdown;
+  }
+
+  private synchronized int getPeerMaxFrameSize() {
+    return mPeerMaxFrameSize;
+  }
+
+  /**
+   * Open a new stream and send the request headers.  It blocks while the
+   * number of active streams is at the peer's limit.
+   * @param headers The lower case request headers including the pseudo headers.
+   * @param endStream true if the request has no body.
+   * @param timeout The max time in milliseconds to wait for a stream slot.
+   * @return The stream.
+   * @throws IOException The connection is shut down or the wait timed out.
+   */
+  Http2Stream newStream(List<String[]> headers, boolean endStream, int timeout)
+      throws IOException {
+    synchronized (this) {
+      long deadline = System.currentTimeMillis() + timeout;
+      while (!mShutdown && mActiveStreams >= mMaxConcurrentStreams) {
+        waitUntil(deadline, "Timed out waiting for an HTTP/2 stream");
+      }
+      if (mShutdown) {
+        throw failure("HTTP/2 connection is shut down");
+      }
+      mActiveStreams++;
+      mStats.onStreamOpened(mActiveStreams);
+    }
+    Http2Stream stream;
+    int maxFrameSize;
+    synchronized (mWriteLock) {
+      int id = mNextStreamId;
+      mNextStreamId += 2;
+      synchronized (this) {
+        maxFrameSize = mPeerMaxFrameSize;
+        stream = new Http2Stream(id, mPeerInitialWindowSize);
+        mStreams.put(id, stream);
+        if (endStream) {
+          stream.mLocalClosed = true;
+        }
+      }
+      byte[] block = mEncoder.encode(headers);
+      mStats.onHeaders(headers, block.length);
+      try {
+        int offset = 0;
+        int type = TYPE_HEADERS;
+        do {
+          int length = Math.min(block.length - offset, maxFrameSize);
+          int flags = (offset + length == block.length) ? FLAG_END_HEADERS : 0;
+          if (type == TYPE_HEADERS && endStream) {
+            flags |= FLAG_END_STREAM;
+          }
+          writeFrame(type, flags, id, block, offset, length);
+          offset += length;
+          type = TYPE_CONTINUATION;
+        } while (offset < block.length);
+        mOut.flush();
+      } catch (IOException e) {
+        fail(e);
+        throw e;
+      }
+    }
+    if (mNextStreamId < 0) {
+      // stream ids are exhausted; let new requests open a new connection
+      shutdown();
+    }
+    return stream;
+  }
+
+  // must hold this
+  private void waitUntil(long deadline, String message) throws IOException {
+    long remaining = deadline - System.currentTimeMillis();
+    if (remaining <= 0) {
+      throw new SocketTimeoutException(message);
+    }
+    try {
+      wait(remaining);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException(message);
+    }
+  }
+
+  // must hold this; a stream timed out without any frame received since
+  // frames were counted, so the peer or the network is gone
+  private IOException onStreamTimeout(long frames, SocketTimeoutException e) {
+    if (mFramesRead == frames && !mShutdown) {
+      Log.w(TAG, "onStreamTimeout(): no HTTP/2 frame from "+mOrigin+"; closing the connection");
+      fail(e);
+    }
+    return e;
+  }
+
+  // must hold this
+  private IOException failure(String message) {
+    return (mFailure != null) ? new IOException(message, mFailure) : new IOException(message);
+  }
+
+  // must hold mWriteLock
+  private void writeFrame(int type, int flags, int streamId, byte[] payload,
+      int offset, int length) throws IOException {
+    mOut.write(length >>> 16);
+    mOut.write(length >>> 8);
+    mOut.write(length);
+    mOut.write(type);
+    mOut.write(flags);
+    mOut.write(streamId >>> 24);
+    mOut.write(streamId >>> 16);
+    mOut.write(streamId >>> 8);
+    mOut.write(streamId);
+    if (length > 0) {
+      mOut.write(payload, offset, length);
+    }
+  }
+
+  private void writeControlFrame(int type, int flags, int streamId, byte[] payload) {
+    try {
+      synchronized (mWriteLock) {
+        writeFrame(type, flags, streamId, payload, 0, payload.length);
+        mOut.flush();
+      }
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void writeWindowUpdate(int streamId, int increment) {
+    byte[] payload = new byte[4];
+    putInt(payload, 0, increment);
+    writeControlFrame(TYPE_WINDOW_UPDATE, 0, streamId, payload);
+  }
+
+  private void writeRstStream(int streamId, int errorCode) {
+    byte[] payload = new byte[4];
+    putInt(payload, 0, errorCode);
+    writeControlFrame(TYPE_RST_STREAM, 0, streamId, payload);
+  }
+
+  /**
+   * Stop creating new streams; the active streams complete normally and the
+   * socket is closed after the last one.
+   */
+  void shutdown() {
+    boolean close;
+    synchronized (this) {
+      mShutdown = true;
+      close = (mActiveStreams == 0);
+      notifyAll();
+    }
+    if (close) {
+      close();
+    }
+  }
+
+  /**
+   * Fail all streams and close the socket.
+   * @param cause The failure.
+   */
+  void fail(IOException cause) {
+    synchronized (this) {
+      if (mFailure == null) {
+        mFailure = cause;
+      }
+      mShutdown = true;
+      for (Http2Stream stream : mStreams.values()) {
+        if (stream.mError == null) {
+          stream.mError = new IOException("HTTP/2 connection failed", cause);
+        }
+      }
+      mStreams.clear();
+      mActiveStreams = 0;
+      notifyAll();
+    }
+    close();
+  }
+
+  private void close() {
+    try {
+      mSocket.close();
+    } catch (IOException e) {
+      // Ignored.
+    }
+  }
+
+  // must hold this
+  private void closeStream(Http2Stream stream) {
+    if (mStreams.remove(stream.mId) != null) {
+      mActiveStreams--;
+      notifyAll();
+      if (mShutdown && mActiveStreams == 0) {
+        close();
+      }
+    }
+  }
+
+  private void readLoop() {
+    try {
+      while (readFrame(false)) {
+        // Keep reading.
+      }
+      fail(new EOFException("HTTP/2 connection closed by peer"));
+    } catch (IOException e) {
+      fail(e);
+    }
+    if (Log.isLoggable(TAG, Log.DEBUG)) {
+      Log.d(TAG, "readLoop(): connection to "+mOrigin+" is closed");
+    }
+  }
+
+  /**
+   * Read and dispatch one frame.
+   * @param preface true to expect the server SETTINGS frame.
+   * @return false on end of stream.
+   * @throws IOException
+   */
+  private boolean readFrame(boolean preface) throws IOException {
+    int b0;
+    try {
+      b0 = mIn.read();
+    } catch (SocketTimeoutException e) {
+      if (preface) {
+        throw e;
+      }
+      onIdle();
+      return true;
+    }
+    if (b0 < 0) {
+      return false;
+    }
+    mFramesRead++;
+    int length = (b0 << 16) | (mIn.readUnsignedByte() << 8) | mIn.readUnsignedByte();
+    int type = mIn.readUnsignedByte();
+    int flags = mIn.readUnsignedByte();
+    int streamId = mIn.readInt() & 0x7fffffff;
+    if (preface && (type != TYPE_SETTINGS || (flags & FLAG_ACK) != 0)) {
+      throw new ProtocolException("Expected HTTP/2 SETTINGS but got frame type "+type);
+    }
+    if (length > DEFAULT_MAX_FRAME_SIZE) {
+      throw new IOException("HTTP/2 frame too large: "+length);
+    }
+    if (mHeaderStreamId != 0 && type != TYPE_CONTINUATION) {
+      throw new IOException("Expected HTTP/2 CONTINUATION but got frame type "+type);
+    }
+    if (type == TYPE_DATA) {
+      onData(streamId, flags, length);
+      return true;
+    }
+    byte[] payload = new byte[length];
+    mIn.readFully(payload);
+    switch (type) {
+    case TYPE_HEADERS:
+      onHeaders(streamId, flags, payload);
+      break;
+    case TYPE_CONTINUATION:
+      if (streamId != mHeaderStreamId) {
+        throw new IOException("Unexpected HTTP/2 CONTINUATION");
+      }
+      appendHeaderBlock(payload, 0, length, flags);
+      break;
+    case TYPE_RST_STREAM:
+      if (length != 4) {
+        throw new IOException("Invalid HTTP/2 RST_STREAM");
+      }
+      onReset(streamId, getInt(payload, 0));
+      break;
+    case TYPE_SETTINGS:
+      onSettings(flags, payload);
+      break;
+    case TYPE_PING:
+      if ((flags & FLAG_ACK) == 0) {
+        writeControlFrame(TYPE_PING, FLAG_ACK, 0, payload);
+      } else {
+        mPingSent = false;
+      }
+      break;
+    case TYPE_GOAWAY:
+      onGoAway(getInt(payload, 0) & 0x7fffffff, getInt(payload, 4));
+      break;
+    case TYPE_WINDOW_UPDATE:
+      onWindowUpdate(streamId, getInt(payload, 0) & 0x7fffffff);
+      break;
+    case TYPE_PUSH_PROMISE:
+      throw new IOException("HTTP/2 server push is disabled");
+    default:
+      // PRIORITY and unknown frames are ignored.
+      break;
+    }
+    return true;
+  }
+
+  // nothing has been received for the ping interval; only the reader thread
+  private void onIdle() throws IOException {
+    if (mPingSent) {
+      throw new SocketTimeoutException("HTTP/2 PING not acknowledged by "+mOrigin);
+    }
+    mPingSent = true;
+    writeControlFrame(TYPE_PING, 0, 0, new byte[8]);
+  }
+
+  // The payload is read straight into a pooled buffer handed to the reader.
+  private void onData(int streamId, int flags, int frameLength) throws IOException {
+    int pad = 0;
+    int length = frameLength;
+    if ((flags & FLAG_PADDED) != 0) {
+      if (length == 0) {
+        throw new IOException("Invalid HTTP/2 padding");
+      }
+      pad = mIn.readUnsignedByte();
+      length -= 1 + pad;
+      if (length < 0) {
+        throw new IOException("Invalid HTTP/2 padding");
+      }
+    }
+    byte[] buffer = null;
+    if (length > 0) {
+      buffer = BufferPool.acquire(length);
+      mIn.readFully(buffer, 0, length);
+    }
+    mIn.readFully(mPadding, 0, pad);
+    // The connection window is replenished right away; the stream windows
+    // limit the amount buffered for the readers.
+    if (frameLength > 0) {
+      writeWindowUpdate(0, frameLength);
+    }
+    boolean reset = false;
+    synchronized (this) {
+      Http2Stream stream = mStreams.get(streamId);
+      if (stream == null) {
+        BufferPool.release(buffer);
+        return;
+      }
+      stream.mReceiveWindow -= frameLength;
+      if (stream.mReceiveWindow < 0) {
+        BufferPool.release(buffer);
+        stream.mError = new IOException("HTTP/2 flow control error");
+        closeStream(stream);
+        reset = true;
+      } else {
+        if (length > 0) {
+          stream.mChunks.add(new DataChunk(buffer, length));
+        }
+        // padding is not returned to the reader; credit it back with the data
+        stream.mUnacknowledged += frameLength - length;
+        if ((flags & FLAG_END_STREAM) != 0) {
+          stream.mRemoteClosed = true;
+          if (stream.mLocalClosed) {
+            closeStream(stream);
+          }
+        }
+      }
+      notifyAll();
+    }
+    if (reset) {
+      writeRstStream(streamId, ERROR_FLOW_CONTROL);
+    }
+  }
+
+  private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+    int offset = 0;
+    int length = payload.length;
+    if ((flags & FLAG_PADDED) != 0) {
+      int pad = payload[0] & 0xff;
+      offset = 1;
+      length -= 1 + pad;
+    }
+    if ((flags & FLAG_PRIORITY) != 0) {
+      offset += 5;
+      length -= 5;
+    }
+    if (length < 0) {
+      throw new IOException("Invalid HTTP/2 HEADERS");
+    }
+    mHeaderStreamId = streamId;
+    mHeaderFlags = flags;
+    mHeaderBlockLength = 0;
+    appendHeaderBlock(payload, offset, length, flags);
+  }
+
+  private void appendHeaderBlock(byte[] buf, int offset, int length, int flags)
+      throws IOException {
+    if (mHeaderBlockLength + length > mHeaderBlock.length) {
+      byte[] block = new byte[Math.max(mHeaderBlock.length * 2, mHeaderBlockLength + length)];
+      System.arraycopy(mHeaderBlock, 0, block, 0, mHeaderBlockLength);
+      mHeaderBlock = block;
+    }
+    System.arraycopy(buf, offset, mHeaderBlock, mHeaderBlockLength, length);
+    mHeaderBlockLength += length;
+    if ((flags & FLAG_END_HEADERS) == 0) {
+      return;
+    }
+    int streamId = mHeaderStreamId;
+    mHeaderStreamId = 0;
+    // always decode to keep the HPACK table in sync, even for a cancelled stream
+    List<String[]> headers = mDecoder.decode(mHeaderBlock, 0, mHeaderBlockLength);
+    synchronized (this) {
+      Http2Stream stream = mStreams.get(streamId);
+      if (stream == null) {
+        return;
+      }
+      if (stream.mHeaders == null) {
+        String status = null;
+        for (String[] header : headers) {
+          if (":status".equals(header[0])) {
+            status = header[1];
+          }
+        }
+        // skip the informational responses like 100-continue
+        if (status != null && !status.startsWith("1")) {
+          stream.mHeaders = headers;
+        }
+      }
+      if ((mHeaderFlags & FLAG_END_STREAM) != 0) {
+        stream.mRemoteClosed = true;
+        if (stream.mLocalClosed) {
+          closeStream(stream);
+        }
+      }
+      notifyAll();
+    }
+  }
+
+  private void onReset(int streamId, int errorCode) {
+    synchronized (this) {
+      Http2Stream stream = mStreams.get(streamId);
+      if (stream != null) {
+        // the server may reset with NO_ERROR once it has sent a full response
+        if (!(errorCode == ERROR_NO_ERROR && stream.mRemoteClosed)) {
+          stream.mError = new IOException("HTTP/2 stream reset by peer: error="+errorCode);
+        }
+        closeStream(stream);
+        notifyAll();
+      }
+    }
+  }
+
+  private void onSettings(int flags, byte[] payload) throws IOException {
+    if ((flags & FLAG_ACK) != 0) {
+      return;
+    }
+    if (payload.length % 6 != 0) {
+      throw new IOException("Invalid HTTP/2 SETTINGS");
+    }
+    int tableSize = -1;
+    synchronized (this) {
+      for (int i = 0; i < payload.length; i += 6) {
+        int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+        int value = getInt(payload, i + 2);
+        switch (id) {
+        case SETTINGS_HEADER_TABLE_SIZE:
+          tableSize = value;
+          break;
+        case SETTINGS_MAX_CONCURRENT_STREAMS:
+          mMaxConcurrentStreams = value;
+          break;
+        case SETTINGS_INITIAL_WINDOW_SIZE:
+          if (value < 0) {
+            throw new IOException("Invalid HTTP/2 initial window size");
+          }
+          int delta = value - mPeerInitialWindowSize;
+          mPeerInitialWindowSize = value;
+          for (Http2Stream stream : mStreams.values()) {
+            stream.mSendWindow += delta;
+          }
+          break;
+        case SETTINGS_MAX_FRAME_SIZE:
+          mPeerMaxFrameSize = value;
+          break;
+        default:
+          break;
+        }
+      }
+      notifyAll();
+    }
+    // the write lock is always taken before the connection lock
+    if (tableSize >= 0) {
+      synchronized (mWriteLock) {
+        mEncoder.setMaxTableSize(tableSize);
+      }
+    }
+    writeControlFrame(TYPE_SETTINGS, FLAG_ACK, 0, EMPTY);
+  }
+
+  private void onGoAway(int lastStreamId, int errorCode) {
+    if (Log.isLoggable(TAG, Log.DEBUG)) {
+      Log.d(TAG, "onGoAway(): origin="+mOrigin+", lastStreamId="+lastStreamId+
+          ", error="+errorCode);
+    }
+    synchronized (this) {
+      mShutdown = true;
+      for (Http2Stream stream : new ArrayList<Http2Stream>(mStreams.values())) {
+        if (stream.mId > lastStreamId) {
+          stream.mError = new IOException("HTTP/2 stream refused by GOAWAY: error="+errorCode);
+          closeStream(stream);
+        }
+      }
+      notifyAll();
+      if (mActiveStreams == 0) {
+        close();
+      }
+    }
+  }
+
+  private void onWindowUpdate(int streamId, int increment) {
+    synchronized (this) {
+      if (streamId == 0) {
+        mSendWindow += increment;
+      } else {
+        Http2Stream stream = mStreams.get(streamId);
+        if (stream != null) {
+          stream.mSendWindow += increment;
+        }
+      }
+      notifyAll();
+    }
+  }
+
+  // The data of a DATA frame in a pooled buffer, which may be longer.
+  private static class DataChunk {
+    final byte[] buffer;
+    final int length;
+
+    DataChunk(byte[] buffer, int length) {
+      this.buffer = buffer;
+      this.length = length;
+    }
+  }
+
+  /**
+   * (Internal Use Only) One request and response exchange.  The state is
+   * guarded by the connection lock.
+   */
+  final class Http2Stream {
+    private final int mId;
+    private final LinkedList<DataChunk> mChunks = new LinkedList<DataChunk>();
+    private int mChunkOffset;
+    private long mSendWindow;
+    private int mReceiveWindow = LOCAL_WINDOW_SIZE;
+    private int mUnacknowledged;
+    private List<String[]> mHeaders;
+    private boolean mLocalClosed;
+    private boolean mRemoteClosed;
+    private IOException mError;
+
+    Http2Stream(int id, int sendWindow) {
+      mId = id;
+      mSendWindow = sendWindow;
+    }
+
+    int getId() {
+      return mId;
+    }
+
+    /**
+     * Wait for the response headers.
+     * @param timeout The max time in milliseconds to wait.
+     * @return The lower case response headers including ":status".
+     * @throws IOException
+     */
+    List<String[]> awaitHeaders(int timeout) throws IOException {
+      synchronized (Http2Connection.this) {
+        long deadline = System.currentTimeMillis() + timeout;
+        long frames = mFramesRead;
+        while (mHeaders == null) {
+          if (mError != null) {
+            throw mError;
+          }
+          if (mRemoteClosed) {
+            throw new IOException("HTTP/2 stream closed without a response");
+          }
+          try {
+            waitUntil(deadline, "Timed out waiting for the HTTP/2 response headers");
+          } catch (SocketTimeoutException e) {
+            throw onStreamTimeout(frames, e);
+          }
+        }
+        return mHeaders;
+      }
+    }
+
+    /**
+     * Get the stream to write the request body.  Closing it ends the stream.
+     * @param timeout The max time in milliseconds to wait for a flow control window.
+     * @return The output stream.
+     */
+    OutputStream getOutputStream(int timeout) {
+      return new BufferedOutputStream(new StreamOutputStream(timeout), getPeerMaxFrameSize());
+    }
+
+    /**
+     * Get the stream to read the response body.  Closing it before the end
+     * cancels the stream.
+     * @param timeout The max time in milliseconds to wait for data.
+     * @return The input stream.
+     */
+    InputStream getInputStream(int timeout) {
+      return new StreamInputStream(timeout);
+    }
+
+    /**
+     * Cancel this stream with RST_STREAM; the connection and the other
+     * streams are not affected.  Any blocked reader or writer fails.
+     */
+    void cancel() {
+      boolean reset = false;
+      synchronized (Http2Connection.this) {
+        if (mError == null) {
+          mError = new InterruptedIOException("HTTP/2 stream cancelled");
+        }
+        if (mStreams.containsKey(mId)) {
+          closeStream(this);
+          reset = true;
+        }
+        for (DataChunk chunk : mChunks) {
+          BufferPool.release(chunk.buffer);
+        }
+        mChunks.clear();
+        mChunkOffset = 0;
+        Http2Connection.this.notifyAll();
+      }
+      if (reset) {
+        writeRstStream(mId, ERROR_CANCEL);
+      }
+    }
+
+    private void sendData(byte[] b, int off, int len, boolean endStream, int timeout)
+        throws IOException {
+      do {
+        int length;
+        synchronized (Http2Connection.this) {
+          long deadline = System.currentTimeMillis() + timeout;
+          while (len > 0 && (mSendWindow <= 0 || Http2Connection.this.mSendWindow <= 0)) {
+            if (mError != null) {
+              throw mError;
+            }
+            waitUntil(deadline, "Timed out waiting for the HTTP/2 flow control window");
+          }
+          if (mError != null) {
+            throw mError;
+          }
+          // a window made negative by SETTINGS still allows an empty frame
+          length = (int) Math.max(0, Math.min(Math.min(len, mPeerMaxFrameSize),
+              Math.min(mSendWindow, Http2Connection.this.mSendWindow)));
+          mSendWindow -= length;
+          Http2Connection.this.mSendWindow -= length;
+        }
+        boolean last = endStream && (length == len);
+        try {
+          synchronized (mWriteLock) {
+            writeFrame(TYPE_DATA, last ? FLAG_END_STREAM : 0, mId, b, off, length);
+            if (last) {
+              mOut.flush();
+            }
+          }
+        } catch (IOException e) {
+          fail(e);
+          throw e;
+        }
+        off += length;
+        len -= length;
+      } while (len > 0);
+      if (endStream) {
+        synchronized (Http2Connection.this) {
+          mLocalClosed = true;
+          if (mRemoteClosed) {
+            closeStream(this);
+          }
+        }
+      }
+    }
+
+    private int read(byte[] b, int off, int len, int timeout) throws IOException {
+      int n;
+      int increment = 0;
+      synchronized (Http2Connection.this) {
+        long deadline = System.currentTimeMillis() + timeout;
+        long frames = mFramesRead;
+        while (mChunks.isEmpty()) {
+          if (mError != null) {
+            throw mError;
+          }
+          if (mRemoteClosed) {
+            return -1;
+          }
+          try {
+            waitUntil(deadline, "Timed out reading the HTTP/2 response");
+          } catch (SocketTimeoutException e) {
+            throw onStreamTimeout(frames, e);
+          }
+        }
+        DataChunk chunk = mChunks.getFirst();
+        n = Math.min(len, chunk.length - mChunkOffset);
+        System.arraycopy(chunk.buffer, mChunkOffset, b, off, n);
+        mChunkOffset += n;
+        if (mChunkOffset == chunk.length) {
+          mChunks.removeFirst();
+          mChunkOffset = 0;
+          BufferPool.release(chunk.buffer);
+        }
+        mUnacknowledged += n;
+        if (!mRemoteClosed && mUnacknowledged >= LOCAL_WINDOW_SIZE / 2) {
+          increment = mUnacknowledged;
+          mReceiveWindow += increment;
+          mUnacknowledged = 0;
+        }
+      }
+      if (increment > 0) {
+        writeWindowUpdate(mId, increment);
+      }
+      return n;
+    }
+
+    private void closeInput() {
+      boolean cancel;
+      synchronized (Http2Connection.this) {
+        cancel = !mRemoteClosed && mError == null;
+      }
+      if (cancel) {
+        cancel();
+      }
+    }
+
+    private class StreamOutputStream extends OutputStream {
+      private final int mTimeout;
+      private boolean mClosed;
+
+      StreamOutputStream(int timeout) {
+        mTimeout = timeout;
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        if (len > 0) {
+          sendData(b, off, len, false, mTimeout);
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        synchronized (mWriteLock) {
+          mOut.flush();
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (!mClosed) {
+          mClosed = true;
+          sendData(EMPTY, 0, 0, true, mTimeout);
+        }
+      }
+    }
+
+    private class StreamInputStream extends InputStream {
+      private final int mTimeout;
+
+      StreamInputStream(int timeout) {
+        mTimeout = timeout;
+      }
+
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+          return 0;
+        }
+        return Http2Stream.this.read(b, off, len, mTimeout);
+      }
+
+      @Override
+      public int available() {
+        synchronized (Http2Connection.this) {
+          return mChunks.isEmpty() ? 0 : mChunks.getFirst().length - mChunkOffset;
+        }
+      }
+
+      @Override
+      public void close() {
+        closeInput();
+      }
+    }
+  }
+}
@@ -0,0 +1,628 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+
+package com.magnet.android.mms.connection;
+
+import android.content.Context;
+
+import com.magnet.android.core.GenericRestConstants;
+import com.magnet.android.mms.connection.ConnectionConfigManager.ConnectionConfig;
+import com.magnet.android.mms.connection.ConnectionService.Response.Status;
+import com.magnet.android.mms.settings.MagnetDefaultSettings;
+import com.magnet.android.mms.utils.BufferPool;
+import com.magnet.android.mms.utils.logger.Log;
+import com.magnet.android.mms.utils.logger.WireLogger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A connection service multiplexing all requests to an origin over one
+ * HTTP/2 connection.  An https origin must negotiate "h2" with ALPN; an http
+ * origin is assumed to support h2c with prior knowledge (RFC 7540 3.4), which
+ * is mostly useful for testing against a local server.  If an origin does not
+ * speak HTTP/2, its requests fall back to {@link GenericRestConnectionService}.
+ */
+public class Http2ConnectionService extends AbstractConnectionService {
+  private static final String TAG = Http2ConnectionService.class.getSimpleName();
+  private static final String ALPN_H2 = "h2";
+  private static final String ALPN_HTTP_1_1 = "http/1.1";
+  private static final Set<String> CONNECTION_HEADERS = new HashSet<String>();
+  private static final Map<String, Http2Connection> sConnections =
+      new HashMap<String, Http2Connection>();
+  private static final Map<String, Object> sOriginLocks = new HashMap<String, Object>();
+  // origins found not to support HTTP/2, with the time to check them again;
+  // a server may be upgraded or the negotiation may have failed transiently
+  private static final long HTTP11_ORIGIN_TTL_MILLIS = 10 * 60 * 1000;
+  private static final Map<String, Long> sHttp11Origins =
+      Collections.synchronizedMap(new HashMap<String, Long>());
+  private static final Stats sStats = new Stats();
+  private final GenericRestConnectionService mFallback;
+
+  static {
+    // connection-specific headers are not allowed in HTTP/2 (RFC 7540 8.1.2.2)
+    CONNECTION_HEADERS.add("connection");
+    CONNECTION_HEADERS.add("host");
+    CONNECTION_HEADERS.add("keep-alive");
+    CONNECTION_HEADERS.add("proxy-connection");
+    CONNECTION_HEADERS.add("te");
+    CONNECTION_HEADERS.add("transfer-encoding");
+    CONNECTION_HEADERS.add("upgrade");
+  }
+
+  protected Http2ConnectionService(Context context, ConnectionConfig config)
+      throws InstantiationException, IllegalAccessException {
+    super(context);
+    mFallback = new GenericRestConnectionService(context, config);
+  }
+
+  public Request createRequest() {
+    return new Http2Request();
+  }
+
+  /**
+   * Get the statistics of all HTTP/2 connections.
+   * @return The statistics.
+   */
+  public static Stats getStats() {
+    return sStats;
+  }
+
+  /**
+   * HTTP/2 connection statistics.
+   */
+  public static final class Stats {
+    private final AtomicLong mConnections = new AtomicLong();
+    private final AtomicLong mFallbacks = new AtomicLong();
+    private final AtomicLong mStreams = new AtomicLong();
+    private final AtomicLong mMaxActiveStreams = new AtomicLong();
+    private final AtomicLong mHeaderBytes = new AtomicLong();
+    private final AtomicLong mEncodedHeaderBytes = new AtomicLong();
+
+    void onStreamOpened(int activeStreams) {
+      mStreams.incrementAndGet();
+      long max;
+      while ((max = mMaxActiveStreams.get()) < activeStreams &&
+             !mMaxActiveStreams.compareAndSet(max, activeStreams)) {
+        // Retry.
+      }
+    }
+
+    // compare with the size of the same headers in HTTP/1.1 "name: value\r\n"
+    void onHeaders(List<String[]> headers, int encodedLength) {
+      int length = 0;
+      for (String[] header : headers) {
+        length += header[0].length() + header[1].length() + 4;
+      }
+      mHeaderBytes.addAndGet(length);
+      mEncodedHeaderBytes.addAndGet(encodedLength);
+    }
+
+    /**
+     * @return The number of HTTP/2 connections opened.
+     */
+    public long getConnections() {
+      return mConnections.get();
+    }
+
+    /**
+     * @return The number of requests sent with HTTP/1.1 because the origin
+     * does not support HTTP/2.
+     */
+    public long getFallbacks() {
+      return mFallbacks.get();
+    }
+
+    /**
+     * @return The number of HTTP/2 streams, i.e. requests.
+     */
+    public long getStreams() {
+      return mStreams.get();
+    }
+
+    /**
+     * @return The peak number of concurrent streams on one connection.
+     */
+    public long getMaxActiveStreams() {
+      return mMaxActiveStreams.get();
+    }
+
+    /**
+     * @return The average number of streams per connection.
+     */
+    public double getMultiplexingFactor() {
+      long connections = mConnections.get();
+      return (connections == 0) ? 0.0 : (double) mStreams.get() / connections;
+    }
+
+    /**
+     * @return The ratio of the plain request header size to the HPACK encoded
+     * size, or 1 if nothing has been sent.
+     */
+    public double getHeaderCompressionRatio() {
+      long encoded = mEncodedHeaderBytes.get();
+      return (encoded == 0) ? 1.0 : (double) mHeaderBytes.get() / encoded;
+    }
+
+    @Override
+    public String toString() {
+      return "Http2Stats{connections="+getConnections()+", fallbacks="+getFallbacks()+
+          ", streams="+getStreams()+", maxActiveStreams="+getMaxActiveStreams()+
+          ", multiplexing="+getMultiplexingFactor()+
+          ", headerCompression="+getHeaderCompressionRatio()+"}";
+    }
+  }
+
+  private static String getOrigin(URL url) {
+    int port = (url.getPort() < 0) ? url.getDefaultPort() : url.getPort();
+    return url.getProtocol()+"://"+url.getHost()+":"+port;
+  }
+
+  /**
+   * Get the shared connection to the origin of a URL, or open one.
+   * @return The connection, or null if the origin does not support HTTP/2.
+   */
+  private Http2Connection getConnection(URL url) throws IOException {
+    String origin = getOrigin(url);
+    if (isHttp11Origin(origin)) {
+      return null;
+    }
+    Object lock;
+    synchronized (sConnections) {
+      Http2Connection conn = sConnections.get(origin);
+      if (conn != null && !conn.isShutdown()) {
+        return conn;
+      }
+      lock = sOriginLocks.get(origin);
+      if (lock == null) {
+        lock = new Object();
+        sOriginLocks.put(origin, lock);
+      }
+    }
+    // only one connection is opened per origin; other callers wait for it
+    synchronized (lock) {
+      synchronized (sConnections) {
+        Http2Connection conn = sConnections.get(origin);
+        if (conn != null && !conn.isShutdown()) {
+          return conn;
+        }
+      }
+      Http2Connection conn = connect(url, origin);
+      if (conn == null) {
+        sHttp11Origins.put(origin, System.currentTimeMillis() + HTTP11_ORIGIN_TTL_MILLIS);
+        Log.i(TAG, "getConnection(): "+origin+" does not support HTTP/2; using HTTP/1.1");
+        return null;
+      }
+      synchronized (sConnections) {
+        sConnections.put(origin, conn);
+      }
+      sStats.mConnections.incrementAndGet();
+      return conn;
+    }
+  }
+
+  private static boolean isHttp11Origin(String origin) {
+    Long expiry = sHttp11Origins.get(origin);
+    if (expiry == null) {
+      return false;
+    }
+    if (expiry < System.currentTimeMillis()) {
+      sHttp11Origins.remove(origin);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Drop a failed connection so that the next request opens a new one.
+   */
+  private static void evict(Http2Connection conn) {
+    synchronized (sConnections) {
+      if (sConnections.get(conn.getOrigin()) == conn) {
+        sConnections.remove(conn.getOrigin());
+      }
+    }
+  }
+
+  private Http2Connection connect(URL url, String origin) throws IOException {
+    MagnetDefaultSettings settings = MagnetDefaultSettings.getInstance(getContext());
+    String host = url.getHost();
+    int port = (url.getPort() < 0) ? url.getDefaultPort() : url.getPort();
+    Socket socket = new Socket();
+    boolean connected = false;
+    try {
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(host, port), settings.getHttpConnectTimeoutMillis());
+      if ("https".equalsIgnoreCase(url.getProtocol())) {
+        socket.setSoTimeout(settings.getHttpReadTimeoutMillis());
+        SSLSocket sslSocket = (SSLSocket) ConnectionPoolManager.getSocketFactory(getContext())
+            .createSocket(socket, host, port, true);
+        socket = sslSocket;
+        String protocol = negotiateAlpn(sslSocket);
+        if (!SslManager.getInstance(getContext()).getHostnameVerifier()
+            .verify(host, sslSocket.getSession())) {
+          throw new SSLPeerUnverifiedException("Hostname "+host+" not verified");
+        }
+        socket.setSoTimeout(0);
+        if (!ALPN_H2.equals(protocol)) {
+          return null;
+        }
+      }
+      Http2Connection conn;
+      try {
+        conn = Http2Connection.start(origin, socket, settings.getHttpReadTimeoutMillis(), sStats);
+      } catch (ProtocolException e) {
+        // not an h2c server
+        Log.w(TAG, "connect(): "+e.getMessage());
+        return null;
+      }
+      connected = true;
+      return conn;
+    } finally {
+      if (!connected) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // Ignored.
+        }
+      }
+    }
+  }
+
+  /**
+   * Negotiate the application protocol with ALPN and complete the handshake.
+   * ALPN is public API since Android 10 (and Java 9); Android 5.0 to 9
+   * expose it on the platform socket.  Without ALPN, the result is null and
+   * HTTP/1.1 is used.
+   */
+  private static String negotiateAlpn(SSLSocket socket) throws IOException {
+    String[] protocols = { ALPN_H2, ALPN_HTTP_1_1 };
+    try {
+      try {
+        Method setter = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+        SSLParameters params = socket.getSSLParameters();
+        setter.invoke(params, (Object) protocols);
+        socket.setSSLParameters(params);
+        socket.startHandshake();
+        return (String) SSLSocket.class.getMethod("getApplicationProtocol").invoke(socket);
+      } catch (NoSuchMethodException e) {
+        // Try the platform socket.
+      }
+      try {
+        Method setter = socket.getClass().getMethod("setAlpnProtocols", byte[].class);
+        Method getter = socket.getClass().getMethod("getAlpnSelectedProtocol");
+        setter.invoke(socket, toAlpnWireFormat(protocols));
+        socket.startHandshake();
+        byte[] selected = (byte[]) getter.invoke(socket);
+        return (selected == null) ? null : new String(selected, "US-ASCII");
+      } catch (NoSuchMethodException e) {
+        // ALPN is not available.
+      }
+    } catch (IllegalAccessException e) {
+      Log.w(TAG, "negotiateAlpn(): ALPN not accessible", e);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      Log.w(TAG, "negotiateAlpn(): ALPN failed", e.getCause());
+    }
+    socket.startHandshake();
+    return null;
+  }
+
+  private static byte[] toAlpnWireFormat(String[] protocols) {
+    int length = 0;
+    for (String protocol : protocols) {
+      length += 1 + protocol.length();
+    }
+    byte[] result = new byte[length];
+    int offset = 0;
+    for (String protocol : protocols) {
+      result[offset++] = (byte) protocol.length();
+      for (int i = 0; i < protocol.length(); i++) {
+        result[offset++] = (byte) protocol.charAt(i);
+      }
+    }
+    return result;
+  }
+
+  private static String getAuthority(URL url) {
+    return (url.getPort() < 0 || url.getPort() == url.getDefaultPort()) ?
+        url.getHost() : url.getHost()+":"+url.getPort();
+  }
+
+  public final class Http2Request extends AbstractRequest {
+    private volatile Http2Connection.Http2Stream mStream;
+    private volatile Request mDelegate;
+    private volatile boolean mCancelled;
+
+    /**
+     * Cancel the stream of this request; other requests sharing the
+     * connection are not affected.
+     */
+    @Override
+    public void cancel() {
+      mCancelled = true;
+      Http2Connection.Http2Stream stream = mStream;
+      if (stream != null) {
+        stream.cancel();
+      }
+      Request delegate = mDelegate;
+      if (delegate != null) {
+        delegate.cancel();
+      }
+    }
+
+    public Response execute() throws IOException {
+      URL url = new URL(getPath());
+      RateLimiter.acquireRequest(mFallback.getRequestLimiter(), getAdmission());
+      MagnetDefaultSettings settings = MagnetDefaultSettings.getInstance(getContext());
+      if (!settings.getHttpCircuitBreakerEnabled()) {
+        return execute(url, null);
+      }
+      EndpointHealth.Permit permit = EndpointHealth.forUrl(url).acquire(
+          settings.getHttpConnectTimeoutMillis());
+      Response response;
+      try {
+        response = execute(url, permit);
+      } catch (IOException e) {
+        if (mCancelled) {
+          permit.ignore();
+        } else {
+          permit.release(-1);
+        }
+        throw e;
+      }
+      permit.release(response.getResponseCode());
+      return response;
+    }
+
+    private Response execute(URL url, EndpointHealth.Permit permit) throws IOException {
+      Http2Connection conn = getConnection(url);
+      if (conn == null) {
+        // The HTTP/1.1 request guards the endpoint by itself.
+        if (permit != null) {
+          permit.ignore();
+        }
+        sStats.mFallbacks.incrementAndGet();
+        Request request = mFallback.createRequest();
+        copyTo(request);
+        mDelegate = request;
+        if (mCancelled) {
+          throw new IOException("Request cancelled");
+        }
+        // The request permit has been acquired.
+        RateLimiter.admit(request, new RateLimiter.Admission(mFallback.getRequestLimiter()));
+        return request.execute();
+      }
+
+      int readTimeout = MagnetDefaultSettings.getInstance(getContext()).getHttpReadTimeoutMillis();
+      String method = getMethod().name();
+      String path = url.getFile();
+
+      byte[] payloadBytes = null;
+      int offset = 0;
+      long length = -1;
+      boolean hasPayload = true;
+      if (getPayloadString() != null) {
+        payloadBytes = getPayloadString().getBytes();
+        length = payloadBytes.length;
+      } else if (getPayloadBytes() != null) {
+        payloadBytes = getPayloadBytes();
+        offset = getPayloadBytesOffset();
+        length = getPayloadBytesLength();
+      } else if (getPayloadInputStream() != null || getPayloadWriter() != null) {
+        length = getPayloadLength();
+      } else {
+        hasPayload = false;
+      }
+
+      List<String[]> headers = new ArrayList<String[]>();
+      headers.add(new String[] { ":method", method });
+      headers.add(new String[] { ":scheme", url.getProtocol() });
+      headers.add(new String[] { ":authority", getAuthority(url) });
+      headers.add(new String[] { ":path", (path.length() == 0) ? "/" : path });
+      headers.add(new String[] { "accept-encoding",
+          GenericRestConstants.CONTENT_ENCODING_GZIP+", "+
+          GenericRestConstants.CONTENT_ENCODING_DEFLATE });
+      if (getContentType() != null) {
+        headers.add(new String[] { "content-type", getContentType() });
+      }
+      if (getContentTransferEncoding() != null) {
+        headers.add(new String[] { Hpack.toLowerCase(
+            GenericRestConstants.Header.CONTENT_TRANSFER_ENCODING), getContentTransferEncoding() });
+      }
+      synchronized (getHeaders()) {
+        for (Entry<String, String> entry : getHeaders().entrySet()) {
+          String name = Hpack.toLowerCase(entry.getKey());
+          if (!CONNECTION_HEADERS.contains(name) && entry.getValue() != null) {
+            headers.add(new String[] { name, entry.getValue() });
+          }
+        }
+      }
+      if (hasPayload && length >= 0) {
+        headers.add(new String[] { "content-length", String.valueOf(length) });
+      }
+
+      // null unless wire logging is enabled and this request is sampled
+      WireLogger.Session wire = WireLogger.newSession();
+      if (wire != null) {
+        wire.logHeaders(method + " " + url + "\n    HTTP/2 Request Headers", toMap(headers));
+      }
+
+      Http2Connection.Http2Stream stream = conn.newStream(headers, !hasPayload, readTimeout);
+      mStream = stream;
+      if (mCancelled) {
+        stream.cancel();
+      }
+      try {
+        if (hasPayload) {
+          GenericRestConnectionService.CountingOutputStream out =
+              new GenericRestConnectionService.CountingOutputStream(
+                  RateLimiter.newOutputStream(stream.getOutputStream(readTimeout),
+                      mFallback.getUploadLimiter()), wire);
+          try {
+            if (payloadBytes != null) {
+              out.write(payloadBytes, offset, (int) length);
+            } else if (getPayloadInputStream() != null) {
+              InputStream bis = getPayloadInputStream();
+              byte[] buffer = BufferPool.acquire();
+              try {
+                int count;
+                while ((count = bis.read(buffer)) >= 0) {
+                  out.write(buffer, 0, count);
+                }
+              } finally {
+                BufferPool.release(buffer);
+                bis.close();
+              }
+            } else {
+              getPayloadWriter().writeTo(out);
+            }
+          } finally {
+            out.close();
+          }
+          if (wire != null) {
+            wire.logBody("HTTP Request Payload");
+          }
+        }
+
+        if (permit != null) {
+          permit.sent();
+        }
+        List<String[]> responseHeaders = stream.awaitHeaders(readTimeout);
+        int responseCode = 0;
+        Map<String, List<String>> headerMap = toMap(responseHeaders);
+        for (String[] header : responseHeaders) {
+          if (":status".equals(header[0])) {
+            responseCode = Integer.parseInt(header[1]);
+          }
+        }
+        headerMap.remove(":status");
+        if (wire != null) {
+          wire.logHeaders("HTTP/2 Response Headers", headerMap);
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+          Log.d(TAG, "Http2Request.execute(): "+method+" "+url+" stream="+stream.getId()+
+              ", response code="+responseCode);
+        }
+
+        InputStream input = RateLimiter.newInputStream(stream.getInputStream(readTimeout),
+            mFallback.getDownloadLimiter());
+        String contentEncoding = getFirst(headerMap, GenericRestConstants.Header.CONTENT_ENCODING);
+        if (GenericRestConstants.CONTENT_ENCODING_GZIP.equalsIgnoreCase(contentEncoding) ||
+            GenericRestConstants.CONTENT_ENCODING_DEFLATE.equalsIgnoreCase(contentEncoding)) {
+          headerMap.remove(GenericRestConstants.Header.CONTENT_ENCODING);
+          headerMap.remove(GenericRestConstants.Header.CONTENT_LENGTH);
+          input = new GenericRestConnectionService.DecodingInputStream(input, contentEncoding);
+        }
+        if (wire != null) {
+          input = wire.wrapBody(input, "HTTP Response Payload");
+        }
+
+        Http2Response response = new Http2Response(headerMap);
+        response.setResponseCode(responseCode);
+        response.setStatus((responseCode / 100 == 2) ? Status.SUCCESS : Status.ERROR);
+        String contentType = getFirst(headerMap, GenericRestConstants.Header.CONTENT_TYPE);
+        if (contentType != null) {
+          response.setContentType(contentType);
+        }
+        String transferEncoding = getFirst(headerMap,
+            GenericRestConstants.Header.CONTENT_TRANSFER_ENCODING);
+        if (transferEncoding != null) {
+          response.setContentTransferEncoding(transferEncoding);
+        }
+        response.setPayload(input);
+        return response;
+      } catch (IOException e) {
+        stream.cancel();
+        if (conn.isShutdown()) {
+          evict(conn);
+        }
+        throw e;
+      } catch (RuntimeException e) {
+        stream.cancel();
+        throw new IOException(e);
+      }
+    }
+  }
+
+  // header names are case insensitive like HttpURLConnection.getHeaderFields()
+  private static Map<String, List<String>> toMap(List<String[]> headers) {
+    Map<String, List<String>> map = new TreeMap<String, List<String>>(
+        String.CASE_INSENSITIVE_ORDER);
+    for (String[] header : headers) {
+      List<String> values = map.get(header[0]);
+      if (values == null) {
+        values = new ArrayList<String>(1);
+        map.put(header[0], values);
+      }
+      values.add(header[1]);
+    }
+    return map;
+  }
+
+  private static String getFirst(Map<String, List<String>> headers, String name) {
+    List<String> values = headers.get(name);
+    return (values == null || values.isEmpty()) ? null : values.get(0);
+  }
+
+  public final class Http2Response extends AbstractResponse {
+    private boolean mReleased;
+
+    Http2Response(Map<String, List<String>> headers) {
+      super(headers);
+      setContentType("text/plain");
+    }
+
+    /**
+     * Close the response body.  An unread body cancels the stream instead of
+     * draining it; the connection stays open for the other streams.
+     */
+    public void release() {
+      if (!mReleased) {
+        mReleased = true;
+        try {
+          getPayload().close();
+        } catch (IOException e) {
+          // Ignored.
+        }
+      }
+    }
+  }
+}
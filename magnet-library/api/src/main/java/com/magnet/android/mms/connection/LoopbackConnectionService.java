@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+
+package com.magnet.android.mms.connection;
+
+import android.content.Context;
+
+import com.magnet.android.core.GenericRestConstants;
+import com.magnet.android.mms.connection.ConnectionConfigManager.ConnectionConfig;
+import com.magnet.android.mms.connection.ConnectionService.Response.Status;
+import com.magnet.android.mms.request.ByteArrayHelper;
+import com.magnet.android.mms.utils.BufferPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process transport serving canned or generated responses without
+ * sockets.  A response is looked up by the path of the request URL, or
+ * produced by a {@link Handler}; an unknown path gets a 404.  The latency
+ * and the throughput are configurable to benchmark the controller,
+ * marshalling, queueing, persistence and parsing overhead in isolation from
+ * the network.  The request rate limit of the endpoint applies like on the
+ * other transports.  Use the <code>LOOPBACK</code> transport type to create it.
+ */
+public class LoopbackConnectionService extends AbstractConnectionService {
+  private final ConcurrentHashMap<String, Reply> mReplies = new ConcurrentHashMap<String, Reply>();
+  private final Stats mStats = new Stats();
+  private final ConnectionConfig mConfig;
+  private volatile Handler mHandler;
+  private volatile long mLatencyMillis;
+  private volatile long mBytesPerSecond;
+
+  protected LoopbackConnectionService(Context context)
+      throws InstantiationException, IllegalAccessException {
+    this(context, null);
+  }
+
+  protected LoopbackConnectionService(Context context, ConnectionConfig config)
+      throws InstantiationException, IllegalAccessException {
+    super(context);
+    mConfig = config;
+  }
+
+  /**
+   * Produces the response to a request.
+   */
+  public interface Handler {
+    /**
+     * Produce the response to a request.  It may be called concurrently.
+     *
+     * @param method The request method.
+     * @param path The path of the request URL.
+     * @param headers The request headers.
+     * @param body The request body, or an empty array.
+     * @return The response, or null for the canned responses.
+     */
+    public Reply handle(String method, String path, Map<String, String> headers, byte[] body);
+  }
+
+  /**
+   * A response served by the loopback transport.
+   */
+  public static final class Reply {
+    private final int mResponseCode;
+    private final String mContentType;
+    private final byte[] mBody;
+    private final long mGeneratedLength;
+    private final HashMap<String, String> mHeaders = new HashMap<String, String>();
+
+    /**
+     * A response with a fixed body.
+     * @param responseCode The HTTP status code.
+     * @param contentType The content type, or null.
+     * @param body The body.
+     */
+    public Reply(int responseCode, String contentType, byte[] body) {
+      this(responseCode, contentType, body, -1);
+    }
+
+    /**
+     * A response with a fixed text body.
+     * @param responseCode The HTTP status code.
+     * @param contentType The content type, or null.
+     * @param body The body.
+     */
+    public Reply(int responseCode, String contentType, String body) {
+      this(responseCode, contentType, body.getBytes(), -1);
+    }
+
+    private Reply(int responseCode, String contentType, byte[] body, long generatedLength) {
+      mResponseCode = responseCode;
+      mContentType = contentType;
+      mBody = body;
+      mGeneratedLength = generatedLength;
+    }
+
+    /**
+     * A response with a generated body of a given length, e.g. to simulate a
+     * large download without holding it in memory.
+     * @param responseCode The HTTP status code.
+     * @param contentType The content type, or null.
+     * @param length The length of the body in bytes.
+     * @return The response.
+     */
+    public static Reply generated(int responseCode, String contentType, long length) {
+      return new Reply(responseCode, contentType, null, length);
+    }
+
+    /**
+     * Add a response header.
+     * @param name The header name.
+     * @param value The header value.
+     * @return This response.
+     */
+    public Reply setHeader(String name, String value) {
+      mHeaders.put(name, value);
+      return this;
+    }
+
+    long getLength() {
+      return (mBody != null) ? mBody.length : mGeneratedLength;
+    }
+
+    InputStream openBody() {
+      return (mBody != null) ? new ByteArrayInputStream(mBody) :
+          new GeneratedInputStream(mGeneratedLength);
+    }
+  }
+
+  /**
+   * Loopback transport statistics.
+   */
+  public static final class Stats {
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    /**
+     * @return The number of requests served.
+     */
+    public long getRequests() {
+      return mRequests.get();
+    }
+
+    /**
+     * @return The number of request body bytes consumed.
+     */
+    public long getBytesReceived() {
+      return mBytesReceived.get();
+    }
+
+    /**
+     * @return The number of response body bytes read by the caller.
+     */
+    public long getBytesSent() {
+      return mBytesSent.get();
+    }
+
+    @Override
+    public String toString() {
+      return "LoopbackStats{requests="+getRequests()+", bytesReceived="+getBytesReceived()+
+          ", bytesSent="+getBytesSent()+"}";
+    }
+  }
+
+  /**
+   * Serve a fixed response for a path.
+   * @param path The path of the request URL, e.g. "/api/items".
+   * @param reply The response.
+   */
+  public void setReply(String path, Reply reply) {
+    mReplies.put(path, reply);
+  }
+
+  /**
+   * Set a handler to produce the responses; the canned responses are used
+   * if it returns null.
+   * @param handler The handler, or null.
+   */
+  public void setHandler(Handler handler) {
+    mHandler = handler;
+  }
+
+  /**
+   * Set the simulated round trip time added before each response.
+   * @param latencyMillis The latency in milliseconds.
+   */
+  public void setLatency(long latencyMillis) {
+    mLatencyMillis = latencyMillis;
+  }
+
+  /**
+   * Limit the simulated throughput of request and response bodies.
+   * @param bytesPerSecond The throughput, or 0 for unlimited.
+   */
+  public void setThroughput(long bytesPerSecond) {
+    mBytesPerSecond = bytesPerSecond;
+  }
+
+  /**
+   * @return The statistics of this transport.
+   */
+  public Stats getStats() {
+    return mStats;
+  }
+
+  public Request createRequest() {
+    return new LoopbackRequest();
+  }
+
+  // Throttle the time spent on transferring bytes to the configured throughput.
+  private long transferMillis(long bytes) {
+    long bytesPerSecond = mBytesPerSecond;
+    return (bytesPerSecond <= 0) ? 0 : bytes * 1000 / bytesPerSecond;
+  }
+
+  public final class LoopbackRequest extends AbstractRequest {
+    private final Object mLock = new Object();
+    private volatile boolean mCancelled;
+
+    @Override
+    public void cancel() {
+      mCancelled = true;
+      synchronized (mLock) {
+        mLock.notifyAll();
+      }
+    }
+
+    void pause(long millis) throws IOException {
+      long deadline = System.currentTimeMillis() + millis;
+      synchronized (mLock) {
+        long remaining;
+        while (!mCancelled && (remaining = deadline - System.currentTimeMillis()) > 0) {
+          try {
+            mLock.wait(remaining);
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException("Loopback request interrupted");
+          }
+        }
+      }
+      if (mCancelled) {
+        throw new InterruptedIOException("Loopback request cancelled");
+      }
+    }
+
+    public Response execute() throws IOException {
+      RateLimiter.acquireRequest((mConfig == null) ? null : mConfig.getRequestRateLimiter(),
+          getAdmission());
+      mStats.mRequests.incrementAndGet();
+      byte[] body = readPayload();
+      mStats.mBytesReceived.addAndGet(body.length);
+      pause(mLatencyMillis + transferMillis(body.length));
+
+      String path = new URL(getPath()).getPath();
+      HashMap<String, String> headers;
+      synchronized (getHeaders()) {
+        headers = new HashMap<String, String>(getHeaders());
+      }
+      if (getContentType() != null) {
+        headers.put(GenericRestConstants.Header.CONTENT_TYPE, getContentType());
+      }
+      Handler handler = mHandler;
+      Reply reply = (handler == null) ? null : handler.handle(getMethod().name(), path,
+          Collections.unmodifiableMap(headers), body);
+      if (reply == null) {
+        reply = mReplies.get(path);
+      }
+      if (reply == null) {
+        reply = new Reply(404, "text/plain", "Not Found: "+path);
+      }
+
+      Map<String, List<String>> responseHeaders = new TreeMap<String, List<String>>(
+          String.CASE_INSENSITIVE_ORDER);
+      for (Map.Entry<String, String> entry : reply.mHeaders.entrySet()) {
+        responseHeaders.put(entry.getKey(), Collections.singletonList(entry.getValue()));
+      }
+      responseHeaders.put(GenericRestConstants.Header.CONTENT_LENGTH,
+          Collections.singletonList(String.valueOf(reply.getLength())));
+      LoopbackResponse response = new LoopbackResponse(responseHeaders);
+      response.setResponseCode(reply.mResponseCode);
+      response.setStatus((reply.mResponseCode / 100 == 2) ? Status.SUCCESS : Status.ERROR);
+      if (reply.mContentType != null) {
+        responseHeaders.put(GenericRestConstants.Header.CONTENT_TYPE,
+            Collections.singletonList(reply.mContentType));
+        response.setContentType(reply.mContentType);
+      }
+      response.setPayload(new ThrottledInputStream(reply.openBody(), this));
+      return response;
+    }
+
+    private byte[] readPayload() throws IOException {
+      if (getPayloadString() != null) {
+        return getPayloadString().getBytes();
+      } else if (getPayloadBytes() != null) {
+        byte[] body = new byte[getPayloadBytesLength()];
+        System.arraycopy(getPayloadBytes(), getPayloadBytesOffset(), body, 0, body.length);
+        return body;
+      } else if (getPayloadInputStream() != null) {
+        InputStream ins = getPayloadInputStream();
+        try {
+          return ByteArrayHelper.toByteArray(ins);
+        } finally {
+          ins.close();
+        }
+      } else if (getPayloadWriter() != null) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        getPayloadWriter().writeTo(bos);
+        return bos.toByteArray();
+      }
+      return new byte[0];
+    }
+  }
+
+  /**
+   * Deliver a body at the configured throughput.
+   */
+  private class ThrottledInputStream extends FilterInputStream {
+    private final LoopbackRequest mRequest;
+    private final long mStart = System.currentTimeMillis();
+    private long mCount;
+
+    ThrottledInputStream(InputStream in, LoopbackRequest request) {
+      super(in);
+      mRequest = request;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      // deliver at most a buffer at a time so the pacing is smooth
+      int n = in.read(b, off, Math.min(len, BufferPool.DEFAULT_BUFFER_SIZE));
+      if (n > 0) {
+        mCount += n;
+        mStats.mBytesSent.addAndGet(n);
+        long delay = mStart + transferMillis(mCount) - System.currentTimeMillis();
+        if (delay > 0) {
+          mRequest.pause(delay);
+        }
+      }
+      return n;
+    }
+  }
+
+  /**
+   * A deterministic body of a given length.
+   */
+  private static class GeneratedInputStream extends InputStream {
+    private final long mLength;
+    private long mPos;
+
+    GeneratedInputStream(long length) {
+      mLength = length;
+    }
+
+    @Override
+    public int read() {
+      return (mPos < mLength) ? (int) (mPos++ & 0x7f) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (mPos >= mLength) {
+        return -1;
+      }
+      int n = (int) Math.min(len, mLength - mPos);
+      for (int i = 0; i < n; i++) {
+        b[off + i] = (byte) ((mPos + i) & 0x7f);
+      }
+      mPos += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, mLength - mPos);
+    }
+  }
+
+  public final class LoopbackResponse extends AbstractResponse {
+    LoopbackResponse(Map<String, List<String>> headers) {
+      super(headers);
+      setContentType("text/plain");
+    }
+
+    public void release() {
+      try {
+        getPayload().close();
+      } catch (IOException e) {
+        // Ignored.
+      }
+    }
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.connection;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket limiting the rate of requests or bytes to an endpoint.  The
+ * bucket refills at a constant rate up to its burst size.  A reservation
+ * always succeeds: it takes the permits, possibly leaving the bucket in debt,
+ * and returns how long the caller must wait before using them.  So the
+ * waiting callers are served in order, and a caller can wait without holding
+ * a thread, e.g. the asynchronous queues reschedule a throttled call.
+ */
+public final class RateLimiter {
+  private static final ConcurrentHashMap<String, RateLimiter> sLimiters =
+      new ConcurrentHashMap<String, RateLimiter>();
+
+  private final String mName;
+  private final double mRate;
+  private final double mBurst;
+  private final Stats mStats = new Stats();
+  private double mTokens;
+  private long mLastRefill;
+
+  /**
+   * Rate limiter statistics.
+   */
+  public static final class Stats {
+    private final AtomicLong mPermits = new AtomicLong();
+    private final AtomicLong mThrottled = new AtomicLong();
+    private final AtomicLong mWaitMillis = new AtomicLong();
+    private volatile double mRate;
+    private volatile long mAvailable;
+
+    /**
+     * @return The rate in permits per second.
+     */
+    public double getRate() {
+      return mRate;
+    }
+
+    /**
+     * @return The permits available after the last reservation; negative if
+     * the bucket is in debt.
+     */
+    public long getAvailable() {
+      return mAvailable;
+    }
+
+    /**
+     * @return The number of permits reserved.
+     */
+    public long getPermits() {
+      return mPermits.get();
+    }
+
+    /**
+     * @return The number of reservations which had to wait.
+     */
+    public long getThrottled() {
+      return mThrottled.get();
+    }
+
+    /**
+     * @return The total time in milliseconds the reservations had to wait.
+     */
+    public long getWaitMillis() {
+      return mWaitMillis.get();
+    }
+
+    @Override
+    public String toString() {
+      return "RateLimiterStats{rate="+getRate()+", available="+getAvailable()+
+          ", permits="+getPermits()+", throttled="+getThrottled()+
+          ", waitMillis="+getWaitMillis()+"}";
+    }
+  }
+
+  /**
+   * Create a rate limiter.  It replaces the statistics of a rate limiter with
+   * the same name.
+   * @param name The name of the limiter in the statistics.
+   * @param ratePerSecond The number of permits per second.
+   * @param burst The max number of permits which can be saved.
+   */
+  RateLimiter(String name, double ratePerSecond, long burst) {
+    if (ratePerSecond <= 0 || burst <= 0) {
+      throw new IllegalArgumentException("rate and burst must be positive");
+    }
+    mName = name;
+    mRate = ratePerSecond;
+    mBurst = burst;
+    mTokens = burst;
+    mLastRefill = System.nanoTime();
+    mStats.mRate = ratePerSecond;
+    mStats.mAvailable = burst;
+    sLimiters.put(name, this);
+  }
+
+  /**
+   * Get the statistics of all rate limiters.
+   * @return A map of the names to their statistics.
+   */
+  public static Map<String, Stats> getAllStats() {
+    HashMap<String, Stats> result = new HashMap<String, Stats>();
+    for (Map.Entry<String, RateLimiter> entry : sLimiters.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().mStats);
+    }
+    return result;
+  }
+
+  /**
+   * @return The name of this limiter.
+   */
+  public String getName() {
+    return mName;
+  }
+
+  /**
+   * @return The statistics of this limiter.
+   */
+  public Stats getStats() {
+    return mStats;
+  }
+
+  /**
+   * Reserve permits.  The caller must wait the returned time before using
+   * them.
+   * @param permits The number of permits.
+   * @return The time in milliseconds to wait; 0 if they can be used now.
+   */
+  public synchronized long reserve(long permits) {
+    long now = System.nanoTime();
+    mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mRate / 1e9);
+    mLastRefill = now;
+    long wait = 0;
+    if (mTokens < permits) {
+      wait = (long) Math.ceil((permits - mTokens) * 1000 / mRate);
+      mStats.mThrottled.incrementAndGet();
+      mStats.mWaitMillis.addAndGet(wait);
+    }
+    mTokens -= permits;
+    mStats.mPermits.addAndGet(permits);
+    mStats.mAvailable = (long) Math.floor(mTokens);
+    return wait;
+  }
+
+  /**
+   * Reserve permits and block until they can be used.
+   * @param permits The number of permits.
+   * @throws InterruptedIOException The thread is interrupted.
+   */
+  public void acquire(long permits) throws InterruptedIOException {
+    long wait = reserve(permits);
+    if (wait > 0) {
+      try {
+        Thread.sleep(wait);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Rate limiter wait interrupted");
+      }
+    }
+  }
+
+  /**
+   * @hide
+   * A request permit reserved in advance, e.g. by an asynchronous queue for a
+   * call.  It pays for the first request of the call sent to its limiter, on
+   * whichever thread; the other requests of the call, e.g. a hedge, acquire
+   * their own permits.
+   */
+  public static final class Admission {
+    private final RateLimiter mLimiter;
+    private final AtomicBoolean mUsed = new AtomicBoolean();
+
+    /**
+     * @param limiter The limiter which has reserved the permit.
+     */
+    public Admission(RateLimiter limiter) {
+      mLimiter = limiter;
+    }
+
+    boolean use(RateLimiter limiter) {
+      return limiter == mLimiter && mUsed.compareAndSet(false, true);
+    }
+  }
+
+  /**
+   * @hide
+   * Let a request use a reserved permit instead of acquiring one.
+   * @param request A request created by a connection service.
+   * @param admission The reserved permit shared by the requests of a call, or null.
+   */
+  public static void admit(ConnectionService.Request request, Admission admission) {
+    if (request instanceof AbstractConnectionService.AbstractRequest) {
+      ((AbstractConnectionService.AbstractRequest) request).setAdmission(admission);
+    }
+  }
+
+  /**
+   * Acquire a request permit unless a reserved permit can be used.
+   * @param limiter The request rate limiter, or null if unlimited.
+   * @param admission The reserved permit of the request, or null.
+   * @throws InterruptedIOException The thread is interrupted.
+   */
+  static void acquireRequest(RateLimiter limiter, Admission admission)
+      throws InterruptedIOException {
+    if (limiter == null || (admission != null && admission.use(limiter))) {
+      return;
+    }
+    limiter.acquire(1);
+  }
+
+  /**
+   * Shape the bytes read from a stream.
+   * @param in The stream.
+   * @param limiter The byte rate limiter, or null if unlimited.
+   * @return The shaped stream.
+   */
+  static InputStream newInputStream(InputStream in, RateLimiter limiter) {
+    return (limiter == null || in == null) ? in : new ShapedInputStream(in, limiter);
+  }
+
+  /**
+   * Shape the bytes written to a stream.
+   * @param out The stream.
+   * @param limiter The byte rate limiter, or null if unlimited.
+   * @return The shaped stream.
+   */
+  static OutputStream newOutputStream(OutputStream out, RateLimiter limiter) {
+    return (limiter == null) ? out : new ShapedOutputStream(out, limiter);
+  }
+
+  // The bytes are paid after they are read, since the count is not known before.
+  private static class ShapedInputStream extends FilterInputStream {
+    private final RateLimiter mLimiter;
+
+    ShapedInputStream(InputStream in, RateLimiter limiter) {
+      super(in);
+      mLimiter = limiter;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) {
+        mLimiter.acquire(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+      int n = in.read(buffer, offset, count);
+      if (n > 0) {
+        mLimiter.acquire(n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+      long n = in.skip(count);
+      if (n > 0) {
+        mLimiter.acquire(n);
+      }
+      return n;
+    }
+  }
+
+  private static class ShapedOutputStream extends FilterOutputStream {
+    private final RateLimiter mLimiter;
+
+    ShapedOutputStream(OutputStream out, RateLimiter limiter) {
+      super(out);
+      mLimiter = limiter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      mLimiter.acquire(1);
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+      mLimiter.acquire(count);
+      out.write(buffer, offset, count);
+    }
+  }
+}
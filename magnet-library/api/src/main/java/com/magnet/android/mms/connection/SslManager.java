@@ -27,25 +27,42 @@ import org.apache.http.conn.ssl.BrowserCompatHostnameVerifier;
 import org.apache.http.conn.ssl.StrictHostnameVerifier;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
  * This manager provides the SSLSocketFactory and the HostnameVerifier
- * implementations for the MagnetRestConnectionService.
+ * implementations for the MagnetRestConnectionService.  All connections share
+ * one SSLContext, so a reconnect to a server can resume a cached TLS session
+ * (or use a session ticket) and skip the full handshake.  The session cache
+ * is sized by the settings, and the full and abbreviated handshakes are
+ * counted.  If the app has replaced the default factory with
+ * {@link HttpsURLConnection#setDefaultSSLSocketFactory(SSLSocketFactory)},
+ * e.g. to trust its own CA or to pin certificates, the sockets are created by
+ * that factory and its session cache is used as is.
  *
  * @author emok
  */
 public final class SslManager {
   private static final String TAG = SslManager.class.getSimpleName();
-  private static SslManager sInstance = null;
+  private static final Stats sStats = new Stats();
+  private static volatile SslManager sInstance = null;
   private Context mContext;
-  private HostnameVerifierEnum mCurrentVerifier = null;
-  private HostnameVerifier mHostnameVerifier = null;
+  private volatile Verifier mVerifier = null;
+  private volatile SSLSocketFactory mSocketFactory = null;
+  // the default factory when mSocketFactory was created; set after it
+  private volatile SSLSocketFactory mDefaultFactory = null;
 
   public static final class LAZY_SSL {
     public static final String[] ANONYMOUS_CIPHERS = {
@@ -61,280 +78,258 @@ public final class SslManager {
     STRICT, ALLOW_ALL, BROWSER_COMPAT
   }
 
+  /**
+   * TLS handshake statistics.
+   */
+  public static final class Stats {
+    private final AtomicLong mFullHandshakes = new AtomicLong();
+    private final AtomicLong mResumedHandshakes = new AtomicLong();
+
+    /**
+     * @return The number of full handshakes, i.e. new TLS sessions.
+     */
+    public long getFullHandshakes() {
+      return mFullHandshakes.get();
+    }
+
+    /**
+     * @return The number of abbreviated handshakes resuming a TLS session.
+     */
+    public long getResumedHandshakes() {
+      return mResumedHandshakes.get();
+    }
+
+    /**
+     * @return The fraction of handshakes resuming a TLS session.
+     */
+    public double getResumptionRate() {
+      long resumed = mResumedHandshakes.get();
+      long total = resumed + mFullHandshakes.get();
+      return (total == 0) ? 0.0 : (double) resumed / total;
+    }
+
+    @Override
+    public String toString() {
+      return "SslStats{fullHandshakes="+getFullHandshakes()+", resumedHandshakes="+
+          getResumedHandshakes()+", resumptionRate="+getResumptionRate()+"}";
+    }
+  }
+
+  // The verifier created for a setting value.
+  private static final class Verifier {
+    final String mSetting;
+    final HostnameVerifier mVerifier;
+
+    Verifier(String setting, HostnameVerifier verifier) {
+      mSetting = setting;
+      mVerifier = verifier;
+    }
+  }
+
   private SslManager(Context context) {
     mContext = context;
   }
 
-  synchronized static SslManager getInstance(Context context) {
+  static SslManager getInstance(Context context) {
     if (sInstance == null) {
-      sInstance = new SslManager(context);
+      synchronized (SslManager.class) {
+        if (sInstance == null) {
+          sInstance = new SslManager(context);
+        }
+      }
     }
     return sInstance;
   }
 
-  synchronized HostnameVerifier getHostnameVerifier() {
+  /**
+   * Get the TLS handshake statistics of all connections.
+   * @return The statistics.
+   */
+  public static Stats getStats() {
+    return sStats;
+  }
+
+  HostnameVerifier getHostnameVerifier() {
     String verifierStr = MagnetDefaultSettings.getInstance(mContext).getSslHostnameVerifier();
+    Verifier verifier = mVerifier;
+    if (verifier != null && verifier.mSetting.equals(verifierStr)) {
+      return verifier.mVerifier;
+    }
     Log.d(TAG, "getHostnameVerifier(): Value from settings: " + verifierStr);
+    HostnameVerifier result;
     try {
-      HostnameVerifierEnum verifier = HostnameVerifierEnum.valueOf(verifierStr);
-      if (mHostnameVerifier == null || verifier != mCurrentVerifier) {
-        switch (verifier) {
-        case ALLOW_ALL:
-          mHostnameVerifier = new AllowAllHostnameVerifier();
-          break;
-        case BROWSER_COMPAT:
-          mHostnameVerifier = new BrowserCompatHostnameVerifier();
-          break;
-        case STRICT:
-        default:
-          mHostnameVerifier = new StrictHostnameVerifier();
-        }
-        mCurrentVerifier = verifier;
+      switch (HostnameVerifierEnum.valueOf(verifierStr)) {
+      case ALLOW_ALL:
+        result = new AllowAllHostnameVerifier();
+        break;
+      case BROWSER_COMPAT:
+        result = new BrowserCompatHostnameVerifier();
+        break;
+      case STRICT:
+      default:
+        result = new StrictHostnameVerifier();
       }
     } catch (Exception ex) {
       Log.w(TAG, "getHostnameVerifier(): caught exception.  Will default to STRICT.", ex);
-      if (mCurrentVerifier != HostnameVerifierEnum.STRICT) {
-        mHostnameVerifier = new StrictHostnameVerifier();
-        mCurrentVerifier = HostnameVerifierEnum.STRICT;
-      }
+      result = new StrictHostnameVerifier();
     }
-    return mHostnameVerifier;
+    mVerifier = new Verifier(verifierStr, result);
+    return result;
   }
 
-  private static class AnonymousSslSocketFactory extends SSLSocketFactory {
-
-//    @Override
-//    public Socket connectSocket(Socket socket, String host, int port,
-//        InetAddress localAddress, int localPort, HttpParams params)
-//            throws IOException, UnknownHostException, ConnectTimeoutException {
-//      if (socket instanceof SSLSocket) {
-//        ((SSLSocket)socket).setEnabledCipherSuites(LAZY_SSL.ANONYMOUS_CIPHERS);
-//      }
-//
-//      return super.connectSocket( socket, host, port, localAddress, localPort, params );
-//    }
-//
-//    @Override
-//    public Socket createSocket( Socket socket, String host, int port, boolean autoClose )
-//        throws IOException, UnknownHostException {
-//      SSLSocket socket1 = (SSLSocket) getSslContext().getSocketFactory().createSocket(socket,
-//          host, port,  autoClose);
-//      socket1.setEnabledCipherSuites(LAZY_SSL.ANONYMOUS_CIPHERS);
-//      return socket1;
-//    }
-//
-//    public AnonymousSslSocketFactory()
-//        throws NoSuchAlgorithmException, KeyManagementException,
-//        KeyStoreException, UnrecoverableKeyException {
-//      super(null, null, null);
-//      X509HostnameVerifier doNothingVerifier = new X509HostnameVerifier() {
-//        @Override
-//        public void verify( String host, SSLSocket ssl ) throws IOException {
-//        }
-//
-//        @Override
-//        public void verify( String host, X509Certificate cert ) throws SSLException {
-//        }
-//
-//        @Override
-//        public void verify( String host, String[] cns, String[] subjectAlts ) throws SSLException {
-//        }
-//
-//        @Override
-//        public boolean verify( String s, SSLSession sslSession ) {
-//          return true;
-//        }
-//      };
-//
-//      this.setHostnameVerifier(doNothingVerifier);
-//    }
-//
-//    @Override
-//    public Socket createSocket() throws IOException {
-//      try {
-//        return getSslContext().getSocketFactory().createSocket();
-//      } catch (Exception e) {
-//        throw new IOException(e);
-//      }
-//
-//    }
-//
-//    private static SSLContext createContext() throws Exception{
-//      SSLContext context = SSLContext.getInstance("TLS");
-//      context.init(null, null, null);
-//      return context;
-//    }
-//
-//    private SSLContext getSslContext() throws Exception{
-//      if (this.sslContext == null) {
-//        this.sslContext = createContext();
-//      }
-//      return this.sslContext;
-//    }
-
-    @Override
-    public String[] getDefaultCipherSuites() {
-      // TODO Auto-generated method stub
-      return null;
+  /**
+   * Get the SSLSocketFactory shared by all connections.  It is created from
+   * an SSLContext with the session cache configured by the settings, unless
+   * the app has set its own default factory; the default factory is also used
+   * if the SSLContext cannot be created.  A new factory is returned after the
+   * app changes the default factory.  It is called for every HTTPS request,
+   * so the lock is only taken to create the factory.
+   * @return The socket factory.
+   */
+  SSLSocketFactory getSocketFactory() {
+    SSLSocketFactory defaultFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+    // mDefaultFactory is read first; it is set after mSocketFactory
+    if (mDefaultFactory == defaultFactory) {
+      SSLSocketFactory socketFactory = mSocketFactory;
+      if (socketFactory != null) {
+        return socketFactory;
+      }
     }
+    return updateSocketFactory(defaultFactory);
+  }
 
-    @Override
-    public String[] getSupportedCipherSuites() {
-      // TODO Auto-generated method stub
-      return null;
+  private synchronized SSLSocketFactory updateSocketFactory(SSLSocketFactory defaultFactory) {
+    if (mSocketFactory == null || mDefaultFactory != defaultFactory) {
+      MagnetDefaultSettings settings = MagnetDefaultSettings.getInstance(mContext);
+      SSLSocketFactory factory;
+      if (defaultFactory != SSLSocketFactory.getDefault()) {
+        // keep the trust and the key managers of the app
+        Log.i(TAG, "getSocketFactory(): use the default SSLSocketFactory set by the app");
+        factory = defaultFactory;
+      } else {
+        factory = createSocketFactory(settings, defaultFactory);
+      }
+      mSocketFactory = new ResumingSslSocketFactory(factory,
+          settings.getSslSessionTicketsEnabled());
+      mDefaultFactory = defaultFactory;
     }
+    return mSocketFactory;
+  }
 
-    @Override
-    public Socket createSocket(Socket s, String host, int port,
-        boolean autoClose) throws IOException {
-      // TODO Auto-generated method stub
-      return null;
+  private static SSLSocketFactory createSocketFactory(MagnetDefaultSettings settings,
+      SSLSocketFactory defaultFactory) {
+    try {
+      SSLContext context = SSLContext.getInstance(settings.getSslProtocol());
+      context.init(null, null, null);
+      SSLSessionContext sessions = context.getClientSessionContext();
+      if (sessions != null) {
+        sessions.setSessionCacheSize(settings.getSslSessionCacheSize());
+        sessions.setSessionTimeout(settings.getSslSessionTimeoutSeconds());
+      }
+      return context.getSocketFactory();
+    } catch (Exception e) {
+      Log.e(TAG, "getSocketFactory(): unable to create the SSLContext; use the default", e);
+      return defaultFactory;
     }
+  }
 
-    @Override
-    public Socket createSocket(String host, int port) throws IOException,
-        UnknownHostException {
-      // TODO Auto-generated method stub
-      return null;
-    }
+  /**
+   * Enable the session tickets on the new sockets and count the full and the
+   * abbreviated handshakes.  A resumed session was created before the socket.
+   */
+  private static class ResumingSslSocketFactory extends SSLSocketFactory {
+    private static Method sSetUseSessionTickets;
+    private static boolean sLookedUp;
+    private final SSLSocketFactory mDelegate;
+    private final boolean mSessionTickets;
 
-    @Override
-    public Socket createSocket(String host, int port, InetAddress localHost,
-        int localPort) throws IOException, UnknownHostException {
-      // TODO Auto-generated method stub
-      return null;
+    ResumingSslSocketFactory(SSLSocketFactory delegate, boolean sessionTickets) {
+      mDelegate = delegate;
+      mSessionTickets = sessionTickets;
     }
 
-    @Override
-    public Socket createSocket(InetAddress host, int port) throws IOException {
-      // TODO Auto-generated method stub
-      return null;
+    // The platform socket on Android has setUseSessionTickets(boolean).
+    private static synchronized Method getSetUseSessionTickets(Class<?> clz) {
+      if (!sLookedUp) {
+        sLookedUp = true;
+        try {
+          sSetUseSessionTickets = clz.getMethod("setUseSessionTickets", boolean.class);
+        } catch (NoSuchMethodException e) {
+          Log.d(TAG, "setUseSessionTickets() is not supported by "+clz.getName());
+        }
+      }
+      return sSetUseSessionTickets;
     }
 
-    @Override
-    public Socket createSocket(InetAddress address, int port,
-        InetAddress localAddress, int localPort) throws IOException {
-      // TODO Auto-generated method stub
-      return null;
+    private Socket prepare(Socket socket) {
+      if (!(socket instanceof SSLSocket)) {
+        return socket;
+      }
+      SSLSocket sslSocket = (SSLSocket) socket;
+      if (mSessionTickets) {
+        Method method = getSetUseSessionTickets(sslSocket.getClass());
+        if (method != null) {
+          try {
+            method.invoke(sslSocket, true);
+          } catch (Exception e) {
+            Log.d(TAG, "setUseSessionTickets() failed: "+e);
+          }
+        }
+      }
+      final long created = System.currentTimeMillis();
+      sslSocket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+        public void handshakeCompleted(HandshakeCompletedEvent event) {
+          if (event.getSession().getCreationTime() < created) {
+            sStats.mResumedHandshakes.incrementAndGet();
+          } else {
+            sStats.mFullHandshakes.incrementAndGet();
+          }
+        }
+      });
+      return sslSocket;
     }
-  }
-
-  private static class GullibleSslSocketFactory extends SSLSocketFactory {
 
     @Override
     public String[] getDefaultCipherSuites() {
-      // TODO Auto-generated method stub
-      return null;
+      return mDelegate.getDefaultCipherSuites();
     }
 
     @Override
     public String[] getSupportedCipherSuites() {
-      // TODO Auto-generated method stub
-      return null;
+      return mDelegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+      return prepare(mDelegate.createSocket());
     }
 
     @Override
     public Socket createSocket(Socket s, String host, int port,
         boolean autoClose) throws IOException {
-      // TODO Auto-generated method stub
-      return null;
+      return prepare(mDelegate.createSocket(s, host, port, autoClose));
     }
 
     @Override
-    public Socket createSocket(String host, int port) throws IOException,
-        UnknownHostException {
-      // TODO Auto-generated method stub
-      return null;
+    public Socket createSocket(String host, int port) throws IOException {
+      return prepare(mDelegate.createSocket(host, port));
     }
 
     @Override
     public Socket createSocket(String host, int port, InetAddress localHost,
-        int localPort) throws IOException, UnknownHostException {
-      // TODO Auto-generated method stub
-      return null;
+        int localPort) throws IOException {
+      return prepare(mDelegate.createSocket(host, port, localHost, localPort));
     }
 
     @Override
     public Socket createSocket(InetAddress host, int port) throws IOException {
-      // TODO Auto-generated method stub
-      return null;
+      return prepare(mDelegate.createSocket(host, port));
     }
 
     @Override
     public Socket createSocket(InetAddress address, int port,
         InetAddress localAddress, int localPort) throws IOException {
-      // TODO Auto-generated method stub
-      return null;
+      return prepare(mDelegate.createSocket(address, port, localAddress, localPort));
     }
-
-//    @Override
-//    public Socket createSocket( Socket socket, String host, int port, boolean autoClose )
-//        throws IOException, UnknownHostException {
-//      SSLSocket socket1 = (SSLSocket) getSslContext().getSocketFactory().createSocket(socket, host, port,  autoClose);
-//      return socket1;
-//    }
-//
-//    public GullibleSslSocketFactory()
-//        throws NoSuchAlgorithmException, KeyManagementException,
-//        KeyStoreException, UnrecoverableKeyException {
-//      super(null, null, null);
-//      X509HostnameVerifier doNothingVerifier = new X509HostnameVerifier() {
-//        @Override
-//        public void verify( String host, SSLSocket ssl ) throws IOException {
-//        }
-//
-//        @Override
-//        public void verify( String host, X509Certificate cert ) throws SSLException {
-//        }
-//
-//        @Override
-//        public void verify( String host, String[] cns, String[] subjectAlts ) throws SSLException {
-//        }
-//
-//        @Override
-//        public boolean verify( String s, SSLSession sslSession ) {
-//          return true;
-//        }
-//      };
-//
-//      this.setHostnameVerifier(doNothingVerifier);
-//    }
-//
-//    @Override
-//    public Socket createSocket() throws IOException {
-//      return getSslContext().getSocketFactory().createSocket();
-//    }
-//
-//    private static SSLContext createContext() throws Exception{
-//      SSLContext context = SSLContext.getInstance("TLS");
-//
-//      TrustManager[] trustManager = new TrustManager[] { new X509TrustManager() {
-//        @Override
-//        public void checkClientTrusted(X509Certificate[] arg0, String arg1)
-//            throws CertificateException {
-//        }
-//
-//        @Override
-//        public void checkServerTrusted(X509Certificate[] arg0, String arg1)
-//            throws CertificateException {
-//        }
-//
-//        @Override
-//        public X509Certificate[] getAcceptedIssuers() {
-//          return new X509Certificate[] {};
-//        }
-//
-//      }};
-//
-//      context.init(null, trustManager, null);
-//      return context;
-//    }
-//
-//    private SSLContext getSslContext() throws Exception{
-//      if (this.sslContext == null) {
-//        this.sslContext = createContext();
-//      }
-//      return this.sslContext;
-//    }
   }
 }
@@ -18,13 +18,19 @@ package com.magnet.android.mms.controller;
 
 import com.magnet.android.mms.controller.RequestSchema.JMeta;
 import com.magnet.android.mms.controller.RequestSchema.JMethod;
+import com.magnet.android.mms.exception.MobileRuntimeException;
+import com.magnet.android.mms.exception.SchemaException;
+import com.magnet.android.mms.utils.logger.Log;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 /**
  * An abstract class which populates RequestSchema for making controller calls
  */
 public abstract class AbstractControllerSchemaFactory {
+  private static final String TAG = AbstractControllerSchemaFactory.class.getSimpleName();
 
   protected RequestSchema schema;
 
@@ -66,4 +72,29 @@ public abstract class AbstractControllerSchemaFactory {
     getSchema().putMethod(name, method);
     return method;
   }
+
+  /**
+   * Load the schema from a binary schema resource generated with the
+   * controller sources; call it from {@link #initSchemaMaps()} instead of
+   * {@link #addMethod}.  Only the index is read; each method is decoded on
+   * its first call.
+   * @param resourceName The resource name, relative to the factory class.
+   */
+  protected void loadSchema(String resourceName) {
+    InputStream is = getClass().getResourceAsStream(resourceName);
+    if (is == null) {
+      throw new MobileRuntimeException("binary controller schema not found:" + resourceName);
+    }
+    try {
+      schema = RequestSchema.fromBinary(is);
+    } catch (SchemaException e) {
+      throw new MobileRuntimeException(e);
+    } finally {
+      try {
+        is.close();
+      } catch (IOException e) {
+        Log.w(TAG, "ignoring exception closing binary controller schema", e);
+      }
+    }
+  }
 }
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.controller;
+
+import com.magnet.android.mms.controller.RequestSchema.JMeta;
+import com.magnet.android.mms.controller.RequestSchema.JMethod;
+import com.magnet.android.mms.controller.RequestSchema.JParam;
+import com.magnet.android.mms.exception.MobileRuntimeException;
+import com.magnet.android.mms.exception.SchemaException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Internal Use Only: A compact binary form of a {@link RequestSchema},
+ * written at build time and loaded with {@link RequestSchema#fromBinary(byte[])}.
+ * The data starts with an index of the method names; a method and the classes
+ * of its parameters are only decoded when the method is first looked up, so
+ * loading a controller schema costs little more than reading the index.
+ *
+ * <pre>
+ * int magic, short version, [UTF root path]
+ * int count, count x (UTF name, int offset)
+ * method records, at the offsets relative to the end of the index
+ * </pre>
+ */
+public final class BinarySchema {
+  private static final int MAGIC = 0x4d534348;   // "MSCH"
+  private static final short VERSION = 1;
+  // the classes already loaded by name; the same types recur across methods
+  private static final ConcurrentHashMap<String, Class<?>> sClasses =
+      new ConcurrentHashMap<String, Class<?>>();
+  static {
+    Class<?>[] primitives = { int.class, long.class, short.class, byte.class, char.class,
+        boolean.class, float.class, double.class, void.class };
+    for (Class<?> clz : primitives) {
+      sClasses.put(clz.getName(), clz);
+    }
+  }
+
+  private final byte[] mData;
+  private final int mIndexStart;
+  private final String mRootPath;
+  // the offsets of the methods not decoded yet by name; parsed on first use
+  private Map<String, List<Integer>> mPending;
+  private int mRecordStart;
+
+  private BinarySchema(byte[] data) throws IOException {
+    mData = data;
+    Input in = new Input(data, 0);
+    if (in.readInt() != MAGIC) {
+      throw new IOException("not a binary controller schema");
+    }
+    short version = in.readShort();
+    if (version != VERSION) {
+      throw new IOException("unsupported binary controller schema version:" + version);
+    }
+    mRootPath = readString(in);
+    mIndexStart = in.pos;
+  }
+
+  /**
+   * Parse the header of a binary schema.  The methods are decoded later.
+   * @param data The binary schema.
+   * @return The binary schema.
+   * @throws SchemaException The data is not a binary schema.
+   */
+  static BinarySchema parse(byte[] data) throws SchemaException {
+    try {
+      return new BinarySchema(data);
+    } catch (IOException e) {
+      throw new SchemaException("invalid binary controller schema", e);
+    }
+  }
+
+  String getRootPath() {
+    return mRootPath;
+  }
+
+  /**
+   * @return The names of the methods not decoded yet.  Must be called with
+   *         the lock of this object held.
+   */
+  Set<String> getPendingNames() {
+    return getPending().keySet();
+  }
+
+  /**
+   * Decode the methods of a name, once.  Must be called with the lock of this
+   * object held.
+   * @param name The method name.
+   * @return The methods, more than one if overloaded, or null if the name is
+   *         unknown or already decoded.
+   * @throws MobileRuntimeException The method cannot be decoded, e.g. a class
+   *         is not found.
+   */
+  List<JMethod> decode(String name) {
+    List<Integer> offsets = getPending().remove(name);
+    if (offsets == null) {
+      return null;
+    }
+    List<JMethod> result = new ArrayList<JMethod>(offsets.size());
+    try {
+      for (int offset : offsets) {
+        int start = mRecordStart + offset;
+        result.add(readMethod(new Input(mData, start)));
+      }
+    } catch (IOException e) {
+      throw new MobileRuntimeException(new SchemaException("invalid binary schema for method:" + name, e));
+    } catch (ClassNotFoundException e) {
+      throw new MobileRuntimeException(new SchemaException("class not found for method:" + name, e));
+    }
+    return result;
+  }
+
+  private Map<String, List<Integer>> getPending() {
+    if (mPending == null) {
+      Input in = new Input(mData, mIndexStart);
+      Map<String, List<Integer>> pending = new HashMap<String, List<Integer>>();
+      try {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          String name = in.readUTF();
+          List<Integer> offsets = pending.get(name);
+          if (offsets == null) {
+            offsets = new ArrayList<Integer>(1);
+            pending.put(name, offsets);
+          }
+          offsets.add(in.readInt());
+        }
+      } catch (IOException e) {
+        throw new MobileRuntimeException(new SchemaException("invalid binary schema index", e));
+      }
+      mRecordStart = in.pos;
+      mPending = pending;
+    }
+    return mPending;
+  }
+
+  private static JMethod readMethod(Input in) throws IOException, ClassNotFoundException {
+    JMeta meta = new JMeta(in.readUTF(), in.readUTF(), in.readUTF());
+    meta.setBaseUrl(readString(in));
+    meta.setConsumes(readStrings(in));
+    meta.setProduces(readStrings(in));
+    Class<?> returnType = loadClass(in.readUTF());
+    String componentType = readString(in);
+    JMethod method = new JMethod(returnType, (componentType != null) ? loadClass(componentType) : null);
+    method.setMetaInfo(meta);
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      String name = in.readUTF();
+      String style = in.readUTF();
+      Class<?> paramClass = loadClass(in.readUTF());
+      String paramComponent = readString(in);
+      String typeName = readString(in);
+      boolean optional = in.readBoolean();
+      method.addParam(name, style, paramClass,
+          (paramComponent != null) ? loadClass(paramComponent) : null, typeName, optional);
+    }
+    return method;
+  }
+
+  /**
+   * Write a schema in the binary form.
+   * @param schema The schema.
+   * @param os The output, not closed.
+   * @throws IOException
+   * @throws SchemaException A method has a component type which cannot be
+   *         written, i.e. more than one or not a class.
+   */
+  public static void write(RequestSchema schema, OutputStream os)
+      throws IOException, SchemaException {
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    DataOutputStream recordOut = new DataOutputStream(records);
+    List<String> names = new ArrayList<String>();
+    List<Integer> offsets = new ArrayList<Integer>();
+    for (Map.Entry<String, List<JMethod>> entry : schema.getAllMethods().entrySet()) {
+      for (JMethod method : entry.getValue()) {
+        names.add(entry.getKey());
+        offsets.add(recordOut.size());
+        writeMethod(recordOut, method);
+      }
+    }
+    recordOut.flush();
+
+    DataOutputStream out = new DataOutputStream(os);
+    out.writeInt(MAGIC);
+    out.writeShort(VERSION);
+    writeString(out, schema.getRootPath());
+    out.writeInt(names.size());
+    for (int i = 0; i < names.size(); i++) {
+      out.writeUTF(names.get(i));
+      out.writeInt(offsets.get(i));
+    }
+    records.writeTo(out);
+    out.flush();
+  }
+
+  private static void writeMethod(DataOutputStream out, JMethod method)
+      throws IOException, SchemaException {
+    JMeta meta = method.getMetaInfo();
+    out.writeUTF(meta.getMethodName());
+    out.writeUTF(meta.restApiPath);
+    out.writeUTF(meta.restMethod.name());
+    writeString(out, meta.getBaseUrl());
+    writeStrings(out, meta.getConsumes());
+    writeStrings(out, meta.getProduces());
+    out.writeUTF(method.getReturnType().getName());
+    writeString(out, getComponentName(method, method.getReturnComponentTypes()));
+    out.writeInt(method.params.size());
+    for (JParam param : method.params) {
+      out.writeUTF(param.name);
+      out.writeUTF(param.style.name());
+      out.writeUTF(param.getParamType().getName());
+      writeString(out, getComponentName(method, param.getActualTypes()));
+      writeString(out, param.getTypeName());
+      out.writeBoolean(param.optional);
+    }
+  }
+
+  // A method schema holds at most one component class.
+  private static String getComponentName(JMethod method, Type[] types) throws SchemaException {
+    if (types == null || types.length == 0) {
+      return null;
+    }
+    if (types.length > 1 || !(types[0] instanceof Class)) {
+      throw new SchemaException("unsupported component types for method:" +
+          method.getMetaInfo().getMethodName());
+    }
+    return ((Class<?>) types[0]).getName();
+  }
+
+  private static Class<?> loadClass(String name) throws ClassNotFoundException {
+    Class<?> clz = sClasses.get(name);
+    if (clz == null) {
+      clz = Class.forName(name);
+      sClasses.put(name, clz);
+    }
+    return clz;
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readString(Input in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException {
+    if (values == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(values.size());
+    for (String value : values) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static List<String> readStrings(Input in) throws IOException {
+    int count = in.readInt();
+    if (count < 0) {
+      return null;
+    }
+    List<String> values = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      values.add(in.readUTF());
+    }
+    return values;
+  }
+
+  // Reads the values written by DataOutputStream straight from the array,
+  // without the copies and locking of the streams.
+  private static class Input {
+    private final byte[] mData;
+    int pos;
+
+    Input(byte[] data, int pos) {
+      mData = data;
+      this.pos = pos;
+    }
+
+    private void require(int count) throws IOException {
+      if (pos + count > mData.length) {
+        throw new EOFException();
+      }
+    }
+
+    int readInt() throws IOException {
+      require(4);
+      int value = ((mData[pos] & 0xff) << 24) | ((mData[pos + 1] & 0xff) << 16) |
+          ((mData[pos + 2] & 0xff) << 8) | (mData[pos + 3] & 0xff);
+      pos += 4;
+      return value;
+    }
+
+    short readShort() throws IOException {
+      require(2);
+      short value = (short) (((mData[pos] & 0xff) << 8) | (mData[pos + 1] & 0xff));
+      pos += 2;
+      return value;
+    }
+
+    boolean readBoolean() throws IOException {
+      require(1);
+      return mData[pos++] != 0;
+    }
+
+    String readUTF() throws IOException {
+      int start = pos;
+      int length = readShort() & 0xffff;
+      require(length);
+      char[] chars = new char[length];
+      for (int i = 0; i < length; i++) {
+        byte b = mData[pos + i];
+        if (b < 0) {
+          // not ASCII; let the stream decode the modified UTF-8
+          String value = new DataInputStream(new ByteArrayInputStream(mData, start, length + 2)).readUTF();
+          pos += length;
+          return value;
+        }
+        chars[i] = (char) b;
+      }
+      pos += length;
+      return new String(chars);
+    }
+  }
+}
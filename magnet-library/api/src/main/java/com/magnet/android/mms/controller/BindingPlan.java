@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.controller;
+
+import com.magnet.android.core.GenericRestConstants;
+import com.magnet.android.core.MagnetRestRequestType.ParamStyle;
+import com.magnet.android.mms.async.AsyncService.Payload;
+import com.magnet.android.mms.connection.ConnectionService;
+import com.magnet.android.mms.controller.RequestSchema.JMethod;
+import com.magnet.android.mms.controller.RequestSchema.JParam;
+import com.magnet.android.mms.exception.MobileRuntimeException;
+import com.magnet.android.mms.request.marshall.SimpleParamHelper;
+import com.magnet.android.mms.utils.logger.Log;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Where the arguments of a controller method go in a request, classified
+ * once per method from the parameter styles, the REST method and the
+ * parameter types.  Binding the arguments of a call only checks the required
+ * ones and, for a Byte parameter, whether the value is a collection.
+ */
+class BindingPlan {
+  private final static String TAG = BindingPlan.class.getSimpleName();
+  final static byte URI = 1;
+  final static byte HEADER = 2;
+  final static byte BODY = 3;
+
+  // How a value is converted to a string in the URI or a header.
+  private final static byte FORMAT_STRING = 0;
+  private final static byte FORMAT_VALUE_OF = 1;
+  private final static byte FORMAT_GENERIC = 2;
+
+  // The content types in consumes or produces which are not ignored.
+  private final static String[] SUPPORTED_TYPES = {
+    GenericRestConstants.CONTENT_TYPE_JSON,
+    GenericRestConstants.CONTENT_TYPE_TEXT_PLAIN,
+    GenericRestConstants.CONTENT_TYPE_OCTET_STREAM,
+    GenericRestConstants.CONTENT_TYPE_FORM_URLENCODED,
+    RequestSchema.MULTIPART_FORM_DATA_CONTENT_TYPE,
+    RequestSchema.MULTIPART_RELATED_CONTENT_TYPE,
+  };
+
+  final JParam[] params;
+  private final byte[] mKinds;
+  // the kind of a Byte parameter if the value is not a collection, or 0
+  private final byte[] mByteKinds;
+  private final byte[] mFormats;
+  private final String[] mErrors;
+  private final boolean mHasHeaders;
+
+  /**
+   * Classify the parameters of a method.
+   * @param schema The method.
+   */
+  BindingPlan(JMethod schema) {
+    params = schema.params.toArray(new JParam[schema.params.size()]);
+    boolean noBody = ConnectionService.Request.Method.GET == schema.metaInfo.restMethod ||
+        ConnectionService.Request.Method.DELETE == schema.metaInfo.restMethod;
+    mKinds = new byte[params.length];
+    mByteKinds = new byte[params.length];
+    mFormats = new byte[params.length];
+    mErrors = new String[params.length];
+    boolean hasHeaders = false;
+    for (int idx = 0; idx < params.length; idx++) {
+      JParam paramDef = params[idx];
+      Class<?> actualClz = paramDef.getActualTypeAsClass();
+      mFormats[idx] = getFormat(actualClz);
+      // byte array and other binary content is always in the body
+      if (isBinaryParamClass(actualClz)) {
+        mKinds[idx] = BODY;
+        continue;
+      }
+      boolean primitive = SimpleParamHelper.isMarshalledAsPrimitiveType(actualClz) &&
+          !SimpleParamHelper.isCollectionClass(actualClz);
+      byte kind;
+      if (paramDef.style == ParamStyle.HEADER) {
+        // only primitive types allowed for HeaderParam
+        if (!primitive) {
+          mErrors[idx] = "header parameter must be primitve type";
+        }
+        kind = HEADER;
+        hasHeaders = true;
+      } else if (noBody) {
+        if (!primitive) {
+          mErrors[idx] = "all parameters must be primitve type for GET and DELETE";
+        }
+        kind = URI;
+      } else if (paramDef.style == ParamStyle.QUERY ||
+          paramDef.style == ParamStyle.TEMPLATE ||
+          paramDef.style == ParamStyle.MATRIX) {
+        if (!primitive) {
+          mErrors[idx] = "parameter must be primitve type for style:" + paramDef.style.name();
+        }
+        kind = URI;
+      } else {
+        // default is to put it in body
+        // PLAIN, FORM
+        kind = BODY;
+      }
+      if (actualClz == Byte.class) {
+        // a collection of Byte is in the body like a byte array
+        mByteKinds[idx] = kind;
+        mKinds[idx] = BODY;
+      } else {
+        mKinds[idx] = kind;
+      }
+    }
+    mHasHeaders = hasHeaders;
+
+    // only support JSON, plain text, binary, form and multipart content
+    List<String> ignored = getUnsupportedTypes(schema.getMetaInfo().getConsumes(),
+        getUnsupportedTypes(schema.getMetaInfo().getProduces(), null));
+    if (ignored != null) {
+      Log.w(TAG, "ignoring consumes and produces in controller factory:" + ignored);
+    }
+  }
+
+  private static List<String> getUnsupportedTypes(Collection<String> types,
+                                                  List<String> unsupported) {
+    if (types == null) {
+      return unsupported;
+    }
+    for (String type : types) {
+      if (!isSupportedType(type)) {
+        if (unsupported == null) {
+          unsupported = new ArrayList<String>();
+        }
+        unsupported.add(type);
+      }
+    }
+    return unsupported;
+  }
+
+  private static boolean isSupportedType(String type) {
+    String mimeType = type.toLowerCase(Locale.US);
+    for (String supported : SUPPORTED_TYPES) {
+      if (mimeType.startsWith(supported)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static byte getFormat(Class<?> clz) {
+    if (clz == String.class) {
+      return FORMAT_STRING;
+    }
+    if (clz.isArray() || Date.class.isAssignableFrom(clz) ||
+        !SimpleParamHelper.isMarshalledAsPrimitiveType(clz)) {
+      return FORMAT_GENERIC;
+    }
+    return FORMAT_VALUE_OF;
+  }
+
+  static boolean isBinaryParamClass(Class<?> clz) {
+    return clz == byte[].class || clz == Byte[].class || InputStream.class.isAssignableFrom(clz) ||
+        File.class.isAssignableFrom(clz) || Payload.class.isAssignableFrom(clz);
+  }
+
+  /**
+   * Bind the arguments of a call.
+   * @param args The arguments.
+   * @return The kind of each argument: {@link #URI}, {@link #HEADER} or
+   *         {@link #BODY}.  The array must not be modified.
+   * @throws IllegalArgumentException The number of arguments is wrong.
+   * @throws MobileRuntimeException An argument is invalid.
+   */
+  byte[] bind(Object[] args) {
+    if (args == null || args.length == 0) {
+      if (params.length > 0) {
+        throw new IllegalArgumentException("missing parameters");
+      }
+      return mKinds;
+    }
+    if (params.length != args.length) {
+      throw new IllegalArgumentException("number of parameters don't match expected number");
+    }
+    byte[] kinds = mKinds;
+    for (int idx = 0; idx < params.length; idx++) {
+      if (args[idx] == null && !params[idx].optional) {
+        throw new MobileRuntimeException(new IllegalArgumentException("required parameter is null"));
+      }
+      if (mErrors[idx] != null) {
+        throw new MobileRuntimeException(new IllegalArgumentException(mErrors[idx]));
+      }
+      if (mByteKinds[idx] != 0 && !SimpleParamHelper.isCollection(args[idx])) {
+        if (kinds == mKinds) {
+          kinds = mKinds.clone();
+        }
+        kinds[idx] = mByteKinds[idx];
+      }
+    }
+    return kinds;
+  }
+
+  /**
+   * @return true if the method has any header parameter.
+   */
+  boolean hasHeaders() {
+    return mHasHeaders;
+  }
+
+  /**
+   * Convert a URI, header or form value to a string.
+   * @param idx The parameter index.
+   * @param value The value, not null.
+   * @return The string value.
+   */
+  String format(int idx, Object value) {
+    switch (mFormats[idx]) {
+      case FORMAT_STRING:
+        if (value instanceof String) {
+          return (String) value;
+        }
+        break;
+      case FORMAT_VALUE_OF:
+        return String.valueOf(value);
+    }
+    return SimpleParamHelper.getPrimitiveParamValueAsString(value);
+  }
+}
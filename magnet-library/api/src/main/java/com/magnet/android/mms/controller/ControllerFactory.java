@@ -19,11 +19,15 @@ package com.magnet.android.mms.controller;
 import com.magnet.android.mms.MagnetMobileClient;
 import com.magnet.android.mms.connection.ConnectionConfigManager;
 import com.magnet.android.mms.connection.ConnectionConfigManager.ConnectionConfig;
+import com.magnet.android.mms.controller.RequestSchema.JMethod;
 import com.magnet.android.mms.exception.MobileRuntimeException;
 import com.magnet.android.mms.exception.SchemaException;
 
 import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Use this class to obtain instances of controller classes for making method calls to a specific Magnet backend.
@@ -34,7 +38,35 @@ public abstract class ControllerFactory<T> {
   public final Class<T> controllerClass;
   private WeakReference<MagnetMobileClient> magnetClientRef;
   /** Internal Use Only  */ 
-  protected RequestSchema schema;
+  protected volatile RequestSchema schema;
+  // the asynchronous controller instances by connection name
+  private final ConcurrentHashMap<String, Instance<T>> mInstances =
+      new ConcurrentHashMap<String, Instance<T>>();
+  private volatile MethodTable mMethodTable;
+
+  // A cached controller instance.  Its proxy holds the client, so neither is
+  // strongly referenced by the cache; a factory outliving its client does not
+  // keep the client from being garbage collected.
+  private static class Instance<T> extends WeakReference<T> {
+    final WeakReference<MagnetMobileClient> magnetClientRef;
+
+    Instance(WeakReference<MagnetMobileClient> magnetClientRef, T controller) {
+      super(controller);
+      this.magnetClientRef = magnetClientRef;
+    }
+  }
+
+  // The schema of each method of the controller interface, resolved by
+  // signature on its first call so a call is dispatched with a single map
+  // lookup.  A method of a binary schema is only decoded when first called.
+  private static class MethodTable {
+    final RequestSchema schema;
+    final Map<Method, JMethod> methods = new ConcurrentHashMap<Method, JMethod>();
+
+    MethodTable(RequestSchema schema) {
+      this.schema = schema;
+    }
+  }
 
   // subclass must implement this
   protected void initSchemaMaps() {
@@ -56,14 +88,64 @@ public abstract class ControllerFactory<T> {
   /**
    * Internal Use Only
    */
-  public synchronized RequestSchema getSchema() {
+  public RequestSchema getSchema() {
     return schema;
   }
 
+  /**
+   * Find the schema of a method of the controller interface.
+   * @param method The controller interface method.
+   * @return The method schema, or null if not found.
+   */
+  JMethod getMethodSchema(Method method) {
+    MethodTable table = mMethodTable;
+    RequestSchema current = schema;
+    if (table == null || table.schema != current) {
+      table = new MethodTable(current);
+      mMethodTable = table;
+    }
+    JMethod methodSchema = table.methods.get(method);
+    if (methodSchema == null) {
+      methodSchema = current.getMethod(method);
+      if (methodSchema != null) {
+        table.methods.put(method, methodSchema);
+      }
+    }
+    return methodSchema;
+  }
+
+  private void loadControllerClass() throws SchemaException {
+    try {
+      Class.forName(controllerClass.getName());
+    } catch (ClassNotFoundException e) {
+      throw new SchemaException("controller class not found in class path", e);
+    }
+  }
+
+  // A cached instance is only reused with the client it was created for.
+  private T getCachedInstance(String connName) {
+    Instance<T> instance = mInstances.get(connName);
+    if (instance == null) {
+      return null;
+    }
+    T controller = instance.get();
+    if (controller == null || instance.magnetClientRef.get() != magnetClientRef.get()) {
+      mInstances.remove(connName, instance);
+      return null;
+    }
+    return controller;
+  }
+
+  private T cacheInstance(String connName, T controller) {
+    mInstances.put(connName, new Instance<T>(magnetClientRef, controller));
+    return controller;
+  }
+
   /**
    * Construct a new proxy controller instance for making controller method calls in asynchronous mode.
+   * The instance is reused by later calls for the same connection.
    * @param connName Name of the connection defining the endpoint.
-   * @return A new proxy instance of the Controller class implementing the controller interface. See {@link #getControllerClass()} for more information.
+   * @return A proxy instance of the Controller class implementing the controller interface. See {@link #getControllerClass()} for more information.
    * @throws SchemaException if the Controller class fails to load. Possible reasons include missing dependent classes in the classpath.
    */
   @SuppressWarnings("unchecked")
@@ -78,16 +160,14 @@ public abstract class ControllerFactory<T> {
     if (cm.getConnectionConfig(connName) == null) {
       throw new IllegalArgumentException("Controller instantiation fails with non-existing connection named:" + connName);
     }
-    try {
-      Class.forName(controllerClass.getName());
-    } catch (ClassNotFoundException e) {
-      throw new SchemaException("controller class not found in class path", e);
+    T instance = getCachedInstance(connName);
+    if (instance != null) {
+      return instance;
     }
+    loadControllerClass();
     ControllerProxy proxy;
     proxy = new ControllerProxy(this, magnetClientRef.get(), false, connName);
-    return ((T) Proxy.newProxyInstance(
-        magnetClientRef.get().getAppContext().getClassLoader(),
-        new Class[]{getControllerClass()}, proxy));
+    return cacheInstance(connName, newInstance(proxy));
   }
 
     @SuppressWarnings("unchecked")
@@ -99,16 +179,14 @@ public abstract class ControllerFactory<T> {
         ConnectionConfigManager cm = magnetClientRef.get().getConnectionConfigManager();
             ConnectionConfig connConfig = cm.getDefaultGenericRestConfig();
 
-        try {
-            Class.forName(controllerClass.getName());
-        } catch (ClassNotFoundException e) {
-            throw new SchemaException("controller class not found in class path", e);
+        T instance = getCachedInstance(connConfig.getName());
+        if (instance != null) {
+            return instance;
         }
+        loadControllerClass();
         ControllerProxy proxy;
         proxy = new ControllerProxy(this, magnetClientRef.get(), false, connConfig.getName());
-        return ((T) Proxy.newProxyInstance(
-                magnetClientRef.get().getAppContext().getClassLoader(),
-                new Class[]{getControllerClass()}, proxy));
+        return cacheInstance(connConfig.getName(), newInstance(proxy));
     }
 
     /**
@@ -125,18 +203,35 @@ public abstract class ControllerFactory<T> {
     if (magnetClientRef.get() == null) {
       throw new  IllegalStateException("Controller instantiation fails with null MagnetMobileClient.");
     }
-    try {
-      Class.forName(controllerClass.getName());
-    } catch (ClassNotFoundException e) {
-      throw new SchemaException("controller class not found in class path", e);
-    }
+    loadControllerClass();
     // a separate instance is needed per connection
     ControllerProxy proxy;
     proxy = new ControllerProxy(this, magnetClientRef.get(), true, conn);
+    return newInstance(proxy);
+  }
+  /**
+   * Internal Use Only: Create the generated implementation of the controller
+   * interface, typically a subclass of {@link ControllerStub}.  A generated
+   * factory overrides this method to avoid the reflection of a dynamic proxy
+   * on every call; the default returns null.
+   * @param proxy The connection of the controller instance.
+   * @return The controller instance, or null to use a dynamic proxy.
+   */
+  protected T newStub(ControllerProxy proxy) {
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private T newInstance(ControllerProxy proxy) {
+    T stub = newStub(proxy);
+    if (stub != null) {
+      return stub;
+    }
     return ((T) Proxy.newProxyInstance(
         magnetClientRef.get().getAppContext().getClassLoader(),
         new Class[]{getControllerClass()}, proxy));
   }
+
   /**
    * Retrieve the controller Java interface associated with this factory instance.
    * @return The controller Java interface associated with this factory instance.
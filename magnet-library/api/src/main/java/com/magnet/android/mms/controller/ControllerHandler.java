@@ -17,8 +17,6 @@
 package com.magnet.android.mms.controller;
 
 import com.magnet.android.core.GenericRestConstants;
-import com.magnet.android.core.MagnetRestRequestType;
-import com.magnet.android.core.MagnetRestRequestType.ParamStyle;
 import com.magnet.android.mms.MagnetMobileClient;
 import com.magnet.android.mms.async.AsyncCallOptions;
 import com.magnet.android.mms.async.AsyncManager;
@@ -32,14 +30,12 @@ import com.magnet.android.mms.connection.ConnectionService.Request;
 import com.magnet.android.mms.connection.ConnectionService.Response;
 import com.magnet.android.mms.connection.ConnectionService.Response.Status;
 import com.magnet.android.mms.controller.RequestSchema.JMethod;
-import com.magnet.android.mms.controller.RequestSchema.JParam;
 import com.magnet.android.mms.exception.HttpCallException;
-import com.magnet.android.mms.exception.MobileException;
 import com.magnet.android.mms.exception.MobileRuntimeException;
-import com.magnet.android.mms.exception.SchemaException;
-import com.magnet.android.mms.request.RequestBodyFactory;
-import com.magnet.android.mms.request.RequestBodyMarshaller;
-import com.magnet.android.mms.request.marshall.SimpleParamHelper;
+import com.magnet.android.mms.request.ByteArrayHelper;
+import com.magnet.android.mms.settings.MagnetDefaultSettings;
+import com.magnet.android.mms.utils.BufferPool;
+import com.magnet.android.mms.utils.TempFileReaper;
 import com.magnet.android.mms.utils.Util;
 import com.magnet.android.mms.utils.logger.Log;
 
@@ -50,15 +46,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.util.Collection;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @hide
@@ -66,18 +54,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class ControllerHandler {
 
   private static final String LOG_TAG = ControllerHandler.class.getSimpleName();
-  private String contentType;
-  private String acceptType;
-  private String encodingType = GenericRestConstants.MIME_ENCODING_NONE;
-  private File requestFile;
-
-  private long contentLength;
-  private AtomicBoolean paramMapInited = new AtomicBoolean(false);
-
-  private Map<JParam, Object> uriParamMap = new LinkedHashMap<JParam, Object>();
-  private Map<JParam, Object> bodyParamMap = new LinkedHashMap<JParam, Object>();
-  private Map<JParam, Object> headerParamMap = new LinkedHashMap<JParam, Object>();
 
+  // The request of the methods used to verify the request building.
+  private RequestBuilder builder;
 
   /**
    * Default handler using generic REST endpoint
@@ -87,46 +66,47 @@ public class ControllerHandler {
   }
 
   public void reset() {
-    resetToDefaults();
+    builder = null;
   }
 
-  private void resetToDefaults() {
-    contentType = GenericRestConstants.CONTENT_TYPE_JSON;
-    acceptType = GenericRestConstants.ACCEPT_ALL;
-    encodingType = GenericRestConstants.MIME_ENCODING_NONE;
-
-    paramMapInited.set(false);
-    uriParamMap.clear();
-    bodyParamMap.clear();
-    headerParamMap.clear();
-
+  private RequestBuilder getBuilder(JMethod schema, Object[] args) {
+    if (builder == null || builder.schema != schema || builder.args != args) {
+      builder = new RequestBuilder(schema, args);
+    }
+    return builder;
   }
 
-  synchronized public <T> Call<T> makeCall(MagnetMobileClient magnetClient, String connName, JMethod schema,
-                                           Object[] realArgs, Object callArg) {
-    // reset all the internal fields
+  /**
+   * Make an asynchronous call.  The request is built on the calling thread
+   * without any lock, so many calls can be made concurrently.
+   */
+  public static <T> Call<T> makeCall(MagnetMobileClient magnetClient, String connName, JMethod schema,
+                                     Object[] realArgs, Object callArg) {
     AsyncManager async = AsyncManager.getInstance(magnetClient.getAppContext());
     if (async == null) {
       // this mean local bind is not finished yet but we can't wait on main thread?
       throw new MobileRuntimeException("local async service not available. try again later");
     }
 
-    resetToDefaults();
-    initParamMaps(schema, realArgs);
+    RequestBuilder builder = new RequestBuilder(schema, realArgs);
+    builder.bind();
+    builder.setRequestBufferThreshold(MagnetDefaultSettings.getInstance(
+        magnetClient.getAppContext()).getHttpRequestBufferThreshold());
 
-    String uriStr = buildUri(schema, realArgs);
+    String uriStr = builder.buildUri();
 
-    Payload payload = buildRequestPayload(schema, realArgs);
+    Payload payload = builder.buildRequestPayload();
     Envelope envelop;
     LinkedHashMap<String, String> headers;
-    if (headerParamMap.size() > 0) {
-      headers = buildHeaderParams(schema, realArgs);
+    if (builder.hasHeaders()) {
+      headers = builder.buildHeaderParams();
     } else {
       headers = new LinkedHashMap<String, String>();
     }
-    headers.put(GenericRestConstants.Header.ACCEPT, acceptType);
-    envelop = new Envelope(connName, schema.metaInfo.restMethod, encodingType, headers);
+    headers.put(GenericRestConstants.Header.ACCEPT, builder.getAcceptType());
+    envelop = new Envelope(connName, schema.metaInfo.restMethod, builder.getEncodingType(), headers);
 
+    String contentType = builder.getContentType();
     Object result;
     if (callArg != null && callArg instanceof StateChangedListener) {
       AsyncCallOptions callOptions = new AsyncCallOptions();
@@ -139,30 +119,47 @@ public class ControllerHandler {
     return (Call<T>) result;
   }
 
-  synchronized public <T> Call<T> makeSyncCall(MagnetMobileClient magnetClient, ConnectionService conn,
-                                               JMethod schema, Object[] realArgs, Object callArg) {
+  /**
+   * Make a synchronous call on the calling thread.  The request is built
+   * without any lock, so many calls can be made concurrently.
+   */
+  public static <T> Call<T> makeSyncCall(MagnetMobileClient magnetClient, ConnectionService conn,
+                                         JMethod schema, Object[] realArgs, Object callArg) {
     SyncCall<T> callResult = new SyncCall<T>(magnetClient.getAppContext());
+    RequestBuilder builder = null;
     try {
 
-      resetToDefaults();
-      initParamMaps(schema, realArgs);
+      builder = new RequestBuilder(schema, realArgs);
+      builder.bind();
+      builder.setRequestBufferThreshold(MagnetDefaultSettings.getInstance(
+          magnetClient.getAppContext()).getHttpRequestBufferThreshold());
 
       Request request = conn.createRequest();
       request.setMethod(schema.metaInfo.restMethod);
 
-      request.setPath(buildUri(schema, realArgs));
-      Payload payload = buildRequestPayload(schema, realArgs);
-      if (payload != null) {
-        request.setPayload(payload.getAsRawInputStream());
+      request.setPath(builder.buildUri());
+      if (builder.prepareStreamingBody()) {
+        // marshall the body straight into the connection
+        final RequestBuilder body = builder;
+        request.setPayload(new Request.PayloadWriter() {
+          @Override
+          public void writeTo(OutputStream os) throws IOException {
+            body.buildRequestBody(os);
+          }
+        }, -1);
+      } else {
+        Payload payload = builder.buildRequestPayload();
+        if (payload != null) {
+          request.setPayload(payload.getAsRawInputStream(), builder.getContentLength());
+        }
       }
-      request.setContentType(contentType);
-      request.setContentTransferEncoding(encodingType);
-      request.setHeader("Content-Length", String.valueOf(contentLength));
-      if (headerParamMap.size() > 0) {
-        LinkedHashMap<String, String> headers = buildHeaderParams(schema, realArgs);
+      request.setContentType(builder.getContentType());
+      request.setContentTransferEncoding(builder.getEncodingType());
+      if (builder.hasHeaders()) {
+        LinkedHashMap<String, String> headers = builder.buildHeaderParams();
         request.addHeaders(headers);
       }
-      request.setHeader(GenericRestConstants.Header.ACCEPT, acceptType);
+      request.setHeader(GenericRestConstants.Header.ACCEPT, builder.getAcceptType());
       // make the call directly for sync calls
       Response response = request.execute();
       // read the response back to a string
@@ -187,26 +184,19 @@ public class ControllerHandler {
       callResult.setError(e);
     } finally {
       // clear out request object
-      if (requestFile != null) {
-        requestFile.delete();
+      if (builder != null && builder.getRequestFile() != null) {
+        TempFileReaper.getInstance().release(builder.getRequestFile());
       }
     }
     return callResult;
 
   }
 
-  private byte[] getReponseBuffer(Response response) throws IOException {
+  private static byte[] getReponseBuffer(Response response) throws IOException {
     InputStream is = null;
     try {
       is = response.getPayload();
-      byte[] buffer = new byte[1024];
-      ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
-      int count = 0;
-      while ((count = is.read(buffer)) >= 0) {
-        byteArray.write(buffer, 0, count);
-      }
-      byteArray.close();
-      return byteArray.toByteArray();
+      return ByteArrayHelper.toByteArray(is);
     } finally {
       response.release();
       if (is != null) {
@@ -215,140 +205,16 @@ public class ControllerHandler {
     }
   }
 
-  private String buildFormRequestBody(Map<JParam, Object> formParams) {
-    StringBuilder queryBuilder = new StringBuilder();
-    if (formParams.isEmpty()) {
-      return queryBuilder.toString();
-    } else {
-      contentType = GenericRestConstants.CONTENT_TYPE_FORM_URLENCODED;
-    }
-    Iterator<Entry<JParam, Object>> iterator = formParams.entrySet().iterator();
-    while (iterator.hasNext()) {
-      Map.Entry<JParam, Object> entry = iterator.next();
-      Object paramValue = entry.getValue();
-      JParam cp = entry.getKey();
-      if (paramValue != null) {
-        String value = SimpleParamHelper.getPrimitiveParamValueAsString(paramValue);
-        if (queryBuilder.length() > 1) {
-          queryBuilder.append('&');
-        }
-        queryBuilder.append(cp.name)
-            .append("=").append(value);
-      }
-    }
-    contentLength = queryBuilder.length();
-    return queryBuilder.toString();
-  }
-
   public String buildUri(JMethod schema, Object[] args) {
-    // validate schema support
-    if (RequestSchema.isMultiPart(schema.getMetaInfo().getProduces())) {
-      throw new MobileRuntimeException("Backend produces multipart/related content type. Not supported!");
-    }
-    if (RequestSchema.isMultiPart(schema.getMetaInfo().getConsumes())) {
-      throw new MobileRuntimeException("Backend consumes multipart/related content type. Not supported!");
-    }
-    if (paramMapInited.get() == false) {
-      initParamMaps(schema, args);
-    }
-
-    // build up URL baseURL + apiPath for generic REST endpoint
-    StringBuilder uriBuilder = new StringBuilder();
-    if (schema.getMetaInfo().getBaseUrl() != null && schema.getMetaInfo().getBaseUrl().length() > 0) {
-      uriBuilder.append(schema.getMetaInfo().getBaseUrl());
-    }
-    String restApiPath = schema.getMetaInfo().restApiPath;
-    if (restApiPath != null && restApiPath.length() > 0) {
-      if (!restApiPath.startsWith("/")) {
-        uriBuilder.append("/");
-      }
-      uriBuilder.append(restApiPath);
-    }
-
-    if (args != null && args.length > 0) {
-      addTemplateParams(uriBuilder, schema, args);
-    }
-    if (args != null && args.length > 0) {
-      addMatrixParams(uriBuilder, schema, args);
-    }
-    if (args != null && args.length > 0) {
-      addQueryParams(uriBuilder, schema, args);
-    }
-    String result = uriBuilder.toString().trim();
-    if (Log.isLoggable(Log.DEBUG)) {
-      Log.d(LOG_TAG, "URI for request: method name=" + schema.getMetaInfo().getMethodName() + ";URL=" + result);
-    }
-    return result;
+    return getBuilder(schema, args).buildUri();
   }
 
   public LinkedHashMap<String, String> buildHeaderParams(JMethod schema, Object[] args) {
-    if (paramMapInited.get() == false) {
-      initParamMaps(schema, args);
-    }
-    LinkedHashMap<String, String> result = new LinkedHashMap<String, String>();
-    for (JParam param : headerParamMap.keySet()) {
-      Object value = headerParamMap.get(param);
-      if (value == null) {
-        continue;
-      }
-      String strValue = SimpleParamHelper.getPrimitiveParamValueAsString(value);
-      result.put(param.name, strValue);
-    }
-    return result;
+    return getBuilder(schema, args).buildHeaderParams();
   }
 
   public Payload buildRequestPayload(JMethod schema, Object[] args) {
-    if (paramMapInited.get() == false) {
-      resetToDefaults();
-      initParamMaps(schema, args);
-    }
-    OutputStream os = null;
-    requestFile = null;
-    try {
-      requestFile = File.createTempFile("reqbody", ".req");
-      requestFile.deleteOnExit();
-      os = new FileOutputStream(requestFile);
-    } catch (IOException e1) {
-      // default back to in memory array
-      os = new ByteArrayOutputStream();
-    }
-    buildRequestBody(schema, args, os);
-    if (os != null) {
-      try {
-        os.close();
-      } catch (IOException e) {
-        Log.w(LOG_TAG, "ignoring unexpected exception closing output stream for request", e);
-      }
-    }
-
-    Payload payload = null;
-    contentLength = 0;
-    if (requestFile != null) {
-      contentLength = requestFile.length();
-      if (contentLength > 0) {
-        payload = new Payload(requestFile.getAbsolutePath());
-        if (Log.isLoggable(Log.DEBUG)) {
-          Log.d(LOG_TAG, "using file for payload:" + requestFile.getAbsolutePath());
-        }
-      }
-    } else {
-      if (os instanceof ByteArrayOutputStream) {
-        ByteArrayOutputStream bos = (ByteArrayOutputStream) os;
-        contentLength = bos.size();
-        if (contentLength > 0) {
-          payload = new Payload(bos.toByteArray());
-          if (Log.isLoggable(Log.VERBOSE)) {
-            Log.v(LOG_TAG, "using byte buffer for payload:" + bos);
-          }
-        }
-      }
-    }
-    if (contentLength == 0) {
-      if (Log.isLoggable(Log.VERBOSE)) {
-        Log.v(LOG_TAG, "content length = 0; no payload");
-      }
-    }
-    return payload;
+    return getBuilder(schema, args).buildRequestPayload();
   }
 
   public String buildRequestBodyString(JMethod schema, Object[] args) {
@@ -373,269 +239,30 @@ public class ControllerHandler {
   }
 
   public void buildRequestBody(JMethod schema, Object[] args, OutputStream bodyOs) {
-    // set correct content type
-    try {
-      if (!initContentTypes(schema)) {
-        throw new SchemaException("only application/json is supported for consumes or produces");
-      }
-
-      // no body supported for GET and DELETE - all parameters are treated as query parameters and built from
-      // buildUri
-      if (ConnectionService.Request.Method.DELETE == schema.metaInfo.restMethod ||
-          ConnectionService.Request.Method.GET == schema.metaInfo.restMethod) {
-        contentType = null;
-        return;
-      }
-
-      int totalParams = schema.params.size();
-      if (args == null || args.length == 0 || totalParams == 0) {
-        return;
-      }
-
-      // get form parameters
-      final Map<JParam, Object> formParams = findParamMapByStyle(bodyParamMap, ParamStyle.FORM);
-
-      if (!formParams.isEmpty()) {
-        String formBody = buildFormRequestBody(formParams);
-        bodyOs.write(formBody.getBytes());
-        return;
-      }
-
-      final Map<JParam, Object> bodyParams = findParamMapByStyle(bodyParamMap, ParamStyle.PLAIN);
-
-      if (bodyParams.size() == 0) {
-        return;
-      }
-
-      Set<Map.Entry<JParam, Object>> entries = bodyParams.entrySet();
-      // create the body from the parameters
-
-      RequestBodyMarshaller marshaller = new RequestBodyFactory().createInstance();
-      contentType = marshaller.serializeRequest(schema,
-          bodyParams.keySet().toArray(new JParam[entries.size()]),
-          bodyParams.values().toArray(), bodyOs);
-
-    } catch (MobileException e) {
-      throw new MobileRuntimeException(e);
-    } catch (IOException e) {
-      throw new MobileRuntimeException(e);
-    }
-  }
-
-  private void addQueryParams(StringBuilder uriBuilder, JMethod schema, Object[] params) {
-//    Map<JParam, Object> queryParams = getSpecialParams(schema, params, MagnetRestRequestType.ParamStyle.QUERY);
-    Map<JParam, Object> queryParams = findParamMapByStyle(uriParamMap, MagnetRestRequestType.ParamStyle.QUERY);
-    if (queryParams.size() > 0) {
-      appendQueryParamsToUrl(uriBuilder, queryParams, "?", "&");
-    }
-    if (schema.metaInfo.restMethod.equals(ConnectionService.Request.Method.GET) ||
-        schema.metaInfo.restMethod.equals(ConnectionService.Request.Method.DELETE)) {
-      queryParams = findParamMapByStyle(uriParamMap, MagnetRestRequestType.ParamStyle.PLAIN);
-      if (queryParams.size() > 0) {
-        appendQueryParamsToUrl(uriBuilder, queryParams, "?", "&");
-      }
-      queryParams = findParamMapByStyle(uriParamMap, MagnetRestRequestType.ParamStyle.FORM);
-      if (queryParams.size() > 0) {
-        appendQueryParamsToUrl(uriBuilder, queryParams, "?", "&");
-      }
-    }
-  }
-
-  private void addMatrixParams(StringBuilder uriBuilder, JMethod schema, Object[] params) {
-    Map<JParam, Object> queryParams = findParamMapByStyle(uriParamMap, MagnetRestRequestType.ParamStyle.MATRIX);
-    if (queryParams.size() > 0) {
-      appendQueryParamsToUrl(uriBuilder, queryParams, ";", ";");
-    }
-  }
-
-  private void appendQueryParamsToUrl(StringBuilder uriBuilder, Map<JParam, Object> queryParams, String start, String delim) {
-    StringBuilder queryBuilder;
-    if (uriBuilder.toString().endsWith(start)) {
-      queryBuilder = new StringBuilder();
-    } else {
-      queryBuilder = new StringBuilder(start);
-    }
-    Iterator<Entry<JParam, Object>> iterator = queryParams.entrySet().iterator();
-    while (iterator.hasNext()) {
-      Map.Entry<JParam, Object> entry = iterator.next();
-      Object paramValue = entry.getValue();
-      JParam cp = entry.getKey();
-      if (paramValue != null) {
-        String value = SimpleParamHelper.getPrimitiveParamValueAsString(paramValue);
-        if (queryBuilder.length() > 1) {
-          queryBuilder.append(delim);
-        }
-        try {
-          queryBuilder.append(cp.name)
-              .append("=").append(URLEncoder.encode(value, "UTF-8"));
-        } catch (UnsupportedEncodingException e) {
-          throw new MobileRuntimeException(e);
-        }
-      }
-    }
-    if (queryBuilder.length() > 1) {
-      uriBuilder.append(queryBuilder);
-    }
-  }
-
-  /**
-   * Iterate the parameters looking for template parameters
-   * and add them to the uri.
-   */
-  private void addTemplateParams(StringBuilder uriBuilder, JMethod schema, Object[] params) {
-    Map<JParam, Object> templateParams = findParamMapByStyle(uriParamMap, ParamStyle.TEMPLATE);
-
-    if (templateParams.size() > 0) {
-      replaceTemplateParamsInUrl(uriBuilder, templateParams);
-    }
-    // clear out any {} parameters that is handled as another parameter style 
-    ParamStyle[] paramStyles = ParamStyle.values();
-    for (ParamStyle paramStyle : paramStyles) {
-      if (paramStyle.compareTo(ParamStyle.TEMPLATE) == 0) {
-        continue;
-      }
-      Map<JParam, Object> styleParams = findParamMapByStyle(uriParamMap, paramStyle);
-
-      if (styleParams.size() > 0) {
-        clearTemplateParamsInUrl(uriBuilder, styleParams);
-      }
-    }
+    getBuilder(schema, args).buildRequestBody(bodyOs);
   }
 
   protected void initParamMaps(JMethod schema, Object[] params) {
-    if (params == null || params.length == 0) {
-      if (schema.params.size() > 0) {
-        throw new IllegalArgumentException("missing parameters");
-      } else {
-        paramMapInited.set(true);
-        return;
-      }
-    }
-    if (schema.params.size() != params.length) {
-      throw new IllegalArgumentException("number of parameters don't match expected number");
-    }
-    try {
-      for (int idx = 0; idx < schema.params.size(); idx++) {
-        final JParam paramDef = schema.params.get(idx);
-        final Class<?> actualClz = paramDef.getActualTypeAsClass();
-
-        if (params[idx] == null && !paramDef.optional) {
-          throw new IllegalArgumentException("required parameter is null");
-        }
-        // byte array is always in the body
-        if (actualClz == byte[].class || actualClz == Byte[].class ||
-            (actualClz == Byte.class && SimpleParamHelper.isCollection(params[idx]))) {
-          bodyParamMap.put(paramDef, params[idx]);
-          continue;
-        }
-        if (paramDef.style == ParamStyle.HEADER) {
-          // only primitive types allowed for HeaderParam
-          if (!SimpleParamHelper.isMarshalledAsPrimitiveType(actualClz) ||
-              SimpleParamHelper.isCollectionClass(actualClz)) {
-            throw new IllegalArgumentException("header parameter must be primitve type");
-          }
-          headerParamMap.put(paramDef, params[idx]);
-          continue;
-        }
-
-        if (ConnectionService.Request.Method.GET == schema.metaInfo.restMethod ||
-            ConnectionService.Request.Method.DELETE == schema.metaInfo.restMethod) {
-          if (!SimpleParamHelper.isMarshalledAsPrimitiveType(actualClz) ||
-              SimpleParamHelper.isCollectionClass(actualClz)) {
-            throw new IllegalArgumentException("all parameters must be primitve type for GET and DELETE");
-          }
-          uriParamMap.put(paramDef, params[idx]);
-          continue;
-        }
-        if (paramDef.style == ParamStyle.QUERY ||
-            paramDef.style == ParamStyle.TEMPLATE ||
-            paramDef.style == ParamStyle.MATRIX) {
-          if (!SimpleParamHelper.isMarshalledAsPrimitiveType(actualClz) ||
-              SimpleParamHelper.isCollectionClass(actualClz)) {
-            throw new IllegalArgumentException("parameter must be primitve type for style:" + paramDef.style.name());
-          }
-
-          uriParamMap.put(paramDef, params[idx]);
-          continue;
-        }
-        // default is to put it in body
-        // PLAIN, FORM
-        bodyParamMap.put(paramDef, params[idx]);
-      }
-      paramMapInited.set(true);
-    } catch (Exception e) {
-      // clear the map to ensure map is not half initialized due to exception
-      paramMapInited.set(false);
-      uriParamMap.clear();
-      bodyParamMap.clear();
-      headerParamMap.clear();
-      throw new MobileRuntimeException(e);
-    }
+    builder = null;
+    RequestBuilder bound = new RequestBuilder(schema, params);
+    bound.bind();
+    builder = bound;
   }
 
-  private boolean initContentTypes(JMethod schema) {
-    // only support JSON, not what is specified in cosumes or produces
-    Collection<String> consumes = schema.getMetaInfo().getConsumes();
-    Collection<String> produces = schema.getMetaInfo().getProduces();
-
-    if (consumes != null || produces != null) {
-      Log.w(LOG_TAG, "ignoring consumes and produces in controller factory:p" + produces+ ";c:"+consumes);
-    }
-    return true;
-  }
-
-  private Map<JParam, Object> findParamMapByStyle(Map<JParam, Object> map, ParamStyle style) {
-    Map<JParam, Object> resultParams = new LinkedHashMap<JParam, Object>();
-
-    Set<JParam> paramDefs = map.keySet();
-    for (JParam paramDef : paramDefs) {
-      if (style.equals(paramDef.style)) {
-        resultParams.put(paramDef, map.get(paramDef));
-      }
-    }
-    return resultParams;
-  }
-
-  private void replaceTemplateParamsInUrl(StringBuilder uriBuilder, Map<JParam, Object> templateParams) {
-    String uriStr = uriBuilder.toString();
-    Iterator<Entry<JParam, Object>> iterator = templateParams.entrySet().iterator();
-    while (iterator.hasNext()) {
-      Map.Entry<JParam, Object> entry = iterator.next();
-      String replacement = SimpleParamHelper.getPrimitiveParamValueAsString(entry.getValue());
-      try {
-        replacement = URLEncoder.encode(replacement, "UTF-8");
-      } catch (UnsupportedEncodingException e) {
-        throw new MobileRuntimeException(e);
-      }
-      uriStr = uriStr.replaceAll("\\{" + entry.getKey().name + "\\}", replacement);
-    }
-    uriBuilder.delete(0, uriBuilder.length());
-    uriBuilder.append(uriStr);
-  }
-
-  private void clearTemplateParamsInUrl(StringBuilder uriBuilder, Map<JParam, Object> params) {
-    String uriStr = uriBuilder.toString();
-    Iterator<Entry<JParam, Object>> iterator = params.entrySet().iterator();
-    while (iterator.hasNext()) {
-      Map.Entry<JParam, Object> entry = iterator.next();
-      uriStr = uriStr.replaceAll("\\{" + entry.getKey().name + "\\}", "");
-    }
-    uriBuilder.delete(0, uriBuilder.length());
-    uriBuilder.append(uriStr);
-  }
-
-  private File saveToFile(InputStream input, String ext) {
+  private static File saveToFile(InputStream input, String ext) {
     try {
       File file = File.createTempFile("fdata", ext);
       FileOutputStream fos = new FileOutputStream(file);
       InputStream dis = input;
 
-      byte[] buf = new byte[1024];
-      int count = 0;
-      long size = 0;
-      while ((count = dis.read(buf)) != -1) {
-        fos.write(buf, 0, count);
-        size = size + count;
+      byte[] buf = BufferPool.acquire();
+      try {
+        int count = 0;
+        while ((count = dis.read(buf)) != -1) {
+          fos.write(buf, 0, count);
+        }
+      } finally {
+        BufferPool.release(buf);
       }
       fos.close();
       dis.close();
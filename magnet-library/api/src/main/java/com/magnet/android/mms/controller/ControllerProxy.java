@@ -18,6 +18,7 @@
 package com.magnet.android.mms.controller;
 
 import com.magnet.android.mms.MagnetMobileClient;
+import com.magnet.android.mms.async.Call;
 import com.magnet.android.mms.connection.ConnectionConfigManager.ConnectionConfig;
 import com.magnet.android.mms.controller.RequestSchema.JMethod;
 import com.magnet.android.mms.exception.MobileRuntimeException;
@@ -64,16 +65,30 @@ public class ControllerProxy implements InvocationHandler {
     }
     Object callArg = args[args.length-1];
 
-    // create request for sending over the wire
-    ControllerHandler handler = new ControllerHandler();
-    JMethod methodSchema = cf.getSchema().getMethod(method.getName(), realParams);
+    JMethod methodSchema = cf.getMethodSchema(method);
+    if (methodSchema == null) {
+      // not resolved by signature, e.g. a renamed method; match the arguments
+      methodSchema = cf.getSchema().getMethod(method.getName(), realParams);
+    }
     if (methodSchema == null) {
       throw new MobileRuntimeException(new SchemaException("Method not found:" + method.getName()) + "; may be caused by inconsistent generated controller sources");
     }
+    return call(methodSchema, realParams, callArg);
+  }
+
+  /**
+   * Internal Use Only: Make a controller method call on the connection of
+   * this controller instance.  The request is built on the calling thread.
+   * @param methodSchema The schema of the method.
+   * @param args The method arguments without the call option, or null.
+   * @param callArg The call option, e.g. a {@link com.magnet.android.mms.async.StateChangedListener}.
+   * @return The call.
+   */
+  public <V> Call<V> call(JMethod methodSchema, Object[] args, Object callArg) {
     if (sync) {
-      return handler.makeSyncCall(magnetClient, conn.getConnectionService(),  methodSchema, realParams, callArg);
+      return ControllerHandler.makeSyncCall(magnetClient, conn.getConnectionService(), methodSchema, args, callArg);
     } else {
-      return handler.makeCall(magnetClient, connName, methodSchema, realParams, callArg);
+      return ControllerHandler.makeCall(magnetClient, connName, methodSchema, args, callArg);
     }
   }
 }
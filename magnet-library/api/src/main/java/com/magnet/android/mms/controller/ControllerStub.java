@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.controller;
+
+import com.magnet.android.mms.async.Call;
+import com.magnet.android.mms.controller.RequestSchema.JMethod;
+import com.magnet.android.mms.exception.MobileRuntimeException;
+import com.magnet.android.mms.exception.SchemaException;
+
+/**
+ * Internal Use Only: The base class of a generated controller implementation.
+ * A stub implements the controller interface directly and holds a
+ * {@link MethodRef} per method, which resolves the method schema on its first
+ * call, so a schema loaded lazily is only decoded for the methods used.  Each
+ * method passes its arguments to {@link #invoke(MethodRef, Object[], Object)},
+ * so a call has no reflection, no copy of the arguments and no lookup of the
+ * method by name.  The factory returns the stub from
+ * {@link ControllerFactory#newStub(ControllerProxy)}.
+ */
+public abstract class ControllerStub {
+  private final ControllerProxy mProxy;
+
+  /**
+   * A method schema resolved on the first call.
+   */
+  protected static final class MethodRef {
+    private final RequestSchema mSchema;
+    private final String mName;
+    private final Class<?>[] mParamTypes;
+    private volatile JMethod mMethod;
+
+    private MethodRef(RequestSchema schema, String name, Class<?>[] paramTypes) {
+      mSchema = schema;
+      mName = name;
+      mParamTypes = paramTypes;
+    }
+
+    /**
+     * @return The method schema.
+     * @throws MobileRuntimeException The method is not in the schema.
+     */
+    public JMethod get() {
+      JMethod method = mMethod;
+      if (method == null) {
+        // resolving twice by racing threads yields the same schema
+        method = getMethod(mSchema, mName, mParamTypes);
+        mMethod = method;
+      }
+      return method;
+    }
+  }
+
+  /**
+   * @param proxy The connection of the controller instance.
+   */
+  protected ControllerStub(ControllerProxy proxy) {
+    mProxy = proxy;
+  }
+
+  /**
+   * Refer to the schema of a method to be resolved on its first call.
+   * @param schema The controller schema.
+   * @param methodName The name of the method in the schema.
+   * @param paramTypes The parameter types without the call option; only
+   *          needed to tell overloaded methods apart.
+   * @return The method reference.
+   */
+  protected static MethodRef method(RequestSchema schema, String methodName,
+                                    Class<?>... paramTypes) {
+    return new MethodRef(schema, methodName, paramTypes);
+  }
+
+  /**
+   * Look up the schema of a method.
+   * @param schema The controller schema.
+   * @param methodName The name of the method in the schema.
+   * @param paramTypes The parameter types without the call option; only
+   *          needed to tell overloaded methods apart.
+   * @return The method schema.
+   * @throws MobileRuntimeException The method is not in the schema.
+   */
+  protected static JMethod getMethod(RequestSchema schema, String methodName,
+                                     Class<?>... paramTypes) {
+    JMethod method = schema.getMethodBySignature(methodName, paramTypes);
+    if (method == null) {
+      throw new MobileRuntimeException(new SchemaException("Method not found:" + methodName) + "; may be caused by inconsistent generated controller sources");
+    }
+    return method;
+  }
+
+  /**
+   * Make a call.
+   * @param method The method schema.
+   * @param args The method arguments without the call option, or null if none.
+   * @param callArg The call option.
+   * @return The call.
+   */
+  protected final <V> Call<V> invoke(JMethod method, Object[] args, Object callArg) {
+    return mProxy.call(method, args, callArg);
+  }
+
+  /**
+   * Make a call, resolving the method schema if it is the first call.
+   * @param method The method reference.
+   * @param args The method arguments without the call option, or null if none.
+   * @param callArg The call option.
+   * @return The call.
+   */
+  protected final <V> Call<V> invoke(MethodRef method, Object[] args, Object callArg) {
+    return mProxy.call(method.get(), args, callArg);
+  }
+}
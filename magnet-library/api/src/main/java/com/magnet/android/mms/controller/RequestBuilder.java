@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.controller;
+
+import com.magnet.android.core.GenericRestConstants;
+import com.magnet.android.core.MagnetRestRequestType.ParamStyle;
+import com.magnet.android.mms.async.AsyncService.Payload;
+import com.magnet.android.mms.connection.ConnectionService;
+import com.magnet.android.mms.controller.RequestSchema.JMethod;
+import com.magnet.android.mms.controller.RequestSchema.JParam;
+import com.magnet.android.mms.exception.MobileException;
+import com.magnet.android.mms.exception.MobileRuntimeException;
+import com.magnet.android.mms.request.MultipartWriter;
+import com.magnet.android.mms.request.RequestBodyFactory;
+import com.magnet.android.mms.request.RequestBodyMarshaller;
+import com.magnet.android.mms.request.marshall.SimpleParamHelper;
+import com.magnet.android.mms.utils.FileUtil;
+import com.magnet.android.mms.utils.SpillableOutputStream;
+import com.magnet.android.mms.utils.TempFileReaper;
+import com.magnet.android.mms.utils.logger.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The request of one controller method call.  A builder is created for each
+ * call and only used by the calling thread, so requests are built concurrently
+ * without any lock; the shared state, the compiled URI template and the
+ * binding plan of the method, is immutable.
+ */
+class RequestBuilder {
+  private static final String LOG_TAG = RequestBuilder.class.getSimpleName();
+  private static final String MULTIPART_ROOT_ID = "root";
+
+  final JMethod schema;
+  final Object[] args;
+  private final BindingPlan plan;
+  private byte[] kinds;       // where each argument goes; null if not bound
+
+  private String contentType = GenericRestConstants.CONTENT_TYPE_JSON;
+  private String acceptType = GenericRestConstants.ACCEPT_ALL;
+  private String encodingType = GenericRestConstants.MIME_ENCODING_NONE;
+  private String multipartBoundary;
+  private File requestFile;
+  private long contentLength;
+  private int requestBufferThreshold = FileUtil.CONTENT_LENGTH_THRESHOLD;
+
+  /**
+   * @param schema The method.
+   * @param args The arguments of the call, or null.
+   */
+  RequestBuilder(JMethod schema, Object[] args) {
+    this.schema = schema;
+    this.args = args;
+    plan = schema.getBindingPlan();
+  }
+
+  /**
+   * Bind the arguments if not already bound.
+   * @throws IllegalArgumentException The number of arguments is wrong.
+   * @throws MobileRuntimeException An argument is invalid.
+   */
+  void bind() {
+    if (kinds == null) {
+      kinds = plan.bind(args);
+    }
+  }
+
+  void setRequestBufferThreshold(int threshold) {
+    requestBufferThreshold = threshold;
+  }
+
+  boolean hasHeaders() {
+    return plan.hasHeaders();
+  }
+
+  String getContentType() {
+    return contentType;
+  }
+
+  String getAcceptType() {
+    return acceptType;
+  }
+
+  String getEncodingType() {
+    return encodingType;
+  }
+
+  long getContentLength() {
+    return contentLength;
+  }
+
+  /**
+   * @return The file the payload was spilled to, or null.
+   */
+  File getRequestFile() {
+    return requestFile;
+  }
+
+  String buildUri() {
+    // validate schema support
+    if (RequestSchema.isMultiPart(schema.getMetaInfo().getProduces())) {
+      throw new MobileRuntimeException("Backend produces multipart content type. Not supported!");
+    }
+    bind();
+
+    // build up URL baseURL + apiPath for generic REST endpoint from the compiled template
+    String result = schema.getUriTemplate().expand(plan, args,
+        (args != null && args.length > 0) ? kinds : null);
+    if (Log.isLoggable(Log.DEBUG)) {
+      Log.d(LOG_TAG, "URI for request: method name=" + schema.getMetaInfo().getMethodName() + ";URL=" + result);
+    }
+    return result;
+  }
+
+  LinkedHashMap<String, String> buildHeaderParams() {
+    bind();
+    LinkedHashMap<String, String> result = new LinkedHashMap<String, String>();
+    for (int idx = 0; idx < kinds.length; idx++) {
+      Object value = args[idx];
+      if (kinds[idx] != BindingPlan.HEADER || value == null) {
+        continue;
+      }
+      result.put(plan.params[idx].name, plan.format(idx, value));
+    }
+    return result;
+  }
+
+  Payload buildRequestPayload() {
+    bind();
+    requestFile = null;
+    SpillableOutputStream os = new SpillableOutputStream(requestBufferThreshold);
+    buildRequestBody(os);
+    try {
+      os.close();
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "ignoring unexpected exception closing output stream for request", e);
+    }
+
+    Payload payload = null;
+    contentLength = os.size();
+    if (os.isSpilled()) {
+      requestFile = os.getFile();
+      if (contentLength > 0) {
+        payload = new Payload(requestFile.getAbsolutePath());
+        // the file is deleted when the payload is closed or garbage collected
+        TempFileReaper.getInstance().track(payload, requestFile);
+        if (Log.isLoggable(Log.DEBUG)) {
+          Log.d(LOG_TAG, "using file for payload:" + requestFile.getAbsolutePath());
+        }
+      }
+    } else if (contentLength > 0) {
+      payload = new Payload(os.toByteArray());
+      if (Log.isLoggable(Log.VERBOSE)) {
+        Log.v(LOG_TAG, "using byte buffer for payload: " + contentLength + " bytes");
+      }
+    }
+    if (contentLength == 0) {
+      if (Log.isLoggable(Log.VERBOSE)) {
+        Log.v(LOG_TAG, "content length = 0; no payload");
+      }
+    }
+    return payload;
+  }
+
+  void buildRequestBody(OutputStream bodyOs) {
+    try {
+      // no body supported for GET and DELETE - all parameters are treated as query parameters and built from
+      // buildUri
+      if (ConnectionService.Request.Method.DELETE == schema.metaInfo.restMethod ||
+          ConnectionService.Request.Method.GET == schema.metaInfo.restMethod) {
+        contentType = null;
+        return;
+      }
+
+      int totalParams = schema.params.size();
+      if (args == null || args.length == 0 || totalParams == 0) {
+        return;
+      }
+      bind();
+
+      String multipartType = RequestSchema.getMultipartType(schema.getMetaInfo().getConsumes());
+      if (multipartType != null) {
+        buildMultipartBody(multipartType, bodyOs);
+        return;
+      }
+
+      // get form parameters
+      if (countBodyParams(ParamStyle.FORM) > 0) {
+        String formBody = buildFormRequestBody();
+        bodyOs.write(formBody.getBytes());
+        return;
+      }
+
+      int count = countBodyParams(ParamStyle.PLAIN);
+      if (count == 0) {
+        return;
+      }
+
+      // create the body from the parameters
+      JParam[] bodyParams = new JParam[count];
+      Object[] bodyValues = new Object[count];
+      count = 0;
+      for (int idx = 0; idx < kinds.length; idx++) {
+        if (kinds[idx] == BindingPlan.BODY && plan.params[idx].style == ParamStyle.PLAIN) {
+          bodyParams[count] = plan.params[idx];
+          bodyValues[count++] = args[idx];
+        }
+      }
+      RequestBodyMarshaller marshaller = new RequestBodyFactory().createInstance();
+      contentType = marshaller.serializeRequest(schema, bodyParams, bodyValues, bodyOs);
+
+    } catch (MobileException e) {
+      throw new MobileRuntimeException(e);
+    } catch (IOException e) {
+      throw new MobileRuntimeException(e);
+    }
+  }
+
+  /**
+   * Decide whether the body can be written straight into the connection and,
+   * if so, set its content type before it is written.
+   * @return true if the body is to be streamed by {@link #buildRequestBody(OutputStream)}.
+   */
+  boolean prepareStreamingBody() {
+    bind();
+    if (!isStreamingBody()) {
+      return false;
+    }
+    String multipartType = RequestSchema.getMultipartType(schema.getMetaInfo().getConsumes());
+    if (multipartType != null) {
+      // the boundary must be in the content type before the body is written
+      multipartBoundary = MultipartWriter.newBoundary();
+      contentType = MultipartWriter.getContentType(multipartType, multipartBoundary);
+    } else {
+      contentType = GenericRestConstants.CONTENT_TYPE_JSON;
+    }
+    return true;
+  }
+
+  private String buildFormRequestBody() {
+    StringBuilder queryBuilder = new StringBuilder();
+    contentType = GenericRestConstants.CONTENT_TYPE_FORM_URLENCODED;
+    for (int idx = 0; idx < kinds.length; idx++) {
+      Object paramValue = args[idx];
+      JParam cp = plan.params[idx];
+      if (kinds[idx] == BindingPlan.BODY && cp.style == ParamStyle.FORM && paramValue != null) {
+        String value = plan.format(idx, paramValue);
+        if (queryBuilder.length() > 1) {
+          queryBuilder.append('&');
+        }
+        queryBuilder.append(cp.name)
+            .append("=").append(value);
+      }
+    }
+    contentLength = queryBuilder.length();
+    return queryBuilder.toString();
+  }
+
+  /**
+   * Write the body parameters as a multipart body.  For multipart/related, the
+   * non-binary parameters are marshalled into the root part as usual and each
+   * binary parameter is a part identified by its name.  For multipart/form-data,
+   * each parameter is a part.  The binary parameters are sent as raw bytes and
+   * copied from their source in chunks instead of base64 encoded in the JSON.
+   */
+  private void buildMultipartBody(String multipartType, OutputStream bodyOs)
+      throws IOException, MobileException {
+    if (multipartBoundary == null) {
+      multipartBoundary = MultipartWriter.newBoundary();
+    }
+    contentType = MultipartWriter.getContentType(multipartType, multipartBoundary);
+    MultipartWriter writer = new MultipartWriter(bodyOs, multipartType, multipartBoundary);
+    RequestBodyMarshaller marshaller = new RequestBodyFactory().createInstance();
+    if (RequestSchema.MULTIPART_RELATED_CONTENT_TYPE.equals(multipartType)) {
+      Map<JParam, Object> rootParams = new LinkedHashMap<JParam, Object>();
+      Map<JParam, Object> binaryParams = new LinkedHashMap<JParam, Object>();
+      for (int idx = 0; idx < kinds.length; idx++) {
+        if (kinds[idx] != BindingPlan.BODY) {
+          continue;
+        }
+        if (isBinaryParamValue(args[idx])) {
+          binaryParams.put(plan.params[idx], args[idx]);
+        } else {
+          rootParams.put(plan.params[idx], args[idx]);
+        }
+      }
+      if (!rootParams.isEmpty()) {
+        // same content type as chosen by the marshaller
+        String rootType = (rootParams.size() == 1 &&
+            rootParams.values().iterator().next() instanceof String) ?
+            GenericRestConstants.CONTENT_TYPE_TEXT_PLAIN : GenericRestConstants.CONTENT_TYPE_JSON;
+        marshaller.serializeRequest(schema,
+            rootParams.keySet().toArray(new JParam[rootParams.size()]),
+            rootParams.values().toArray(), writer.startPart(MULTIPART_ROOT_ID, rootType, null));
+      }
+      for (Map.Entry<JParam, Object> entry : binaryParams.entrySet()) {
+        if (entry.getValue() != null) {
+          writeBinaryPart(writer, entry.getKey(), entry.getValue());
+        }
+      }
+    } else {
+      for (int idx = 0; idx < kinds.length; idx++) {
+        JParam param = plan.params[idx];
+        Object value = args[idx];
+        if (kinds[idx] != BindingPlan.BODY || value == null) {
+          continue;
+        }
+        if (isBinaryParamValue(value)) {
+          writeBinaryPart(writer, param, value);
+        } else if (SimpleParamHelper.isMarshalledAsPrimitiveType(value.getClass()) &&
+            !SimpleParamHelper.isCollection(value)) {
+          writer.writePart(param.name, GenericRestConstants.CONTENT_TYPE_TEXT_PLAIN + "; charset=UTF-8",
+              null, plan.format(idx, value).getBytes("UTF-8"));
+        } else {
+          marshaller.serializeRequest(schema, new JParam[] { param }, new Object[] { value },
+              writer.startPart(param.name, GenericRestConstants.CONTENT_TYPE_JSON, null));
+        }
+      }
+    }
+    writer.close();
+  }
+
+  private static void writeBinaryPart(MultipartWriter writer, JParam param, Object value)
+      throws IOException {
+    String type = GenericRestConstants.CONTENT_TYPE_OCTET_STREAM;
+    if (value instanceof byte[]) {
+      writer.writePart(param.name, type, param.name, (byte[]) value);
+    } else if (value instanceof Byte[]) {
+      Byte[] bytes = (Byte[]) value;
+      byte[] data = new byte[bytes.length];
+      for (int i = 0; i < bytes.length; i++) {
+        data[i] = bytes[i];
+      }
+      writer.writePart(param.name, type, param.name, data);
+    } else if (value instanceof InputStream) {
+      // the caller owns the stream
+      writer.writePart(param.name, type, param.name, (InputStream) value);
+    } else {
+      InputStream is;
+      String fileName = param.name;
+      if (value instanceof File) {
+        is = new FileInputStream((File) value);
+        fileName = ((File) value).getName();
+      } else {
+        is = ((Payload) value).getAsInputStream();
+        if (is == null) {
+          is = new ByteArrayInputStream(new byte[0]);
+        }
+      }
+      try {
+        writer.writePart(param.name, type, fileName, is);
+      } finally {
+        is.close();
+      }
+    }
+  }
+
+  private static boolean isBinaryParamValue(Object value) {
+    return value instanceof byte[] || value instanceof Byte[] || value instanceof InputStream ||
+        value instanceof File || value instanceof Payload;
+  }
+
+  private int countBodyParams(ParamStyle style) {
+    int count = 0;
+    for (int idx = 0; idx < kinds.length; idx++) {
+      if (kinds[idx] == BindingPlan.BODY && plan.params[idx].style == style) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  // A JSON body has a known content type before it is marshalled, so it can be
+  // written directly into the connection.  A form body or a single String body
+  // is small and its content type is decided by buildRequestBody().  A
+  // multipart body is always streamed, so large parts are never buffered.
+  private boolean isStreamingBody() {
+    if (ConnectionService.Request.Method.DELETE == schema.metaInfo.restMethod ||
+        ConnectionService.Request.Method.GET == schema.metaInfo.restMethod) {
+      return false;
+    }
+    if (RequestSchema.getMultipartType(schema.getMetaInfo().getConsumes()) != null) {
+      for (byte kind : kinds) {
+        if (kind == BindingPlan.BODY) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (countBodyParams(ParamStyle.FORM) > 0) {
+      return false;
+    }
+    int count = 0;
+    Object value = null;
+    for (int idx = 0; idx < kinds.length; idx++) {
+      if (kinds[idx] == BindingPlan.BODY && plan.params[idx].style == ParamStyle.PLAIN) {
+        value = args[idx];
+        count++;
+      }
+    }
+    return count > 1 || (count == 1 && !(value instanceof String));
+  }
+}
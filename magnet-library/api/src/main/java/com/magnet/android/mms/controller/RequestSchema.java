@@ -19,40 +19,72 @@ package com.magnet.android.mms.controller;
 import com.magnet.android.core.MagnetRestRequestType;
 import com.magnet.android.mms.connection.ConnectionService;
 import com.magnet.android.mms.connection.ConnectionService.Request.Method;
+import com.magnet.android.mms.exception.SchemaException;
+import com.magnet.android.mms.request.ByteArrayHelper;
+import com.magnet.android.mms.request.marshall.SimpleParamHelper;
 
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class RequestSchema {
 
   public final static String DEFAULT_CONTENT_TYPE = "application/json";
   public final static String MULTIPART_RELATED_CONTENT_TYPE = "multipart/related";
+  public final static String MULTIPART_FORM_DATA_CONTENT_TYPE = "multipart/form-data";
 
   public static boolean isMultiPart(Collection<String> types) {
     if (types == null) {
       return false;
     }
     for (String type: types) {
-      if (type.equals(MULTIPART_RELATED_CONTENT_TYPE)) {
+      if (type.startsWith("multipart/")) {
         return true;
       }
     }
     return false;
   }
+
+  /**
+   * Get the supported multipart type in the content types.
+   * @param types The content types from consumes or produces.
+   * @return {@link #MULTIPART_FORM_DATA_CONTENT_TYPE},
+   *         {@link #MULTIPART_RELATED_CONTENT_TYPE}, or null.
+   */
+  public static String getMultipartType(Collection<String> types) {
+    if (types == null) {
+      return null;
+    }
+    for (String type: types) {
+      if (type.startsWith(MULTIPART_FORM_DATA_CONTENT_TYPE)) {
+        return MULTIPART_FORM_DATA_CONTENT_TYPE;
+      }
+      if (type.startsWith(MULTIPART_RELATED_CONTENT_TYPE)) {
+        return MULTIPART_RELATED_CONTENT_TYPE;
+      }
+    }
+    return null;
+  }
   // describes the schema for how to construct a controller request over the wire from Java class
   public static class JMethod {
     JMeta metaInfo;
     List<JParam> params = new ArrayList<JParam>();
     private final Class<?> returnType;      // return type of the method. if collection, the type of the element
     private final Type[] returnComponentTypes;  // return component or templated types if returnType is array or generic class
+    private volatile UriTemplate uriTemplate;   // compiled on first use
+    private volatile BindingPlan bindingPlan;   // computed on first use
 
     public JMethod() {
       returnType = Void.class;
@@ -112,12 +144,16 @@ public class RequestSchema {
     }
     public JMethod setMetaInfo(JMeta meta) {
       this.metaInfo = meta;
+      this.uriTemplate = null;
+      this.bindingPlan = null;
       return this;
     }
 
     public JParam addParam(String name, String style, Class<?> paramClass, Class<?> componentClass, String typeName, boolean optional) {
       JParam param = new JParam(name, style, paramClass, componentClass, typeName, optional);
       this.params.add(param);
+      this.uriTemplate = null;
+      this.bindingPlan = null;
       return param;
     }
     public List<JParam> getParams() {
@@ -126,6 +162,31 @@ public class RequestSchema {
     public JMeta getMetaInfo() {
       return metaInfo;
     }
+    /**
+     * Get the compiled URI template.  It is compiled again if the base URL
+     * has been changed.
+     * @return
+     */
+    UriTemplate getUriTemplate() {
+      UriTemplate template = uriTemplate;
+      if (template == null || template.baseUrl != metaInfo.getBaseUrl()) {
+        template = new UriTemplate(this);
+        uriTemplate = template;
+      }
+      return template;
+    }
+    /**
+     * Get the binding plan of the parameters.
+     * @return
+     */
+    BindingPlan getBindingPlan() {
+      BindingPlan plan = bindingPlan;
+      if (plan == null) {
+        plan = new BindingPlan(this);
+        bindingPlan = plan;
+      }
+      return plan;
+    }
     public Type[] getReturnComponentTypes() {
       return returnComponentTypes;
     }
@@ -238,12 +299,18 @@ public class RequestSchema {
      *  return true if the instance can be considered the same type as the parameter spec
      */
     public boolean isInstanceOf(Object actualObj) {
-      boolean result;
-      Class<?> actualType = actualObj.getClass();
+      if (actualObj == null) {
+        return !paramClz.isPrimitive();
+      }
       // since there is no way to get the actual type of for generics based on object instance,
-      // compare the type only
-      result = this.getParamType().equals(actualType);
-      return result;
+      // compare the type only; a primitive parameter is passed as its wrapper
+      return SimpleParamHelper.getWrapperType(paramClz).isInstance(actualObj);
+    }
+    /*
+     *  return true if the declared type of a method parameter is the type of the parameter spec
+     */
+    public boolean isSameType(Class<?> type) {
+      return SimpleParamHelper.getWrapperType(paramClz) == SimpleParamHelper.getWrapperType(type);
     }
     public void setTypeName() {
       this.typeName = typeName;
@@ -271,12 +338,89 @@ public class RequestSchema {
     }
   }
 
-  private Map<String, List<JMethod>> overloadMethodMap;
+  private final Map<String, List<JMethod>> overloadMethodMap = new ConcurrentHashMap<String, List<JMethod>>();
 
-  private final Map<String, JMethod> methods = new HashMap<String, JMethod>();
+  private final Map<String, JMethod> methods = new ConcurrentHashMap<String, JMethod>();
   private String apiRootPath;
+  // the methods not decoded yet, or null if built with putMethod()
+  private final BinarySchema compiled;
 
   public RequestSchema() {
+    compiled = null;
+  }
+
+  private RequestSchema(BinarySchema compiled) {
+    this.compiled = compiled;
+    this.apiRootPath = compiled.getRootPath();
+  }
+
+  /**
+   * Load a schema written by {@link BinarySchema#write(RequestSchema, java.io.OutputStream)}.
+   * Only the header is read; each method is decoded when it is first looked up.
+   * @param data The binary schema.
+   * @return The schema.
+   * @throws SchemaException The data is not a binary schema.
+   */
+  public static RequestSchema fromBinary(byte[] data) throws SchemaException {
+    return new RequestSchema(BinarySchema.parse(data));
+  }
+
+  /**
+   * Load a binary schema from a stream, e.g. a resource generated with the
+   * controller sources.
+   * @param is The stream, not closed.
+   * @return The schema.
+   * @throws SchemaException The stream cannot be read or is not a binary schema.
+   */
+  public static RequestSchema fromBinary(InputStream is) throws SchemaException {
+    try {
+      return fromBinary(ByteArrayHelper.toByteArray(is));
+    } catch (IOException e) {
+      throw new SchemaException("failed to read binary controller schema", e);
+    }
+  }
+
+  // Decode the methods of a name from the binary schema on first lookup.  The
+  // overloads are published together, so a lookup never sees some of them.
+  private void decode(String methodName) {
+    if (compiled == null || methods.containsKey(methodName) || overloadMethodMap.containsKey(methodName)) {
+      return;
+    }
+    synchronized (compiled) {
+      List<JMethod> decoded = compiled.decode(methodName);
+      if (decoded == null) {
+        return;
+      }
+      if (decoded.size() == 1) {
+        methods.put(methodName, decoded.get(0));
+      } else {
+        overloadMethodMap.put(methodName, decoded);
+      }
+    }
+  }
+
+  private void decodeAll() {
+    if (compiled == null) {
+      return;
+    }
+    synchronized (compiled) {
+      for (String methodName : new ArrayList<String>(compiled.getPendingNames())) {
+        decode(methodName);
+      }
+    }
+  }
+
+  /**
+   * @return All the methods by name, including the overloads.
+   */
+  Map<String, List<JMethod>> getAllMethods() {
+    decodeAll();
+    Map<String, List<JMethod>> result = new LinkedHashMap<String, List<JMethod>>();
+    for (Map.Entry<String, JMethod> entry : methods.entrySet()) {
+      result.put(entry.getKey(), Collections.singletonList(entry.getValue()));
+    }
+    result.putAll(overloadMethodMap);
+    return result;
   }
   /**
    * TODO Construct a JMethod suitable for Java proxy construction
@@ -306,15 +450,14 @@ public class RequestSchema {
   }
 
   public void putMethod(String methodName, JMethod method) {
+    decode(methodName);
     JMethod existingMethod = methods.get(methodName);
-    if (existingMethod == null || existingMethod != null && existingMethod.equals(method)) {
+    boolean overloaded = overloadMethodMap.containsKey(methodName);
+    if (!overloaded && (existingMethod == null || existingMethod.equals(method))) {
       methods.put(methodName, method);
       return;
     }
     // add to list of existing methods
-    if (overloadMethodMap == null) {
-      overloadMethodMap = new HashMap<String, List<JMethod>>();
-    }
     List<JMethod> methodList = overloadMethodMap.get(methodName);
     if (methodList == null) {
       methodList = new ArrayList<JMethod>();
@@ -331,33 +474,28 @@ public class RequestSchema {
 
 
   public JMethod getMethod(String methodName) {
+    decode(methodName);
     return methods.get(methodName);
   }
 
   // find match for method based on methodName and parameters for overloaded methods
   public JMethod getMethod(String methodName, Object[] args) {
+    decode(methodName);
     JMethod method = methods.get(methodName);
     if (method != null) {
       return method;
     }
     List<JMethod> overloadMethods = overloadMethodMap.get(methodName);
     if (overloadMethods != null) {
+      int count = (args != null) ? args.length : 0;
       for (JMethod m: overloadMethods) {
-        // compare each parameter
-        if ((args == null || args.length == 0) && m.params.size() == 0) {
-          return m;
-        }
-        if (m.params.size() != args.length) {
+        if (m.params.size() != count) {
           continue;
         }
-        int i = 0;
-        boolean same = false;
-        for (JParam param: m.params) {
-          // see if it's the same type
-          same = param.isInstanceOf(args[i++]);
-          if (!same) {
-            continue;
-          }
+        // compare each parameter and see if it's the same type
+        boolean same = true;
+        for (int i = 0; same && i < count; i++) {
+          same = m.params.get(i).isInstanceOf(args[i]);
         }
         if (same) {
           return m;
@@ -368,11 +506,59 @@ public class RequestSchema {
     }
     return null;
   }
+
+  /**
+   * Find the schema of a controller interface method from its name and, for
+   * overloaded methods, its declared parameter types.  The last parameter of
+   * a controller method is the call option and is not in the schema.
+   * @param method The controller interface method.
+   * @return The method schema, or null if not found.
+   */
+  public JMethod getMethod(java.lang.reflect.Method method) {
+    Class<?>[] types = method.getParameterTypes();
+    return getMethodBySignature(method.getName(),
+        Arrays.copyOf(types, Math.max(0, types.length - 1)));
+  }
+
+  /**
+   * Find the schema of a method from its name and, for overloaded methods,
+   * the types of its parameters in the schema, i.e. without the call option.
+   * @param methodName The method name.
+   * @param paramTypes The parameter types.
+   * @return The method schema, or null if not found.
+   */
+  public JMethod getMethodBySignature(String methodName, Class<?>... paramTypes) {
+    decode(methodName);
+    JMethod result = methods.get(methodName);
+    if (result != null) {
+      return result;
+    }
+    List<JMethod> overloadMethods = overloadMethodMap.get(methodName);
+    if (overloadMethods == null) {
+      return null;
+    }
+    for (JMethod m: overloadMethods) {
+      if (m.params.size() != paramTypes.length) {
+        continue;
+      }
+      boolean same = true;
+      for (int i = 0; same && i < paramTypes.length; i++) {
+        same = m.params.get(i).isSameType(paramTypes[i]);
+      }
+      if (same) {
+        return m;
+      }
+    }
+    return null;
+  }
+
   public Map<String, JMethod> getMethodMap() {
+    decodeAll();
     return Collections.unmodifiableMap(methods);
   }
   // use it when code is obfuscated to rebind method names to method meta map
   public void bindMethodName(String plainName, String encodedName) {
+    decode(plainName);
     JMethod method = methods.get(plainName);
     if (method != null) {
       methods.remove(plainName);
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.controller;
+
+import com.magnet.android.core.MagnetRestRequestType.ParamStyle;
+import com.magnet.android.mms.connection.ConnectionService;
+import com.magnet.android.mms.controller.RequestSchema.JMethod;
+import com.magnet.android.mms.controller.RequestSchema.JParam;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The URI of a controller method compiled once from its base URL and REST
+ * path.  The path is split into literal segments and slots for the template
+ * parameters, and the matrix and query parameters are grouped by style, so a
+ * URI is built in a single pass without any regular expression.
+ */
+class UriTemplate {
+  private final static char[] HEX = "0123456789ABCDEF".toCharArray();
+  // The characters left as is by URLEncoder: a-z A-Z 0-9 . - * _
+  private final static boolean[] UNRESERVED = new boolean[128];
+  static {
+    for (char c = 'a'; c <= 'z'; c++) {
+      UNRESERVED[c] = true;
+    }
+    for (char c = 'A'; c <= 'Z'; c++) {
+      UNRESERVED[c] = true;
+    }
+    for (char c = '0'; c <= '9'; c++) {
+      UNRESERVED[c] = true;
+    }
+    UNRESERVED['.'] = true;
+    UNRESERVED['-'] = true;
+    UNRESERVED['*'] = true;
+    UNRESERVED['_'] = true;
+  }
+
+  // A literal segment is a String, a parameter slot is a Slot.
+  private final Object[] mSegments;
+  private final String[] mNames;
+  private final int[] mMatrixParams;
+  private final int[] mQueryParams;
+  private final int[] mPlainParams;
+  private final int[] mFormParams;
+  private final int mLength;
+  final String baseUrl;
+
+  private static class Slot {
+    final int index;
+    final boolean template;
+    final String placeholder;
+
+    Slot(int index, boolean template, String placeholder) {
+      this.index = index;
+      this.template = template;
+      this.placeholder = placeholder;
+    }
+  }
+
+  /**
+   * Compile the URI of a method.
+   * @param schema The method.
+   */
+  UriTemplate(JMethod schema) {
+    baseUrl = schema.getMetaInfo().getBaseUrl();
+    StringBuilder uri = new StringBuilder();
+    if (baseUrl != null && baseUrl.length() > 0) {
+      uri.append(baseUrl);
+    }
+    String restApiPath = schema.getMetaInfo().restApiPath;
+    if (restApiPath != null && restApiPath.length() > 0) {
+      if (!restApiPath.startsWith("/")) {
+        uri.append("/");
+      }
+      uri.append(restApiPath);
+    }
+    mLength = uri.length() + 32;
+
+    List<JParam> params = schema.params;
+    mNames = new String[params.size()];
+    for (int i = 0; i < mNames.length; i++) {
+      mNames[i] = params.get(i).name;
+    }
+    List<Object> segments = new ArrayList<Object>();
+    int start = 0;
+    int open = uri.indexOf("{");
+    while (open >= 0) {
+      int close = uri.indexOf("}", open + 1);
+      if (close < 0) {
+        break;
+      }
+      int index = findParam(params, uri.substring(open + 1, close));
+      if (index < 0) {
+        // not a parameter; look for a placeholder inside
+        open = uri.indexOf("{", open + 1);
+        continue;
+      }
+      if (open > start) {
+        segments.add(uri.substring(start, open));
+      }
+      segments.add(new Slot(index, params.get(index).style == ParamStyle.TEMPLATE,
+          uri.substring(open, close + 1)));
+      start = close + 1;
+      open = uri.indexOf("{", start);
+    }
+    if (start < uri.length()) {
+      segments.add(uri.substring(start));
+    }
+    mSegments = segments.toArray();
+
+    mMatrixParams = findParams(params, ParamStyle.MATRIX);
+    mQueryParams = findParams(params, ParamStyle.QUERY);
+    if (ConnectionService.Request.Method.GET == schema.metaInfo.restMethod ||
+        ConnectionService.Request.Method.DELETE == schema.metaInfo.restMethod) {
+      mPlainParams = findParams(params, ParamStyle.PLAIN);
+      mFormParams = findParams(params, ParamStyle.FORM);
+    } else {
+      mPlainParams = new int[0];
+      mFormParams = mPlainParams;
+    }
+  }
+
+  // A template parameter takes precedence over another style with the same name.
+  private static int findParam(List<JParam> params, String name) {
+    int found = -1;
+    for (int i = 0; i < params.size(); i++) {
+      JParam param = params.get(i);
+      if (param.name.equals(name)) {
+        if (param.style == ParamStyle.TEMPLATE) {
+          return i;
+        }
+        if (found < 0) {
+          found = i;
+        }
+      }
+    }
+    return found;
+  }
+
+  private static int[] findParams(List<JParam> params, ParamStyle style) {
+    int count = 0;
+    for (JParam param : params) {
+      if (param.style == style) {
+        count++;
+      }
+    }
+    int[] result = new int[count];
+    count = 0;
+    for (int i = 0; i < params.size(); i++) {
+      if (params.get(i).style == style) {
+        result[count++] = i;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Build the URI.
+   * @param plan The binding plan of the method.
+   * @param args The method arguments, or null.
+   * @param kinds The bound kinds of the arguments, or null if none.
+   * @return The URI.
+   */
+  String expand(BindingPlan plan, Object[] args, byte[] kinds) {
+    StringBuilder sb = new StringBuilder(mLength);
+    for (Object segment : mSegments) {
+      if (segment instanceof String) {
+        sb.append((String) segment);
+        continue;
+      }
+      Slot slot = (Slot) segment;
+      if (kinds == null || kinds[slot.index] != BindingPlan.URI) {
+        sb.append(slot.placeholder);
+      } else if (slot.template && args[slot.index] != null) {
+        encode(sb, plan.format(slot.index, args[slot.index]));
+      }
+    }
+    if (kinds != null) {
+      appendParams(sb, mMatrixParams, plan, args, kinds, ';', ';');
+      appendParams(sb, mQueryParams, plan, args, kinds, '?', '&');
+      appendParams(sb, mPlainParams, plan, args, kinds, '?', '&');
+      appendParams(sb, mFormParams, plan, args, kinds, '?', '&');
+    }
+    return sb.toString().trim();
+  }
+
+  // Each style is started with its own separator unless the URI already ends
+  // with it, the same as the URIs built before the templates were compiled.
+  private void appendParams(StringBuilder sb, int[] indexes, BindingPlan plan, Object[] args,
+                            byte[] kinds, char start, char delim) {
+    int mark = sb.length();
+    if (mark == 0 || sb.charAt(mark - 1) != start) {
+      sb.append(start);
+    }
+    for (int index : indexes) {
+      Object value = args[index];
+      if (value == null || kinds[index] != BindingPlan.URI) {
+        continue;
+      }
+      if (sb.length() - mark > 1) {
+        sb.append(delim);
+      }
+      sb.append(mNames[index]).append('=');
+      encode(sb, plan.format(index, value));
+    }
+    if (sb.length() - mark <= 1) {
+      sb.setLength(mark);
+    }
+  }
+
+  /**
+   * Append a value encoded as application/x-www-form-urlencoded in UTF-8; the
+   * result is the same as {@link java.net.URLEncoder#encode(String, String)}.
+   * @param sb The output.
+   * @param value The value.
+   */
+  static void encode(StringBuilder sb, String value) {
+    int length = value.length();
+    int i = 0;
+    // fast path: the leading characters which need no encoding
+    while (i < length) {
+      char c = value.charAt(i);
+      if (c >= 128 || !UNRESERVED[c]) {
+        break;
+      }
+      i++;
+    }
+    sb.append(value, 0, i);
+    for (; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < 128) {
+        if (UNRESERVED[c]) {
+          sb.append(c);
+        } else if (c == ' ') {
+          sb.append('+');
+        } else {
+          appendByte(sb, c);
+        }
+      } else if (c < 0x800) {
+        appendByte(sb, 0xc0 | (c >> 6));
+        appendByte(sb, 0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length &&
+          Character.isLowSurrogate(value.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, value.charAt(++i));
+        appendByte(sb, 0xf0 | (cp >> 18));
+        appendByte(sb, 0x80 | ((cp >> 12) & 0x3f));
+        appendByte(sb, 0x80 | ((cp >> 6) & 0x3f));
+        appendByte(sb, 0x80 | (cp & 0x3f));
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        // an unpaired surrogate is replaced as by the UTF-8 encoder
+        appendByte(sb, '?');
+      } else {
+        appendByte(sb, 0xe0 | (c >> 12));
+        appendByte(sb, 0x80 | ((c >> 6) & 0x3f));
+        appendByte(sb, 0x80 | (c & 0x3f));
+      }
+    }
+  }
+
+  private static void appendByte(StringBuilder sb, int b) {
+    sb.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.exception;
+
+import java.io.IOException;
+
+/**
+ * This exception is thrown without sending a request when its endpoint is
+ * considered unavailable: the circuit of the endpoint is open after repeated
+ * failures, or the concurrency limit of the endpoint is reached.  The request
+ * may be retried later.
+ */
+public class EndpointUnavailableException extends IOException {
+  private static final long serialVersionUID = 6306735328745106530L;
+  private final String origin;
+  private final long retryAfterMillis;
+
+  /**
+   * Constructor that instantiates an exception for an endpoint.
+   * @param message The message string.
+   * @param origin The endpoint origin, e.g. "https://example.com:443".
+   * @param retryAfterMillis The time in milliseconds before the endpoint may
+   *                         accept requests again, or 0 if unknown.
+   */
+  public EndpointUnavailableException(String message, String origin, long retryAfterMillis) {
+    super(message);
+    this.origin = origin;
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  /**
+   * Get the endpoint origin.
+   * @return The origin, e.g. "https://example.com:443".
+   */
+  public String getOrigin() {
+    return origin;
+  }
+
+  /**
+   * Get the time before the endpoint may accept requests again.
+   * @return The time in milliseconds, or 0 if unknown.
+   */
+  public long getRetryAfterMillis() {
+    return retryAfterMillis;
+  }
+}
@@ -20,6 +20,8 @@ import android.util.Base64;
 import android.util.Base64InputStream;
 import android.util.Base64OutputStream;
 
+import com.magnet.android.mms.utils.BufferPool;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -61,13 +63,14 @@ public class ByteArrayHelper {
       return null;
     }
     ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte[] buf = BufferPool.acquire();
     try {
-      byte[] buf = new byte[1024];
       int count = 0;
       while ((count = is.read(buf)) != -1) {
         bos.write(buf, 0, count);
       }
     } finally {
+      BufferPool.release(buf);
       bos.close();
     }
     return bos.toByteArray();
@@ -81,13 +84,14 @@ public class ByteArrayHelper {
     if (is == null) {
       return;
     }
+    byte[] buf = BufferPool.acquire();
     try {
-      byte[] buf = new byte[1024];
       int count = 0;
       while ((count = is.read(buf)) != -1) {
         os.write(buf, 0, count);
       }
     } finally {
+      BufferPool.release(buf);
       os.close();
     }
   }
@@ -100,15 +104,16 @@ public class ByteArrayHelper {
       return;
     }
     OutputStream osb64 = null;
+    byte[] buf = BufferPool.acquire();
     try {
       osb64 = getBase64OutputStream(os);
-      byte[] buf = new byte[1024];
       int count = 0;
       while ((count = is.read(buf)) != -1) {
         osb64.write(buf, 0, count);
       }
       osb64.flush();
     } finally {
+      BufferPool.release(buf);
       if (osb64 != null) {
         osb64.close();
       }
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.request;
+
+import com.magnet.android.core.GenericRestConstants;
+import com.magnet.android.mms.utils.BufferPool;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+
+/**
+ * A streaming encoder of a multipart body (RFC 2046), either
+ * <code>multipart/form-data</code> or <code>multipart/related</code>.  The
+ * parts are written straight into the output stream; a binary part is copied
+ * through a pooled buffer, so the memory used does not depend on the size of
+ * the attachments.
+ */
+public class MultipartWriter {
+  public final static String MULTIPART_FORM_DATA = "multipart/form-data";
+  public final static String MULTIPART_RELATED = "multipart/related";
+  private final static byte[] CRLF = { '\r', '\n' };
+  private final static byte[] DASHES = { '-', '-' };
+  private final static char[] BOUNDARY_CHARS =
+      "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+  private final static SecureRandom sRandom = new SecureRandom();
+
+  private final OutputStream mOut;
+  private final String mType;
+  private final byte[] mBoundary;
+  private final OutputStream mPartOut;
+  private boolean mInPart;
+  private boolean mClosed;
+
+  /**
+   * @param out The output stream of the body; it is not closed by this writer.
+   * @param type {@link #MULTIPART_FORM_DATA} or {@link #MULTIPART_RELATED}.
+   * @param boundary The boundary, e.g. from {@link #newBoundary()}.
+   */
+  public MultipartWriter(OutputStream out, String type, String boundary) {
+    mOut = out;
+    mType = type;
+    mBoundary = boundary.getBytes();
+    // A part is ended by the next part or by close(), not by closing its stream.
+    mPartOut = new FilterOutputStream(out) {
+      @Override
+      public void write(byte[] buffer, int offset, int count) throws IOException {
+        out.write(buffer, offset, count);
+      }
+
+      @Override
+      public void close() throws IOException {
+        out.flush();
+      }
+    };
+  }
+
+  /**
+   * Generate a random boundary which is unlikely to appear in any part.
+   * @return The boundary.
+   */
+  public static String newBoundary() {
+    StringBuilder sb = new StringBuilder("MagnetBoundary");
+    for (int i = 0; i < 24; i++) {
+      sb.append(BOUNDARY_CHARS[sRandom.nextInt(BOUNDARY_CHARS.length)]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Get the Content-Type of a multipart body.
+   * @param type {@link #MULTIPART_FORM_DATA} or {@link #MULTIPART_RELATED}.
+   * @param boundary The boundary.
+   * @return The content type with the boundary.
+   */
+  public static String getContentType(String type, String boundary) {
+    if (MULTIPART_RELATED.equals(type)) {
+      return type+"; type=\""+GenericRestConstants.CONTENT_TYPE_JSON+"\"; boundary="+boundary;
+    }
+    return type+"; boundary="+boundary;
+  }
+
+  /**
+   * Start a new part.  The content of the part is written to the returned
+   * stream until the next part is started or this writer is closed.
+   * @param name The name of the part.  It is the form field name of a form
+   *             data part, or the Content-ID of a related part.
+   * @param contentType The content type of the part.
+   * @param fileName The file name of a form data part, or null.
+   * @return The stream of the part content.
+   * @throws IOException
+   */
+  public OutputStream startPart(String name, String contentType, String fileName)
+      throws IOException {
+    if (mClosed) {
+      throw new IOException("The multipart body is closed");
+    }
+    if (mInPart) {
+      mOut.write(CRLF);
+    }
+    mOut.write(DASHES);
+    mOut.write(mBoundary);
+    mOut.write(CRLF);
+    StringBuilder headers = new StringBuilder();
+    if (MULTIPART_RELATED.equals(mType)) {
+      headers.append("Content-ID: <").append(name).append(">\r\n");
+    } else {
+      headers.append("Content-Disposition: form-data; name=\"").append(escape(name)).append('"');
+      if (fileName != null) {
+        headers.append("; filename=\"").append(escape(fileName)).append('"');
+      }
+      headers.append("\r\n");
+    }
+    if (contentType != null) {
+      headers.append(GenericRestConstants.Header.CONTENT_TYPE).append(": ")
+          .append(contentType).append("\r\n");
+    }
+    headers.append("\r\n");
+    mOut.write(headers.toString().getBytes("UTF-8"));
+    mInPart = true;
+    return mPartOut;
+  }
+
+  /**
+   * Write a part with the content from a stream.  The stream is not closed.
+   * @param name The name of the part.
+   * @param contentType The content type of the part.
+   * @param fileName The file name of a form data part, or null.
+   * @param content The content.
+   * @throws IOException
+   */
+  public void writePart(String name, String contentType, String fileName, InputStream content)
+      throws IOException {
+    OutputStream out = startPart(name, contentType, fileName);
+    byte[] buffer = BufferPool.acquire();
+    try {
+      int n;
+      while ((n = content.read(buffer)) >= 0) {
+        out.write(buffer, 0, n);
+      }
+    } finally {
+      BufferPool.release(buffer);
+    }
+  }
+
+  /**
+   * Write a part with the content from a byte array.
+   * @param name The name of the part.
+   * @param contentType The content type of the part.
+   * @param fileName The file name of a form data part, or null.
+   * @param content The content.
+   * @throws IOException
+   */
+  public void writePart(String name, String contentType, String fileName, byte[] content)
+      throws IOException {
+    startPart(name, contentType, fileName).write(content);
+  }
+
+  /**
+   * End the multipart body.  The output stream is flushed but not closed.
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    if (mInPart) {
+      mOut.write(CRLF);
+    }
+    mOut.write(DASHES);
+    mOut.write(mBoundary);
+    mOut.write(DASHES);
+    mOut.write(CRLF);
+    mOut.flush();
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\r", " ").replace("\n", " ");
+  }
+}
@@ -88,16 +88,10 @@ public class PlainTextResponseParser<T> extends AbstractResponseParser<T> {
     if (is == null) {
       return null;
     }
-    StringBuilder result = new StringBuilder();
+    // decode once so a multi-byte character is not split across reads
+    String result;
     try {
-      int len = is.available();
-      if (len == 0)
-        len = 8192;
-      byte[] buf = new byte[len];
-      int count;
-      while ((count=is.read(buf, 0, buf.length)) >= 0) {
-        result.append(new String(buf, 0, count));
-      }
+      result = new String(ByteArrayHelper.toByteArray(is));
     } catch (IOException e) {
       e.printStackTrace();
       throw new MobileException("failed to get string from inputstream", e);
@@ -109,6 +103,6 @@ public class PlainTextResponseParser<T> extends AbstractResponseParser<T> {
         e.printStackTrace();
       }
     }
-    return result.toString();
+    return result;
   }
 }
@@ -85,6 +85,16 @@ public class SimpleParamHelper {
 
   }
 
+  /**
+   * Return the wrapper class of a primitive type.
+   * @param type The type.
+   * @return The wrapper class if type is primitive; type otherwise.
+   */
+  public static Class<?> getWrapperType(Class<?> type) {
+    Class<?> wrapper = pTypeMap.get(type);
+    return (wrapper != null) ? wrapper : type;
+  }
+
   public static boolean isPrimitiveWrapperType(Class<?> type) {
     return wpTypeMap.containsKey(type);
   }
@@ -20,12 +20,14 @@ import android.content.Context;
 
 import com.magnet.android.mms.connection.SslManager;
 import com.magnet.android.mms.exception.MobileRuntimeException;
+import com.magnet.android.mms.utils.FileUtil;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -62,6 +64,25 @@ public class MagnetDefaultSettings {
   public static final String ATTRIB_READ_TIMEOUT = "readTimeoutMillis";
   /** Internal Use Only */
   public static final String ATTRIB_SSL_HOSTNAME_VERIFIER = "sslHostnameVerifier";
+  /** Internal Use Only */
+  public static final String ATTRIB_SSL_PROTOCOL = "sslProtocol";
+  /** Internal Use Only */
+  public static final String ATTRIB_SSL_SESSION_CACHE_SIZE = "sslSessionCacheSize";
+  /** Internal Use Only */
+  public static final String ATTRIB_SSL_SESSION_TIMEOUT = "sslSessionTimeoutSeconds";
+  /** Internal Use Only */
+  public static final String ATTRIB_SSL_SESSION_TICKETS = "sslSessionTickets";
+  /** Internal Use Only */
+  public static final String ATTRIB_REQUEST_BUFFER_THRESHOLD = "requestBufferThresholdBytes";
+  /** Internal Use Only */
+  public static final String ATTRIB_WARMUP_ENDPOINTS = "warmupEndpoints";
+  /** Internal Use Only */
+  public static final String ATTRIB_CIRCUIT_BREAKER = "circuitBreaker";
+  /** Internal Use Only */
+  public static final String ATTRIB_HEDGE_BUDGET = "hedgeBudgetPercent";
+
+  /** Internal Use Only */
+  public static final String TAG_TRANSPORTS = "transports";
 
   private static volatile MagnetDefaultSettings sDefaultSettings;
   private static final Object globalLock = new Object();
@@ -91,6 +112,7 @@ public class MagnetDefaultSettings {
   private void initMaps() {
     mParsedSettingsMap.put(TAG_CACHE, new Properties());
     mParsedSettingsMap.put(TAG_HTTP, new Properties());
+    mParsedSettingsMap.put(TAG_TRANSPORTS, new Properties());
   }
   /**
    * Initializes the global instance of MagnetDefaultSettings.
@@ -98,19 +120,26 @@ public class MagnetDefaultSettings {
    * @param context Android application context.
    * @return A global instance of MagnetDefaultSettings, or null if the factory settings file does not exist.
    */
-  public static synchronized MagnetDefaultSettings getInstance(Context context) {
+  public static MagnetDefaultSettings getInstance(Context context) {
+    // read without a lock once loaded; the settings are read on every request
+    MagnetDefaultSettings settings = sDefaultSettings;
+    if (settings != null) {
+      return settings;
+    }
     synchronized (globalLock) {
       if (sDefaultSettings == null) {
-        sDefaultSettings = new MagnetDefaultSettings();
+        // only publish the settings once they are loaded
+        settings = new MagnetDefaultSettings();
         int resId = context.getResources().getIdentifier(DEFAULT_XML_FILENAME, "xml", context.getPackageName());
         if (resId > 0) {
-          sDefaultSettings.loadFromXmlResource(context, resId);
+          settings.loadFromXmlResource(context, resId);
         } else {
           logger.log(Level.WARNING, "no default settings file found");
         }
+        sDefaultSettings = settings;
       }
+      return sDefaultSettings;
     }
-    return sDefaultSettings;
   }
 
   /**
@@ -120,13 +149,14 @@ public class MagnetDefaultSettings {
    * @param resId The resource ID of the XML file. For example, R.xml.my_app_default.
    * @return A global instance of MagnetDefaultSettings, or null if the resource file does not exist.
    */
-  public static synchronized MagnetDefaultSettings getInstanceFromResource(Context context, int resId) {
+  public static MagnetDefaultSettings getInstanceFromResource(Context context, int resId) {
     if (resId > 0) {
       synchronized (globalLock) {
-        sDefaultSettings = new MagnetDefaultSettings();
-        sDefaultSettings.loadFromXmlResource(context, resId);
+        MagnetDefaultSettings settings = new MagnetDefaultSettings();
+        settings.loadFromXmlResource(context, resId);
+        sDefaultSettings = settings;
+        return settings;
       }
-      return sDefaultSettings;
     } else {
       return null;
     }
@@ -147,9 +177,12 @@ public class MagnetDefaultSettings {
    *
    * @return A global instance of MagnetDefaultSettings.
    */
-  public static synchronized MagnetDefaultSettings getInstanceDefault() {
-    sDefaultSettings = new MagnetDefaultSettings();
-    return sDefaultSettings;
+  public static MagnetDefaultSettings getInstanceDefault() {
+    synchronized (globalLock) {
+      MagnetDefaultSettings settings = new MagnetDefaultSettings();
+      sDefaultSettings = settings;
+      return settings;
+    }
   }
   /**
    * @hide
@@ -196,6 +229,117 @@ public class MagnetDefaultSettings {
     return result;
   }
 
+  /**
+   * Retrieves the protocol of the SSLContext shared by all connections, e.g. <code>TLS</code>.
+   * @return The SSLContext protocol.
+   */
+  public String getSslProtocol() {
+    String result;
+    String defVal = mParsedSettingsMap.get(TAG_HTTP).getProperty(ATTRIB_SSL_PROTOCOL);
+    result = (defVal != null) ? defVal : "TLS";
+    return result;
+  }
+
+  /**
+   * Retrieves the max number of TLS sessions cached for resumption.
+   * @return The session cache size; 0 for unlimited.
+   */
+  public int getSslSessionCacheSize() {
+    int result;
+    Integer defVal = getIntValue(TAG_HTTP, ATTRIB_SSL_SESSION_CACHE_SIZE);
+    result = (defVal != null) ? defVal.intValue() : 64;
+    return result;
+  }
+
+  /**
+   * Retrieves the time in seconds a cached TLS session can be resumed.
+   * @return The session timeout in seconds; 0 for unlimited.
+   */
+  public int getSslSessionTimeoutSeconds() {
+    int result;
+    Integer defVal = getIntValue(TAG_HTTP, ATTRIB_SSL_SESSION_TIMEOUT);
+    result = (defVal != null) ? defVal.intValue() : 24 * 60 * 60;
+    return result;
+  }
+
+  /**
+   * Indicates whether TLS session tickets are used for resumption, where the
+   * platform supports them.
+   * @return <code>false</code> if disabled by the factory default settings file; <code>true</code> otherwise.
+   */
+  public boolean getSslSessionTicketsEnabled() {
+    boolean result;
+    Boolean defVal = getBooleanValue(TAG_HTTP, ATTRIB_SSL_SESSION_TICKETS);
+    result = (defVal != null) ? defVal : true;
+    return result;
+  }
+
+  /**
+   * Retrieves the max size in bytes of a request body to be buffered in memory.
+   * A larger request body is spilled to a temporary file.
+   * @return The request body buffer threshold in bytes.
+   */
+  public int getHttpRequestBufferThreshold() {
+    int result;
+    Integer defVal = getIntValue(TAG_HTTP, ATTRIB_REQUEST_BUFFER_THRESHOLD);
+    result = (defVal != null) ? defVal.intValue() : FileUtil.CONTENT_LENGTH_THRESHOLD;
+    return result;
+  }
+
+  /**
+   * Indicates whether the requests to an endpoint are rejected after repeated
+   * failures and limited by the observed latency.
+   * @return <code>false</code> if disabled by the factory default settings file; <code>true</code> otherwise.
+   */
+  public boolean getHttpCircuitBreakerEnabled() {
+    boolean result;
+    Boolean defVal = getBooleanValue(TAG_HTTP, ATTRIB_CIRCUIT_BREAKER);
+    result = (defVal != null) ? defVal : true;
+    return result;
+  }
+
+  /**
+   * Retrieves the max number of duplicate requests sent by hedging, in
+   * percentage of the hedgeable calls.
+   * @return The hedging budget in percent.
+   */
+  public int getHttpHedgeBudgetPercent() {
+    int result;
+    Integer defVal = getIntValue(TAG_HTTP, ATTRIB_HEDGE_BUDGET);
+    result = (defVal != null) ? defVal.intValue() : 5;
+    return result;
+  }
+
+  /**
+   * Retrieves the endpoints to be warmed up at startup.  Each endpoint is a
+   * connection name or an absolute URL, separated by commas.
+   * @return The endpoints, or an empty array if none.
+   */
+  public String[] getHttpWarmupEndpoints() {
+    String defVal = mParsedSettingsMap.get(TAG_HTTP).getProperty(ATTRIB_WARMUP_ENDPOINTS);
+    if (defVal == null || defVal.trim().length() == 0) {
+      return new String[0];
+    }
+    String[] result = defVal.split(",");
+    for (int i = 0; i < result.length; i++) {
+      result[i] = result[i].trim();
+    }
+    return result;
+  }
+
+  /**
+   * Retrieves the transport types declared in the settings.
+   * @return A map of the type names to the ConnectionServiceFactory class names.
+   */
+  public Map<String, String> getTransportFactories() {
+    HashMap<String, String> result = new HashMap<String, String>();
+    Properties props = mParsedSettingsMap.get(TAG_TRANSPORTS);
+    for (String name : props.stringPropertyNames()) {
+      result.put(name, props.getProperty(name));
+    }
+    return result;
+  }
+
   /** Internal Use Only */
   public Boolean getBooleanValue(String tag, String propName) {
     Boolean result = null;
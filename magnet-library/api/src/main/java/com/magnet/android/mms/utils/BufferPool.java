@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+
+package com.magnet.android.mms.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of I/O buffers in power-of-two size classes from 1KB to 64KB.  Each
+ * thread caches one buffer per size class; the rest are shared in lock-free
+ * queues.  A buffer must be released exactly once and not used afterwards.
+ * A request larger than the largest size class is not pooled.
+ */
+public final class BufferPool {
+  public final static int MIN_BUFFER_SIZE = 1024;
+  public final static int MAX_BUFFER_SIZE = 64 * 1024;
+  public final static int DEFAULT_BUFFER_SIZE = 8192;
+  private final static int MIN_SHIFT = 10;
+  private final static int NUM_CLASSES = 7;   // 1KB, 2KB, ..., 64KB
+  private final static byte[] EMPTY = new byte[0];
+
+  private static volatile int sBufferSize = DEFAULT_BUFFER_SIZE;
+  private static volatile int sMaxPooled = 16;
+
+  private final static List<ConcurrentLinkedQueue<byte[]>> sQueues =
+      new ArrayList<ConcurrentLinkedQueue<byte[]>>(NUM_CLASSES);
+  private final static AtomicInteger[] sQueueSizes = new AtomicInteger[NUM_CLASSES];
+  private final static ThreadLocal<byte[][]> sThreadCache = new ThreadLocal<byte[][]>() {
+    @Override
+    protected byte[][] initialValue() {
+      return new byte[NUM_CLASSES][];
+    }
+  };
+  private final static Stats sStats = new Stats();
+
+  static {
+    for (int i = 0; i < NUM_CLASSES; i++) {
+      sQueues.add(new ConcurrentLinkedQueue<byte[]>());
+      sQueueSizes[i] = new AtomicInteger();
+    }
+  }
+
+  private BufferPool() {
+  }
+
+  /**
+   * Buffer pool statistics.
+   */
+  public static final class Stats {
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * @return The number of buffers acquired from the pool.
+     */
+    public long getHits() {
+      return mHits.get();
+    }
+
+    /**
+     * @return The number of buffers allocated because the pool was empty.
+     */
+    public long getMisses() {
+      return mMisses.get();
+    }
+
+    /**
+     * @return The number of released buffers discarded because the pool was full.
+     */
+    public long getDropped() {
+      return mDropped.get();
+    }
+
+    /**
+     * @return The fraction of buffers acquired from the pool.
+     */
+    public double getHitRate() {
+      long total = mHits.get() + mMisses.get();
+      return (total == 0) ? 0.0 : (double) mHits.get() / total;
+    }
+
+    @Override
+    public String toString() {
+      return "BufferPoolStats{hits="+getHits()+", misses="+getMisses()+
+          ", dropped="+getDropped()+", hitRate="+getHitRate()+"}";
+    }
+  }
+
+  /**
+   * Get the buffer pool statistics.
+   * @return The statistics.
+   */
+  public static Stats getStats() {
+    return sStats;
+  }
+
+  /**
+   * Set the size of the buffers used by the I/O paths.  It is rounded up to
+   * a size class.
+   * @param size The buffer size in bytes between 1KB and 64KB.
+   */
+  public static void setBufferSize(int size) {
+    if (size < MIN_BUFFER_SIZE || size > MAX_BUFFER_SIZE) {
+      throw new IllegalArgumentException("Buffer size must be between "+
+          MIN_BUFFER_SIZE+" and "+MAX_BUFFER_SIZE+": "+size);
+    }
+    sBufferSize = MIN_BUFFER_SIZE << sizeClass(size);
+  }
+
+  /**
+   * @return The size of the buffers used by the I/O paths.
+   */
+  public static int getBufferSize() {
+    return sBufferSize;
+  }
+
+  /**
+   * Set the max number of idle buffers shared by all threads per size class.
+   * @param maxPooled The max number of buffers.
+   */
+  public static void setMaxPooledBuffers(int maxPooled) {
+    sMaxPooled = maxPooled;
+  }
+
+  // the smallest size class holding the size
+  private static int sizeClass(int size) {
+    if (size <= MIN_BUFFER_SIZE) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+  }
+
+  /**
+   * Acquire a buffer of the default I/O buffer size.
+   * @return A buffer.
+   */
+  public static byte[] acquire() {
+    return acquire(sBufferSize);
+  }
+
+  /**
+   * Acquire a buffer of at least the specified size.
+   * @param size The min size in bytes.
+   * @return A buffer which may be larger than the size.
+   */
+  public static byte[] acquire(int size) {
+    if (size > MAX_BUFFER_SIZE) {
+      sStats.mMisses.incrementAndGet();
+      return new byte[size];
+    }
+    int index = sizeClass(size);
+    byte[][] cache = sThreadCache.get();
+    byte[] buffer = cache[index];
+    if (buffer != null) {
+      cache[index] = null;
+    } else if ((buffer = sQueues.get(index).poll()) != null) {
+      sQueueSizes[index].decrementAndGet();
+    } else {
+      sStats.mMisses.incrementAndGet();
+      return new byte[MIN_BUFFER_SIZE << index];
+    }
+    sStats.mHits.incrementAndGet();
+    return buffer;
+  }
+
+  /**
+   * Return a buffer to the pool.  A buffer not from the pool is ignored.
+   * @param buffer The buffer, or null.
+   */
+  public static void release(byte[] buffer) {
+    if (buffer == null || buffer.length < MIN_BUFFER_SIZE ||
+        buffer.length > MAX_BUFFER_SIZE || Integer.bitCount(buffer.length) != 1) {
+      return;
+    }
+    int index = sizeClass(buffer.length);
+    byte[][] cache = sThreadCache.get();
+    if (cache[index] == null) {
+      cache[index] = buffer;
+    } else if (sQueueSizes[index].incrementAndGet() <= sMaxPooled) {
+      sQueues.get(index).offer(buffer);
+    } else {
+      sQueueSizes[index].decrementAndGet();
+      sStats.mDropped.incrementAndGet();
+    }
+  }
+
+  /**
+   * Create a buffered input stream with a pooled buffer.  The buffer is
+   * released when the stream is closed.
+   * @param in The input stream.
+   * @return The buffered input stream.
+   */
+  public static BufferedInputStream newInputStream(InputStream in) {
+    return new PooledInputStream(in);
+  }
+
+  /**
+   * Create a buffered output stream with a pooled buffer.  The buffer is
+   * released when the stream is closed.
+   * @param out The output stream.
+   * @return The buffered output stream.
+   */
+  public static BufferedOutputStream newOutputStream(OutputStream out) {
+    return new PooledOutputStream(out);
+  }
+
+  private static class PooledInputStream extends BufferedInputStream {
+    private boolean mClosed;
+
+    PooledInputStream(InputStream in) {
+      super(in, 1);
+      buf = acquire();
+    }
+
+    @Override
+    public void close() throws IOException {
+      byte[] buffer;
+      synchronized (this) {
+        if (mClosed) {
+          return;
+        }
+        mClosed = true;
+        buffer = buf;
+      }
+      try {
+        super.close();
+      } finally {
+        release(buffer);
+      }
+    }
+  }
+
+  private static class PooledOutputStream extends BufferedOutputStream {
+    private boolean mClosed;
+
+    PooledOutputStream(OutputStream out) {
+      super(out, 1);
+      buf = acquire();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (mClosed) {
+        return;
+      }
+      mClosed = true;
+      try {
+        super.close();
+      } finally {
+        byte[] buffer = buf;
+        // a write after close fails instead of corrupting a reused buffer
+        buf = EMPTY;
+        release(buffer);
+      }
+    }
+  }
+}
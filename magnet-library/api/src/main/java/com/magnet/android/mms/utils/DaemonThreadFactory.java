@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This is an internal class.  It creates the numbered daemon threads of a
+ * background executor, so that the executor never keeps the process alive.
+ */
+public final class DaemonThreadFactory implements ThreadFactory {
+  private final String mName;
+  private final AtomicInteger mId = new AtomicInteger();
+
+  /**
+   * @param name The thread name; a sequence number is appended to it.
+   */
+  public DaemonThreadFactory(String name) {
+    mName = name;
+  }
+
+  @Override
+  public Thread newThread(Runnable runnable) {
+    Thread thread = new Thread(runnable, mName+"-"+mId.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  }
+}
@@ -250,7 +250,7 @@ public class FileUtil {
    */
   public static boolean tee(InputStream input, FileOp... fileOps) {
     int count;
-    byte[] buffer = new byte[8192];
+    byte[] buffer = BufferPool.acquire();
     try {
       for (FileOp fileOp: fileOps) {
         if (fileOp != null) {
@@ -279,6 +279,8 @@ public class FileUtil {
         }
       }
       return false;
+    } finally {
+      BufferPool.release(buffer);
     }
   }
     
@@ -290,7 +292,8 @@ public class FileUtil {
    */
   public static boolean tee(FileChannel channel, FileOp... fileOps) {
     int count;
-    ByteBuffer buffer = ByteBuffer.wrap(new byte[8192]);
+    byte[] array = BufferPool.acquire();
+    ByteBuffer buffer = ByteBuffer.wrap(array);
     try {
       for (FileOp fileOp: fileOps) {
         if (fileOp != null) {
@@ -322,6 +325,8 @@ public class FileUtil {
         }
       }
       return false;
+    } finally {
+      BufferPool.release(array);
     }
   }
   
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.utils;
+
+import com.magnet.android.mms.utils.logger.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An output stream which buffers in memory and transparently spills to a temp
+ * file once the content exceeds a threshold.  Small content never touches the
+ * file system.  The caller owns the spilled file after {@link #close()}.  If
+ * the file cannot be created, the content stays in memory.  The in-memory
+ * content is kept in chunks from the {@link BufferPool}; they are released
+ * when the content is spilled, or collected by {@link #close()} or
+ * {@link #toByteArray()}.
+ */
+public class SpillableOutputStream extends OutputStream {
+  private final static String TAG = "SpillableOutputStream";
+  private final int mThreshold;
+  private final File mDir;
+  private final List<byte[]> mChunks = new ArrayList<byte[]>();
+  private int mCount;
+  private byte[] mContent;
+  private File mFile;
+  private OutputStream mFileOs;
+  private long mSize;
+  private boolean mSpillFailed;
+
+  /**
+   * Constructor with the spill threshold; the file is created in the default
+   * temp directory.
+   * @param threshold Max number of bytes to be kept in memory.
+   */
+  public SpillableOutputStream(int threshold) {
+    this(threshold, null);
+  }
+
+  /**
+   * Constructor with the spill threshold and the directory for the file.
+   * @param threshold Max number of bytes to be kept in memory.
+   * @param dir A directory for the spilled file, or null for the default.
+   */
+  public SpillableOutputStream(int threshold, File dir) {
+    mThreshold = threshold;
+    mDir = dir;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    checkOpen();
+    if (mFileOs == null && !mSpillFailed && mCount + 1 > mThreshold) {
+      spill();
+    }
+    if (mFileOs != null) {
+      mFileOs.write(b);
+    } else {
+      byte[] chunk = currentChunk();
+      chunk[mCount++ % chunk.length] = (byte) b;
+    }
+    ++mSize;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    checkOpen();
+    if (mFileOs == null && !mSpillFailed && mCount + len > mThreshold) {
+      spill();
+    }
+    if (mFileOs != null) {
+      mFileOs.write(b, off, len);
+    } else {
+      int end = off + len;
+      while (off < end) {
+        byte[] chunk = currentChunk();
+        int pos = mCount % chunk.length;
+        int n = Math.min(end - off, chunk.length - pos);
+        System.arraycopy(b, off, chunk, pos, n);
+        off += n;
+        mCount += n;
+      }
+    }
+    mSize += len;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (mFileOs != null) {
+      mFileOs.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (mFileOs != null) {
+      mFileOs.close();
+    } else {
+      collect();
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (mContent != null) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  // The chunk with room for the next byte.  All chunks have the same size.
+  private byte[] currentChunk() {
+    int index = (mChunks.isEmpty()) ? 0 : mCount / mChunks.get(0).length;
+    if (index == mChunks.size()) {
+      mChunks.add(BufferPool.acquire());
+    }
+    return mChunks.get(index);
+  }
+
+  // Copy the in-memory content out of the chunks and release them.
+  private void collect() {
+    if (mContent != null) {
+      return;
+    }
+    mContent = new byte[mCount];
+    int pos = 0;
+    for (byte[] chunk : mChunks) {
+      int n = Math.min(chunk.length, mCount - pos);
+      System.arraycopy(chunk, 0, mContent, pos, n);
+      pos += n;
+    }
+    releaseChunks();
+  }
+
+  private void releaseChunks() {
+    for (byte[] chunk : mChunks) {
+      BufferPool.release(chunk);
+    }
+    mChunks.clear();
+  }
+
+  // Move the content to a temp file, or keep it in memory from now on if the
+  // file cannot be written.
+  private void spill() {
+    File file = null;
+    OutputStream fileOs = null;
+    try {
+      file = File.createTempFile("reqbody", ".req", mDir);
+      fileOs = new FileOutputStream(file);
+      int pos = 0;
+      for (byte[] chunk : mChunks) {
+        int n = Math.min(chunk.length, mCount - pos);
+        fileOs.write(chunk, 0, n);
+        pos += n;
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "unable to spill "+mCount+" bytes to a file; keep them in memory", e);
+      if (fileOs != null) {
+        try {
+          fileOs.close();
+        } catch (IOException ce) {
+          // Ignored.
+        }
+      }
+      if (file != null) {
+        file.delete();
+      }
+      mSpillFailed = true;
+      return;
+    }
+    mFile = file;
+    mFileOs = fileOs;
+    releaseChunks();
+    mCount = 0;
+  }
+
+  /**
+   * Check if the content has been spilled to a file.
+   * @return true if the content is in {@link #getFile()}.
+   */
+  public boolean isSpilled() {
+    return mFile != null;
+  }
+
+  /**
+   * Get the spilled file.
+   * @return The file, or null if the content is still in memory.
+   */
+  public File getFile() {
+    return mFile;
+  }
+
+  /**
+   * Get the total number of bytes written.
+   * @return The content length.
+   */
+  public long size() {
+    return mSize;
+  }
+
+  /**
+   * Get the in-memory content.  No more content can be written afterwards.
+   * @return The content, or null if it has been spilled.
+   */
+  public byte[] toByteArray() {
+    if (mFile != null) {
+      return null;
+    }
+    collect();
+    return mContent;
+  }
+}
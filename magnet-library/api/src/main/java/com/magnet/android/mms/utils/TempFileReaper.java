@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.utils;
+
+import com.magnet.android.mms.utils.logger.Log;
+
+import java.io.File;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reclaim temporary files without finalizers or shutdown hooks.  A temp file
+ * is tracked against an owner object; the file is deleted when it is
+ * explicitly released, or by a background reaper thread after the owner
+ * becomes phantom reachable.
+ */
+public class TempFileReaper {
+  private final static String TAG = "TempFileReaper";
+  private static TempFileReaper sInstance;
+
+  private final ReferenceQueue<Object> mQueue = new ReferenceQueue<Object>();
+  private final ConcurrentHashMap<String, FileRef> mRefs =
+      new ConcurrentHashMap<String, FileRef>();
+  private final AtomicLong mOutstandingBytes = new AtomicLong();
+  private final AtomicLong mReleased = new AtomicLong();
+  private final AtomicLong mReaped = new AtomicLong();
+
+  private static class FileRef extends PhantomReference<Object> {
+    final String mPath;
+    final long mSize;
+
+    FileRef(Object owner, File file, ReferenceQueue<Object> queue) {
+      super(owner, queue);
+      mPath = file.getAbsolutePath();
+      mSize = file.length();
+    }
+  }
+
+  private class Reaper extends Thread {
+    Reaper() {
+      super("TempFileReaper");
+      setDaemon(true);
+      setPriority(Thread.MIN_PRIORITY);
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          FileRef ref = (FileRef) mQueue.remove();
+          if (remove(ref)) {
+            mReaped.incrementAndGet();
+            if (Log.isLoggable(Log.DEBUG)) {
+              Log.d(TAG, "reaped "+ref.mPath);
+            }
+          }
+        } catch (InterruptedException e) {
+          // Ignored.
+        }
+      }
+    }
+  }
+
+  private TempFileReaper() {
+    new Reaper().start();
+  }
+
+  /**
+   * Get the singleton instance.  The reaper thread is started on first use.
+   * @return The reaper.
+   */
+  public static synchronized TempFileReaper getInstance() {
+    if (sInstance == null) {
+      sInstance = new TempFileReaper();
+    }
+    return sInstance;
+  }
+
+  /**
+   * Track a temp file against its owner.  The file will be deleted after the
+   * owner is garbage collected unless it is released earlier.  Tracking an
+   * already tracked file is a no-op.
+   * @param owner The object holding the file.
+   * @param file A temp file.
+   */
+  public void track(Object owner, File file) {
+    FileRef ref = new FileRef(owner, file, mQueue);
+    if (mRefs.putIfAbsent(ref.mPath, ref) == null) {
+      mOutstandingBytes.addAndGet(ref.mSize);
+    } else {
+      ref.clear();
+    }
+  }
+
+  /**
+   * Stop tracking a file without deleting it, e.g. it has been moved.
+   * @param file A tracked file.
+   * @return true if the file was tracked.
+   */
+  public boolean untrack(File file) {
+    FileRef ref = mRefs.get(file.getAbsolutePath());
+    if (ref == null) {
+      return false;
+    }
+    ref.clear();
+    if (mRefs.remove(ref.mPath, ref)) {
+      mOutstandingBytes.addAndGet(-ref.mSize);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Explicitly delete a file.  The file is deleted whether it is tracked or not.
+   * @param file A temp file.
+   * @return true if the file is deleted.
+   */
+  public boolean release(File file) {
+    if (untrack(file)) {
+      mReleased.incrementAndGet();
+    }
+    return file.delete();
+  }
+
+  private boolean remove(FileRef ref) {
+    if (!mRefs.remove(ref.mPath, ref)) {
+      return false;
+    }
+    mOutstandingBytes.addAndGet(-ref.mSize);
+    new File(ref.mPath).delete();
+    return true;
+  }
+
+  /**
+   * @return The number of temp files tracked but not yet deleted.
+   */
+  public int getOutstandingFiles() {
+    return mRefs.size();
+  }
+
+  /**
+   * @return The total size in bytes of the files when they were tracked.
+   */
+  public long getOutstandingBytes() {
+    return mOutstandingBytes.get();
+  }
+
+  /**
+   * @return The number of files deleted explicitly.
+   */
+  public long getReleasedCount() {
+    return mReleased.get();
+  }
+
+  /**
+   * @return The number of files deleted by the reaper after their owners
+   * were garbage collected.
+   */
+  public long getReapedCount() {
+    return mReaped.get();
+  }
+
+  @Override
+  public String toString() {
+    return "TempFileReaper{outstandingFiles="+getOutstandingFiles()+
+        ", outstandingBytes="+getOutstandingBytes()+
+        ", released="+getReleasedCount()+", reaped="+getReapedCount()+"}";
+  }
+}
@@ -81,15 +81,16 @@ public class Util {
    */
   public static String inputStreamToString(InputStream input) 
                                               throws IOException {
+    byte[] buffer = BufferPool.acquire();
     try {
       int n;
-      byte[] buffer = new byte[8192];
       StringBuilder sb = new StringBuilder();
       while ((n = input.read(buffer)) > 0) {
         sb.append(new String(buffer, 0, n));
       }
       return sb.toString();
     } finally {
+      BufferPool.release(buffer);
       input.close();
     }
   }
@@ -104,14 +105,15 @@ public class Util {
   public static byte[] inputStreamToByteArray(InputStream input) 
                                                 throws IOException {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    byte[] buffer = BufferPool.acquire();
     try {
       int n;
-      byte[] buffer = new byte[8192];
       while ((n = input.read(buffer)) > 0) {
         baos.write(buffer, 0, n);
       }
       return baos.toByteArray();
     } finally {
+      BufferPool.release(buffer);
       input.close();
     }
   }
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2014 Magnet Systems, Inc.
+ * All rights reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ */
+package com.magnet.android.mms.utils.logger;
+
+import com.magnet.android.mms.BuildConfig;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Logs HTTP headers and bodies on the wire.  Wire logging is compiled out of
+ * release builds, and it is only enabled in debug builds when the
+ * {@link #TAG} log level is at least {@link Log#VERBOSE}.  Use
+ * {@link #newSession()} per request; it returns null when the request is not
+ * logged, so callers pay nothing beyond a null check.  Bodies are captured up
+ * to a byte limit, and sensitive headers and JSON fields are redacted.
+ */
+public final class WireLogger {
+  /** The log tag for wire logging. */
+  public final static String TAG = "WireLogger";
+  /** The replacement of a redacted value. */
+  public final static String REDACTED = "<redacted>";
+  private final static boolean ENABLED = BuildConfig.DEBUG;
+
+  private static volatile int sSampleRate = 1;
+  private static volatile int sMaxBodyBytes = 1024;
+  private static volatile Sink sSink = new Sink() {
+    @Override
+    public void log(String msg) {
+      Log.v(TAG, msg);
+    }
+  };
+  private static final AtomicLong sCounter = new AtomicLong();
+  private static final HashSet<String> sRedactedHeaders = new HashSet<String>();
+  private static final HashSet<String> sRedactedFieldNames = new HashSet<String>();
+  private static volatile Pattern sRedactedFields;
+
+  static {
+    addRedactedHeader("Authorization");
+    addRedactedHeader("Proxy-Authorization");
+    addRedactedHeader("Cookie");
+    addRedactedHeader("Set-Cookie");
+  }
+
+  /**
+   * The destination of wire logs.
+   */
+  public interface Sink {
+    /**
+     * Log a formatted message.
+     * @param msg A message with redacted content.
+     */
+    public void log(String msg);
+  }
+
+  private WireLogger() {
+  }
+
+  /**
+   * Replace the destination of wire logs.  The default sink is {@link Log#v(String, String)}.
+   * @param sink A sink.
+   */
+  public static void setSink(Sink sink) {
+    if (sink == null) {
+      throw new IllegalArgumentException("Sink cannot be null");
+    }
+    sSink = sink;
+  }
+
+  /**
+   * Log one in every <code>rate</code> requests.
+   * @param rate 1 to log every request.
+   */
+  public static void setSampleRate(int rate) {
+    if (rate < 1) {
+      throw new IllegalArgumentException("Invalid sample rate: "+rate);
+    }
+    sSampleRate = rate;
+  }
+
+  /**
+   * Set the max number of bytes to be logged from a request or response body.
+   * @param maxBytes 0 to log no body.
+   */
+  public static void setMaxBodyBytes(int maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("Invalid max body bytes: "+maxBytes);
+    }
+    sMaxBodyBytes = maxBytes;
+  }
+
+  /**
+   * Redact the value of a header; header names are case insensitive.
+   * @param name A header name.
+   */
+  public static void addRedactedHeader(String name) {
+    synchronized (sRedactedHeaders) {
+      sRedactedHeaders.add(name.toLowerCase(Locale.US));
+    }
+  }
+
+  /**
+   * Redact the string, number or boolean value of a JSON field, or the value of
+   * an <code>application/x-www-form-urlencoded</code> field, in logged bodies.
+   * A value cut off by the max body bytes is redacted too.
+   * @param name A JSON or form field name.
+   */
+  public static void addRedactedField(String name) {
+    synchronized (sRedactedFieldNames) {
+      sRedactedFieldNames.add(name);
+      StringBuilder regex = new StringBuilder();
+      for (String field : sRedactedFieldNames) {
+        if (regex.length() > 0) {
+          regex.append('|');
+        }
+        regex.append(Pattern.quote(field));
+      }
+      // A JSON string may be unterminated at the end of a truncated body.
+      sRedactedFields = Pattern.compile("(\"(?:"+regex+")\"\\s*:\\s*)"+
+          "(\"(?:[^\"\\\\]|\\\\.)*(?:\"|\\\\?\\z)|[-\\w.]+)|"+
+          "((?:^|&)(?:"+regex+")=)[^&]*");
+    }
+  }
+
+  /**
+   * Check if wire logging is enabled at all.
+   * @return true if wire logging is enabled.
+   */
+  public static boolean isEnabled() {
+    return ENABLED && Log.isLoggable(TAG, Log.VERBOSE);
+  }
+
+  /**
+   * Start a wire logging session for a request.
+   * @return A session, or null if the request is not logged.
+   */
+  public static Session newSession() {
+    if (!isEnabled()) {
+      return null;
+    }
+    int rate = sSampleRate;
+    if (rate > 1 && (sCounter.getAndIncrement() % rate) != 0) {
+      return null;
+    }
+    return new Session(sMaxBodyBytes);
+  }
+
+  static boolean isRedactedHeader(String name) {
+    if (name == null) {
+      return false;
+    }
+    synchronized (sRedactedHeaders) {
+      return sRedactedHeaders.contains(name.toLowerCase(Locale.US));
+    }
+  }
+
+  static String redactBody(String body) {
+    Pattern pattern = sRedactedFields;
+    if (pattern == null) {
+      return body;
+    }
+    Matcher matcher = pattern.matcher(body);
+    StringBuffer sb = new StringBuffer(body.length());
+    while (matcher.find()) {
+      if (matcher.group(1) != null) {
+        matcher.appendReplacement(sb, "$1\""+REDACTED+"\"");
+      } else {
+        matcher.appendReplacement(sb, "$3"+REDACTED);
+      }
+    }
+    matcher.appendTail(sb);
+    return sb.toString();
+  }
+
+  /**
+   * A wire logging session of a request and its response.
+   */
+  public static final class Session {
+    private final byte[] mBody;
+    private int mCount;
+    private long mTotal;
+
+    private Session(int maxBodyBytes) {
+      mBody = new byte[maxBodyBytes];
+    }
+
+    /**
+     * Log the headers.
+     * @param title A description of the headers.
+     * @param headers A map of headers.
+     */
+    public void logHeaders(String title, Map<String, List<String>> headers) {
+      StringBuilder sb = new StringBuilder(title).append(":\n");
+      for (Entry<String, List<String>> entry : headers.entrySet()) {
+        String name = entry.getKey();
+        sb.append("    ").append(name).append('=');
+        if (isRedactedHeader(name)) {
+          sb.append(REDACTED);
+        } else {
+          sb.append(entry.getValue());
+        }
+        sb.append('\n');
+      }
+      sSink.log(sb.toString());
+    }
+
+    /**
+     * Capture a chunk of the body; the bytes beyond the max are counted only.
+     * @param buffer The bytes.
+     * @param offset The offset in the buffer.
+     * @param length The number of bytes.
+     */
+    public void captureBody(byte[] buffer, int offset, int length) {
+      int n = Math.min(length, mBody.length - mCount);
+      if (n > 0) {
+        System.arraycopy(buffer, offset, mBody, mCount, n);
+        mCount += n;
+      }
+      mTotal += length;
+    }
+
+    /**
+     * Wrap a response body to capture it as it is read.  The captured body is
+     * logged when the stream is closed.
+     * @param ins The response body.
+     * @param title A description of the body.
+     * @return A wrapped input stream.
+     */
+    public InputStream wrapBody(InputStream ins, final String title) {
+      return new FilterInputStream(ins) {
+        @Override
+        public int read() throws IOException {
+          int b = in.read();
+          if (b >= 0) {
+            captureBody(new byte[] { (byte) b }, 0, 1);
+          }
+          return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+          int n = in.read(buffer, offset, length);
+          if (n > 0) {
+            captureBody(buffer, offset, n);
+          }
+          return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+          logBody(title);
+          in.close();
+        }
+      };
+    }
+
+    /**
+     * Log and reset the captured body.
+     * @param title A description of the body.
+     */
+    public void logBody(String title) {
+      if (mCount > 0) {
+        StringBuilder sb = new StringBuilder(title).append(" (")
+            .append(mTotal).append(" bytes):\n    ")
+            .append(redactBody(new String(mBody, 0, mCount)));
+        if (mTotal > mCount) {
+          sb.append("...");
+        }
+        sSink.log(sb.toString());
+      }
+      mCount = 0;
+      mTotal = 0;
+    }
+  }
+}